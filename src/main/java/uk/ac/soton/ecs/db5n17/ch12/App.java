@@ -1,7 +1,6 @@
 package uk.ac.soton.ecs.db5n17.ch12;
 
 import de.bwaldvogel.liblinear.SolverType;
-import org.openimaj.data.DataSource;
 import org.openimaj.data.dataset.Dataset;
 import org.openimaj.data.dataset.GroupedDataset;
 import org.openimaj.data.dataset.ListDataset;
@@ -9,25 +8,12 @@ import org.openimaj.data.dataset.VFSListDataset;
 import org.openimaj.experiment.dataset.sampling.GroupSampler;
 import org.openimaj.experiment.dataset.sampling.GroupedUniformRandomisedSampler;
 import org.openimaj.experiment.dataset.split.GroupedRandomSplitter;
-import org.openimaj.experiment.evaluation.classification.ClassificationEvaluator;
-import org.openimaj.experiment.evaluation.classification.ClassificationResult;
-import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMAnalyser;
 import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMResult;
-import org.openimaj.feature.DiskCachingFeatureExtractor;
 import org.openimaj.feature.DoubleFV;
 import org.openimaj.feature.FeatureExtractor;
-import org.openimaj.feature.SparseIntFV;
-import org.openimaj.feature.local.data.LocalFeatureListDataSource;
-import org.openimaj.feature.local.list.LocalFeatureList;
 import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
 import org.openimaj.image.annotation.evaluation.datasets.Caltech101;
-import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
-import org.openimaj.image.feature.dense.gradient.dsift.DenseSIFT;
-import org.openimaj.image.feature.dense.gradient.dsift.PyramidDenseSIFT;
-import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
-import org.openimaj.image.feature.local.aggregate.BlockSpatialAggregator;
-import org.openimaj.image.feature.local.aggregate.PyramidSpatialAggregator;
 import org.openimaj.io.IOUtils;
 import org.openimaj.ml.annotation.linear.LiblinearAnnotator;
 import org.openimaj.ml.clustering.ByteCentroidsResult;
@@ -38,9 +24,9 @@ import org.openimaj.util.pair.IntFloatPair;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.Locale;
 
 /**
  * OpenIMAJ Tutorial - Chapter 12: Classification with Caltech 101
@@ -48,40 +34,6 @@ import java.util.Map;
  */
 public class App
 {
-    // A Pyramid Histogram of Words (PHOW) feature extractor.
-    static class PHOWExtractor implements FeatureExtractor<DoubleFV, Caltech101.Record<FImage>>
-    {
-        PyramidDenseSIFT<FImage> pdsift;
-        HardAssigner<byte[], float[], IntFloatPair> assigner;
-
-        public PHOWExtractor(PyramidDenseSIFT<FImage> pdsift, HardAssigner<byte[], float[], IntFloatPair> assigner)
-        {
-            this.pdsift = pdsift;
-            this.assigner = assigner;
-        }
-
-        public DoubleFV extractFeature(Caltech101.Record<FImage> object)
-        {
-            // Analyse the dense SIFT features of the image.
-            FImage image = object.getImage();
-            pdsift.analyseImage(image);
-
-            // Construct a Bag of Visual Words (BoVW) for each Dense SIFT feature in the assigner.
-            BagOfVisualWords<byte[]> bovw = new BagOfVisualWords<>(assigner);
-
-            // Compute 4 histograms across the image (2x2 grid).
-//            BlockSpatialAggregator<byte[], SparseIntFV> spatial = new BlockSpatialAggregator<byte[], SparseIntFV>(
-//                    bovw, 2, 2);
-
-            // Use a PyramidSpatialAggregator with [2, 4] blocks.
-            PyramidSpatialAggregator<byte[], SparseIntFV> spatial = new PyramidSpatialAggregator<>(
-                    bovw, 2, 4);
-
-            // Return a normalized aggregate histogram.
-            return spatial.aggregate(pdsift.getByteKeypoints(0.015f), image.getBounds()).normaliseFV();
-        }
-    }
-
     public static void main( String[] args ) throws IOException
     {
         // Load all the data from the Caltech 101 dataset.
@@ -92,79 +44,111 @@ public class App
         GroupedDataset<String, ListDataset<Caltech101.Record<FImage>>, Caltech101.Record<FImage>> data =
                 GroupSampler.sample(allData, 5, false);
 
-        // Split the data into 15 training images, and 15 testing images.
+        // Split the data into 15 training images, 5 validation images (for choosing the classifier's parameters) and
+        // 10 testing images per class (the smallest classes have only 31 images).
         GroupedRandomSplitter<String, Caltech101.Record<FImage>> splits =
-                new GroupedRandomSplitter<>(allData, 15, 0, 15);
+                new GroupedRandomSplitter<>(allData, 15, 5, 10);
 
-        // Construct a Dense SIFT extractor for usage in a PHOW (Pyramid Histogram of Words).
-        DenseSIFT dsift = new DenseSIFT(3, 7);
-        PyramidDenseSIFT<FImage> pdsift = new PyramidDenseSIFT<>(dsift, 6f, 4, 6, 8, 10);
+        // Construct Dense SIFT extractors (one per thread) for usage in a PHOW (Pyramid Histogram of Words).
+        DenseSIFTEngines engines = new DenseSIFTEngines(3, 7, 6f, 4, 6, 8, 10);
 
         // Train a vector quantiser which returns an assigner for dense SIFT features.
         // Note: This trainer uses a sample of 30 images from each group.
         HardAssigner<byte[], float[], IntFloatPair> assigner =
-                trainQuantiser(GroupedUniformRandomisedSampler.sample(splits.getTrainingDataset(), 30), pdsift);
+                trainQuantiser(GroupedUniformRandomisedSampler.sample(splits.getTrainingDataset(), 30), engines);
 
         // Cache the assigner to a file using the IOUtils.writeToFile() method.
         File cachedAssignerFile = new File("C://Users//Dan//Desktop//comp3204//cache//assigner");
         cachedAssignerFile.createNewFile();
         IOUtils.writeToFile(assigner, cachedAssignerFile);
 
-        // Create a new PHOW (Pyramid Histogram of Words) feature extractor.
-        FeatureExtractor<DoubleFV, Caltech101.Record<FImage>> extractor = new PHOWExtractor(pdsift, (HardAssigner)IOUtils.readFromFile(cachedAssignerFile));
-
         // Exercise 1: Apply a Homogeneous Kernel Map
-        // Wrap a HomogenousKernelMap of type Chi2 around the extractor.
+        // Apply a HomogenousKernelMap of type Chi2 to the PHOW features.
         // This has a noticeable impact of the performance of the classifier, increasing an average accuracy of about 70% to one of about 80%.
         HomogeneousKernelMap kernelMap = new HomogeneousKernelMap(HomogeneousKernelMap.KernelType.Chi2, HomogeneousKernelMap.WindowType.Rectangular);
-        FeatureExtractor<DoubleFV, Caltech101.Record<FImage>> wrappedExtractor = kernelMap.createWrappedExtractor(extractor);
+
+        // Create a new PHOW (Pyramid Histogram of Words) feature extractor, using [2, 4] blocks and safe to use from
+        // several threads at once. The pyramid histogram is normalised and kernel mapped in a single pass, rather than
+        // building a new feature vector for each step.
+        FeatureExtractor<DoubleFV, Caltech101.Record<FImage>> wrappedExtractor = new FusedPHOWExtractor(engines, 0.015f,
+                (HardAssigner)IOUtils.readFromFile(cachedAssignerFile), kernelMap, 2, 4);
 
         // Exercise 2: Feature caching
-        // Cache the extractor to a file using the DiskCachingFeatureExtractor class, which means features that have already been generated do not need to be regenerated.
-        File cachedExtractorFile = new File("C://Users//Dan//Desktop//comp3204//cache//extractor");
-        cachedExtractorFile.createNewFile();
-        DiskCachingFeatureExtractor<DoubleFV, Caltech101.Record<FImage>> cachedExtractor = new DiskCachingFeatureExtractor<>(cachedExtractorFile, wrappedExtractor);
-
-        // Construct and train a linear classifier using the LiblinearAnnotator class.
-        LiblinearAnnotator<Caltech101.Record<FImage>, String> ann = new LiblinearAnnotator<>(
-                cachedExtractor, LiblinearAnnotator.Mode.MULTICLASS, SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001);
-        ann.train(splits.getTrainingDataset());
-
-        // Evaluate how well our classifier is working and output the accuracy.
-        ClassificationEvaluator<CMResult<String>, String, Caltech101.Record<FImage>> eval =
-                new ClassificationEvaluator<>(ann, splits.getTestDataset(), new CMAnalyser<Caltech101.Record<FImage>, String>(CMAnalyser.Strategy.SINGLE));
-
-        Map<Caltech101.Record<FImage>, ClassificationResult<String>> guesses = eval.evaluate();
-        CMResult<String> result = eval.analyse(guesses);
-
-        // Exercise 3: The whole dataset
-        // The level of classifier performance across the entire dataset alongside all the suggested changes is 75%.
-        System.out.println(result.getDetailReport());
+        // Cache the extractor to a file using a FeatureStore, which means features that have already been generated do not need to be regenerated.
+        // All of the features are kept in a single memory-mapped file, rather than a serialised file per image.
+        // The fused extractor lays out its dimensions as the wrapped kernel map did, but computes them differently (so
+        // they may differ in their last bits), so it uses a new store rather than mixing its features with those already
+        // cached; the version should change whenever the extractor or its settings do.
+        File cachedExtractorFile = new File("C://Users//Dan//Desktop//comp3204//cache//features-fused-v2");
+
+        // Close the store however the run ends, rather than leaving its file open when extraction or training fails.
+        try (FeatureStore featureStore = new FeatureStore(cachedExtractorFile))
+        {
+            FeatureStoreExtractor<DoubleFV, Caltech101.Record<FImage>> cachedExtractor = new FeatureStoreExtractor<>(featureStore, wrappedExtractor, DoubleFV.class);
+
+            // Extract the features of the training and testing images in parallel before training, as the annotator and
+            // evaluator only extract one image at a time.
+            BulkFeatureExtractor<Caltech101.Record<FImage>> bulkExtractor = new BulkFeatureExtractor<>(cachedExtractor);
+            BulkFeatureExtractor.FeatureMatrix<String> trainingFeatures = bulkExtractor.extractAll(splits.getTrainingDataset());
+            BulkFeatureExtractor.FeatureMatrix<String> validationFeatures = bulkExtractor.extractAll(splits.getValidationDataset());
+            bulkExtractor.extractAll(splits.getTestDataset());
+
+            // Compare the accuracy of different solvers and costs on the validation images, training them in parallel.
+            // The test images are not used to choose the configuration, so the final accuracy is not biased by the choice.
+            LiblinearSweep<String> sweep = new LiblinearSweep<>(trainingFeatures, validationFeatures);
+            List<LiblinearSweep.Result<String>> ranked = sweep.run(LiblinearSweep.Configuration.grid(
+                    Arrays.asList(SolverType.L2R_L2LOSS_SVC, SolverType.L2R_L2LOSS_SVC_DUAL, SolverType.L2R_LR),
+                    new double[] { 0.1, 1.0, 10.0, 100.0 }, new double[] { 0.00001 }));
+            System.out.println(LiblinearSweep.report(ranked));
+
+            // Construct and train a linear classifier using the LiblinearAnnotator class, with the configuration that was
+            // most accurate on the validation images.
+            LiblinearSweep.Configuration best = ranked.get(0).getConfiguration();
+            LiblinearAnnotator<Caltech101.Record<FImage>, String> ann = new LiblinearAnnotator<>(
+                    bulkExtractor, LiblinearAnnotator.Mode.MULTICLASS, best.getSolver(), best.getC(), best.getEpsilon());
+            ann.train(splits.getTrainingDataset());
+
+            // Evaluate how well our classifier is working and output the accuracy.
+            // The annotator is safe to call from several threads, so the test images are classified in parallel, with the
+            // confusion matrix updated as each result arrives.
+            StreamingClassificationEvaluator<String, Caltech101.Record<FImage>> eval =
+                    new StreamingClassificationEvaluator<>(ann, splits.getTestDataset());
+            eval.setProgressListener(new StreamingClassificationEvaluator.ProgressListener()
+            {
+                public void progress(long evaluated, long total, double accuracy)
+                {
+                    System.out.println(String.format(Locale.ROOT, "Evaluated %d of %d, accuracy %.4f", evaluated, total, accuracy));
+                }
+            }, 500);
+
+            CMResult<String> result = eval.evaluate();
+
+            // Exercise 3: The whole dataset
+            // With all the suggested changes, the classifier was about 75% accurate across the entire dataset when it was
+            // trained on 15 images and tested on 15 per class. The split is now 15/5/10 with the configuration chosen on
+            // the validation images, so the accuracy reported here is not comparable with those earlier runs.
+            System.out.println(result.getDetailReport());
+        }
     }
 
     // trainQuantiser() builds a HardAssigner that can be used as a vector quantiser.
-    static HardAssigner<byte[], float[], IntFloatPair> trainQuantiser(Dataset<Caltech101.Record<FImage>> sample, PyramidDenseSIFT<FImage> pdsift)
+    static HardAssigner<byte[], float[], IntFloatPair> trainQuantiser(Dataset<Caltech101.Record<FImage>> sample, DenseSIFTEngines engines)
     {
-        List<LocalFeatureList<ByteDSIFTKeypoint>> allkeys = new ArrayList<>();
-
-        // For each record in the sample, analyse the image and add its dense SIFT features as a key.
-        for (Caltech101.Record<FImage> rec : sample)
-        {
-            FImage img = rec.getImage();
-
-            pdsift.analyseImage(img);
-            allkeys.add(pdsift.getByteKeypoints(0.005f));
-        }
+        // The number of visual words (K for K-Means).
+        final int words = 600;
 
-        // Reduce the sample size to 10000 if more dense SIFT features were found.
-        if (allkeys.size() > 10000)
-            allkeys = allkeys.subList(0, 10000);
+        // Analyse the sample images in parallel, keeping a uniform random sample of their dense SIFT features (rather
+        // than every feature of every image) of a few hundred per visual word, 240000 in all, so that memory is bounded
+        // without starving the clustering of data.
+        DescriptorReservoir reservoir = DescriptorReservoir.forClusters(words);
+        reservoir.addAll(sample, engines, 0.005f);
 
         // Perform K-Means clustering (where K is 600) on these dense SIFT features, and return a HardAssigner object from this.
-        ByteKMeans km = ByteKMeans.createKDTreeEnsemble(600);
-        DataSource<byte[]> datasource = new LocalFeatureListDataSource<>(allkeys);
-        ByteCentroidsResult result = km.cluster(datasource);
+        ByteKMeans km = ByteKMeans.createKDTreeEnsemble(words);
+        ByteCentroidsResult result = km.cluster(reservoir);
 
-        return result.defaultHardAssigner();
+        // Assign features to their exact nearest cluster with the batched assigner, rather than the approximate KD-tree
+        // ensemble of defaultHardAssigner(), so that a whole image's descriptors can be assigned in one call.
+        return new BatchedByteAssigner(result);
     }
 }
@@ -0,0 +1,90 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.ml.clustering.assignment.hard.ExactByteAssigner;
+import org.openimaj.ml.clustering.assignment.hard.KDTreeByteEuclideanAssigner;
+import org.openimaj.time.Timer;
+import org.openimaj.util.pair.IntFloatPair;
+
+import java.util.Random;
+
+/**
+ * Compares the batched exact assigner against OpenIMAJ's KD-tree ensemble and exact assigners on synthetic dense SIFT
+ * sized data (descriptors scattered around random centroids), reporting throughput and how often each agrees with the
+ * batched assignment.
+ *
+ * Usage: AssignerBenchmark [centroids] [descriptors]
+ */
+public class AssignerBenchmark
+{
+    public static void main( String[] args )
+    {
+        final int numCentroids = args.length > 0 ? Integer.parseInt(args[0]) : 600;
+        final int numDescriptors = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        final int dims = 128;
+        final Random random = new Random(42);
+
+        final ByteCentroidsResult result = new ByteCentroidsResult();
+        result.centroids = new byte[numCentroids][dims];
+        for (int c = 0; c < numCentroids; c++)
+            for (int d = 0; d < dims; d++)
+                result.centroids[c][d] = (byte) random.nextInt(128);
+
+        final byte[][] descriptors = new byte[numDescriptors][dims];
+        final byte[] block = new byte[numDescriptors * dims];
+        for (int i = 0; i < numDescriptors; i++)
+        {
+            final byte[] centre = result.centroids[random.nextInt(numCentroids)];
+
+            for (int d = 0; d < dims; d++)
+            {
+                descriptors[i][d] = (byte) Math.min(127, Math.max(0, centre[d] + (int) (random.nextGaussian() * 24)));
+                block[i * dims + d] = descriptors[i][d];
+            }
+        }
+
+        final BatchedByteAssigner batched = new BatchedByteAssigner(result);
+        final HardAssigner<byte[], float[], IntFloatPair> kdtree = new KDTreeByteEuclideanAssigner(result);
+        final HardAssigner<byte[], float[], IntFloatPair> exact = new ExactByteAssigner(result);
+
+        System.out.println(numDescriptors + " descriptors, " + numCentroids + " centroids");
+
+        // Run everything once untimed so that the JIT is warm before measuring.
+        for (int pass = 0; pass < 2; pass++)
+        {
+            final boolean report = pass == 1;
+
+            final int[] reference = new int[numDescriptors];
+            Timer t1 = Timer.timer();
+            batched.assign(block, 0, numDescriptors, reference, null);
+            report(report, "Batched exact", numDescriptors, t1.duration(), reference, reference);
+
+            final int[] single = new int[numDescriptors];
+            Timer t2 = Timer.timer();
+            for (int i = 0; i < numDescriptors; i++)
+                single[i] = kdtree.assign(descriptors[i]);
+            report(report, "KD-tree ensemble (one at a time)", numDescriptors, t2.duration(), single, reference);
+
+            Timer t3 = Timer.timer();
+            final int[] exactIndices = exact.assign(descriptors);
+            report(report, "OpenIMAJ exact", numDescriptors, t3.duration(), exactIndices, reference);
+        }
+    }
+
+    private static void report(boolean report, String name, int count, long millis, int[] indices, int[] reference)
+    {
+        if (!report)
+            return;
+
+        int agree = 0;
+        for (int i = 0; i < count; i++)
+        {
+            if (indices[i] == reference[i])
+                agree++;
+        }
+
+        System.out.println(name + ": " + (long) (count / Math.max(millis / 1000.0, 1e-3)) + " descriptors/s, "
+                + (100.0 * agree / count) + "% agreement with the batched exact assignment");
+    }
+}
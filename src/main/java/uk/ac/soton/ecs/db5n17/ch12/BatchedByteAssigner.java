@@ -0,0 +1,221 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.util.pair.IntFloatPair;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An exact nearest-centroid assigner for byte vectors that assigns a whole block of descriptors in one call.
+ *
+ * Squared distances are expanded as |a|² + |c|² - 2a·c, so the work is a matrix product between the descriptors and the
+ * centroids. The product is computed in integer arithmetic (so the result is exact, with ties going to the lowest
+ * centroid index), in tiles of descriptors and centroids small enough to stay in cache, and four centroids at a time
+ * so that each descriptor value is loaded once per four products. Instances are immutable and thread-safe.
+ */
+public class BatchedByteAssigner implements HardAssigner<byte[], float[], IntFloatPair>, Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final int DESCRIPTOR_BLOCK = 32;
+    private static final int CENTROID_BLOCK = 64;
+
+    private final int numCentroids;
+    private final int dimensions;
+
+    // The centroids widened to ints, one after another, and their squared lengths.
+    private final int[] centroids;
+    private final int[] norms;
+
+    public BatchedByteAssigner(ByteCentroidsResult result)
+    {
+        this(result.getCentroids());
+    }
+
+    public BatchedByteAssigner(byte[][] centroids)
+    {
+        if (centroids.length == 0)
+            throw new IllegalArgumentException("At least one centroid is required");
+
+        this.numCentroids = centroids.length;
+        this.dimensions = centroids[0].length;
+        this.centroids = new int[numCentroids * dimensions];
+        this.norms = new int[numCentroids];
+
+        for (int c = 0; c < numCentroids; c++)
+        {
+            if (centroids[c].length != dimensions)
+                throw new IllegalArgumentException("All of the centroids must have the same length");
+
+            for (int d = 0; d < dimensions; d++)
+            {
+                final int value = centroids[c][d];
+                this.centroids[c * dimensions + d] = value;
+                this.norms[c] += value * value;
+            }
+        }
+    }
+
+    /**
+     * Assign count descriptors stored one after another in the block, starting at offset. The index of each
+     * descriptor's nearest centroid is written to indices and, if distances is not null, the squared distance to it is
+     * written to distances.
+     */
+    public void assign(byte[] block, int offset, int count, int[] indices, float[] distances)
+    {
+        if (offset < 0 || count < 0 || offset + count * dimensions > block.length)
+            throw new IllegalArgumentException("The block does not hold " + count + " descriptors from " + offset);
+
+        final int[] tile = new int[DESCRIPTOR_BLOCK * dimensions];
+        final int[] tileNorms = new int[DESCRIPTOR_BLOCK];
+        final int[] best = new int[DESCRIPTOR_BLOCK];
+        final int[] bestIndex = new int[DESCRIPTOR_BLOCK];
+
+        for (int start = 0; start < count; start += DESCRIPTOR_BLOCK)
+        {
+            final int n = Math.min(DESCRIPTOR_BLOCK, count - start);
+
+            for (int i = 0; i < n; i++)
+            {
+                final int from = offset + (start + i) * dimensions;
+                int norm = 0;
+
+                for (int d = 0; d < dimensions; d++)
+                {
+                    final int value = block[from + d];
+                    tile[i * dimensions + d] = value;
+                    norm += value * value;
+                }
+
+                tileNorms[i] = norm;
+            }
+
+            Arrays.fill(best, Integer.MAX_VALUE);
+
+            for (int c0 = 0; c0 < numCentroids; c0 += CENTROID_BLOCK)
+            {
+                final int c1 = Math.min(c0 + CENTROID_BLOCK, numCentroids);
+
+                for (int i = 0; i < n; i++)
+                    nearestInRange(tile, i * dimensions, tileNorms[i], c0, c1, best, bestIndex, i);
+            }
+
+            for (int i = 0; i < n; i++)
+            {
+                indices[start + i] = bestIndex[i];
+
+                if (distances != null)
+                    distances[start + i] = best[i];
+            }
+        }
+    }
+
+    // Update the best centroid of one descriptor with those in [c0, c1), four at a time.
+    private void nearestInRange(int[] tile, int a, int norm, int c0, int c1, int[] best, int[] bestIndex, int i)
+    {
+        final int[] cs = centroids;
+        final int dims = dimensions;
+
+        int c = c0;
+        for (; c + 3 < c1; c += 4)
+        {
+            final int p0 = c * dims;
+            final int p1 = p0 + dims;
+            final int p2 = p1 + dims;
+            final int p3 = p2 + dims;
+
+            int dot0 = 0;
+            int dot1 = 0;
+            int dot2 = 0;
+            int dot3 = 0;
+
+            for (int d = 0; d < dims; d++)
+            {
+                final int value = tile[a + d];
+                dot0 += value * cs[p0 + d];
+                dot1 += value * cs[p1 + d];
+                dot2 += value * cs[p2 + d];
+                dot3 += value * cs[p3 + d];
+            }
+
+            consider(norm + norms[c] - 2 * dot0, c, best, bestIndex, i);
+            consider(norm + norms[c + 1] - 2 * dot1, c + 1, best, bestIndex, i);
+            consider(norm + norms[c + 2] - 2 * dot2, c + 2, best, bestIndex, i);
+            consider(norm + norms[c + 3] - 2 * dot3, c + 3, best, bestIndex, i);
+        }
+
+        for (; c < c1; c++)
+        {
+            final int p = c * dims;
+            int dot = 0;
+
+            for (int d = 0; d < dims; d++)
+                dot += tile[a + d] * cs[p + d];
+
+            consider(norm + norms[c] - 2 * dot, c, best, bestIndex, i);
+        }
+    }
+
+    private static void consider(int distance, int c, int[] best, int[] bestIndex, int i)
+    {
+        if (distance < best[i])
+        {
+            best[i] = distance;
+            bestIndex[i] = c;
+        }
+    }
+
+    public int[] assign(byte[][] data)
+    {
+        final int[] indices = new int[data.length];
+        assign(flatten(data), 0, data.length, indices, null);
+        return indices;
+    }
+
+    public int assign(byte[] data)
+    {
+        final int[] index = new int[1];
+        assign(data, 0, 1, index, null);
+        return index[0];
+    }
+
+    public void assignDistance(byte[][] data, int[] indices, float[] distances)
+    {
+        assign(flatten(data), 0, data.length, indices, distances);
+    }
+
+    public IntFloatPair assignDistance(byte[] data)
+    {
+        final int[] index = new int[1];
+        final float[] distance = new float[1];
+        assign(data, 0, 1, index, distance);
+        return new IntFloatPair(index[0], distance[0]);
+    }
+
+    public int size()
+    {
+        return numCentroids;
+    }
+
+    public int numDimensions()
+    {
+        return dimensions;
+    }
+
+    private byte[] flatten(byte[][] data)
+    {
+        final byte[] block = new byte[data.length * dimensions];
+
+        for (int i = 0; i < data.length; i++)
+        {
+            if (data[i].length != dimensions)
+                throw new IllegalArgumentException("Expected a descriptor of length " + dimensions + " but got " + data[i].length);
+
+            System.arraycopy(data[i], 0, block, i * dimensions, dimensions);
+        }
+
+        return block;
+    }
+}
@@ -0,0 +1,167 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Extracts the features of whole datasets up front, in parallel, and then serves them from memory.
+ *
+ * LiblinearAnnotator and ClassificationEvaluator call their extractor for one object at a time, so handing them this
+ * extractor after {@link #extractAll(GroupedDataset)} means the expensive extraction runs on every core rather than on
+ * one. The wrapped extractor must be safe to call from several threads (for example a {@link ConcurrentPHOWExtractor}).
+ * Features are kept until {@link #clear()} is called.
+ *
+ * Features are keyed by the ID of each object, as by {@link FeatureStoreExtractor}, since the objects of a dataset
+ * (such as Caltech101 records) may be created afresh each time they are read. Each object is extracted only once, even
+ * when several threads ask for it at the same time: the others wait for the first.
+ */
+public class BulkFeatureExtractor<T extends Identifiable> implements FeatureExtractor<DoubleFV, T>
+{
+    private final FeatureExtractor<DoubleFV, T> extractor;
+    private final ConcurrentMap<String, FutureTask<DoubleFV>> features = new ConcurrentHashMap<>();
+
+    public BulkFeatureExtractor(FeatureExtractor<DoubleFV, T> extractor)
+    {
+        this.extractor = extractor;
+    }
+
+    /**
+     * Extract the features of every instance of the dataset in parallel, returning them as a matrix with one row per
+     * instance, in group order.
+     */
+    public <K> FeatureMatrix<K> extractAll(GroupedDataset<K, ? extends ListDataset<T>, T> dataset)
+    {
+        final List<K> labels = new ArrayList<>();
+        final List<T> objects = new ArrayList<>();
+
+        for (final K group : dataset.getGroups())
+        {
+            for (final T object : dataset.getInstances(group))
+            {
+                labels.add(group);
+                objects.add(object);
+            }
+        }
+
+        final double[][] rows = new double[objects.size()][];
+
+        Parallel.forIndex(0, objects.size(), 1, new Operation<Integer>()
+        {
+            public void perform(Integer i)
+            {
+                rows[i] = extractFeature(objects.get(i)).values;
+            }
+        });
+
+        return new FeatureMatrix<>(labels, rows);
+    }
+
+    /**
+     * Get the feature of the object, extracting it (and keeping it) if it has not been extracted already.
+     */
+    public DoubleFV extractFeature(final T object)
+    {
+        final String id = object.getID();
+        FutureTask<DoubleFV> feature = features.get(id);
+
+        if (feature == null)
+        {
+            final FutureTask<DoubleFV> task = new FutureTask<>(new Callable<DoubleFV>()
+            {
+                public DoubleFV call()
+                {
+                    return extractor.extractFeature(object);
+                }
+            });
+
+            feature = features.putIfAbsent(id, task);
+            if (feature == null)
+            {
+                feature = task;
+                task.run();
+            }
+        }
+
+        try
+        {
+            return feature.get();
+        }
+        catch (ExecutionException e)
+        {
+            // Let a later call try again.
+            features.remove(id, feature);
+
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+
+            throw new RuntimeException("Unable to extract the feature of " + id, e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the feature of " + id, e);
+        }
+    }
+
+    public int size()
+    {
+        return features.size();
+    }
+
+    public void clear()
+    {
+        features.clear();
+    }
+
+    /**
+     * The features of a dataset, one row per instance, with the group each row belongs to.
+     */
+    public static class FeatureMatrix<K>
+    {
+        private final List<K> labels;
+        private final double[][] rows;
+
+        FeatureMatrix(List<K> labels, double[][] rows)
+        {
+            this.labels = Collections.unmodifiableList(labels);
+            this.rows = rows;
+        }
+
+        public List<K> getLabels()
+        {
+            return labels;
+        }
+
+        public double[][] getRows()
+        {
+            return rows;
+        }
+
+        public int numRows()
+        {
+            return rows.length;
+        }
+
+        public int numDimensions()
+        {
+            return rows.length == 0 ? 0 : rows[0].length;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.image.FImage;
+import org.openimaj.image.annotation.evaluation.datasets.Caltech101;
+import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
+import org.openimaj.image.feature.local.aggregate.PyramidSpatialAggregator;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.util.pair.IntFloatPair;
+
+/**
+ * A Pyramid Histogram of Words (PHOW) feature extractor that can be called from several threads at once: each thread
+ * gets its own dense SIFT engine and spatial aggregator, and only the (read-only) assigner is shared.
+ */
+public class ConcurrentPHOWExtractor implements FeatureExtractor<DoubleFV, Caltech101.Record<FImage>>
+{
+    private final DenseSIFTEngines engines;
+    private final float energyThreshold;
+    private final ThreadLocal<PyramidSpatialAggregator<byte[], SparseIntFV>> aggregators;
+
+    public ConcurrentPHOWExtractor(HardAssigner<byte[], float[], IntFloatPair> assigner)
+    {
+        this(new DenseSIFTEngines(), 0.015f, assigner, 2, 4);
+    }
+
+    /**
+     * Construct an extractor that keeps dense SIFT keypoints above the energy threshold and aggregates their visual
+     * words over a spatial pyramid with the given numbers of blocks.
+     */
+    public ConcurrentPHOWExtractor(DenseSIFTEngines engines, float energyThreshold,
+            final HardAssigner<byte[], float[], IntFloatPair> assigner, int... blocks)
+    {
+        final int[] levels = blocks.clone();
+
+        this.engines = engines;
+        this.energyThreshold = energyThreshold;
+        this.aggregators = new ThreadLocal<PyramidSpatialAggregator<byte[], SparseIntFV>>()
+        {
+            protected PyramidSpatialAggregator<byte[], SparseIntFV> initialValue()
+            {
+                return new PyramidSpatialAggregator<byte[], SparseIntFV>(new BagOfVisualWords<byte[]>(assigner), levels);
+            }
+        };
+    }
+
+    public DoubleFV extractFeature(Caltech101.Record<FImage> object)
+    {
+        return extract(object.getImage());
+    }
+
+    public DoubleFV extract(FImage image)
+    {
+        return aggregators.get().aggregate(engines.analyse(image, energyThreshold), image.getBounds()).normaliseFV();
+    }
+}
@@ -0,0 +1,52 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.image.feature.dense.gradient.dsift.DenseSIFT;
+import org.openimaj.image.feature.dense.gradient.dsift.PyramidDenseSIFT;
+
+/**
+ * One PyramidDenseSIFT per thread, all with the same settings. PyramidDenseSIFT keeps the features of the last image
+ * it analysed, so a single instance cannot be shared between threads.
+ */
+public class DenseSIFTEngines extends ThreadLocal<PyramidDenseSIFT<FImage>>
+{
+    private final int step;
+    private final int binSize;
+    private final float magnification;
+    private final int[] sizes;
+
+    /**
+     * The settings used throughout Chapter 12: a step of 3, bins of 7 pixels, and a pyramid of sizes 4, 6, 8 and 10.
+     */
+    public DenseSIFTEngines()
+    {
+        this(3, 7, 6f, 4, 6, 8, 10);
+    }
+
+    public DenseSIFTEngines(int step, int binSize, float magnification, int... sizes)
+    {
+        this.step = step;
+        this.binSize = binSize;
+        this.magnification = magnification;
+        this.sizes = sizes.clone();
+    }
+
+    protected PyramidDenseSIFT<FImage> initialValue()
+    {
+        return new PyramidDenseSIFT<FImage>(new DenseSIFT(step, binSize), magnification, sizes);
+    }
+
+    /**
+     * Analyse the image with the calling thread's engine and return the keypoints above the energy threshold.
+     */
+    public LocalFeatureList<ByteDSIFTKeypoint> analyse(FImage image, float energyThreshold)
+    {
+        final PyramidDenseSIFT<FImage> pdsift = get();
+
+        pdsift.analyseImage(image);
+
+        return pdsift.getByteKeypoints(energyThreshold);
+    }
+}
@@ -0,0 +1,199 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import org.openimaj.data.DataSource;
+import org.openimaj.data.dataset.Dataset;
+import org.openimaj.image.FImage;
+import org.openimaj.image.annotation.evaluation.datasets.Caltech101;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A fixed-size uniform random sample (reservoir sample) of byte descriptors, held in a single flat array and exposed as
+ * a DataSource for ByteKMeans.
+ *
+ * However many descriptors are offered, only the sample is kept, so training a vocabulary needs memory in proportion
+ * to the sample size rather than the dataset. Offering is synchronized, so images can be analysed in parallel.
+ */
+public class DescriptorReservoir implements DataSource<byte[]>
+{
+    /**
+     * The number of descriptors sampled for each cluster of the vocabulary by {@link #forClusters}: enough for k-means
+     * to place every centroid well, while 600 clusters of 128 byte descriptors still need only about 30MB.
+     */
+    public static final int DESCRIPTORS_PER_CLUSTER = 400;
+
+    private final int capacity;
+    private final int dimensions;
+    private final byte[] buffer;
+    private final Random random;
+
+    private int size;
+    private long seen;
+
+    public DescriptorReservoir(int capacity)
+    {
+        this(capacity, 128, new Random());
+    }
+
+    /**
+     * A reservoir of 128 byte descriptors large enough to train a vocabulary of the given number of clusters.
+     */
+    public static DescriptorReservoir forClusters(int clusters)
+    {
+        return new DescriptorReservoir(clusters * DESCRIPTORS_PER_CLUSTER);
+    }
+
+    public DescriptorReservoir(int capacity, int dimensions, Random random)
+    {
+        if (capacity < 1)
+            throw new IllegalArgumentException("The capacity must be at least 1");
+
+        this.capacity = capacity;
+        this.dimensions = dimensions;
+        this.buffer = new byte[capacity * dimensions];
+        this.random = random;
+    }
+
+    /**
+     * Analyse every image of the dataset in parallel, offering the keypoints above the energy threshold.
+     */
+    public void addAll(Dataset<Caltech101.Record<FImage>> images, final DenseSIFTEngines engines, final float energyThreshold)
+    {
+        Parallel.forEach(images, new Operation<Caltech101.Record<FImage>>()
+        {
+            public void perform(Caltech101.Record<FImage> record)
+            {
+                offerAll(engines.analyse(record.getImage(), energyThreshold));
+            }
+        });
+    }
+
+    public synchronized void offerAll(List<ByteDSIFTKeypoint> keypoints)
+    {
+        for (final ByteDSIFTKeypoint keypoint : keypoints)
+            offer(keypoint.descriptor);
+    }
+
+    /**
+     * Offer a descriptor to the sample; after n offers each one has been kept with probability capacity / n.
+     */
+    public synchronized void offer(byte[] descriptor)
+    {
+        if (descriptor.length != dimensions)
+            throw new IllegalArgumentException("Expected a descriptor of length " + dimensions + " but got " + descriptor.length);
+
+        seen++;
+
+        int slot = size;
+        if (size < capacity)
+            size++;
+        else
+            slot = (int) Math.min((long) (random.nextDouble() * seen), Integer.MAX_VALUE);
+
+        if (slot < capacity)
+            System.arraycopy(descriptor, 0, buffer, slot * dimensions, dimensions);
+    }
+
+    /**
+     * The number of descriptors that have been offered, including those not kept.
+     */
+    public synchronized long getSeen()
+    {
+        return seen;
+    }
+
+    /**
+     * The sample itself: size() rows of numDimensions() bytes, one after another.
+     */
+    public byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    public int numDimensions()
+    {
+        return dimensions;
+    }
+
+    public synchronized void getData(int startRow, int stopRow, byte[][] data)
+    {
+        for (int row = startRow, i = 0; row < stopRow; row++, i++)
+            System.arraycopy(buffer, row * dimensions, data[i], 0, dimensions);
+    }
+
+    public synchronized byte[] getData(int row)
+    {
+        if (row < 0 || row >= size)
+            throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+
+        final byte[] data = new byte[dimensions];
+        System.arraycopy(buffer, row * dimensions, data, 0, dimensions);
+        return data;
+    }
+
+    /**
+     * Fill the array with distinct rows chosen at random.
+     */
+    public synchronized void getRandomRows(byte[][] data)
+    {
+        if (data.length > size)
+            throw new IllegalArgumentException("Cannot choose " + data.length + " rows from " + size);
+
+        final int[] rows = new int[size];
+        for (int i = 0; i < size; i++)
+            rows[i] = i;
+
+        // A partial Fisher-Yates shuffle gives the first data.length rows.
+        for (int i = 0; i < data.length; i++)
+        {
+            final int j = i + random.nextInt(size - i);
+            final int row = rows[j];
+            rows[j] = rows[i];
+            rows[i] = row;
+
+            System.arraycopy(buffer, row * dimensions, data[i], 0, dimensions);
+        }
+    }
+
+    public byte[][] createTemporaryArray(int size)
+    {
+        return new byte[size][dimensions];
+    }
+
+    public Iterator<byte[]> iterator()
+    {
+        return new Iterator<byte[]>()
+        {
+            private int row;
+
+            public boolean hasNext()
+            {
+                return row < size();
+            }
+
+            public byte[] next()
+            {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                return getData(row++);
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
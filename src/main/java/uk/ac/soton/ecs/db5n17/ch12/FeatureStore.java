@@ -0,0 +1,364 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureVector;
+import org.openimaj.feature.FloatFV;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A store of DoubleFV and FloatFV features keyed by record ID, kept in a single append-only file.
+ *
+ * Each record is written as the key length, the UTF-8 key, the vector type, the vector length and then the values.
+ * The index of keys to file offsets is rebuilt by scanning the record headers when the store is opened (an incomplete
+ * record left by a crash is discarded). Appends are serialised, so any number of threads may write and read at once;
+ * reads come from memory-mapped chunks of the file. Writing a key again supersedes the old record, whose space is only
+ * reclaimed by {@link #compact(File)}.
+ */
+public class FeatureStore implements Closeable
+{
+    // The file is mapped in chunks of 2^CHUNK_BITS bytes, and records are never split between chunks.
+    private static final int CHUNK_BITS = 28;
+
+    private static final byte DOUBLE = 0;
+    private static final byte FLOAT = 1;
+
+    // The vector type and length, which follow the key.
+    private static final int VECTOR_HEADER_SIZE = 5;
+
+    private final int chunkBits;
+    private final FileChannel channel;
+    private final ConcurrentMap<String, Long> index = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private long end;
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+    public FeatureStore(File file) throws IOException
+    {
+        this(file, CHUNK_BITS);
+    }
+
+    // Open a store mapped in chunks of 2^chunkBits bytes, so that tests can cross chunks without huge files. A store
+    // must always be opened with the chunk size it was written with.
+    FeatureStore(File file, int chunkBits) throws IOException
+    {
+        this.chunkBits = chunkBits;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        final Map<String, Long> offsets = new HashMap<>();
+        end = scan(channel, offsets, chunkBits);
+        index.putAll(offsets);
+
+        if (channel.size() > end)
+            channel.truncate(end);
+    }
+
+    public boolean contains(String id)
+    {
+        return index.containsKey(id);
+    }
+
+    /**
+     * Get the feature stored for the ID (a DoubleFV or a FloatFV, as it was stored), or null if there is none.
+     */
+    public FeatureVector get(String id) throws IOException
+    {
+        final Long offset = index.get(id);
+
+        if (offset == null)
+            return null;
+
+        final int chunk = (int) (offset >>> chunkBits);
+        final int position = (int) (offset & ((1L << chunkBits) - 1));
+
+        final int keyLength = mapped(chunk, position + 4).getInt(position);
+        final int header = position + 4 + keyLength;
+        final ByteBuffer vectorHeader = mapped(chunk, header + VECTOR_HEADER_SIZE);
+        final byte type = vectorHeader.get(header);
+        final int length = vectorHeader.getInt(header + 1);
+
+        final ByteBuffer buffer = mapped(chunk, header + VECTOR_HEADER_SIZE + length * (type == DOUBLE ? 8 : 4)).duplicate();
+        buffer.position(header + VECTOR_HEADER_SIZE);
+
+        if (type == DOUBLE)
+        {
+            final double[] values = new double[length];
+            buffer.asDoubleBuffer().get(values);
+            return new DoubleFV(values);
+        }
+
+        final float[] values = new float[length];
+        buffer.asFloatBuffer().get(values);
+        return new FloatFV(values);
+    }
+
+    /**
+     * Append a DoubleFV or FloatFV to the store under the given ID, superseding any feature already stored for it.
+     */
+    public void put(String id, FeatureVector feature) throws IOException
+    {
+        final byte[] key = id.getBytes(StandardCharsets.UTF_8);
+
+        if (key.length == 0)
+            throw new IllegalArgumentException("The ID must not be empty");
+
+        final ByteBuffer record;
+        if (feature instanceof DoubleFV)
+        {
+            final double[] values = ((DoubleFV) feature).values;
+            record = header(key, DOUBLE, values.length, 8, chunkBits);
+            record.asDoubleBuffer().put(values);
+        }
+        else if (feature instanceof FloatFV)
+        {
+            final float[] values = ((FloatFV) feature).values;
+            record = header(key, FLOAT, values.length, 4, chunkBits);
+            record.asFloatBuffer().put(values);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Only DoubleFV and FloatFV features can be stored");
+        }
+
+        record.rewind();
+
+        synchronized (writeLock)
+        {
+            final long offset = append(channel, end, record, chunkBits);
+            end = offset + record.capacity();
+            index.put(id, offset);
+        }
+    }
+
+    public int size()
+    {
+        return index.size();
+    }
+
+    /**
+     * Force every record written so far to the disk.
+     */
+    public void flush() throws IOException
+    {
+        channel.force(false);
+    }
+
+    public void close() throws IOException
+    {
+        chunks = new MappedByteBuffer[0];
+        channel.close();
+    }
+
+    /**
+     * Rewrite a store that is not open, keeping only the latest record for each ID, and return the number of bytes
+     * reclaimed. The compacted file replaces the original atomically.
+     */
+    public static long compact(File file) throws IOException
+    {
+        return compact(file, CHUNK_BITS);
+    }
+
+    static long compact(File file, int chunkBits) throws IOException
+    {
+        final File tmp = File.createTempFile(file.getName() + ".compact", ".tmp", file.getAbsoluteFile().getParentFile());
+
+        try
+        {
+            final long before;
+            long end = 0;
+
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE))
+            {
+                final Map<String, Long> offsets = new HashMap<>();
+                before = scan(in, offsets, chunkBits);
+
+                // Copy the live records in their original order, so that records written together stay together.
+                final List<Long> live = new ArrayList<>(offsets.values());
+                Collections.sort(live);
+
+                for (final long offset : live)
+                {
+                    final ByteBuffer record = ByteBuffer.allocate((int) recordSize(in, offset));
+                    readFully(in, record, offset);
+                    record.flip();
+
+                    end = append(out, end, record, chunkBits) + record.capacity();
+                }
+
+                out.truncate(end);
+                out.force(false);
+            }
+
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            return before - end;
+        }
+        finally
+        {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    // Get a mapping of the chunk that covers at least its first length bytes, remapping it if the file has grown.
+    private MappedByteBuffer mapped(int chunk, int length) throws IOException
+    {
+        MappedByteBuffer[] current = chunks;
+
+        if (chunk < current.length && current[chunk] != null && current[chunk].capacity() >= length)
+            return current[chunk];
+
+        synchronized (this)
+        {
+            current = chunks;
+
+            if (chunk < current.length && current[chunk] != null && current[chunk].capacity() >= length)
+                return current[chunk];
+
+            final long start = (long) chunk << chunkBits;
+            final long size = Math.min(1L << chunkBits, channel.size() - start);
+
+            if (size < length)
+                throw new IOException("Record extends past the end of the store");
+
+            final MappedByteBuffer[] updated = Arrays.copyOf(current, Math.max(current.length, chunk + 1));
+            updated[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+            chunks = updated;
+
+            return updated[chunk];
+        }
+    }
+
+    private static ByteBuffer header(byte[] key, byte type, int length, int valueSize, int chunkBits)
+    {
+        final long size = 4L + key.length + VECTOR_HEADER_SIZE + (long) length * valueSize;
+
+        if (size > 1L << chunkBits)
+            throw new IllegalArgumentException("A feature of " + size + " bytes is too large to store");
+
+        final ByteBuffer record = ByteBuffer.allocate((int) size);
+        record.putInt(key.length).put(key).put(type).putInt(length);
+
+        return record;
+    }
+
+    // Write the record at the end of the file, first skipping to the next chunk if it would not fit in this one (the
+    // skipped bytes read as zeros, which marks them as padding). Returns the offset the record was written at.
+    private static long append(FileChannel channel, long end, ByteBuffer record, int chunkBits) throws IOException
+    {
+        final long chunkSize = 1L << chunkBits;
+        long offset = end;
+
+        if ((offset & (chunkSize - 1)) + record.remaining() > chunkSize)
+            offset = nextChunk(offset, chunkBits);
+
+        long position = offset;
+        while (record.hasRemaining())
+            position += channel.write(record, position);
+
+        return offset;
+    }
+
+    // Read the headers of every complete record, recording the latest offset of each key. Returns the end of the last
+    // complete record.
+    private static long scan(FileChannel channel, Map<String, Long> offsets, int chunkBits) throws IOException
+    {
+        final long size = channel.size();
+        final ByteBuffer intBuffer = ByteBuffer.allocate(4);
+        long position = 0;
+
+        while (position + 4 <= size)
+        {
+            // Fewer than four bytes left in a chunk can only be padding, and reading a length there would run into the
+            // record at the start of the next chunk.
+            final boolean padding = (position & ((1L << chunkBits) - 1)) + 4 > 1L << chunkBits;
+            int keyLength = 0;
+
+            if (!padding)
+            {
+                intBuffer.clear();
+                readFully(channel, intBuffer, position);
+                keyLength = intBuffer.getInt(0);
+            }
+
+            if (keyLength == 0)
+            {
+                // Padding up to the next chunk, or the zeros of an interrupted write at the end of the file.
+                final long next = nextChunk(position, chunkBits);
+                if (next >= size)
+                    break;
+
+                position = next;
+                continue;
+            }
+
+            if (keyLength < 0 || position + 4 + keyLength + VECTOR_HEADER_SIZE > size)
+                break;
+
+            final long recordSize = recordSize(channel, position);
+            if (recordSize < 0 || position + recordSize > size)
+                break;
+
+            final ByteBuffer key = ByteBuffer.allocate(keyLength);
+            readFully(channel, key, position + 4);
+            offsets.put(new String(key.array(), StandardCharsets.UTF_8), position);
+
+            position += recordSize;
+        }
+
+        return position;
+    }
+
+    // The total size of the record at the offset, or -1 if its header is invalid.
+    private static long recordSize(FileChannel channel, long offset) throws IOException
+    {
+        final ByteBuffer intBuffer = ByteBuffer.allocate(4);
+        readFully(channel, intBuffer, offset);
+        final int keyLength = intBuffer.getInt(0);
+
+        final ByteBuffer header = ByteBuffer.allocate(VECTOR_HEADER_SIZE);
+        readFully(channel, header, offset + 4 + keyLength);
+        final byte type = header.get(0);
+        final int length = header.getInt(1);
+
+        if (length < 0 || (type != DOUBLE && type != FLOAT))
+            return -1;
+
+        return 4L + keyLength + VECTOR_HEADER_SIZE + (long) length * (type == DOUBLE ? 8 : 4);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            final int read = channel.read(buffer, position);
+
+            if (read < 0)
+                throw new IOException("Unexpected end of store");
+
+            position += read;
+        }
+    }
+
+    private static long nextChunk(long offset, int chunkBits)
+    {
+        return ((offset >>> chunkBits) + 1) << chunkBits;
+    }
+}
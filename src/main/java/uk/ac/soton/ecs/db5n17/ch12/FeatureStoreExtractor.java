@@ -0,0 +1,70 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.FeatureVector;
+import org.openimaj.feature.FloatFV;
+
+import java.io.IOException;
+
+/**
+ * A FeatureExtractor that caches the features of another in a {@link FeatureStore}, keyed by the ID of each object.
+ * It is used in place of DiskCachingFeatureExtractor, which writes a separate serialised file per object.
+ *
+ * The wrapped extractor must produce DoubleFV or FloatFV features. Stored features are converted to the feature class
+ * given, so a store written by an extractor of FloatFVs can be read as DoubleFVs (and the reverse, with the precision of
+ * a float). If several threads miss on the same object at once they will each extract it, and the last feature stored
+ * is kept.
+ */
+public class FeatureStoreExtractor<FEATURE extends FeatureVector, OBJECT extends Identifiable> implements FeatureExtractor<FEATURE, OBJECT>
+{
+    private final FeatureStore store;
+    private final FeatureExtractor<FEATURE, OBJECT> extractor;
+    private final Class<FEATURE> featureClass;
+
+    public FeatureStoreExtractor(FeatureStore store, FeatureExtractor<FEATURE, OBJECT> extractor, Class<FEATURE> featureClass)
+    {
+        if (featureClass != DoubleFV.class && featureClass != FloatFV.class)
+            throw new IllegalArgumentException("Only DoubleFV and FloatFV features can be stored");
+
+        this.store = store;
+        this.extractor = extractor;
+        this.featureClass = featureClass;
+    }
+
+    public FEATURE extractFeature(OBJECT object)
+    {
+        try
+        {
+            final FeatureVector cached = store.get(object.getID());
+
+            if (cached != null)
+                return convert(cached);
+
+            final FEATURE feature = extractor.extractFeature(object);
+            store.put(object.getID(), feature);
+            return feature;
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Unable to read or write the feature of " + object.getID(), e);
+        }
+    }
+
+    private FEATURE convert(FeatureVector feature)
+    {
+        if (featureClass.isInstance(feature))
+            return featureClass.cast(feature);
+
+        if (featureClass == DoubleFV.class)
+            return featureClass.cast(feature.asDoubleFV());
+
+        final double[] values = ((DoubleFV) feature).values;
+        final float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++)
+            floats[i] = (float) values[i];
+
+        return featureClass.cast(new FloatFV(floats));
+    }
+}
@@ -0,0 +1,150 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import org.openimaj.image.FImage;
+import org.openimaj.ml.kernel.HomogeneousKernelMap;
+import org.openimaj.time.Timer;
+import uk.ac.soton.ecs.db5n17.metrics.Allocations;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the fused PHOW extractor against aggregating with PyramidSpatialAggregator, normalising and then applying
+ * the kernel map, on synthetic images. Both use the same dense SIFT settings and vocabulary, so the features should
+ * contain the same values (in a different order); the largest difference between the sorted values is reported along
+ * with the time and allocation per image.
+ *
+ * Usage: FusedPHOWBenchmark [images] [size]
+ */
+public class FusedPHOWBenchmark
+{
+    public static void main( String[] args )
+    {
+        final int numImages = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        final int size = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final Random random = new Random(42);
+
+        final FImage[] images = new FImage[numImages];
+        for (int i = 0; i < numImages; i++)
+            images[i] = randomImage(size, size, random);
+
+        // A vocabulary of 600 words sampled from the images' own descriptors.
+        final DenseSIFTEngines engines = new DenseSIFTEngines();
+        final DescriptorReservoir reservoir = new DescriptorReservoir(600, 128, random);
+        for (final FImage image : images)
+            reservoir.offerAll(engines.analyse(image, 0.005f));
+
+        final BatchedByteAssigner assigner = new BatchedByteAssigner(rows(reservoir));
+        final HomogeneousKernelMap kernelMap = new HomogeneousKernelMap(HomogeneousKernelMap.KernelType.Chi2,
+                HomogeneousKernelMap.WindowType.Rectangular);
+
+        final ConcurrentPHOWExtractor separate = new ConcurrentPHOWExtractor(engines, 0.015f, assigner, 2, 4);
+        final FusedPHOWExtractor fused = new FusedPHOWExtractor(engines, 0.015f, assigner, kernelMap, 2, 4);
+        final double[] out = new double[fused.length()];
+        final float[] floatOut = new float[fused.length()];
+
+        System.out.println(numImages + " images of " + size + "x" + size + ", " + fused.length() + " dimensions");
+
+        // Run everything once untimed so that the JIT is warm before measuring.
+        for (int pass = 0; pass < 2; pass++)
+        {
+            final boolean report = pass == 1;
+            double maxDifference = 0;
+            double maxFloatDifference = 0;
+
+            long before = Allocations.currentThreadAllocatedBytes();
+            Timer t1 = Timer.timer();
+            final double[][] expected = new double[numImages][];
+            for (int i = 0; i < numImages; i++)
+                expected[i] = kernelMap.evaluate(separate.extract(images[i])).values;
+            report(report, "Aggregate, normalise, kernel map", numImages, t1.duration(), Allocations.currentThreadAllocatedBytes() - before);
+
+            before = Allocations.currentThreadAllocatedBytes();
+            Timer t2 = Timer.timer();
+            for (int i = 0; i < numImages; i++)
+            {
+                fused.extract(images[i], out);
+                maxDifference = Math.max(maxDifference, sortedDifference(expected[i], out));
+            }
+            report(report, "Fused (double)", numImages, t2.duration(), Allocations.currentThreadAllocatedBytes() - before);
+
+            before = Allocations.currentThreadAllocatedBytes();
+            Timer t3 = Timer.timer();
+            for (int i = 0; i < numImages; i++)
+            {
+                fused.extract(images[i], floatOut);
+
+                final double[] widened = new double[floatOut.length];
+                for (int j = 0; j < floatOut.length; j++)
+                    widened[j] = floatOut[j];
+
+                maxFloatDifference = Math.max(maxFloatDifference, sortedDifference(expected[i], widened));
+            }
+            report(report, "Fused (float)", numImages, t3.duration(), Allocations.currentThreadAllocatedBytes() - before);
+
+            if (report)
+                System.out.println("Largest difference: " + maxDifference + " (double), " + maxFloatDifference + " (float)");
+        }
+    }
+
+    private static byte[][] rows(DescriptorReservoir reservoir)
+    {
+        final byte[][] rows = reservoir.createTemporaryArray(reservoir.size());
+        reservoir.getData(0, reservoir.size(), rows);
+        return rows;
+    }
+
+    // The features may be in a different order, so compare their sorted values.
+    private static double sortedDifference(double[] expected, double[] actual)
+    {
+        if (expected.length != actual.length)
+            throw new IllegalStateException("Feature lengths differ: " + expected.length + " and " + actual.length);
+
+        final double[] a = expected.clone();
+        final double[] b = actual.clone();
+        Arrays.sort(a);
+        Arrays.sort(b);
+
+        double max = 0;
+        for (int i = 0; i < a.length; i++)
+            max = Math.max(max, Math.abs(a[i] - b[i]));
+
+        return max;
+    }
+
+    // Overlapping rectangles of random intensity on a noisy background, so that there are edges for dense SIFT to find.
+    private static FImage randomImage(int width, int height, Random random)
+    {
+        final FImage image = new FImage(width, height);
+
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                image.pixels[y][x] = random.nextFloat() * 0.1f;
+
+        for (int r = 0; r < 12; r++)
+        {
+            final int x0 = random.nextInt(width);
+            final int y0 = random.nextInt(height);
+            final int x1 = Math.min(width, x0 + 10 + random.nextInt(width / 2));
+            final int y1 = Math.min(height, y0 + 10 + random.nextInt(height / 2));
+            final float value = random.nextFloat();
+
+            for (int y = y0; y < y1; y++)
+                for (int x = x0; x < x1; x++)
+                    image.pixels[y][x] = value;
+        }
+
+        return image;
+    }
+
+    private static void report(boolean report, String name, int images, long millis, long bytes)
+    {
+        if (!report)
+            return;
+
+        if (!Allocations.isSupported())
+            System.out.println(name + ": " + (millis / (double) images) + "ms/image");
+        else
+            System.out.println(name + ": " + (millis / (double) images) + "ms/image, " + (bytes / images) + " bytes/image");
+    }
+}
@@ -0,0 +1,162 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.FloatFV;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.annotation.evaluation.datasets.Caltech101;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.ml.kernel.HomogeneousKernelMap;
+import org.openimaj.util.pair.IntFloatPair;
+
+/**
+ * A thread-safe PHOW feature extractor that produces the kernel mapped feature in one step: each image's dense SIFT
+ * keypoints are packed into a single block, assigned to visual words in one call (when the assigner is a
+ * {@link BatchedByteAssigner}), and aggregated, normalised and kernel mapped by a {@link FusedPyramidAggregator}.
+ *
+ * The features can be produced in double precision (as DoubleFVs, by {@link #extractFeature}) or in single precision
+ * (as FloatFVs, by {@link #asFloatExtractor()}), which halves the memory needed to cache them.
+ */
+public class FusedPHOWExtractor implements FeatureExtractor<DoubleFV, Caltech101.Record<FImage>>
+{
+    private final DenseSIFTEngines engines;
+    private final float energyThreshold;
+    private final HardAssigner<byte[], float[], IntFloatPair> assigner;
+    private final ThreadLocal<Workspace> workspaces;
+
+    public FusedPHOWExtractor(HardAssigner<byte[], float[], IntFloatPair> assigner, HomogeneousKernelMap kernelMap)
+    {
+        this(new DenseSIFTEngines(), 0.015f, assigner, kernelMap, 2, 4);
+    }
+
+    /**
+     * Construct an extractor that keeps dense SIFT keypoints above the energy threshold and aggregates their visual
+     * words over a spatial pyramid with the given numbers of blocks. The kernel map may be null.
+     */
+    public FusedPHOWExtractor(DenseSIFTEngines engines, float energyThreshold,
+            final HardAssigner<byte[], float[], IntFloatPair> assigner, final HomogeneousKernelMap kernelMap, int... blocks)
+    {
+        final int[] levels = blocks.clone();
+
+        this.engines = engines;
+        this.energyThreshold = energyThreshold;
+        this.assigner = assigner;
+        this.workspaces = new ThreadLocal<Workspace>()
+        {
+            protected Workspace initialValue()
+            {
+                return new Workspace(new FusedPyramidAggregator(assigner.size(), kernelMap, levels));
+            }
+        };
+    }
+
+    /**
+     * The length of the features produced.
+     */
+    public int length()
+    {
+        return workspaces.get().aggregator.length();
+    }
+
+    public DoubleFV extractFeature(Caltech101.Record<FImage> object)
+    {
+        final double[] feature = new double[length()];
+        extract(object.getImage(), feature);
+        return new DoubleFV(feature);
+    }
+
+    /**
+     * Extract the feature of the image into the given array, which must be {@link #length()} long.
+     */
+    public void extract(FImage image, double[] out)
+    {
+        final Workspace workspace = prepare(image);
+        workspace.aggregator.aggregate(workspace.words, workspace.xs, workspace.ys, workspace.count, image.getBounds(), out);
+    }
+
+    /**
+     * Extract the feature of the image into the given array in single precision.
+     */
+    public void extract(FImage image, float[] out)
+    {
+        final Workspace workspace = prepare(image);
+        workspace.aggregator.aggregate(workspace.words, workspace.xs, workspace.ys, workspace.count, image.getBounds(), out);
+    }
+
+    /**
+     * A view of this extractor that produces single precision features.
+     */
+    public FeatureExtractor<FloatFV, Caltech101.Record<FImage>> asFloatExtractor()
+    {
+        return new FeatureExtractor<FloatFV, Caltech101.Record<FImage>>()
+        {
+            public FloatFV extractFeature(Caltech101.Record<FImage> object)
+            {
+                final float[] feature = new float[length()];
+                extract(object.getImage(), feature);
+                return new FloatFV(feature);
+            }
+        };
+    }
+
+    // Analyse the image and assign its keypoints to words, leaving the words and positions in the workspace.
+    private Workspace prepare(FImage image)
+    {
+        final LocalFeatureList<ByteDSIFTKeypoint> keypoints = engines.analyse(image, energyThreshold);
+        final Workspace workspace = workspaces.get();
+        final int count = keypoints.size();
+        final int dimensions = assigner.numDimensions();
+
+        workspace.ensureCapacity(count, dimensions);
+
+        for (int i = 0; i < count; i++)
+        {
+            final ByteDSIFTKeypoint keypoint = keypoints.get(i);
+
+            workspace.xs[i] = keypoint.x;
+            workspace.ys[i] = keypoint.y;
+
+            if (assigner instanceof BatchedByteAssigner)
+                System.arraycopy(keypoint.descriptor, 0, workspace.descriptors, i * dimensions, dimensions);
+            else
+                workspace.words[i] = assigner.assign(keypoint.descriptor);
+        }
+
+        if (assigner instanceof BatchedByteAssigner)
+            ((BatchedByteAssigner) assigner).assign(workspace.descriptors, 0, count, workspace.words, null);
+
+        workspace.count = count;
+
+        return workspace;
+    }
+
+    // The buffers one thread reuses from image to image.
+    private static final class Workspace
+    {
+        final FusedPyramidAggregator aggregator;
+        byte[] descriptors = new byte[0];
+        int[] words = new int[0];
+        float[] xs = new float[0];
+        float[] ys = new float[0];
+        int count;
+
+        Workspace(FusedPyramidAggregator aggregator)
+        {
+            this.aggregator = aggregator;
+        }
+
+        void ensureCapacity(int count, int dimensions)
+        {
+            if (words.length >= count)
+                return;
+
+            final int capacity = Math.max(count, words.length * 2);
+            descriptors = new byte[capacity * dimensions];
+            words = new int[capacity];
+            xs = new float[capacity];
+            ys = new float[capacity];
+        }
+    }
+}
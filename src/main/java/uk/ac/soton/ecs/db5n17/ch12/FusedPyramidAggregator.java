@@ -0,0 +1,169 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.math.geometry.shape.Rectangle;
+import org.openimaj.ml.kernel.HomogeneousKernelMap;
+
+import java.util.Arrays;
+
+/**
+ * Goes straight from the visual words and positions of an image's keypoints to the L2 normalised, kernel mapped
+ * spatial pyramid histogram, in one pass and without intermediate feature vectors.
+ *
+ * This computes the same values, in the same order, as aggregating with PyramidSpatialAggregator, calling
+ * normaliseFV() and then evaluating a HomogeneousKernelMap: the kernel map's values for each histogram bin are kept
+ * together, one bin after another. Every non-zero bin of a histogram holds a count divided by the same norm, so the
+ * kernel map is evaluated once per distinct count rather than once per bin, which may change the last bits of a value.
+ *
+ * Instances keep their working buffers between calls, so each thread needs its own.
+ */
+public class FusedPyramidAggregator
+{
+    private final int numWords;
+    private final int[] blocks;
+    private final HomogeneousKernelMap kernelMap;
+    private final int mappedDimensions;
+
+    private final int[] counts;
+    private long sumOfSquares;
+
+    // The mapped values of each count for the current image, valid where the stamp matches the generation (the values
+    // for a count of zero do not depend on the image, so they are always valid).
+    private double[] mapped;
+    private int[] stamps = new int[1];
+    private int generation;
+
+    /**
+     * Construct an aggregator for the given vocabulary size and pyramid levels (the number of blocks along each side
+     * at each level). The kernel map may be null, in which case only the normalised histogram is produced.
+     */
+    public FusedPyramidAggregator(int numWords, HomogeneousKernelMap kernelMap, int... blocks)
+    {
+        int bins = 0;
+        for (final int b : blocks)
+        {
+            if (b < 1)
+                throw new IllegalArgumentException("Each level must have at least one block");
+
+            bins += b * b * numWords;
+        }
+
+        this.numWords = numWords;
+        this.blocks = blocks.clone();
+        this.kernelMap = kernelMap;
+        this.counts = new int[bins];
+        this.mapped = map(0);
+        this.mappedDimensions = mapped.length;
+    }
+
+    /**
+     * The length of the feature vectors produced.
+     */
+    public int length()
+    {
+        return counts.length * mappedDimensions;
+    }
+
+    /**
+     * Aggregate the first count keypoints, given by their word indices and positions within the bounds, into out.
+     */
+    public void aggregate(int[] words, float[] xs, float[] ys, int count, Rectangle bounds, double[] out)
+    {
+        checkLength(out.length);
+        countWords(words, xs, ys, count, bounds);
+
+        for (int bin = 0, o = 0; bin < counts.length; bin++, o += mappedDimensions)
+        {
+            // Mapping a new count may replace the array, so the index must be found first.
+            final int index = mappedIndex(counts[bin]);
+            System.arraycopy(mapped, index, out, o, mappedDimensions);
+        }
+    }
+
+    /**
+     * Aggregate as {@link #aggregate(int[], float[], float[], int, Rectangle, double[])}, writing single precision
+     * values.
+     */
+    public void aggregate(int[] words, float[] xs, float[] ys, int count, Rectangle bounds, float[] out)
+    {
+        checkLength(out.length);
+        countWords(words, xs, ys, count, bounds);
+
+        for (int bin = 0, o = 0; bin < counts.length; bin++)
+        {
+            final int index = mappedIndex(counts[bin]);
+
+            for (int j = 0; j < mappedDimensions; j++)
+                out[o++] = (float) mapped[index + j];
+        }
+    }
+
+    private void checkLength(int length)
+    {
+        if (length != length())
+            throw new IllegalArgumentException("Expected an output of length " + length() + " but got " + length);
+    }
+
+    private void countWords(int[] words, float[] xs, float[] ys, int count, Rectangle bounds)
+    {
+        Arrays.fill(counts, 0);
+        sumOfSquares = 0;
+        generation++;
+
+        for (int i = 0; i < count; i++)
+        {
+            final int word = words[i];
+            int offset = 0;
+
+            for (final int b : blocks)
+            {
+                final int bx = block(xs[i] - bounds.x, bounds.width, b);
+                final int by = block(ys[i] - bounds.y, bounds.height, b);
+                final int bin = offset + (by * b + bx) * numWords + word;
+
+                // (c + 1)² - c² = 2c + 1
+                sumOfSquares += 2L * counts[bin] + 1;
+                counts[bin]++;
+
+                offset += b * b * numWords;
+            }
+        }
+    }
+
+    private static int block(float position, float extent, int blocks)
+    {
+        final int block = (int) (position * blocks / extent);
+
+        return Math.min(Math.max(block, 0), blocks - 1);
+    }
+
+    // The index in mapped of the values for the count, mapping them first if this image has not needed them yet.
+    private int mappedIndex(int count)
+    {
+        if (count == 0)
+            return 0;
+
+        if (count >= stamps.length)
+        {
+            final int size = Math.max(count + 1, stamps.length * 2);
+            stamps = Arrays.copyOf(stamps, size);
+            mapped = Arrays.copyOf(mapped, size * mappedDimensions);
+        }
+
+        if (stamps[count] != generation)
+        {
+            System.arraycopy(map(count / Math.sqrt(sumOfSquares)), 0, mapped, count * mappedDimensions, mappedDimensions);
+            stamps[count] = generation;
+        }
+
+        return count * mappedDimensions;
+    }
+
+    private double[] map(double value)
+    {
+        if (kernelMap == null)
+            return new double[] { value };
+
+        return kernelMap.evaluate(new DoubleFV(new double[] { value })).values;
+    }
+}
@@ -0,0 +1,251 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import de.bwaldvogel.liblinear.Feature;
+import de.bwaldvogel.liblinear.FeatureNode;
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.Parameter;
+import de.bwaldvogel.liblinear.Problem;
+import de.bwaldvogel.liblinear.SolverType;
+import org.openimaj.experiment.evaluation.classification.BasicClassificationResult;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMAnalyser;
+import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMResult;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Trains and evaluates many liblinear configurations on the same features, for choosing the solver, C and epsilon.
+ *
+ * The liblinear problem is built from the training features once and shared by every configuration, and the test
+ * features are converted once, so each configuration only costs the solver and the predictions. Configurations are
+ * trained in parallel, one multiclass model each, and evaluated with CMAnalyser.
+ */
+public class LiblinearSweep<K extends Comparable<K>>
+{
+    private final List<K> classes;
+    private final Problem problem;
+    private final Feature[][] test;
+    private final Map<Integer, Set<K>> actual = new HashMap<>();
+
+    public LiblinearSweep(BulkFeatureExtractor.FeatureMatrix<K> training, BulkFeatureExtractor.FeatureMatrix<K> test)
+    {
+        this(training, test, 1);
+    }
+
+    /**
+     * Prepare a sweep over the given training and test features. The test features should be a validation split
+     * rather than the final test split, since choosing the best configuration by them biases their accuracy. A
+     * non-negative bias adds a constant feature of that value to every vector, so that the models can learn an
+     * intercept.
+     */
+    public LiblinearSweep(BulkFeatureExtractor.FeatureMatrix<K> training, BulkFeatureExtractor.FeatureMatrix<K> test, double bias)
+    {
+        this.classes = new ArrayList<>(new TreeSet<>(training.getLabels()));
+
+        final int dimensions = training.numDimensions();
+
+        problem = new Problem();
+        problem.l = training.numRows();
+        problem.n = bias >= 0 ? dimensions + 1 : dimensions;
+        problem.bias = bias;
+        problem.x = new Feature[training.numRows()][];
+        problem.y = new double[training.numRows()];
+
+        for (int i = 0; i < training.numRows(); i++)
+        {
+            problem.x[i] = toFeatures(training.getRows()[i], bias);
+            problem.y[i] = classes.indexOf(training.getLabels().get(i));
+        }
+
+        this.test = new Feature[test.numRows()][];
+        for (int i = 0; i < test.numRows(); i++)
+        {
+            this.test[i] = toFeatures(test.getRows()[i], bias);
+            actual.put(i, Collections.singleton(test.getLabels().get(i)));
+        }
+    }
+
+    /**
+     * Train and evaluate every configuration, returning the results ranked from most to least accurate. Configurations
+     * of equal accuracy keep their order in the given list, so the ranking does not depend on which finished first.
+     */
+    public List<Result<K>> run(final List<Configuration> configurations)
+    {
+        // Each thread writes only its own configuration's element, and forIndex returns after every thread is done.
+        final List<Result<K>> results = new ArrayList<>(Collections.<Result<K>>nCopies(configurations.size(), null));
+
+        Parallel.forIndex(0, configurations.size(), 1, new Operation<Integer>()
+        {
+            public void perform(Integer i)
+            {
+                results.set(i, evaluate(configurations.get(i)));
+            }
+        });
+
+        // The sort is stable, so ties are left in the order of the configurations.
+        final List<Result<K>> ranked = new ArrayList<>(results);
+        Collections.sort(ranked, new Comparator<Result<K>>()
+        {
+            public int compare(Result<K> a, Result<K> b)
+            {
+                return Double.compare(b.getAccuracy(), a.getAccuracy());
+            }
+        });
+
+        return ranked;
+    }
+
+    private Result<K> evaluate(Configuration configuration)
+    {
+        final long start = System.nanoTime();
+        final Model model = Linear.train(problem, new Parameter(configuration.getSolver(), configuration.getC(), configuration.getEpsilon()));
+        final long trained = System.nanoTime();
+
+        final Map<Integer, ClassificationResult<K>> predicted = new HashMap<>();
+        for (int i = 0; i < test.length; i++)
+        {
+            final BasicClassificationResult<K> result = new BasicClassificationResult<>();
+            result.put(classes.get((int) Linear.predict(model, test[i])), 1.0);
+            predicted.put(i, result);
+        }
+
+        final CMResult<K> result = new CMAnalyser<Integer, K>(CMAnalyser.Strategy.SINGLE).analyse(predicted, actual);
+
+        return new Result<>(configuration, result, (trained - start) / 1000000);
+    }
+
+    /**
+     * Format the ranked results as a table.
+     */
+    public static <K> String report(List<Result<K>> ranked)
+    {
+        final StringBuilder report = new StringBuilder(String.format(Locale.ROOT, "%4s  %-22s  %10s  %10s  %8s  %10s%n",
+                "Rank", "Solver", "C", "Epsilon", "Accuracy", "Train (ms)"));
+
+        for (int i = 0; i < ranked.size(); i++)
+        {
+            final Result<K> result = ranked.get(i);
+            final Configuration configuration = result.getConfiguration();
+
+            report.append(String.format(Locale.ROOT, "%4d  %-22s  %10.4g  %10.4g  %8.4f  %10d%n", i + 1,
+                    configuration.getSolver(), configuration.getC(), configuration.getEpsilon(), result.getAccuracy(),
+                    result.getTrainingMillis()));
+        }
+
+        return report.toString();
+    }
+
+    // Liblinear expects the non-zero features in index order, starting from 1, with the bias feature (if any) last.
+    static Feature[] toFeatures(double[] values, double bias)
+    {
+        final List<Feature> features = new ArrayList<>();
+
+        for (int i = 0; i < values.length; i++)
+        {
+            if (values[i] != 0)
+                features.add(new FeatureNode(i + 1, values[i]));
+        }
+
+        if (bias >= 0)
+            features.add(new FeatureNode(values.length + 1, bias));
+
+        return features.toArray(new Feature[features.size()]);
+    }
+
+    /**
+     * A solver, cost (C) and stopping tolerance (epsilon) to train with.
+     */
+    public static class Configuration
+    {
+        private final SolverType solver;
+        private final double c;
+        private final double epsilon;
+
+        public Configuration(SolverType solver, double c, double epsilon)
+        {
+            this.solver = solver;
+            this.c = c;
+            this.epsilon = epsilon;
+        }
+
+        /**
+         * Every combination of the given solvers, costs and tolerances.
+         */
+        public static List<Configuration> grid(List<SolverType> solvers, double[] cs, double[] epsilons)
+        {
+            final List<Configuration> configurations = new ArrayList<>();
+
+            for (final SolverType solver : solvers)
+                for (final double c : cs)
+                    for (final double epsilon : epsilons)
+                        configurations.add(new Configuration(solver, c, epsilon));
+
+            return configurations;
+        }
+
+        public SolverType getSolver()
+        {
+            return solver;
+        }
+
+        public double getC()
+        {
+            return c;
+        }
+
+        public double getEpsilon()
+        {
+            return epsilon;
+        }
+
+        public String toString()
+        {
+            return solver + " C=" + c + " eps=" + epsilon;
+        }
+    }
+
+    public static class Result<K>
+    {
+        private final Configuration configuration;
+        private final CMResult<K> result;
+        private final long trainingMillis;
+
+        Result(Configuration configuration, CMResult<K> result, long trainingMillis)
+        {
+            this.configuration = configuration;
+            this.result = result;
+            this.trainingMillis = trainingMillis;
+        }
+
+        public Configuration getConfiguration()
+        {
+            return configuration;
+        }
+
+        public CMResult<K> getResult()
+        {
+            return result;
+        }
+
+        public double getAccuracy()
+        {
+            return result.getMatrix().getAccuracy();
+        }
+
+        public long getTrainingMillis()
+        {
+            return trainingMillis;
+        }
+    }
+}
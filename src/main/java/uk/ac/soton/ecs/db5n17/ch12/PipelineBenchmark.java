@@ -0,0 +1,313 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import de.bwaldvogel.liblinear.Feature;
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.Parameter;
+import de.bwaldvogel.liblinear.Problem;
+import de.bwaldvogel.liblinear.SolverType;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.image.FImage;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.ml.clustering.kmeans.ByteKMeans;
+import org.openimaj.ml.kernel.HomogeneousKernelMap;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+import uk.ac.soton.ecs.db5n17.metrics.StageProfiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the chapter 12 pipeline stage by stage on a {@link SyntheticImageDataset}, profiling the wall time, CPU time,
+ * allocation and peak heap of each stage with a {@link StageProfiler}, for every combination of dataset size and
+ * thread count given. The stages are those of App: sampling dense SIFT features for the quantiser, training the
+ * quantiser, dense SIFT, assignment, pyramid aggregation, the kernel map, liblinear training and evaluation, plus
+ * generating the images (which stands in for reading them).
+ *
+ * Each stage runs over every image before the next begins, on a pool with the given number of threads, so the
+ * results show how each stage scales; the speedup column is relative to the first thread count. K-means and liblinear
+ * training do not use the pool. The results are printed as a tab-separated table and, if a file is given, written to
+ * it so that runs can be compared. A small untimed run first warms up the JIT.
+ *
+ * Usage: PipelineBenchmark [classes] [images per class, e.g. 15,30] [size] [threads, e.g. 1,2,4] [words] [file]
+ */
+public class PipelineBenchmark
+{
+    private static final float ENERGY_THRESHOLD = 0.015f;
+    private static final float SAMPLE_ENERGY_THRESHOLD = 0.005f;
+    private static final int SAMPLE_IMAGES = 30;
+    private static final long SEED = 42;
+
+    public static void main( String[] args ) throws IOException
+    {
+        final int classes = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final int[] sizes = parseList(args.length > 1 ? args[1] : "15");
+        final int size = args.length > 2 ? Integer.parseInt(args[2]) : 128;
+        final int[] threads = parseList(args.length > 3 ? args[3] : "1," + Runtime.getRuntime().availableProcessors());
+        final int words = args.length > 4 ? Integer.parseInt(args[4]) : 600;
+        final File file = args.length > 5 ? new File(args[5]) : null;
+
+        Linear.disableDebugOutput();
+
+        System.out.println("Warming up");
+        run(2, 2, size, threads[threads.length - 1], Math.min(words, 50));
+
+        final List<String> rows = new ArrayList<>();
+        rows.add("images\tthreads\t" + StageProfiler.Profile.HEADER + "\tspeedup");
+
+        for (final int images : sizes)
+        {
+            final Map<String, Double> baseline = new HashMap<>();
+
+            for (final int t : threads)
+            {
+                System.out.println(classes + " classes of " + images + " training and " + images + " test images, "
+                        + size + "px, " + t + " thread(s)");
+
+                final Run run = run(classes, images, size, t, words);
+                System.out.println("Accuracy: " + String.format(Locale.ROOT, "%.4f", run.accuracy));
+
+                for (final StageProfiler.Profile profile : run.profiles)
+                {
+                    if (!baseline.containsKey(profile.getName()))
+                        baseline.put(profile.getName(), profile.getWallMillis());
+
+                    final double speedup = baseline.get(profile.getName()) / profile.getWallMillis();
+                    rows.add(images + "\t" + t + "\t" + profile.toRow() + "\t" + String.format(Locale.ROOT, "%.3f", speedup));
+                }
+            }
+        }
+
+        System.out.println();
+        for (final String row : rows)
+            System.out.println(row);
+
+        if (file != null)
+            Files.write(file.toPath(), rows, StandardCharsets.UTF_8);
+    }
+
+    private static Run run(int classes, final int images, int size, int threads, int words)
+    {
+        final ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                final Thread thread = new Thread(r, "PipelineBenchmark-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        // Start every thread now, so that none is created (and none of its allocation missed) during a stage.
+        pool.prestartAllCoreThreads();
+
+        // Leave as little garbage as possible from earlier runs to be counted in this run's peak heap.
+        System.gc();
+
+        try
+        {
+            final StageProfiler profiler = new StageProfiler();
+            final Run run = new Run();
+
+            profiler.begin("generate");
+            final FImage[] data = generate(pool, new SyntheticImageDataset(classes, 0, images, size, SEED),
+                    new SyntheticImageDataset(classes, images, images, size, SEED));
+            final int training = classes * images;
+
+            profiler.begin("sample");
+            final DenseSIFTEngines engines = new DenseSIFTEngines();
+            final DescriptorReservoir reservoir = DescriptorReservoir.forClusters(words);
+            Parallel.forIndex(0, training, 1, new Operation<Integer>()
+            {
+                public void perform(Integer i)
+                {
+                    if (i % images < SAMPLE_IMAGES)
+                        reservoir.offerAll(engines.analyse(data[i], SAMPLE_ENERGY_THRESHOLD));
+                }
+            }, pool);
+
+            profiler.begin("quantiser");
+            final BatchedByteAssigner assigner = new BatchedByteAssigner(ByteKMeans.createKDTreeEnsemble(words).cluster(reservoir));
+
+            profiler.begin("denseSift");
+            final Keypoints[] keypoints = new Keypoints[data.length];
+            Parallel.forIndex(0, data.length, 1, new Operation<Integer>()
+            {
+                public void perform(Integer i)
+                {
+                    keypoints[i] = new Keypoints(engines.analyse(data[i], ENERGY_THRESHOLD), assigner.numDimensions());
+                }
+            }, pool);
+
+            profiler.begin("assign");
+            Parallel.forIndex(0, data.length, 1, new Operation<Integer>()
+            {
+                public void perform(Integer i)
+                {
+                    final Keypoints k = keypoints[i];
+                    k.words = new int[k.count];
+                    assigner.assign(k.descriptors, 0, k.count, k.words, null);
+
+                    // The descriptors are no longer needed, so let them be collected.
+                    k.descriptors = null;
+                }
+            }, pool);
+
+            profiler.begin("aggregate");
+            final ThreadLocal<FusedPyramidAggregator> aggregators = new ThreadLocal<FusedPyramidAggregator>()
+            {
+                protected FusedPyramidAggregator initialValue()
+                {
+                    return new FusedPyramidAggregator(assigner.size(), null, 2, 4);
+                }
+            };
+            final double[][] histograms = new double[data.length][];
+            Parallel.forIndex(0, data.length, 1, new Operation<Integer>()
+            {
+                public void perform(Integer i)
+                {
+                    final FusedPyramidAggregator aggregator = aggregators.get();
+                    final Keypoints k = keypoints[i];
+
+                    histograms[i] = new double[aggregator.length()];
+                    aggregator.aggregate(k.words, k.xs, k.ys, k.count, data[i].getBounds(), histograms[i]);
+                    keypoints[i] = null;
+                }
+            }, pool);
+
+            profiler.begin("kernelMap");
+            final HomogeneousKernelMap kernelMap = new HomogeneousKernelMap(HomogeneousKernelMap.KernelType.Chi2,
+                    HomogeneousKernelMap.WindowType.Rectangular);
+            final double[][] features = new double[data.length][];
+            Parallel.forIndex(0, data.length, 1, new Operation<Integer>()
+            {
+                public void perform(Integer i)
+                {
+                    features[i] = kernelMap.evaluate(new DoubleFV(histograms[i])).values;
+                    histograms[i] = null;
+                }
+            }, pool);
+
+            profiler.begin("train");
+            final Problem problem = new Problem();
+            problem.l = training;
+            problem.n = features[0].length + 1;
+            problem.bias = 1;
+            problem.x = new Feature[training][];
+            problem.y = new double[training];
+            for (int i = 0; i < training; i++)
+            {
+                problem.x[i] = LiblinearSweep.toFeatures(features[i], 1);
+                problem.y[i] = i / images;
+            }
+            final Model model = Linear.train(problem, new Parameter(SolverType.L2R_L2LOSS_SVC, 1.0, 0.00001));
+
+            profiler.begin("evaluate");
+            final AtomicInteger correct = new AtomicInteger();
+            Parallel.forIndex(training, data.length, 1, new Operation<Integer>()
+            {
+                public void perform(Integer i)
+                {
+                    if ((int) Linear.predict(model, LiblinearSweep.toFeatures(features[i], 1)) == (i - training) / images)
+                        correct.incrementAndGet();
+                }
+            }, pool);
+            profiler.end();
+
+            run.profiles = profiler.getProfiles();
+            run.accuracy = correct.get() / (double) (data.length - training);
+
+            return run;
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    // Generate every training image and then every test image, each in class order.
+    private static FImage[] generate(ThreadPoolExecutor pool, SyntheticImageDataset... datasets)
+    {
+        final List<ListDataset<FImage>> groups = new ArrayList<>();
+        for (final SyntheticImageDataset dataset : datasets)
+            for (final String group : dataset.getGroups())
+                groups.add(dataset.getInstances(group));
+
+        final int[] offsets = new int[groups.size() + 1];
+        for (int g = 0; g < groups.size(); g++)
+            offsets[g + 1] = offsets[g] + groups.get(g).size();
+
+        final FImage[] images = new FImage[offsets[groups.size()]];
+        Parallel.forIndex(0, groups.size(), 1, new Operation<Integer>()
+        {
+            public void perform(Integer g)
+            {
+                final ListDataset<FImage> group = groups.get(g);
+
+                for (int i = 0; i < group.size(); i++)
+                    images[offsets[g] + i] = group.get(i);
+            }
+        }, pool);
+
+        return images;
+    }
+
+    private static int[] parseList(String list)
+    {
+        final String[] parts = list.split(",");
+        final int[] values = new int[parts.length];
+
+        for (int i = 0; i < parts.length; i++)
+            values[i] = Integer.parseInt(parts[i].trim());
+
+        return values;
+    }
+
+    // An image's dense SIFT keypoints, with their descriptors packed one after another.
+    private static final class Keypoints
+    {
+        final int count;
+        final float[] xs;
+        final float[] ys;
+        byte[] descriptors;
+        int[] words;
+
+        Keypoints(LocalFeatureList<ByteDSIFTKeypoint> keypoints, int dimensions)
+        {
+            count = keypoints.size();
+            xs = new float[count];
+            ys = new float[count];
+            descriptors = new byte[count * dimensions];
+
+            for (int i = 0; i < count; i++)
+            {
+                final ByteDSIFTKeypoint keypoint = keypoints.get(i);
+                xs[i] = keypoint.x;
+                ys[i] = keypoint.y;
+                System.arraycopy(keypoint.descriptor, 0, descriptors, i * dimensions, dimensions);
+            }
+        }
+    }
+
+    private static final class Run
+    {
+        List<StageProfiler.Profile> profiles;
+        double accuracy;
+    }
+}
@@ -0,0 +1,256 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import gov.sandia.cognition.learning.performance.categorization.DefaultConfusionMatrix;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.experiment.evaluation.classification.Classifier;
+import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMResult;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evaluates a classifier on a grouped dataset in parallel, folding each result into a confusion matrix as soon as it
+ * is made rather than keeping every result until the end, as ClassificationEvaluator does.
+ *
+ * Each object counts as its best predicted class (the one with the highest confidence), as with CMAnalyser's SINGLE
+ * strategy, and the final CMResult is built from the same counts, so its reports are the ones CMAnalyser would give.
+ * The counts are split across stripes, each with its own lock, so that threads rarely wait for each other. The running
+ * accuracy can be read (or reported to a listener periodically) while the evaluation is in progress.
+ */
+public class StreamingClassificationEvaluator<CLASS extends Comparable<CLASS>, OBJECT>
+{
+    /**
+     * Receives the progress of an evaluation. It is called from the evaluating threads, by whichever thread completes
+     * each interval, so it must be safe to call from several threads at once.
+     */
+    public interface ProgressListener
+    {
+        void progress(long evaluated, long total, double accuracy);
+    }
+
+    private final ThreadLocal<? extends Classifier<CLASS, OBJECT>> classifiers;
+    private final GroupedDataset<CLASS, ? extends ListDataset<OBJECT>, OBJECT> dataset;
+    private final Stripe<CLASS>[] stripes;
+
+    private final AtomicLong evaluated = new AtomicLong();
+    private final AtomicLong correct = new AtomicLong();
+    private ProgressListener progressListener;
+    private int progressInterval;
+
+    /**
+     * Construct an evaluator for a classifier that is safe to call from several threads at once.
+     */
+    public StreamingClassificationEvaluator(final Classifier<CLASS, OBJECT> classifier,
+            GroupedDataset<CLASS, ? extends ListDataset<OBJECT>, OBJECT> dataset)
+    {
+        this(new ThreadLocal<Classifier<CLASS, OBJECT>>()
+        {
+            protected Classifier<CLASS, OBJECT> initialValue()
+            {
+                return classifier;
+            }
+        }, dataset);
+    }
+
+    /**
+     * Construct an evaluator that gives each thread its own classifier.
+     */
+    @SuppressWarnings("unchecked")
+    public StreamingClassificationEvaluator(ThreadLocal<? extends Classifier<CLASS, OBJECT>> classifiers,
+            GroupedDataset<CLASS, ? extends ListDataset<OBJECT>, OBJECT> dataset)
+    {
+        this.classifiers = classifiers;
+        this.dataset = dataset;
+
+        int count = 1;
+        while (count < 4 * Runtime.getRuntime().availableProcessors())
+            count <<= 1;
+
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++)
+            stripes[i] = new Stripe<>();
+    }
+
+    /**
+     * Report the running accuracy to the listener every interval objects (by default nothing is reported).
+     */
+    public void setProgressListener(ProgressListener listener, int interval)
+    {
+        if (interval < 1)
+            throw new IllegalArgumentException("The progress interval must be at least 1");
+
+        this.progressListener = listener;
+        this.progressInterval = interval;
+    }
+
+    /**
+     * Classify every object in the dataset and return the confusion matrix result.
+     */
+    public CMResult<CLASS> evaluate()
+    {
+        final List<CLASS> labels = new ArrayList<>();
+        final List<OBJECT> objects = new ArrayList<>();
+
+        for (final CLASS group : dataset.getGroups())
+        {
+            for (final OBJECT object : dataset.getInstances(group))
+            {
+                labels.add(group);
+                objects.add(object);
+            }
+        }
+
+        Parallel.forIndex(0, objects.size(), 1, new Operation<Integer>()
+        {
+            public void perform(Integer i)
+            {
+                record(labels.get(i), best(classifiers.get().classify(objects.get(i))), objects.size());
+            }
+        });
+
+        return getResult();
+    }
+
+    /**
+     * The confusion matrix of everything evaluated so far.
+     */
+    public CMResult<CLASS> getResult()
+    {
+        final Map<Cell<CLASS>, Long> counts = new HashMap<>();
+
+        for (final Stripe<CLASS> stripe : stripes)
+        {
+            synchronized (stripe)
+            {
+                for (final Map.Entry<Cell<CLASS>, long[]> entry : stripe.counts.entrySet())
+                {
+                    final Long count = counts.get(entry.getKey());
+                    counts.put(entry.getKey(), (count == null ? 0 : count) + entry.getValue()[0]);
+                }
+            }
+        }
+
+        // Add the cells in a fixed order, so that the matrix is the same however the work was scheduled.
+        final List<Cell<CLASS>> cells = new ArrayList<>(counts.keySet());
+        Collections.sort(cells);
+
+        final DefaultConfusionMatrix<CLASS> matrix = new DefaultConfusionMatrix<>();
+        for (final Cell<CLASS> cell : cells)
+            matrix.add(cell.actual, cell.predicted, counts.get(cell));
+
+        return new CMResult<>(matrix);
+    }
+
+    public long getEvaluated()
+    {
+        return evaluated.get();
+    }
+
+    public double getRunningAccuracy()
+    {
+        final long total = evaluated.get();
+
+        return total == 0 ? 0 : correct.get() / (double) total;
+    }
+
+    private void record(CLASS actual, CLASS predicted, int total)
+    {
+        final Cell<CLASS> cell = new Cell<>(actual, predicted);
+        final Stripe<CLASS> stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+
+        synchronized (stripe)
+        {
+            long[] count = stripe.counts.get(cell);
+
+            if (count == null)
+            {
+                count = new long[1];
+                stripe.counts.put(cell, count);
+            }
+
+            count[0]++;
+        }
+
+        if (actual.equals(predicted))
+            correct.incrementAndGet();
+
+        final long done = evaluated.incrementAndGet();
+
+        if (progressListener != null && done % progressInterval == 0)
+            progressListener.progress(done, total, getRunningAccuracy());
+    }
+
+    // The predicted class with the highest confidence, or null if nothing was predicted.
+    private CLASS best(ClassificationResult<CLASS> result)
+    {
+        CLASS best = null;
+        double bestConfidence = Double.NEGATIVE_INFINITY;
+
+        for (final CLASS predicted : result.getPredictedClasses())
+        {
+            final double confidence = result.getConfidence(predicted);
+
+            if (best == null || confidence > bestConfidence)
+            {
+                best = predicted;
+                bestConfidence = confidence;
+            }
+        }
+
+        return best;
+    }
+
+    private static final class Stripe<CLASS extends Comparable<CLASS>>
+    {
+        final Map<Cell<CLASS>, long[]> counts = new HashMap<>();
+    }
+
+    private static final class Cell<CLASS extends Comparable<CLASS>> implements Comparable<Cell<CLASS>>
+    {
+        final CLASS actual;
+        final CLASS predicted;
+
+        Cell(CLASS actual, CLASS predicted)
+        {
+            this.actual = actual;
+            this.predicted = predicted;
+        }
+
+        public int compareTo(Cell<CLASS> other)
+        {
+            final int byActual = actual.compareTo(other.actual);
+
+            if (byActual != 0)
+                return byActual;
+
+            // Objects with no prediction sort last.
+            if (predicted == null || other.predicted == null)
+                return predicted == other.predicted ? 0 : predicted == null ? 1 : -1;
+
+            return predicted.compareTo(other.predicted);
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Cell))
+                return false;
+
+            final Cell<?> other = (Cell<?>) o;
+
+            return actual.equals(other.actual) && (predicted == null ? other.predicted == null : predicted.equals(other.predicted));
+        }
+
+        public int hashCode()
+        {
+            return 31 * actual.hashCode() + (predicted == null ? 0 : predicted.hashCode());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import org.openimaj.image.FImage;
+
+import uk.ac.soton.ecs.db5n17.data.SyntheticDataset;
+
+import java.util.Random;
+
+/**
+ * A grouped dataset of generated images, for exercising the classification pipeline without downloading Caltech 101.
+ *
+ * Each class has a prototype made of a striped background and a few discs and squares, and each image is its class's
+ * prototype with the shapes moved, resized and re-shaded at random and with noise added, so the classes can be told
+ * apart but not trivially. Two datasets with the same seed but disjoint ranges of indices (for example [0, 15) and
+ * [15, 30)) make a training and test split, as for any {@link SyntheticDataset}.
+ */
+public class SyntheticImageDataset extends SyntheticDataset<FImage>
+{
+    private static final int SHAPES = 6;
+
+    /**
+     * Construct a dataset of the given number of classes, each holding the images with indices [first, first + count)
+     * of that class, which are size pixels square.
+     */
+    public SyntheticImageDataset(int classes, int first, int count, int size, long seed)
+    {
+        super("class%03d", uniform(classes, count), first, seed, prototypes(classes, first, count, size));
+    }
+
+    private static Generator<FImage> prototypes(int classes, int first, int count, final int size)
+    {
+        if (classes < 1 || first < 0 || count < 0 || size < 16)
+            throw new IllegalArgumentException("Invalid dataset: " + classes + " classes of " + count + " images of " + size + "px");
+
+        return new Generator<FImage>()
+        {
+            public Renderer<FImage> create(Random random)
+            {
+                return new Prototype(random, size);
+            }
+        };
+    }
+
+    // The layout shared by every image of a class; positions and sizes are fractions of the image size.
+    private static class Prototype implements Renderer<FImage>
+    {
+        private final int size;
+        private final double angle;
+        private final double frequency;
+        private final double[] xs = new double[SHAPES];
+        private final double[] ys = new double[SHAPES];
+        private final double[] radii = new double[SHAPES];
+        private final float[] shades = new float[SHAPES];
+        private final boolean[] squares = new boolean[SHAPES];
+
+        Prototype(Random random, int size)
+        {
+            this.size = size;
+
+            angle = random.nextDouble() * Math.PI;
+            frequency = 4 + random.nextDouble() * 12;
+
+            for (int i = 0; i < SHAPES; i++)
+            {
+                xs[i] = 0.15 + random.nextDouble() * 0.7;
+                ys[i] = 0.15 + random.nextDouble() * 0.7;
+                radii[i] = 0.05 + random.nextDouble() * 0.12;
+                shades[i] = random.nextFloat();
+                squares[i] = random.nextBoolean();
+            }
+        }
+
+        public FImage render(Random random)
+        {
+            final FImage image = new FImage(size, size);
+            final float[][] pixels = image.pixels;
+
+            // The stripes, with their phase and contrast varying between images.
+            final double cos = Math.cos(angle) * frequency * 2 * Math.PI / size;
+            final double sin = Math.sin(angle) * frequency * 2 * Math.PI / size;
+            final double phase = random.nextDouble() * 2 * Math.PI;
+            final float contrast = 0.1f + random.nextFloat() * 0.15f;
+
+            for (int y = 0; y < size; y++)
+                for (int x = 0; x < size; x++)
+                    pixels[y][x] = 0.5f + contrast * (float) Math.sin(x * cos + y * sin + phase);
+
+            for (int i = 0; i < SHAPES; i++)
+            {
+                final double cx = (xs[i] + random.nextGaussian() * 0.04) * size;
+                final double cy = (ys[i] + random.nextGaussian() * 0.04) * size;
+                final double r = radii[i] * (0.8 + random.nextDouble() * 0.4) * size;
+                final float shade = Math.min(Math.max(shades[i] + (float) random.nextGaussian() * 0.1f, 0), 1);
+
+                final int x0 = Math.max((int) (cx - r), 0);
+                final int x1 = Math.min((int) (cx + r) + 1, size);
+                final int y0 = Math.max((int) (cy - r), 0);
+                final int y1 = Math.min((int) (cy + r) + 1, size);
+
+                for (int y = y0; y < y1; y++)
+                {
+                    for (int x = x0; x < x1; x++)
+                    {
+                        final double dx = x - cx;
+                        final double dy = y - cy;
+
+                        if (squares[i] || dx * dx + dy * dy <= r * r)
+                            pixels[y][x] = shade;
+                    }
+                }
+            }
+
+            for (int y = 0; y < size; y++)
+                for (int x = 0; x < size; x++)
+                    pixels[y][x] = Math.min(Math.max(pixels[y][x] + (float) random.nextGaussian() * 0.03f, 0), 1);
+
+            return image;
+        }
+    }
+}
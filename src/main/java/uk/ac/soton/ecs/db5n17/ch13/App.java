@@ -1,18 +1,18 @@
 package uk.ac.soton.ecs.db5n17.ch13;
 
-import org.apache.commons.vfs2.FileSystemException;
 import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListBackedDataset;
 import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
 import org.openimaj.data.dataset.VFSGroupDataset;
-import org.openimaj.experiment.dataset.split.GroupedRandomSplitter;
-import org.openimaj.experiment.dataset.util.DatasetAdaptors;
-import org.openimaj.feature.DoubleFV;
-import org.openimaj.feature.DoubleFVComparison;
 import org.openimaj.image.DisplayUtilities;
 import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
-import org.openimaj.image.model.EigenImages;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 
 /**
@@ -21,7 +21,7 @@ import java.util.*;
  */
 public class App
 {
-    public static void main( String[] args ) throws FileSystemException
+    public static void main( String[] args ) throws IOException
     {
         // Load the dataset.
         VFSGroupDataset<FImage> dataset =
@@ -33,103 +33,152 @@ public class App
         // a certain point, so by reducing the number of training images, we can see a drastically steeper fall in accuracy. Furthermore, the accuracy of the classifier becomes
         // less consistent than the ~93% at 5 images. We can also see that visually, the first twelve basis images produced look more and more similar to each other the more we
         // lower this value (the square glasses become quite a defining feature).
+        // The split is made with a fixed seed rather than by a GroupedRandomSplitter, so that a model saved by an earlier run was
+        // trained on this run's training faces and never contains the faces it is tested on.
         int nTraining = 5;
         int nTesting = 5;
-        GroupedRandomSplitter<String, FImage> splits =
-                new GroupedRandomSplitter<>(dataset, nTraining, 0, nTesting);
-        GroupedDataset<String, ListDataset<FImage>, FImage> training = splits.getTrainingDataset();
-        GroupedDataset<String, ListDataset<FImage>, FImage> testing = splits.getTestDataset();
-
-        // Use the training data to learn the PCA basis.
-        List<FImage> basisImages = DatasetAdaptors.asList(training);
+        long splitSeed = 0;
+        MapBackedDataset<String, ListDataset<FImage>, FImage> training = new MapBackedDataset<>();
+        MapBackedDataset<String, ListDataset<FImage>, FImage> testing = new MapBackedDataset<>();
+        split(dataset, nTraining, nTesting, splitSeed, training, testing);
+
+        // The basis and the features of the training images are saved to a single model file, which is opened again on later runs
+        // rather than retraining. The model records nTraining, the split's seed and the number of eigenvectors, and is retrained
+        // whenever any of them has changed. It keeps the features in a single contiguous gallery, rather than a DoubleFV object per
+        // face, and searches it where it lies.
         int nEigenvectors = 100;
-        EigenImages eigen = new EigenImages(nEigenvectors);
-        eigen.train(basisImages);
+        File modelFile = new File("C://Users//Dan//Desktop//comp3204//cache//faces");
 
-        // Draw the first twelve basis vectors (Eigenfaces).
-        List<FImage> eigenFaces = new ArrayList<>();
-        for (int i = 0; i < 12; i++) {
-            eigenFaces.add(eigen.visualisePC(i));
-        }
-        DisplayUtilities.display("EigenFaces", eigenFaces);
+        if (!isTrainedWith(modelFile, nTraining, splitSeed, nEigenvectors))
+            train(modelFile, training, nTraining, splitSeed, nEigenvectors);
 
-        // Build a database of features from the training images.
-        Map<String, DoubleFV[]> features = new HashMap<>();
-        for (final String person : training.getGroups())
+        try (FaceModel model = FaceModel.open(modelFile))
         {
-            final DoubleFV[] fvs = new DoubleFV[nTraining];
-
-            for (int i = 0; i < nTraining; i++)
+            // Draw the first twelve basis vectors (Eigenfaces).
+            List<FImage> eigenFaces = new ArrayList<>();
+            for (int i = 0; i < Math.min(12, model.getNumComponents()); i++) {
+                eigenFaces.add(model.visualisePC(i));
+            }
+            DisplayUtilities.display("EigenFaces", eigenFaces);
+
+            // Exercise 1: Reconstructing faces
+            // First, generate a random number between 0 to n - 1, which corresponds to the face in the training gallery we will select.
+            int randomFeature = (int)(Math.random() * model.size());
+            // Finally, reconstruct the face and then display the normalised result.
+            FImage reconstructedFace = model.reconstruct(model.getFeature(randomFeature));
+            DisplayUtilities.display(reconstructedFace.normalise(), "Reconstructed Face");
+
+            // Exercise 3: Apply a threshold
+            // Apply a threshold to the distance of the nearest face. If this threshold is exceeded, we waive the prediction and simply
+            // return "unknown" to indicate the model is unsure. This value will then not affect the accuracy of the model.
+            // Note that the threshold has changed: it was 7 times the minimum distance found so far, and is now 2 times the mean distance
+            // from each training face to its nearest other training face (the nearest is the face itself). It no longer depends on the
+            // order in which the faces are compared, so the accuracies are not directly comparable with those of the old threshold.
+            // With fewer than two training faces there is no nearest other face, so nothing is rejected.
+            double thresholdModifier = 2.0, threshold = Double.POSITIVE_INFINITY;
+
+            if (model.size() >= 2)
             {
-                final FImage face = training.get(person).get(i);
-                fvs[i] = eigen.extractFeature(face);
+                double meanNearestDistance = 0;
+                for (int i = 0; i < model.size(); i++)
+                    meanNearestDistance += model.search(model.getFeature(i), 2, Double.POSITIVE_INFINITY).get(1).getDistance() / model.size();
+
+                threshold = meanNearestDistance * thresholdModifier;
             }
-            features.put(person, fvs);
-        }
 
-        // Exercise 1: Reconstructing faces
-        // First, generate a random number between 0 to n - 1, which corresponds to the person in the training group we will select.
-        int randomPerson = (int)(Math.random() * training.size());
-        DoubleFV[] randomFeatures = features.get(Arrays.asList(training.getGroups().toArray()).get(randomPerson));
-        // Then, get a random feature by generating a random number between 0 and k - 1, where k is the number of feature vectors that correspond to that person in the set.
-        int randomFeature = (int)(Math.random() * randomFeatures.length);
-        // Finally, reconstruct the face and then display the normalised result.
-        FImage reconstructedFace = eigen.reconstruct(randomFeatures[randomFeature]);
-        DisplayUtilities.display(reconstructedFace.normalise(), "Reconstructed Face");
-
-        // Loop through each identifier (person) in the testing dataset.
-        double correct = 0, incorrect = 0;
-        for (String truePerson : testing.getGroups())
-        {
-            // For each face of that person in the dataset:
-            for (FImage face : testing.get(truePerson))
+            // Loop through each identifier (person) in the testing dataset.
+            double correct = 0, incorrect = 0;
+            for (String truePerson : testing.getGroups())
             {
-                // Extract the feature of the image.
-                DoubleFV testFeature = eigen.extractFeature(face);
-
-                // Compare the extracted feature with every feature in the training data, for every identifier in the training data.
-                // Return the minimum distance and corresponding identifier for the closest feature using Euclidean distance, which
-                // should correspond to the person with the most similar face.
-                String bestPerson = null;
-                // Exercise 3: Apply a threshold
-                // Apply a threshold, which is twice the current minimum distance. If this threshold is exceeded, we waive the prediction and simply
-                // return "unknown" to indicate the model is unsure. This value will then not affect the accuracy of the model.
-                // 7 times the current minimum distance seems to work well as a threshold for this situation, as it slightly improves the accuracy of the model
-                // to ~95%, although makes it a bit more inconsistent based on the order in which the faces are compared.
-                double minDistance = Double.MAX_VALUE, thresholdModifier = 7.0, threshold = minDistance * thresholdModifier;
-                for (final String person : features.keySet())
+                // For each face of that person in the dataset:
+                for (FImage face : testing.get(truePerson))
                 {
-                    for (final DoubleFV fv : features.get(person))
+                    // Find the closest feature in the training data using Euclidean distance, which should correspond to the person with
+                    // the most similar face, or "unknown" if no training face is within the threshold.
+                    String bestPerson = model.identify(face, threshold);
+
+                    if (bestPerson == null)
+                        bestPerson = "unknown";
+
+                    // Determine if the model was correct or not, and update the correct and incorrect variables appropriately.
+                    System.out.println("Actual: " + truePerson + "\tguess: " + bestPerson);
+
+                    if (!bestPerson.equals("unknown"))
                     {
-                        double distance = fv.compare(testFeature, DoubleFVComparison.EUCLIDEAN);
-
-                        if (distance > threshold)
-                        {
-                            bestPerson = "unknown";
-                        }
-
-                        if (distance < minDistance)
-                        {
-                            minDistance = distance;
-                            threshold = minDistance * thresholdModifier;
-                            bestPerson = person;
-                        }
+                        if (truePerson.equals(bestPerson))
+                            correct++;
+                        else
+                            incorrect++;
                     }
                 }
+            }
 
-                // Determine if the model was correct or not, and update the correct and incorrect variables appropriately.
-                System.out.println("Actual: " + truePerson + "\tguess: " + bestPerson);
+            System.out.println("Accuracy: " + (correct / (correct + incorrect)));
+        }
+    }
 
-                if (bestPerson != null && !bestPerson.equals("unknown"))
-                {
-                    if (truePerson.equals(bestPerson))
-                        correct++;
-                    else
-                        incorrect++;
-                }
+    // Whether the model file exists and was trained with the given settings. Models saved before the settings were recorded hold
+    // zero for them, so they are retrained too.
+    private static boolean isTrainedWith(File modelFile, int nTraining, long splitSeed, int nEigenvectors) throws IOException
+    {
+        if (!modelFile.exists())
+            return false;
+
+        try (FaceModel saved = FaceModel.open(modelFile))
+        {
+            return saved.getTrainingFaces() == nTraining && saved.getTrainingSeed() == splitSeed
+                    && saved.getNumComponents() == nEigenvectors;
+        }
+    }
+
+    // Learn the PCA basis from the training faces and save it, with the features of the training faces, to the model file.
+    private static void train(File modelFile, GroupedDataset<String, ListDataset<FImage>, FImage> training, int nTraining,
+            long splitSeed, int nEigenvectors) throws IOException
+    {
+        // The basis is learnt by randomised SVD, streaming the training images in mini-batches rather than decomposing a list of
+        // all of them at once, so that it scales to far larger sets of faces (see EigenImagesComparison for how it compares).
+        StreamingEigenImages eigen = new StreamingEigenImages(nEigenvectors);
+        eigen.train(training);
+
+        // Build a database of features from the training images, projected in batches.
+        List<String> people = new ArrayList<>();
+        List<FImage> faces = new ArrayList<>();
+        for (final String person : training.getGroups())
+        {
+            for (final FImage face : training.get(person))
+            {
+                people.add(person);
+                faces.add(face);
             }
         }
 
-        System.out.println("Accuracy: " + (correct / (correct + incorrect)));
+        // The model is written to a temporary file and then moved into place, so that a run interrupted while training never
+        // leaves a partial model to be opened by the next.
+        File tmp = new File(modelFile.getPath() + ".tmp");
+        try (FaceModel created = FaceModel.create(tmp, eigen, 32, nTraining, splitSeed))
+        {
+            created.enrol(people, faces);
+            created.flush();
+        }
+
+        Files.move(tmp.toPath(), modelFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Split each person's faces into nTraining training faces and nTesting testing faces, chosen at random but the same on every run.
+    private static void split(GroupedDataset<String, ? extends ListDataset<FImage>, FImage> dataset, int nTraining, int nTesting, long seed,
+            MapBackedDataset<String, ListDataset<FImage>, FImage> training, MapBackedDataset<String, ListDataset<FImage>, FImage> testing)
+    {
+        Random random = new Random(seed);
+
+        for (String person : new TreeSet<>(dataset.getGroups()))
+        {
+            List<FImage> faces = new ArrayList<>(dataset.get(person));
+            if (faces.size() < nTraining + nTesting)
+                throw new IllegalArgumentException(person + " has only " + faces.size() + " faces");
+
+            Collections.shuffle(faces, random);
+            training.put(person, new ListBackedDataset<>(faces.subList(0, nTraining)));
+            testing.put(person, new ListBackedDataset<>(faces.subList(nTraining, nTraining + nTesting)));
+        }
     }
 }
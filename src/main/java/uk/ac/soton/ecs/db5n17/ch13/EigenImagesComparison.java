@@ -0,0 +1,151 @@
+package uk.ac.soton.ecs.db5n17.ch13;
+
+import org.apache.commons.vfs2.FileSystemException;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.VFSGroupDataset;
+import org.openimaj.experiment.dataset.split.GroupedRandomSplitter;
+import org.openimaj.experiment.dataset.util.DatasetAdaptors;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.model.EigenImages;
+import org.openimaj.time.Timer;
+
+import java.util.Locale;
+
+/**
+ * Compares StreamingEigenImages against the exact EigenImages on the AT&T faces: the time to train, the mean
+ * reconstruction error of the test faces (which shows how well each basis spans unseen faces) and the nearest-neighbour
+ * accuracy of the test faces against the training faces.
+ *
+ * Usage: EigenImagesComparison [training images per person] [components] [power iterations]
+ */
+public class EigenImagesComparison
+{
+    public static void main( String[] args ) throws FileSystemException
+    {
+        final int nTraining = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final int nEigenvectors = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        final int powerIterations = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+
+        final VFSGroupDataset<FImage> dataset =
+                new VFSGroupDataset<>("zip:http://datasets.openimaj.org/att_faces.zip", ImageUtilities.FIMAGE_READER);
+        final GroupedRandomSplitter<String, FImage> splits = new GroupedRandomSplitter<>(dataset, nTraining, 0, 10 - nTraining);
+        final GroupedDataset<String, ListDataset<FImage>, FImage> training = splits.getTrainingDataset();
+        final GroupedDataset<String, ListDataset<FImage>, FImage> testing = splits.getTestDataset();
+
+        final Timer exactTimer = Timer.timer();
+        final EigenImages exact = new EigenImages(nEigenvectors);
+        exact.train(DatasetAdaptors.asList(training));
+        final long exactMillis = exactTimer.duration();
+
+        final Timer streamingTimer = Timer.timer();
+        final StreamingEigenImages streaming = new StreamingEigenImages(nEigenvectors, 10, powerIterations, 64, 0);
+        streaming.train(training);
+        final long streamingMillis = streamingTimer.duration();
+
+        final Basis exactBasis = new Basis()
+        {
+            public DoubleFV extractFeature(FImage face)
+            {
+                return exact.extractFeature(face);
+            }
+
+            public FImage reconstruct(DoubleFV feature)
+            {
+                return exact.reconstruct(feature);
+            }
+        };
+
+        final Basis streamingBasis = new Basis()
+        {
+            public DoubleFV extractFeature(FImage face)
+            {
+                return streaming.extractFeature(face);
+            }
+
+            public FImage reconstruct(DoubleFV feature)
+            {
+                return streaming.reconstruct(feature);
+            }
+        };
+
+        System.out.println("Method\tTrain ms\tReconstruction RMS\tAccuracy");
+        System.out.println(row("Exact", exactMillis, reconstructionError(exactBasis, testing), accuracy(exactBasis, training, testing)));
+        System.out.println(row("Streaming", streamingMillis, reconstructionError(streamingBasis, testing),
+                accuracy(streamingBasis, training, testing)));
+    }
+
+    // The two implementations have no common interface for reconstruction.
+    private interface Basis
+    {
+        DoubleFV extractFeature(FImage face);
+
+        FImage reconstruct(DoubleFV feature);
+    }
+
+    private static String row(String name, long millis, double error, double accuracy)
+    {
+        return String.format(Locale.ROOT, "%s\t%d\t%.6f\t%.4f", name, millis, error, accuracy);
+    }
+
+    // The root mean square difference between each test face and its reconstruction from its feature.
+    private static double reconstructionError(Basis eigen, GroupedDataset<String, ListDataset<FImage>, FImage> testing)
+    {
+        double sum = 0;
+        long count = 0;
+
+        for (final FImage face : testing)
+        {
+            final DoubleFV feature = eigen.extractFeature(face);
+            final FImage reconstructed = eigen.reconstruct(feature);
+
+            for (int y = 0; y < face.getHeight(); y++)
+            {
+                for (int x = 0; x < face.getWidth(); x++)
+                {
+                    final double difference = face.pixels[y][x] - reconstructed.pixels[y][x];
+                    sum += difference * difference;
+                    count++;
+                }
+            }
+        }
+
+        return Math.sqrt(sum / count);
+    }
+
+    private static double accuracy(Basis eigen,
+            GroupedDataset<String, ListDataset<FImage>, FImage> training, GroupedDataset<String, ListDataset<FImage>, FImage> testing)
+    {
+        FaceGalleryIndex gallery = null;
+
+        for (final String person : training.getGroups())
+        {
+            for (final FImage face : training.get(person))
+            {
+                final DoubleFV feature = eigen.extractFeature(face);
+
+                if (gallery == null)
+                    gallery = new FaceGalleryIndex(feature.length());
+
+                gallery.add(person, feature);
+            }
+        }
+
+        int correct = 0;
+        int total = 0;
+        for (final String person : testing.getGroups())
+        {
+            for (final FImage face : testing.get(person))
+            {
+                if (person.equals(gallery.nearest(eigen.extractFeature(face).values).getLabel()))
+                    correct++;
+
+                total++;
+            }
+        }
+
+        return correct / (double) total;
+    }
+}
@@ -0,0 +1,670 @@
+package uk.ac.soton.ecs.db5n17.ch13;
+
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A nearest-neighbour index over a gallery of labelled face features (such as EigenImages projections), by Euclidean
+ * distance.
+ *
+ * The features are stored one after another in a single array, with the label of each held as an index into a table
+ * of distinct labels, so a large gallery is a few arrays rather than an object per face. Searches are exact: each
+ * distance is accumulated a few dimensions at a time and abandoned as soon as it exceeds the k-th best distance found so
+ * far (or the distance threshold). {@link #buildTree(int)} optionally builds a ball tree over the gallery, which lets
+ * whole groups of faces be skipped when the features cluster well; faces added after it was built are compared one by
+ * one until it is rebuilt.
+ *
+ * Searches may run concurrently with each other, but not with {@link #add} or {@link #buildTree(int)}.
+ */
+public class FaceGalleryIndex
+{
+    // How many dimensions are accumulated between checks against the bound.
+    private static final int CHECK_INTERVAL = 8;
+
+    // How many queries a batched search compares against each tile of the gallery, and how many faces each tile holds.
+    private static final int QUERY_BLOCK = 16;
+    private static final int GALLERY_TILE = 256;
+
+    private final int dimensions;
+    private double[] vectors;
+    private int[] labelIds;
+    private int size;
+
+    private final List<String> labels = new ArrayList<>();
+    private final Map<String, Integer> labelIndex = new HashMap<>();
+
+    private BallTree tree;
+
+    public FaceGalleryIndex(int dimensions)
+    {
+        this(dimensions, 1024);
+    }
+
+    public FaceGalleryIndex(int dimensions, int initialCapacity)
+    {
+        if (dimensions < 1)
+            throw new IllegalArgumentException("The features must have at least one dimension");
+
+        this.dimensions = dimensions;
+        this.vectors = new double[Math.max(initialCapacity, 1) * dimensions];
+        this.labelIds = new int[Math.max(initialCapacity, 1)];
+    }
+
+    /**
+     * Add a face to the gallery, returning its index.
+     */
+    public int add(String label, DoubleFV feature)
+    {
+        return add(label, feature.values);
+    }
+
+    /**
+     * Add a face to the gallery, returning its index. The feature is copied.
+     */
+    public int add(String label, double[] feature)
+    {
+        checkLength(feature);
+
+        if (size == labelIds.length)
+        {
+            labelIds = Arrays.copyOf(labelIds, size * 2);
+            vectors = Arrays.copyOf(vectors, size * 2 * dimensions);
+        }
+
+        Integer id = labelIndex.get(label);
+        if (id == null)
+        {
+            id = labels.size();
+            labels.add(label);
+            labelIndex.put(label, id);
+        }
+
+        System.arraycopy(feature, 0, vectors, size * dimensions, dimensions);
+        labelIds[size] = id;
+
+        return size++;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int numDimensions()
+    {
+        return dimensions;
+    }
+
+    public String getLabel(int index)
+    {
+        checkIndex(index);
+        return labels.get(labelIds[index]);
+    }
+
+    public double[] getFeature(int index)
+    {
+        checkIndex(index);
+        return Arrays.copyOfRange(vectors, index * dimensions, (index + 1) * dimensions);
+    }
+
+    /**
+     * Build a ball tree over the faces added so far, with at most leafSize faces in each leaf.
+     */
+    public void buildTree(int leafSize)
+    {
+        tree = new BallTree(Math.max(leafSize, 1));
+    }
+
+    /**
+     * Forget the ball tree, so that searches compare every face.
+     */
+    public void clearTree()
+    {
+        tree = null;
+    }
+
+    /**
+     * The nearest face to the query, or null if the gallery is empty.
+     */
+    public Match nearest(double[] query)
+    {
+        final List<Match> matches = search(query, 1, Double.POSITIVE_INFINITY);
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    /**
+     * The label of the nearest face to the query, or null if there is no face within maxDistance of it (so the face
+     * is unknown).
+     */
+    public String identify(double[] query, double maxDistance)
+    {
+        final List<Match> matches = search(query, 1, maxDistance);
+        return matches.isEmpty() ? null : matches.get(0).getLabel();
+    }
+
+    /**
+     * The k nearest faces to the query, nearest first.
+     */
+    public List<Match> search(double[] query, int k)
+    {
+        return search(query, k, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * The k nearest faces to the query that are no further than maxDistance from it, nearest first.
+     */
+    public List<Match> search(double[] query, int k, double maxDistance)
+    {
+        checkLength(query);
+
+        final TopK top = new TopK(k, maxDistance);
+        final int indexed = tree == null ? 0 : tree.size;
+
+        if (tree != null)
+            tree.search(query, top);
+
+        scan(query, indexed, size, top);
+
+        return toMatches(top);
+    }
+
+    /**
+     * Search for the k nearest faces to each query, within maxDistance, on every core. The gallery is compared against
+     * blocks of queries a tile at a time, so that each tile is read from memory once per block rather than once per
+     * query.
+     */
+    public List<List<Match>> search(final double[][] queries, final int k, final double maxDistance)
+    {
+        for (final double[] query : queries)
+            checkLength(query);
+
+        final List<List<Match>> results = new ArrayList<>(Collections.<List<Match>>nCopies(queries.length, null));
+        final int blocks = (queries.length + QUERY_BLOCK - 1) / QUERY_BLOCK;
+
+        Parallel.forIndex(0, blocks, 1, new Operation<Integer>()
+        {
+            public void perform(Integer block)
+            {
+                final int from = block * QUERY_BLOCK;
+                final int to = Math.min(from + QUERY_BLOCK, queries.length);
+                final TopK[] tops = new TopK[to - from];
+
+                for (int q = from; q < to; q++)
+                    tops[q - from] = new TopK(k, maxDistance);
+
+                int start = 0;
+                if (tree != null)
+                {
+                    for (int q = from; q < to; q++)
+                        tree.search(queries[q], tops[q - from]);
+
+                    start = tree.size;
+                }
+
+                for (int tile = start; tile < size; tile += GALLERY_TILE)
+                {
+                    final int end = Math.min(tile + GALLERY_TILE, size);
+
+                    for (int q = from; q < to; q++)
+                        scan(queries[q], tile, end, tops[q - from]);
+                }
+
+                for (int q = from; q < to; q++)
+                    results.set(q, toMatches(tops[q - from]));
+            }
+        });
+
+        return results;
+    }
+
+    // Compare the query with the faces in [from, to).
+    private void scan(double[] query, int from, int to, TopK top)
+    {
+        for (int i = from; i < to; i++)
+        {
+            final double distance = distance(query, vectors, i * dimensions, top.bound());
+
+            if (distance >= 0)
+                top.offer(distance, i);
+        }
+    }
+
+    /**
+     * The squared distance between the query and the vector at the offset, or -1 if it is greater than the bound.
+     */
+    private double distance(double[] query, double[] data, int offset, double bound)
+    {
+        return distance(query, 0, data, offset, bound);
+    }
+
+    private double distance(double[] query, int queryOffset, double[] data, int offset, double bound)
+    {
+        double sum = 0;
+        int d = 0;
+
+        while (d < dimensions)
+        {
+            final int end = Math.min(d + CHECK_INTERVAL, dimensions);
+
+            for (; d < end; d++)
+            {
+                final double diff = query[queryOffset + d] - data[offset + d];
+                sum += diff * diff;
+            }
+
+            if (sum > bound)
+                return -1;
+        }
+
+        return sum;
+    }
+
+    private void checkLength(double[] feature)
+    {
+        if (feature.length != dimensions)
+            throw new IllegalArgumentException("Expected a feature of length " + dimensions + " but got " + feature.length);
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+    }
+
+    /**
+     * A face found by a search.
+     */
+    public static class Match
+    {
+        private final int index;
+        private final String label;
+        private final double distance;
+
+        Match(int index, String label, double distance)
+        {
+            this.index = index;
+            this.label = label;
+            this.distance = distance;
+        }
+
+        /**
+         * The index of the face in the gallery.
+         */
+        public int getIndex()
+        {
+            return index;
+        }
+
+        public String getLabel()
+        {
+            return label;
+        }
+
+        /**
+         * The Euclidean distance from the query to the face.
+         */
+        public double getDistance()
+        {
+            return distance;
+        }
+
+        public String toString()
+        {
+            return label + " (" + index + "): " + distance;
+        }
+    }
+
+    /*
+     * The k smallest squared distances seen and the indices of their faces, as a max-heap so that the worst of them can
+     * be replaced. This is shared with FaceModel, which searches a gallery in a file rather than in an array.
+     */
+    static class TopK
+    {
+        private final double[] distances;
+        private final int[] indices;
+        private final double threshold;
+        private int count;
+
+        TopK(int k, double maxDistance)
+        {
+            if (k < 1)
+                throw new IllegalArgumentException("At least one match must be requested");
+
+            this.distances = new double[k];
+            this.indices = new int[k];
+            this.threshold = maxDistance == Double.POSITIVE_INFINITY ? maxDistance : maxDistance * maxDistance;
+        }
+
+        // The squared distance a face must not exceed to be one of the matches.
+        double bound()
+        {
+            return count < distances.length ? threshold : distances[0];
+        }
+
+        void offer(double distance, int index)
+        {
+            if (distance > bound())
+                return;
+
+            if (count < distances.length)
+            {
+                // Sift the new entry up from the end.
+                int i = count++;
+                while (i > 0 && distances[(i - 1) / 2] < distance)
+                {
+                    distances[i] = distances[(i - 1) / 2];
+                    indices[i] = indices[(i - 1) / 2];
+                    i = (i - 1) / 2;
+                }
+
+                distances[i] = distance;
+                indices[i] = index;
+            }
+            else if (distance < distances[0])
+            {
+                // Replace the worst entry and sift it down.
+                int i = 0;
+                while (true)
+                {
+                    int child = 2 * i + 1;
+                    if (child >= count)
+                        break;
+
+                    if (child + 1 < count && distances[child + 1] > distances[child])
+                        child++;
+
+                    if (distances[child] <= distance)
+                        break;
+
+                    distances[i] = distances[child];
+                    indices[i] = indices[child];
+                    i = child;
+                }
+
+                distances[i] = distance;
+                indices[i] = index;
+            }
+        }
+
+        int size()
+        {
+            return count;
+        }
+
+        // Sort the entries nearest first (by index when the distances are equal), after which no more may be offered.
+        void sort()
+        {
+            for (int i = 1; i < count; i++)
+            {
+                final double distance = distances[i];
+                final int index = indices[i];
+                int j = i - 1;
+
+                while (j >= 0 && (distances[j] > distance || (distances[j] == distance && indices[j] > index)))
+                {
+                    distances[j + 1] = distances[j];
+                    indices[j + 1] = indices[j];
+                    j--;
+                }
+
+                distances[j + 1] = distance;
+                indices[j + 1] = index;
+            }
+        }
+
+        int index(int i)
+        {
+            return indices[i];
+        }
+
+        // The (Euclidean, not squared) distance of the i-th entry.
+        double distance(int i)
+        {
+            return Math.sqrt(distances[i]);
+        }
+    }
+
+    private List<Match> toMatches(TopK top)
+    {
+        top.sort();
+
+        final List<Match> matches = new ArrayList<>(top.size());
+        for (int i = 0; i < top.size(); i++)
+            matches.add(new Match(top.index(i), labels.get(labelIds[top.index(i)]), top.distance(i)));
+
+        return matches;
+    }
+
+    /*
+     * A ball tree over the first size faces. Each node holds a contiguous range of a permutation of the face indices,
+     * with the centroid of those faces and the radius of the ball around it that contains them all; the faces of each
+     * leaf are also copied into one array in permutation order, so that a leaf is scanned sequentially. A node can be
+     * skipped when the distance from the query to its centroid, less its radius, exceeds the current bound.
+     */
+    private class BallTree
+    {
+        final int size;
+        final int[] order;
+        final double[] ordered;
+
+        // The nodes, in arrays indexed by node number; leaves have no children (left is -1).
+        int nodes;
+        int[] starts;
+        int[] ends;
+        int[] lefts;
+        int[] rights;
+        double[] centres;
+        double[] radii;
+
+        BallTree(int leafSize)
+        {
+            this.size = FaceGalleryIndex.this.size;
+            this.order = new int[size];
+            for (int i = 0; i < size; i++)
+                order[i] = i;
+
+            final int capacity = Math.max(1, 2 * ((size + leafSize - 1) / leafSize) + 1);
+            starts = new int[capacity];
+            ends = new int[capacity];
+            lefts = new int[capacity];
+            rights = new int[capacity];
+            centres = new double[capacity * dimensions];
+            radii = new double[capacity];
+
+            if (size > 0)
+                build(0, size, leafSize);
+
+            ordered = new double[size * dimensions];
+            for (int i = 0; i < size; i++)
+                System.arraycopy(vectors, order[i] * dimensions, ordered, i * dimensions, dimensions);
+        }
+
+        // Build the node for order[start, end), returning its number.
+        private int build(int start, int end, int leafSize)
+        {
+            final int node = newNode(start, end);
+            final double[] centre = new double[dimensions];
+
+            for (int i = start; i < end; i++)
+                for (int d = 0; d < dimensions; d++)
+                    centre[d] += vectors[order[i] * dimensions + d];
+
+            for (int d = 0; d < dimensions; d++)
+                centre[d] /= end - start;
+
+            System.arraycopy(centre, 0, centres, node * dimensions, dimensions);
+
+            double radius = 0;
+            int farthest = start;
+            for (int i = start; i < end; i++)
+            {
+                final double distance = distance(centre, vectors, order[i] * dimensions, Double.POSITIVE_INFINITY);
+                if (distance > radius)
+                {
+                    radius = distance;
+                    farthest = i;
+                }
+            }
+            radii[node] = Math.sqrt(radius);
+
+            if (end - start <= leafSize || radius == 0)
+            {
+                lefts[node] = -1;
+                return node;
+            }
+
+            // Split at the median along the line from the face farthest from the centroid to the face farthest from
+            // that one, so that the tree stays balanced.
+            final int a = order[farthest] * dimensions;
+            double most = -1;
+            int other = farthest;
+            for (int i = start; i < end; i++)
+            {
+                final double distance = distance(vectors, a, vectors, order[i] * dimensions, Double.POSITIVE_INFINITY);
+                if (distance > most)
+                {
+                    most = distance;
+                    other = i;
+                }
+            }
+            final int b = order[other] * dimensions;
+
+            final double[] projections = new double[end - start];
+            for (int i = start; i < end; i++)
+            {
+                final int offset = order[i] * dimensions;
+                double projection = 0;
+
+                for (int d = 0; d < dimensions; d++)
+                    projection += (vectors[offset + d] - vectors[a + d]) * (vectors[b + d] - vectors[a + d]);
+
+                projections[i - start] = projection;
+            }
+
+            final int mid = (start + end) >>> 1;
+            select(projections, start, mid - start);
+
+            final int left = build(start, mid, leafSize);
+            final int right = build(mid, end, leafSize);
+            lefts[node] = left;
+            rights[node] = right;
+
+            return node;
+        }
+
+        // Partially sort order[start, start + projections.length) by projection, so that the k smallest come first.
+        private void select(double[] projections, int start, int k)
+        {
+            int lo = 0;
+            int hi = projections.length - 1;
+
+            while (lo < hi)
+            {
+                final double pivot = projections[(lo + hi) >>> 1];
+                int i = lo;
+                int j = hi;
+
+                while (i <= j)
+                {
+                    while (projections[i] < pivot)
+                        i++;
+                    while (projections[j] > pivot)
+                        j--;
+
+                    if (i <= j)
+                    {
+                        final double p = projections[i];
+                        projections[i] = projections[j];
+                        projections[j] = p;
+
+                        final int o = order[start + i];
+                        order[start + i] = order[start + j];
+                        order[start + j] = o;
+
+                        i++;
+                        j--;
+                    }
+                }
+
+                if (k <= j)
+                    hi = j;
+                else if (k >= i)
+                    lo = i;
+                else
+                    return;
+            }
+        }
+
+        private int newNode(int start, int end)
+        {
+            if (nodes == starts.length)
+            {
+                final int capacity = nodes * 2;
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                lefts = Arrays.copyOf(lefts, capacity);
+                rights = Arrays.copyOf(rights, capacity);
+                centres = Arrays.copyOf(centres, capacity * dimensions);
+                radii = Arrays.copyOf(radii, capacity);
+            }
+
+            starts[nodes] = start;
+            ends[nodes] = end;
+
+            return nodes++;
+        }
+
+        void search(double[] query, TopK top)
+        {
+            if (nodes > 0)
+                search(query, 0, top);
+        }
+
+        // Visit the node, descending into the nearer child first so that the bound tightens sooner.
+        private void search(double[] query, int node, TopK top)
+        {
+            final double centreDistance = Math.sqrt(distance(query, centres, node * dimensions, Double.POSITIVE_INFINITY));
+            final double lower = Math.max(centreDistance - radii[node], 0);
+
+            if (lower * lower > top.bound())
+                return;
+
+            if (lefts[node] < 0)
+            {
+                for (int i = starts[node]; i < ends[node]; i++)
+                {
+                    final double distance = distance(query, ordered, i * dimensions, top.bound());
+
+                    if (distance >= 0)
+                        top.offer(distance, order[i]);
+                }
+
+                return;
+            }
+
+            final int left = lefts[node];
+            final int right = rights[node];
+            final double toLeft = distance(query, centres, left * dimensions, Double.POSITIVE_INFINITY);
+            final double toRight = distance(query, centres, right * dimensions, Double.POSITIVE_INFINITY);
+
+            if (toLeft <= toRight)
+            {
+                search(query, left, top);
+                search(query, right, top);
+            }
+            else
+            {
+                search(query, right, top);
+                search(query, left, top);
+            }
+        }
+    }
+}
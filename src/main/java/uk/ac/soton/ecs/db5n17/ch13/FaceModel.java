@@ -0,0 +1,554 @@
+package uk.ac.soton.ecs.db5n17.ch13;
+
+import no.uib.cipr.matrix.DenseMatrix;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.image.FImage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A face recognition model kept in a single file: the mean face and the eigenface basis, followed by the enrolled
+ * gallery of labelled features.
+ *
+ * The header also records how the basis was trained (the number of training faces per person and the seed of the
+ * split that chose them), so that a saved model can be checked against the settings of a later run; models created
+ * without them record zero for both.
+ *
+ * Everything is stored as raw little-endian arrays. Opening a model copies the mean and basis out of a mapping of the
+ * file and maps the gallery, which is searched where it lies, so a model is ready to answer queries as soon as it is
+ * opened, however large the gallery. Each gallery record has the same size (the label, padded to a fixed length, then
+ * the feature), so enrolling appends records to the end of the file without rewriting anything, and an incomplete
+ * record left by a crash is discarded when the model is next opened. Faces are enrolled and projected in batches,
+ * with each batch projected onto the basis by a single matrix product.
+ *
+ * Enrolment is serialised, and searches may run at the same time as it and each other; a search sees the faces that
+ * were enrolled when it began.
+ */
+public class FaceModel implements Closeable
+{
+    private static final int MAGIC = 0x46434d31;
+    private static final int HEADER_SIZE = 32;
+
+    // The gallery is mapped in chunks of whole records of at most this size.
+    private static final long CHUNK_SIZE = 1L << 28;
+
+    // How many faces are projected in one matrix product.
+    private static final int BATCH_SIZE = 256;
+
+    // How many dimensions are accumulated between checks against the bound.
+    private static final int CHECK_INTERVAL = 8;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final int components;
+    private final int labelBytes;
+    private final int trainingFaces;
+    private final long trainingSeed;
+    private final int featureOffset;
+    private final int recordSize;
+    private final long galleryStart;
+    private final int recordsPerChunk;
+
+    private final double[] mean;
+    private final DenseMatrix basis;
+
+    private final Object writeLock = new Object();
+    private volatile int size;
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+
+    private FaceModel(File file) throws IOException
+    {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try
+        {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+
+            if (header.getInt(0) != MAGIC)
+                throw new IOException(file + " is not a face model");
+
+            width = header.getInt(4);
+            height = header.getInt(8);
+            components = header.getInt(12);
+            labelBytes = header.getInt(16);
+            trainingFaces = header.getInt(20);
+            trainingSeed = header.getLong(24);
+
+            final int pixels = width * height;
+            featureOffset = align(2 + labelBytes);
+            recordSize = featureOffset + 8 * components;
+            galleryStart = HEADER_SIZE + 8L * pixels * (components + 1);
+            recordsPerChunk = (int) Math.max(1, CHUNK_SIZE / recordSize);
+
+            if (channel.size() < galleryStart)
+                throw new IOException(file + " is truncated");
+
+            // The mean and basis are needed as arrays for the matrix products, so they are copied from the mapping.
+            final ByteBuffer model = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, galleryStart - HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            mean = new double[pixels];
+            final double[] columns = new double[pixels * components];
+            model.asDoubleBuffer().get(mean).get(columns);
+            basis = new DenseMatrix(pixels, components, columns, false);
+
+            // Discard an incomplete record at the end of the gallery.
+            size = (int) ((channel.size() - galleryStart) / recordSize);
+            channel.truncate(galleryStart + (long) size * recordSize);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a model file (replacing any existing file) holding the trained basis and an empty gallery, with labels of
+     * up to labelBytes bytes when encoded as UTF-8, and open it.
+     */
+    public static FaceModel create(File file, StreamingEigenImages eigen, int labelBytes) throws IOException
+    {
+        return create(file, eigen, labelBytes, 0, 0);
+    }
+
+    /**
+     * Create a model file holding the basis trained on trainingFaces faces per person, chosen by a split with the
+     * given seed, and an empty gallery, and open it.
+     */
+    public static FaceModel create(File file, StreamingEigenImages eigen, int labelBytes, int trainingFaces,
+            long trainingSeed) throws IOException
+    {
+        return create(file, eigen.getWidth(), eigen.getHeight(), eigen.getMean(), eigen.getBasis(), labelBytes,
+                trainingFaces, trainingSeed);
+    }
+
+    /**
+     * Create a model file from a mean face and a basis of components (each width * height values in row order, one
+     * after another), and open it.
+     */
+    public static FaceModel create(File file, int width, int height, double[] mean, double[] basis, int labelBytes)
+            throws IOException
+    {
+        return create(file, width, height, mean, basis, labelBytes, 0, 0);
+    }
+
+    /**
+     * Create a model file from a mean face and a basis of components, recording the number of training faces per
+     * person and the seed of the split that chose them, and open it.
+     */
+    public static FaceModel create(File file, int width, int height, double[] mean, double[] basis, int labelBytes,
+            int trainingFaces, long trainingSeed) throws IOException
+    {
+        final int pixels = width * height;
+
+        if (mean.length != pixels || basis.length == 0 || basis.length % pixels != 0)
+            throw new IllegalArgumentException("The mean and basis do not match a " + width + "x" + height + " image");
+
+        if (labelBytes < 1 || labelBytes > Short.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid label length: " + labelBytes);
+
+        if (trainingFaces < 0)
+            throw new IllegalArgumentException("Invalid number of training faces: " + trainingFaces);
+
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(width).putInt(height).putInt(basis.length / pixels).putInt(labelBytes)
+                    .putInt(trainingFaces).putLong(trainingSeed);
+            header.clear();
+            writeFully(out, header, 0);
+
+            final ByteBuffer values = ByteBuffer.allocate(8 * (mean.length + basis.length)).order(ByteOrder.LITTLE_ENDIAN);
+            values.asDoubleBuffer().put(mean).put(basis);
+            writeFully(out, values, HEADER_SIZE);
+
+            out.force(true);
+        }
+
+        return open(file);
+    }
+
+    /**
+     * Open an existing model file.
+     */
+    public static FaceModel open(File file) throws IOException
+    {
+        return new FaceModel(file);
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public int getNumComponents()
+    {
+        return components;
+    }
+
+    /**
+     * The number of faces per person the basis was trained on, or zero if the model was created without it.
+     */
+    public int getTrainingFaces()
+    {
+        return trainingFaces;
+    }
+
+    /**
+     * The seed of the split that chose the training faces, or zero if the model was created without it.
+     */
+    public long getTrainingSeed()
+    {
+        return trainingSeed;
+    }
+
+    /**
+     * The number of faces enrolled.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Project a face onto the basis.
+     */
+    public DoubleFV extractFeature(FImage face)
+    {
+        return new DoubleFV(project(Collections.singletonList(face))[0]);
+    }
+
+    /**
+     * Project many faces onto the basis, a batch at a time, each batch with one matrix product.
+     */
+    public double[][] project(List<? extends FImage> faces)
+    {
+        final int pixels = width * height;
+        final double[][] features = new double[faces.size()][];
+
+        for (int start = 0; start < faces.size(); start += BATCH_SIZE)
+        {
+            final int count = Math.min(BATCH_SIZE, faces.size() - start);
+            final DenseMatrix centred = new DenseMatrix(pixels, count);
+            final double[] data = centred.getData();
+
+            for (int i = 0; i < count; i++)
+            {
+                final FImage face = faces.get(start + i);
+
+                if (face.getWidth() != width || face.getHeight() != height)
+                    throw new IllegalArgumentException("Expected a " + width + "x" + height + " face but got "
+                            + face.getWidth() + "x" + face.getHeight());
+
+                for (int y = 0; y < height; y++)
+                    for (int x = 0; x < width; x++)
+                        data[i * pixels + y * width + x] = face.pixels[y][x] - mean[y * width + x];
+            }
+
+            final DenseMatrix projected = new DenseMatrix(components, count);
+            basis.transAmult(centred, projected);
+
+            final double[] weights = projected.getData();
+            for (int i = 0; i < count; i++)
+                features[start + i] = Arrays.copyOfRange(weights, i * components, (i + 1) * components);
+        }
+
+        return features;
+    }
+
+    /**
+     * The face with the given weight on each component (as produced by {@link #extractFeature(FImage)}).
+     */
+    public FImage reconstruct(double[] weights)
+    {
+        final int pixels = width * height;
+        final double[] columns = basis.getData();
+        final double[] values = mean.clone();
+
+        for (int c = 0; c < Math.min(weights.length, components); c++)
+        {
+            final int offset = c * pixels;
+
+            for (int p = 0; p < pixels; p++)
+                values[p] += weights[c] * columns[offset + p];
+        }
+
+        return toImage(values, 0);
+    }
+
+    /**
+     * The given component of the basis as a normalised image.
+     */
+    public FImage visualisePC(int pc)
+    {
+        if (pc < 0 || pc >= components)
+            throw new IndexOutOfBoundsException("Component " + pc + " of " + components);
+
+        return toImage(basis.getData(), pc * width * height).normalise();
+    }
+
+    /**
+     * Enrol a face, returning its index in the gallery.
+     */
+    public int enrol(String label, FImage face) throws IOException
+    {
+        return enrol(Collections.singletonList(label), Collections.singletonList(face));
+    }
+
+    /**
+     * Enrol many faces, projecting them in batches, and return the index in the gallery of the first.
+     */
+    public int enrol(List<String> labels, List<? extends FImage> faces) throws IOException
+    {
+        if (labels.size() != faces.size())
+            throw new IllegalArgumentException("There must be one label per face");
+
+        int first = -1;
+
+        for (int start = 0; start < faces.size(); start += BATCH_SIZE)
+        {
+            final int end = Math.min(start + BATCH_SIZE, faces.size());
+            final int index = enrolFeatures(labels.subList(start, end), project(faces.subList(start, end)));
+
+            if (first < 0)
+                first = index;
+        }
+
+        return first < 0 ? size : first;
+    }
+
+    /**
+     * Enrol faces that have already been projected, returning the index in the gallery of the first.
+     */
+    public int enrolFeatures(List<String> labels, double[][] features) throws IOException
+    {
+        if (labels.size() != features.length)
+            throw new IllegalArgumentException("There must be one label per feature");
+
+        final ByteBuffer records = ByteBuffer.allocate(recordSize * features.length).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (int i = 0; i < features.length; i++)
+        {
+            final byte[] label = labels.get(i).getBytes(StandardCharsets.UTF_8);
+
+            if (label.length > labelBytes)
+                throw new IllegalArgumentException("The label " + labels.get(i) + " is longer than " + labelBytes + " bytes");
+
+            if (features[i].length != components)
+                throw new IllegalArgumentException("Expected a feature of length " + components + " but got " + features[i].length);
+
+            final int offset = i * recordSize;
+            records.putShort(offset, (short) label.length);
+            for (int b = 0; b < label.length; b++)
+                records.put(offset + 2 + b, label[b]);
+
+            for (int c = 0; c < components; c++)
+                records.putDouble(offset + featureOffset + 8 * c, features[i][c]);
+        }
+
+        synchronized (writeLock)
+        {
+            final int first = size;
+            writeFully(channel, records, galleryStart + (long) first * recordSize);
+
+            // Only publish the records once they are in the file.
+            size = first + features.length;
+
+            return first;
+        }
+    }
+
+    public String getLabel(int index) throws IOException
+    {
+        checkIndex(index);
+
+        final ByteBuffer chunk = mapped(index / recordsPerChunk, size);
+        final int offset = (index % recordsPerChunk) * recordSize;
+        final byte[] label = new byte[chunk.getShort(offset)];
+
+        for (int b = 0; b < label.length; b++)
+            label[b] = chunk.get(offset + 2 + b);
+
+        return new String(label, StandardCharsets.UTF_8);
+    }
+
+    public double[] getFeature(int index) throws IOException
+    {
+        checkIndex(index);
+
+        final ByteBuffer chunk = mapped(index / recordsPerChunk, size);
+        final int offset = (index % recordsPerChunk) * recordSize + featureOffset;
+        final double[] feature = new double[components];
+
+        for (int c = 0; c < components; c++)
+            feature[c] = chunk.getDouble(offset + 8 * c);
+
+        return feature;
+    }
+
+    /**
+     * The label of the nearest enrolled face to the face, or null if there is none within maxDistance (so the face is
+     * unknown).
+     */
+    public String identify(FImage face, double maxDistance) throws IOException
+    {
+        final List<FaceGalleryIndex.Match> matches = search(extractFeature(face).values, 1, maxDistance);
+        return matches.isEmpty() ? null : matches.get(0).getLabel();
+    }
+
+    /**
+     * The k nearest enrolled faces to the query feature that are no further than maxDistance from it, nearest first.
+     * Each distance is abandoned as soon as it exceeds the k-th best found so far.
+     */
+    public List<FaceGalleryIndex.Match> search(double[] query, int k, double maxDistance) throws IOException
+    {
+        if (query.length != components)
+            throw new IllegalArgumentException("Expected a feature of length " + components + " but got " + query.length);
+
+        final int count = size;
+        final FaceGalleryIndex.TopK top = new FaceGalleryIndex.TopK(k, maxDistance);
+
+        for (int chunk = 0; chunk * recordsPerChunk < count; chunk++)
+        {
+            final int first = chunk * recordsPerChunk;
+            final int records = Math.min(recordsPerChunk, count - first);
+            final ByteBuffer buffer = mapped(chunk, count);
+
+            for (int r = 0; r < records; r++)
+            {
+                final int offset = r * recordSize + featureOffset;
+                final double bound = top.bound();
+                double sum = 0;
+                int d = 0;
+
+                while (d < components && sum <= bound)
+                {
+                    final int end = Math.min(d + CHECK_INTERVAL, components);
+
+                    for (; d < end; d++)
+                    {
+                        final double diff = query[d] - buffer.getDouble(offset + 8 * d);
+                        sum += diff * diff;
+                    }
+                }
+
+                if (sum <= bound)
+                    top.offer(sum, first + r);
+            }
+        }
+
+        top.sort();
+
+        final List<FaceGalleryIndex.Match> matches = new ArrayList<>(top.size());
+        for (int i = 0; i < top.size(); i++)
+            matches.add(new FaceGalleryIndex.Match(top.index(i), getLabel(top.index(i)), top.distance(i)));
+
+        return matches;
+    }
+
+    /**
+     * Force every face enrolled so far to the disk.
+     */
+    public void flush() throws IOException
+    {
+        channel.force(false);
+    }
+
+    public void close() throws IOException
+    {
+        chunks = new ByteBuffer[0];
+        channel.close();
+    }
+
+    // Get a mapping of the chunk that covers every record of it below count, remapping it if the gallery has grown.
+    private ByteBuffer mapped(int chunk, int count) throws IOException
+    {
+        final int records = Math.min(recordsPerChunk, count - chunk * recordsPerChunk);
+        final int length = records * recordSize;
+        ByteBuffer[] current = chunks;
+
+        if (chunk < current.length && current[chunk] != null && current[chunk].capacity() >= length)
+            return current[chunk];
+
+        synchronized (this)
+        {
+            current = chunks;
+
+            if (chunk < current.length && current[chunk] != null && current[chunk].capacity() >= length)
+                return current[chunk];
+
+            final long start = galleryStart + (long) chunk * recordsPerChunk * recordSize;
+            final long available = (channel.size() - start) / recordSize;
+            final long size = Math.min(recordsPerChunk, available) * recordSize;
+
+            if (size < length)
+                throw new IOException("Record extends past the end of the model");
+
+            final ByteBuffer[] updated = Arrays.copyOf(current, Math.max(current.length, chunk + 1));
+            updated[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, start, size).order(ByteOrder.LITTLE_ENDIAN);
+            chunks = updated;
+
+            return updated[chunk];
+        }
+    }
+
+    private FImage toImage(double[] values, int offset)
+    {
+        final FImage image = new FImage(width, height);
+
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                image.pixels[y][x] = (float) values[offset + y * width + x];
+
+        return image;
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+    }
+
+    private static int align(int offset)
+    {
+        return (offset + 7) & ~7;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            final int read = channel.read(buffer, position);
+
+            if (read < 0)
+                throw new IOException("Unexpected end of model");
+
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+}
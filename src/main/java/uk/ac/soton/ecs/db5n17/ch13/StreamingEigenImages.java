@@ -0,0 +1,459 @@
+package uk.ac.soton.ecs.db5n17.ch13;
+
+import no.uib.cipr.matrix.DenseMatrix;
+import no.uib.cipr.matrix.NotConvergedException;
+import no.uib.cipr.matrix.QR;
+import no.uib.cipr.matrix.SVD;
+import no.uib.cipr.matrix.SymmDenseEVD;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.image.FImage;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Eigenimages (a PCA basis of face images) trained by randomised SVD, streaming the images in mini-batches rather than
+ * holding them all in memory, as a replacement for EigenImages on sets of faces too large to decompose directly.
+ *
+ * Training makes powerIterations + 1 passes over the images. Each pass multiplies the pixel covariance matrix by a
+ * tall, thin matrix Q, one mini-batch of images at a time (two matrix products per batch, through MTJ), with the
+ * batches of each round multiplied in parallel; the first Q is random and each later one is an orthonormal basis of the
+ * previous product. The covariance is then approximated from its final product with Q (the Nyström method), whose
+ * eigenvectors are found from small matrices only. Only a few matrices with as many rows as there are pixels are held
+ * at once, however many images there are, and the result is deterministic for a given seed.
+ *
+ * The accuracy of the basis improves with the oversampling (the extra columns of Q beyond the number of components)
+ * and the number of power iterations; the defaults give components close to those of the exact decomposition for face
+ * data, whose eigenvalues fall off quickly.
+ */
+public class StreamingEigenImages implements FeatureExtractor<DoubleFV, FImage>
+{
+    // The number of mini-batches multiplied in parallel in each round. It is fixed, rather than the number of
+    // processors, because the batches are summed in slot order and the sums must be the same on every machine.
+    private static final int SLOTS = 8;
+
+    private final int numComponents;
+    private final int oversampling;
+    private final int powerIterations;
+    private final int batchSize;
+    private final long seed;
+
+    private int width;
+    private int height;
+    private double[] mean;
+
+    // The components as rows of width * height values, one after another, with their eigenvalues (the variance of the
+    // training images along each component).
+    private double[] basis;
+    private double[] eigenValues;
+
+    public StreamingEigenImages(int numComponents)
+    {
+        this(numComponents, 10, 2, 64, 0);
+    }
+
+    /**
+     * Construct with the given number of components, oversampling, power iterations and mini-batch size (the number of
+     * images multiplied at once by each thread), and the seed of the random starting matrix.
+     */
+    public StreamingEigenImages(int numComponents, int oversampling, int powerIterations, int batchSize, long seed)
+    {
+        if (numComponents < 1 || oversampling < 0 || powerIterations < 0 || batchSize < 1)
+            throw new IllegalArgumentException("Invalid training parameters");
+
+        this.numComponents = numComponents;
+        this.oversampling = oversampling;
+        this.powerIterations = powerIterations;
+        this.batchSize = batchSize;
+        this.seed = seed;
+    }
+
+    /**
+     * Learn the basis from the images, which must all be the same size. The images are read powerIterations + 1 times,
+     * so a dataset that reads them from disk (or generates them) on each iteration is never held in memory.
+     */
+    public void train(Iterable<? extends FImage> images)
+    {
+        final Iterator<? extends FImage> first = images.iterator();
+        if (!first.hasNext())
+            throw new IllegalArgumentException("At least one image is required");
+
+        final FImage image = first.next();
+        width = image.getWidth();
+        height = image.getHeight();
+
+        final int pixels = width * height;
+        final int columns = Math.min(numComponents + oversampling, pixels);
+
+        // The random starting matrix, made orthonormal.
+        final Random random = new Random(seed);
+        final DenseMatrix start = new DenseMatrix(pixels, columns);
+        final double[] data = start.getData();
+        for (int i = 0; i < data.length; i++)
+            data[i] = random.nextGaussian();
+
+        DenseMatrix q = QR.factorize(start).getQ();
+        Pass pass = null;
+
+        for (int iteration = 0; iteration <= powerIterations; iteration++)
+        {
+            final Pass previous = pass;
+            pass = new Pass(q);
+            pass.accumulate(images);
+
+            if (previous != null && previous.count != pass.count)
+                throw new IllegalStateException("The images changed between passes: " + previous.count + " then " + pass.count);
+
+            if (iteration < powerIterations)
+                q = QR.factorize(pass.product).getQ();
+        }
+
+        mean = new double[pixels];
+        for (int p = 0; p < pixels; p++)
+            mean[p] = pass.sums[p] / pass.count;
+
+        try
+        {
+            decompose(q, pass.product, pass.count);
+        }
+        catch (NotConvergedException e)
+        {
+            throw new IllegalStateException("The eigendecomposition did not converge", e);
+        }
+    }
+
+    /*
+     * Given Y = CQ, approximate the covariance C by Y (QᵀY)⁻¹ Yᵀ = FFᵀ with F = Y (QᵀY)^(-1/2), and take the
+     * eigenvectors of C as the left singular vectors of F (found from the QR decomposition of F and the SVD of its small
+     * R factor). Directions in which QᵀY is (numerically) singular carry no variance and are dropped.
+     */
+    private void decompose(DenseMatrix q, DenseMatrix y, int count) throws NotConvergedException
+    {
+        final int pixels = q.numRows();
+        final int columns = q.numColumns();
+
+        final DenseMatrix core = new DenseMatrix(columns, columns);
+        q.transAmult(y, core);
+        for (int i = 0; i < columns; i++)
+        {
+            for (int j = i + 1; j < columns; j++)
+            {
+                final double value = (core.get(i, j) + core.get(j, i)) / 2;
+                core.set(i, j, value);
+                core.set(j, i, value);
+            }
+        }
+
+        final SymmDenseEVD evd = SymmDenseEVD.factorize(core);
+        final double[] values = evd.getEigenvalues();
+        final DenseMatrix vectors = evd.getEigenvectors();
+
+        double largest = 0;
+        for (final double value : values)
+            largest = Math.max(largest, value);
+
+        // The inverse square root of QᵀY, over the directions that are not singular.
+        final DenseMatrix inverseRoot = new DenseMatrix(columns, columns);
+        for (int c = 0; c < columns; c++)
+        {
+            if (values[c] <= largest * 1e-12)
+                continue;
+
+            final double scale = 1 / Math.sqrt(values[c]);
+            for (int i = 0; i < columns; i++)
+                for (int j = 0; j < columns; j++)
+                    inverseRoot.set(i, j, inverseRoot.get(i, j) + vectors.get(i, c) * scale * vectors.get(j, c));
+        }
+
+        final DenseMatrix f = new DenseMatrix(pixels, columns);
+        y.mult(inverseRoot, f);
+
+        final QR qr = QR.factorize(f);
+        final SVD svd = SVD.factorize(qr.getR());
+        final DenseMatrix u = new DenseMatrix(pixels, columns);
+        qr.getQ().mult(svd.getU(), u);
+
+        final double[] singular = svd.getS();
+        final double[] uData = u.getData();
+
+        basis = new double[numComponents * pixels];
+        eigenValues = new double[numComponents];
+
+        // Components beyond the rank of the data (when there are fewer images than components) are left as zero.
+        for (int c = 0; c < Math.min(numComponents, singular.length); c++)
+        {
+            if (singular[c] <= singular[0] * 1e-6)
+                break;
+
+            System.arraycopy(uData, c * pixels, basis, c * pixels, pixels);
+            eigenValues[c] = singular[c] * singular[c] / Math.max(count - 1, 1);
+        }
+    }
+
+    public DoubleFV extractFeature(FImage image)
+    {
+        checkTrained();
+
+        if (image.getWidth() != width || image.getHeight() != height)
+            throw new IllegalArgumentException("Expected a " + width + "x" + height + " image but got " + image.getWidth() + "x" + image.getHeight());
+
+        final int pixels = width * height;
+        final double[] centred = new double[pixels];
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                centred[y * width + x] = image.pixels[y][x] - mean[y * width + x];
+
+        final double[] weights = new double[numComponents];
+        for (int c = 0; c < numComponents; c++)
+        {
+            final int offset = c * pixels;
+            double sum = 0;
+
+            for (int p = 0; p < pixels; p++)
+                sum += centred[p] * basis[offset + p];
+
+            weights[c] = sum;
+        }
+
+        return new DoubleFV(weights);
+    }
+
+    public FImage reconstruct(DoubleFV weights)
+    {
+        return reconstruct(weights.values);
+    }
+
+    /**
+     * The image with the given weight on each component (as produced by {@link #extractFeature(FImage)}).
+     */
+    public FImage reconstruct(double[] weights)
+    {
+        checkTrained();
+
+        final int pixels = width * height;
+        final double[] values = mean.clone();
+
+        for (int c = 0; c < Math.min(weights.length, numComponents); c++)
+        {
+            final int offset = c * pixels;
+
+            for (int p = 0; p < pixels; p++)
+                values[p] += weights[c] * basis[offset + p];
+        }
+
+        return toImage(values, 0);
+    }
+
+    /**
+     * The given principal component as a normalised image.
+     */
+    public FImage visualisePC(int pc)
+    {
+        checkTrained();
+
+        if (pc < 0 || pc >= numComponents)
+            throw new IndexOutOfBoundsException("Component " + pc + " of " + numComponents);
+
+        return toImage(basis, pc * width * height).normalise();
+    }
+
+    public int getNumComponents()
+    {
+        return numComponents;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * The mean image, as width * height values in row order.
+     */
+    public double[] getMean()
+    {
+        checkTrained();
+        return mean.clone();
+    }
+
+    /**
+     * The components, each as width * height values in row order, one after another.
+     */
+    public double[] getBasis()
+    {
+        checkTrained();
+        return basis.clone();
+    }
+
+    /**
+     * The variance of the training images along each component, largest first.
+     */
+    public double[] getEigenValues()
+    {
+        checkTrained();
+        return eigenValues.clone();
+    }
+
+    private FImage toImage(double[] values, int offset)
+    {
+        final FImage image = new FImage(width, height);
+
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                image.pixels[y][x] = (float) values[offset + y * width + x];
+
+        return image;
+    }
+
+    private void checkTrained()
+    {
+        if (basis == null)
+            throw new IllegalStateException("The eigenimages have not been trained");
+    }
+
+    /*
+     * One pass over the images, computing Y = CQ for the (unnormalised) covariance C = Σ (x - μ)(x - μ)ᵀ as
+     * Σ x(xᵀQ) - s(sᵀQ) / n, where s is the sum of the images, so that the mean need not be known in advance. The images
+     * are read into one mini-batch per slot (as the columns of a matrix) and each round of full slots is multiplied in
+     * parallel, each slot adding into its own partial product; the partial products are summed in slot order at the
+     * end, so the result does not depend on the scheduling.
+     */
+    private class Pass
+    {
+        final DenseMatrix q;
+        final int pixels;
+        final int columns;
+        final Slot[] slots;
+
+        DenseMatrix product;
+        double[] sums;
+        int count;
+
+        Pass(DenseMatrix q)
+        {
+            this.q = q;
+            this.pixels = q.numRows();
+            this.columns = q.numColumns();
+            this.slots = new Slot[SLOTS];
+
+            for (int i = 0; i < slots.length; i++)
+                slots[i] = new Slot(pixels, columns);
+        }
+
+        void accumulate(Iterable<? extends FImage> images)
+        {
+            int slot = 0;
+
+            for (final FImage image : images)
+            {
+                if (image.getWidth() != width || image.getHeight() != height)
+                    throw new IllegalArgumentException("All of the images must be " + width + "x" + height);
+
+                slots[slot].add(image);
+                count++;
+
+                if (slots[slot].size == batchSize && ++slot == slots.length)
+                {
+                    multiply(slot);
+                    slot = 0;
+                }
+            }
+
+            multiply(slots[slot].size > 0 ? slot + 1 : slot);
+
+            product = new DenseMatrix(pixels, columns);
+            sums = new double[pixels];
+
+            for (final Slot s : slots)
+            {
+                product.add(s.product);
+
+                for (int p = 0; p < pixels; p++)
+                    sums[p] += s.sums[p];
+            }
+
+            // Centre the product: subtract s(sᵀQ) / n.
+            final DenseMatrix sum = new DenseMatrix(pixels, 1, sums, false);
+            final DenseMatrix projected = new DenseMatrix(1, columns);
+            sum.transAmult(q, projected);
+
+            final double[] y = product.getData();
+            for (int c = 0; c < columns; c++)
+            {
+                final double scale = projected.get(0, c) / count;
+
+                for (int p = 0; p < pixels; p++)
+                    y[c * pixels + p] -= sums[p] * scale;
+            }
+        }
+
+        // Multiply the batches of the first used slots in parallel.
+        private void multiply(int used)
+        {
+            Parallel.forIndex(0, used, 1, new Operation<Integer>()
+            {
+                public void perform(Integer i)
+                {
+                    slots[i].multiply(q);
+                }
+            });
+        }
+    }
+
+    // A mini-batch of images and the partial product and sums of every batch that has passed through it.
+    private class Slot
+    {
+        final DenseMatrix batch;
+        final DenseMatrix projected;
+        final DenseMatrix product;
+        final double[] sums;
+        int size;
+
+        Slot(int pixels, int columns)
+        {
+            batch = new DenseMatrix(pixels, batchSize);
+            projected = new DenseMatrix(batchSize, columns);
+            product = new DenseMatrix(pixels, columns);
+            sums = new double[pixels];
+        }
+
+        void add(FImage image)
+        {
+            final double[] data = batch.getData();
+            final int offset = size * width * height;
+
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    data[offset + y * width + x] = image.pixels[y][x];
+
+            size++;
+        }
+
+        // product += X(XᵀQ) for the images in the batch, and add them to the sums.
+        void multiply(DenseMatrix q)
+        {
+            final double[] data = batch.getData();
+
+            // The unused columns of a partial batch must not contribute.
+            Arrays.fill(data, size * sums.length, data.length, 0);
+
+            batch.transAmult(q, projected);
+            batch.multAdd(projected, product);
+
+            for (int i = 0; i < size; i++)
+                for (int p = 0; p < sums.length; p++)
+                    sums[p] += data[i * sums.length + p];
+
+            size = 0;
+        }
+    }
+}
@@ -15,11 +15,18 @@ import org.openimaj.time.Timer;
 import org.openimaj.util.function.Operation;
 import org.openimaj.util.parallel.Parallel;
 import org.openimaj.util.parallel.partition.RangePartitioner;
+import uk.ac.soton.ecs.db5n17.metrics.MetricsRegistry;
+import uk.ac.soton.ecs.db5n17.metrics.StageMetrics;
+import uk.ac.soton.ecs.db5n17.parallel.GroupedDatasetScheduler;
+import uk.ac.soton.ecs.db5n17.parallel.ImageAccumulator;
+import uk.ac.soton.ecs.db5n17.parallel.ImageReduction;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * OpenIMAJ Tutorial - Chapter 14: Parallel Processing
@@ -40,7 +47,10 @@ public class App
         });
 
         // Load the Caltech 101 image dataset.
-        VFSGroupDataset<MBFImage> allImages = Caltech101.getImages(ImageUtilities.MBFIMAGE_READER);
+        // The image reader is instrumented so that the time spent decoding images is measured separately from the averaging.
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        VFSGroupDataset<MBFImage> allImages =
+                Caltech101.getImages(metrics.instrumentReader("ch14.read", ImageUtilities.MBFIMAGE_READER));
 
         // Create a subset of images from the first 8 groups.
         GroupedDataset<String, ListDataset<MBFImage>, MBFImage> images = GroupSampler.sample(allImages, 8, false);
@@ -191,11 +201,16 @@ public class App
         Timer t4 = Timer.timer();
 
         // Run the same code again, but instead applying the parallelisation to the outside loop.
-        Parallel.forEach(images.values(), new Operation<ListDataset<MBFImage>>()
+        // Each average is stored against its group rather than added to the shared output list from several threads at once,
+        // which ArrayList does not allow, and the averages are then listed in the order of the groups.
+        final GroupedDataset<String, ListDataset<MBFImage>, MBFImage> groups = images;
+        final Map<String, MBFImage> averages = new ConcurrentHashMap<>();
+        Parallel.forEach(images.getGroups(), new Operation<String>()
         {
             @Override
-            public void perform(ListDataset<MBFImage> clzImages)
+            public void perform(String group)
             {
+                ListDataset<MBFImage> clzImages = groups.get(group);
                 MBFImage current = new MBFImage(200, 200, ColourSpace.RGB);
 
                 for (MBFImage i : clzImages)
@@ -213,13 +228,64 @@ public class App
 
                 current.divideInplace((float) clzImages.size());
 
-                // We needed to make output final in this method since it is now in an anonymous class.
-                output.add(current);
+                // We needed to make the map final in this method since it is now in an anonymous class.
+                averages.put(group, current);
             }
         });
 
+        for (String group : images.getGroups())
+            output.add(averages.get(group));
+
         System.out.println("Time (dataset parallelised): " + t4.duration() + "ms");
 
         DisplayUtilities.display("Images (dataset parallelised)", output);
+
+        output.clear();
+
+        // Parallelise the inner loop again, but without a lock: each thread adds its images to its own accumulator, and the
+        // accumulators are combined once the loop has finished (see ReductionBenchmark for how this compares). Each image is
+        // also resized, normalised and added in one step, without the temporary, resized and normalised images, and the white
+        // around the images is added all at once at the end (see LetterboxBenchmark).
+        Timer t5 = Timer.timer();
+
+        final ImageReduction reduction = new ImageReduction(200, 200, ColourSpace.RGB, RGBColour.WHITE);
+        for (ListDataset<MBFImage> clzImages : images.values())
+        {
+            Parallel.forEachPartitioned(new RangePartitioner<>(clzImages), new Operation<Iterator<MBFImage>>()
+            {
+                public void perform(Iterator<MBFImage> it)
+                {
+                    FusedLetterbox letterbox = new FusedLetterbox(200);
+                    ImageAccumulator current = reduction.local();
+
+                    while (it.hasNext())
+                        letterbox.add(it.next(), current);
+                }
+            });
+
+            output.add(reduction.reduce().getMean());
+        }
+
+        System.out.println("Time (lock-free reduction): " + t5.duration() + "ms");
+
+        DisplayUtilities.display("Images (lock-free reduction)", output);
+
+        output.clear();
+
+        // Finally, schedule the images of all the groups as one pool of work, which threads take in chunks and steal from each
+        // other, so that none is left idle by groups of different sizes, with images decoded by other threads in the meantime.
+        // Each group's average is ready as soon as its last image is done (see SchedulerBenchmark).
+        Timer t6 = Timer.timer();
+
+        for (LetterboxReducer.Partial average : new GroupedDatasetScheduler().run(images, new LetterboxReducer(200)).values())
+            output.add(average.getAccumulator().getMean());
+
+        System.out.println("Time (flattened scheduler): " + t6.duration() + "ms");
+
+        DisplayUtilities.display("Images (flattened scheduler)", output);
+
+        // Print the per-stage measurements (image decoding) across all six runs.
+        for (StageMetrics.Snapshot snapshot : metrics.snapshot())
+            System.out.println(snapshot);
     }
 }
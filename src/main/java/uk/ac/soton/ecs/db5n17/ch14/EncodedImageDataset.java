@@ -0,0 +1,99 @@
+package uk.ac.soton.ecs.db5n17.ch14;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.io.InputStreamObjectReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A grouped dataset holding the images of another encoded in memory (as PNG, for example), which decodes an image with
+ * the given reader, such as ImageUtilities.MBFIMAGE_READER, every time it is read. Like a VFSGroupDataset, reading an
+ * image costs a decode, but without the disk or network, so the time to decode can be measured on its own.
+ */
+public class EncodedImageDataset extends MapBackedDataset<String, ListDataset<MBFImage>, MBFImage>
+{
+    public EncodedImageDataset(GroupedDataset<String, ? extends ListDataset<MBFImage>, MBFImage> source, String format,
+            InputStreamObjectReader<MBFImage> reader) throws IOException
+    {
+        super(groups(source, format, reader));
+    }
+
+    private static Map<String, ListDataset<MBFImage>> groups(GroupedDataset<String, ? extends ListDataset<MBFImage>, MBFImage> source,
+            String format, InputStreamObjectReader<MBFImage> reader) throws IOException
+    {
+        final Map<String, ListDataset<MBFImage>> groups = new LinkedHashMap<>();
+
+        for (final String group : source.getGroups())
+        {
+            final List<byte[]> images = new ArrayList<>();
+
+            for (final MBFImage image : source.get(group))
+            {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ImageUtilities.write(image, format, bytes);
+                images.add(bytes.toByteArray());
+            }
+
+            groups.put(group, new Group(images, reader));
+        }
+
+        return groups;
+    }
+
+    // One group's encoded images, decoded on each read.
+    private static class Group extends AbstractList<MBFImage> implements ListDataset<MBFImage>
+    {
+        private final List<byte[]> images;
+        private final InputStreamObjectReader<MBFImage> reader;
+
+        Group(List<byte[]> images, InputStreamObjectReader<MBFImage> reader)
+        {
+            this.images = images;
+            this.reader = reader;
+        }
+
+        public MBFImage get(int index)
+        {
+            try
+            {
+                return reader.read(new ByteArrayInputStream(images.get(index)));
+            }
+            catch (IOException e)
+            {
+                throw new RuntimeException("Failed to decode image " + index, e);
+            }
+        }
+
+        public int size()
+        {
+            return images.size();
+        }
+
+        public MBFImage getInstance(int index)
+        {
+            return get(index);
+        }
+
+        public int numInstances()
+        {
+            return images.size();
+        }
+
+        public MBFImage getRandomInstance()
+        {
+            return get(ThreadLocalRandom.current().nextInt(images.size()));
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package uk.ac.soton.ecs.db5n17.ch14;
+
+import org.openimaj.image.MBFImage;
+import uk.ac.soton.ecs.db5n17.parallel.ImageAccumulator;
+
+/**
+ * Adds images to an {@link ImageAccumulator} as App averages them, resized with ResizeProcessor(size), normalised and
+ * drawn in the middle of a white square, but in one step and without making any intermediate image.
+ *
+ * Each band is resampled with the same separable triangle filter ResizeProcessor uses by default into a buffer the size
+ * of the resized image, which is then normalised (band by band, as MBFImage.normalise does) as it is added to the
+ * accumulator at the position it would have been drawn. The white around it is not added pixel by pixel; it is recorded
+ * as a border of the accumulator, which must have been made with a white background, and added for all the images at
+ * once when the statistics are read.
+ *
+ * The buffers are kept and reused from one image to the next, so once they have grown to the largest image seen adding
+ * an image allocates nothing. A FusedLetterbox is therefore not thread safe; each worker should have its own.
+ */
+public class FusedLetterbox
+{
+    private final int size;
+    private final Axis columns = new Axis();
+    private final Axis rows = new Axis();
+
+    // The image resampled along x only, and then along both.
+    private float[] horizontal = new float[0];
+    private float[] resized = new float[0];
+
+    public FusedLetterbox(int size)
+    {
+        this.size = size;
+    }
+
+    /**
+     * Add the letterboxed image to the accumulator, which must be size x size with a white background.
+     */
+    public void add(MBFImage image, ImageAccumulator accumulator)
+    {
+        if (accumulator.getWidth() != size || accumulator.getHeight() != size)
+            throw new IllegalArgumentException("Expected a " + size + "x" + size + " accumulator");
+
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+
+        // The size ResizeProcessor gives: the longer side becomes size, unless both sides are smaller already.
+        int newWidth = width;
+        int newHeight = height;
+        if (width >= size || height >= size)
+        {
+            if (width < height)
+            {
+                newHeight = size;
+                newWidth = (int) (width * (size / (float) height));
+            }
+            else
+            {
+                newWidth = size;
+                newHeight = (int) (height * (size / (float) width));
+            }
+        }
+
+        final boolean resize = newWidth != width || newHeight != height;
+        if (resize)
+        {
+            columns.compute(width, newWidth);
+            rows.compute(height, newHeight);
+
+            if (horizontal.length < newWidth * height)
+                horizontal = new float[newWidth * height];
+        }
+
+        if (resized.length < newWidth * newHeight)
+            resized = new float[newWidth * newHeight];
+
+        final int left = (size - newWidth) / 2;
+        final int top = (size - newHeight) / 2;
+
+        for (int b = 0; b < image.numBands(); b++)
+        {
+            final float[][] pixels = image.getBand(b).pixels;
+
+            if (resize)
+                resample(pixels, width, height, newWidth, newHeight);
+            else
+                for (int y = 0; y < height; y++)
+                    System.arraycopy(pixels[y], 0, resized, y * width, width);
+
+            float min = Float.POSITIVE_INFINITY;
+            float max = Float.NEGATIVE_INFINITY;
+            for (int i = 0; i < newWidth * newHeight; i++)
+            {
+                min = Math.min(min, resized[i]);
+                max = Math.max(max, resized[i]);
+            }
+
+            // A band of one value is left as it is, as FImage.normalise() leaves it.
+            final float range = max - min;
+
+            for (int y = 0; y < newHeight; y++)
+            {
+                final int offset = (top + y) * size + left;
+
+                for (int x = 0; x < newWidth; x++)
+                {
+                    final float value = resized[y * newWidth + x];
+                    accumulator.addValue(b, offset + x, range > 0 ? (value - min) / range : value);
+                }
+            }
+        }
+
+        accumulator.addBorder(left, top, left + newWidth, top + newHeight);
+        accumulator.addCount(1);
+    }
+
+    // Resample a band into the resized buffer, along x into the horizontal buffer and then along y.
+    private void resample(float[][] pixels, int width, int height, int newWidth, int newHeight)
+    {
+        for (int y = 0; y < height; y++)
+        {
+            final float[] row = pixels[y];
+
+            for (int x = 0; x < newWidth; x++)
+            {
+                float sum = 0;
+                for (int t = x * columns.taps; t < (x + 1) * columns.taps; t++)
+                    sum += row[columns.indices[t]] * columns.weights[t];
+
+                horizontal[y * newWidth + x] = sum;
+            }
+        }
+
+        for (int y = 0; y < newHeight; y++)
+        {
+            final int offset = y * newWidth;
+
+            for (int x = 0; x < newWidth; x++)
+                resized[offset + x] = 0;
+
+            for (int t = y * rows.taps; t < (y + 1) * rows.taps; t++)
+            {
+                final int source = rows.indices[t] * newWidth;
+                final float weight = rows.weights[t];
+
+                if (weight != 0)
+                    for (int x = 0; x < newWidth; x++)
+                        resized[offset + x] += horizontal[source + x] * weight;
+            }
+        }
+    }
+
+    // The source pixels and weights that make up each resampled pixel along one axis, a fixed number (taps) per pixel
+    // with unused taps given no weight; these follow the filtered rescaling ResizeProcessor implements.
+    private static class Axis
+    {
+        private int[] indices = new int[0];
+        private float[] weights = new float[0];
+        private int taps;
+
+        void compute(int from, int to)
+        {
+            final double scale = to / (double) from;
+            final double width = scale < 1 ? 1 / scale : 1;
+            final double filterScale = scale < 1 ? 1 / scale : 1;
+
+            taps = (int) Math.floor(2 * width) + 1;
+            if (indices.length < to * taps)
+            {
+                indices = new int[to * taps];
+                weights = new float[to * taps];
+            }
+
+            for (int i = 0; i < to; i++)
+            {
+                final double centre = i / scale;
+                final int first = (int) Math.ceil(centre - width);
+                final int last = (int) Math.floor(centre + width);
+
+                for (int t = 0; t < taps; t++)
+                {
+                    final int j = first + t;
+
+                    if (j > last)
+                    {
+                        indices[i * taps + t] = 0;
+                        weights[i * taps + t] = 0;
+                        continue;
+                    }
+
+                    // Pixels beyond the edges are reflected back into the image.
+                    int n = j < 0 ? -j : j >= from ? 2 * from - j - 1 : j;
+                    n = Math.min(Math.max(n, 0), from - 1);
+
+                    indices[i * taps + t] = n;
+                    weights[i * taps + t] = (float) (triangle((centre - j) / filterScale) / filterScale);
+                }
+            }
+        }
+
+        private static double triangle(double t)
+        {
+            t = Math.abs(t);
+
+            return t < 1 ? 1 - t : 0;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package uk.ac.soton.ecs.db5n17.ch14;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.colour.RGBColour;
+import org.openimaj.image.processing.resize.ResizeProcessor;
+import org.openimaj.time.Timer;
+import org.openimaj.util.function.Function;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+import org.openimaj.util.parallel.partition.RangePartitioner;
+import uk.ac.soton.ecs.db5n17.metrics.Allocations;
+import uk.ac.soton.ecs.db5n17.parallel.ImageAccumulator;
+import uk.ac.soton.ecs.db5n17.parallel.ImageReduction;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Compares averaging each group of a {@link SyntheticPhotoDataset} with {@link FusedLetterbox} against App's separate
+ * steps (a white image, ResizeProcessor, normalise, drawImage and addInplace for every image), both on one thread and
+ * partitioned across threads with an {@link ImageReduction}. Generating the images is included in the times, so the
+ * time to generate them alone is printed too.
+ *
+ * For each method it prints the best time of the repeats, the speedup over the separate steps on one thread, the bytes
+ * allocated per image and the largest difference of any pixel of the averages from those of the separate steps.
+ *
+ * Usage: LetterboxBenchmark [groups] [images per group] [max image size] [repeats]
+ */
+public class LetterboxBenchmark
+{
+    private static final int SIZE = 200;
+    private static final long SEED = 42;
+
+    public static void main( String[] args )
+    {
+        final int groups = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int images = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        final int maxSize = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        final int repeats = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        final GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset =
+                new SyntheticPhotoDataset(groups, images, maxSize, SEED);
+        final ResizeProcessor resize = new ResizeProcessor(SIZE);
+
+        final Function<MBFImage, MBFImage> letterbox = new Function<MBFImage, MBFImage>()
+        {
+            public MBFImage apply(MBFImage image)
+            {
+                return ReductionBenchmark.letterbox(image, resize);
+            }
+        };
+
+        final List<String> names = new ArrayList<>();
+        final List<Method> methods = new ArrayList<>();
+
+        names.add("Separate steps");
+        methods.add(new Method()
+        {
+            public List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset)
+            {
+                final List<MBFImage> output = new ArrayList<>();
+
+                for (final ListDataset<MBFImage> clzImages : dataset.values())
+                {
+                    final MBFImage current = new MBFImage(SIZE, SIZE, ColourSpace.RGB);
+
+                    for (final MBFImage i : clzImages)
+                        current.addInplace(letterbox.apply(i));
+
+                    output.add(current.divideInplace((float) clzImages.size()));
+                }
+
+                return output;
+            }
+        });
+
+        names.add("Fused");
+        methods.add(new Method()
+        {
+            public List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset)
+            {
+                final FusedLetterbox fused = new FusedLetterbox(SIZE);
+                final List<MBFImage> output = new ArrayList<>();
+
+                for (final ListDataset<MBFImage> clzImages : dataset.values())
+                {
+                    final ImageAccumulator current = new ImageAccumulator(SIZE, SIZE, ColourSpace.RGB, RGBColour.WHITE);
+
+                    for (final MBFImage i : clzImages)
+                        fused.add(i, current);
+
+                    output.add(current.getMean());
+                }
+
+                return output;
+            }
+        });
+
+        names.add("Separate steps, partitioned");
+        methods.add(new Method()
+        {
+            public List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset)
+            {
+                final ImageReduction reduction = new ImageReduction(SIZE, SIZE, ColourSpace.RGB);
+                final Operation<Iterator<MBFImage>> adder = reduction.partitionAdder(letterbox);
+                final List<MBFImage> output = new ArrayList<>();
+
+                for (final ListDataset<MBFImage> clzImages : dataset.values())
+                {
+                    Parallel.forEachPartitioned(new RangePartitioner<>(clzImages), adder);
+                    output.add(reduction.reduce().getMean());
+                }
+
+                return output;
+            }
+        });
+
+        names.add("Fused, partitioned");
+        methods.add(new Method()
+        {
+            public List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset)
+            {
+                final ImageReduction reduction = new ImageReduction(SIZE, SIZE, ColourSpace.RGB, RGBColour.WHITE);
+                final List<MBFImage> output = new ArrayList<>();
+
+                for (final ListDataset<MBFImage> clzImages : dataset.values())
+                {
+                    Parallel.forEachPartitioned(new RangePartitioner<>(clzImages), new Operation<Iterator<MBFImage>>()
+                    {
+                        public void perform(Iterator<MBFImage> it)
+                        {
+                            final FusedLetterbox fused = new FusedLetterbox(SIZE);
+                            final ImageAccumulator current = reduction.local();
+
+                            while (it.hasNext())
+                                fused.add(it.next(), current);
+                        }
+                    });
+
+                    output.add(reduction.reduce().getMean());
+                }
+
+                return output;
+            }
+        });
+
+        System.out.println("Warming up");
+        final GroupedDataset<String, ListDataset<MBFImage>, MBFImage> warmUp = new SyntheticPhotoDataset(2, 8, maxSize, SEED);
+        for (final Method method : methods)
+            method.average(warmUp);
+
+        final int total = groups * images;
+
+        long generate = Long.MAX_VALUE;
+        for (int r = 0; r < repeats; r++)
+        {
+            final Timer timer = Timer.timer();
+            for (final MBFImage i : dataset)
+                i.getWidth();
+
+            generate = Math.min(generate, timer.duration());
+        }
+
+        System.out.println("Generating the images alone takes " + generate + "ms");
+        System.out.println("Method\tms\tspeedup\tbytes/image\tmax difference");
+
+        List<MBFImage> reference = null;
+        long baseline = 0;
+
+        for (int m = 0; m < methods.size(); m++)
+        {
+            long best = Long.MAX_VALUE;
+            long allocated = Long.MAX_VALUE;
+            List<MBFImage> averages = null;
+
+            for (int r = 0; r < repeats; r++)
+            {
+                final long before = Allocations.allThreadsAllocatedBytes();
+                final Timer timer = Timer.timer();
+                averages = methods.get(m).average(dataset);
+                best = Math.min(best, timer.duration());
+                allocated = Math.min(allocated, Allocations.allThreadsAllocatedBytes() - before);
+            }
+
+            if (reference == null)
+            {
+                reference = averages;
+                baseline = best;
+            }
+
+            System.out.println(String.format(Locale.ROOT, "%s\t%d\t%.2f\t%d\t%.3g", names.get(m), best,
+                    baseline / (double) Math.max(best, 1), Allocations.isSupported() ? allocated / total : -1,
+                    ReductionBenchmark.maxDifference(reference, averages)));
+        }
+    }
+
+    private interface Method
+    {
+        List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset);
+    }
+}
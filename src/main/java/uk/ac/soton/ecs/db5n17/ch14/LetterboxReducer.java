@@ -0,0 +1,58 @@
+package uk.ac.soton.ecs.db5n17.ch14;
+
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.colour.RGBColour;
+import uk.ac.soton.ecs.db5n17.parallel.GroupedDatasetScheduler;
+import uk.ac.soton.ecs.db5n17.parallel.ImageAccumulator;
+
+/**
+ * Averages the images of each group as App does, letterboxed onto white with a {@link FusedLetterbox}, for a
+ * {@link GroupedDatasetScheduler}. Each partial result has a FusedLetterbox of its own, which is safe since the
+ * scheduler only adds to a partial from one thread.
+ */
+public class LetterboxReducer implements GroupedDatasetScheduler.Reducer<String, MBFImage, LetterboxReducer.Partial>
+{
+    private final int size;
+
+    public LetterboxReducer(int size)
+    {
+        this.size = size;
+    }
+
+    public Partial create(String group)
+    {
+        return new Partial(size);
+    }
+
+    public void add(Partial partial, MBFImage image)
+    {
+        partial.letterbox.add(image, partial.accumulator);
+    }
+
+    public Partial combine(Partial partial, Partial other)
+    {
+        partial.accumulator.combine(other.accumulator);
+        return partial;
+    }
+
+    /**
+     * The statistics of some of a group's images.
+     */
+    public static class Partial
+    {
+        private final FusedLetterbox letterbox;
+        private final ImageAccumulator accumulator;
+
+        Partial(int size)
+        {
+            letterbox = new FusedLetterbox(size);
+            accumulator = new ImageAccumulator(size, size, ColourSpace.RGB, RGBColour.WHITE);
+        }
+
+        public ImageAccumulator getAccumulator()
+        {
+            return accumulator;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package uk.ac.soton.ecs.db5n17.ch14;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.colour.RGBColour;
+import org.openimaj.image.processing.resize.ResizeProcessor;
+import org.openimaj.time.Timer;
+import org.openimaj.util.function.Function;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+import org.openimaj.util.parallel.partition.RangePartitioner;
+import uk.ac.soton.ecs.db5n17.metrics.Allocations;
+import uk.ac.soton.ecs.db5n17.parallel.ImageReduction;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compares averaging each group of a {@link SyntheticPhotoDataset} with an {@link ImageReduction} against the
+ * strategies of App: a sequential loop, Parallel.forEach and Parallel.forEachPartitioned adding into an image under a
+ * lock, and Parallel.forEach over the groups. Every strategy letterboxes each image onto white as App does; generating
+ * the images (which stands in for decoding them) is included in the times.
+ *
+ * For each strategy it prints the best time of the repeats, the speedup over the sequential loop, the bytes allocated
+ * per image, the largest difference of any pixel of the averages from those of the sequential loop, and whether every
+ * repeat gave exactly the same averages.
+ *
+ * Usage: ReductionBenchmark [groups] [images per group] [max image size] [repeats]
+ */
+public class ReductionBenchmark
+{
+    private static final int SIZE = 200;
+    private static final long SEED = 42;
+
+    public static void main( String[] args )
+    {
+        final int groups = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int images = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        final int maxSize = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        final int repeats = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        final GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset =
+                new SyntheticPhotoDataset(groups, images, maxSize, SEED);
+        final ResizeProcessor resize = new ResizeProcessor(SIZE);
+
+        final Function<MBFImage, MBFImage> letterbox = new Function<MBFImage, MBFImage>()
+        {
+            public MBFImage apply(MBFImage image)
+            {
+                return letterbox(image, resize);
+            }
+        };
+
+        final Map<String, Strategy> strategies = appStrategies(letterbox);
+
+        strategies.put("Reduction forEach", new Strategy()
+        {
+            public List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset)
+            {
+                final ImageReduction reduction = new ImageReduction(SIZE, SIZE, ColourSpace.RGB);
+                final Operation<MBFImage> adder = reduction.adder(letterbox);
+                final List<MBFImage> output = new ArrayList<>();
+
+                for (final ListDataset<MBFImage> clzImages : dataset.values())
+                {
+                    Parallel.forEach(clzImages, adder);
+                    output.add(reduction.reduce().getMean());
+                }
+
+                return output;
+            }
+        });
+
+        strategies.put("Reduction partitioned", new Strategy()
+        {
+            public List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset)
+            {
+                final ImageReduction reduction = new ImageReduction(SIZE, SIZE, ColourSpace.RGB);
+                final Operation<Iterator<MBFImage>> adder = reduction.partitionAdder(letterbox);
+                final List<MBFImage> output = new ArrayList<>();
+
+                for (final ListDataset<MBFImage> clzImages : dataset.values())
+                {
+                    Parallel.forEachPartitioned(new RangePartitioner<>(clzImages), adder);
+                    output.add(reduction.reduce().getMean());
+                }
+
+                return output;
+            }
+        });
+
+        compare(strategies, dataset, new SyntheticPhotoDataset(2, 8, maxSize, SEED), repeats);
+    }
+
+    interface Strategy
+    {
+        List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset);
+    }
+
+    // The ways App averages each group, adding the image made from each by letterbox.
+    static Map<String, Strategy> appStrategies(final Function<MBFImage, MBFImage> letterbox)
+    {
+        final Map<String, Strategy> strategies = new LinkedHashMap<>();
+
+        strategies.put("Sequential", new Strategy()
+        {
+            public List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset)
+            {
+                final List<MBFImage> output = new ArrayList<>();
+
+                for (final ListDataset<MBFImage> clzImages : dataset.values())
+                {
+                    final MBFImage current = new MBFImage(SIZE, SIZE, ColourSpace.RGB);
+
+                    for (final MBFImage i : clzImages)
+                        current.addInplace(letterbox.apply(i));
+
+                    output.add(current.divideInplace((float) clzImages.size()));
+                }
+
+                return output;
+            }
+        });
+
+        strategies.put("Synchronized forEach", new Strategy()
+        {
+            public List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset)
+            {
+                final List<MBFImage> output = new ArrayList<>();
+
+                for (final ListDataset<MBFImage> clzImages : dataset.values())
+                {
+                    final MBFImage current = new MBFImage(SIZE, SIZE, ColourSpace.RGB);
+
+                    Parallel.forEach(clzImages, new Operation<MBFImage>()
+                    {
+                        public void perform(MBFImage i)
+                        {
+                            final MBFImage tmp = letterbox.apply(i);
+
+                            synchronized (current)
+                            {
+                                current.addInplace(tmp);
+                            }
+                        }
+                    });
+
+                    output.add(current.divideInplace((float) clzImages.size()));
+                }
+
+                return output;
+            }
+        });
+
+        strategies.put("Synchronized partitioned", new Strategy()
+        {
+            public List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset)
+            {
+                final List<MBFImage> output = new ArrayList<>();
+
+                for (final ListDataset<MBFImage> clzImages : dataset.values())
+                {
+                    final MBFImage current = new MBFImage(SIZE, SIZE, ColourSpace.RGB);
+
+                    Parallel.forEachPartitioned(new RangePartitioner<>(clzImages), new Operation<Iterator<MBFImage>>()
+                    {
+                        public void perform(Iterator<MBFImage> it)
+                        {
+                            final MBFImage tmpAccum = new MBFImage(SIZE, SIZE, ColourSpace.RGB);
+
+                            while (it.hasNext())
+                                tmpAccum.addInplace(letterbox.apply(it.next()));
+
+                            synchronized (current)
+                            {
+                                current.addInplace(tmpAccum);
+                            }
+                        }
+                    });
+
+                    output.add(current.divideInplace((float) clzImages.size()));
+                }
+
+                return output;
+            }
+        });
+
+        strategies.put("Groups in parallel", new Strategy()
+        {
+            public List<MBFImage> average(final GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset)
+            {
+                final Map<String, MBFImage> averages = new ConcurrentHashMap<>();
+
+                Parallel.forEach(dataset.getGroups(), new Operation<String>()
+                {
+                    public void perform(String group)
+                    {
+                        final ListDataset<MBFImage> clzImages = dataset.get(group);
+                        final MBFImage current = new MBFImage(SIZE, SIZE, ColourSpace.RGB);
+
+                        for (final MBFImage i : clzImages)
+                            current.addInplace(letterbox.apply(i));
+
+                        averages.put(group, current.divideInplace((float) clzImages.size()));
+                    }
+                });
+
+                final List<MBFImage> output = new ArrayList<>();
+                for (final String group : dataset.getGroups())
+                    output.add(averages.get(group));
+
+                return output;
+            }
+        });
+
+        return strategies;
+    }
+
+    /**
+     * Time each strategy on the dataset, after warming it up on another, and print the table of results; the speedup and
+     * the difference are relative to the first strategy.
+     */
+    static void compare(Map<String, Strategy> strategies, GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset,
+            GroupedDataset<String, ListDataset<MBFImage>, MBFImage> warmUp, int repeats)
+    {
+        System.out.println("Warming up");
+        for (final Strategy strategy : strategies.values())
+            strategy.average(warmUp);
+
+        final int total = dataset.numInstances();
+        List<MBFImage> reference = null;
+        long baseline = 0;
+
+        System.out.println("Strategy\tms\tspeedup\tbytes/image\tmax difference\trepeatable");
+
+        for (final Map.Entry<String, Strategy> strategy : strategies.entrySet())
+        {
+            long best = Long.MAX_VALUE;
+            long allocated = Long.MAX_VALUE;
+            List<MBFImage> first = null;
+            boolean repeatable = true;
+
+            for (int r = 0; r < repeats; r++)
+            {
+                final long before = Allocations.allThreadsAllocatedBytes();
+                final Timer timer = Timer.timer();
+                final List<MBFImage> averages = strategy.getValue().average(dataset);
+                best = Math.min(best, timer.duration());
+                allocated = Math.min(allocated, Allocations.allThreadsAllocatedBytes() - before);
+
+                if (first == null)
+                    first = averages;
+                else
+                    repeatable &= maxDifference(first, averages) == 0;
+            }
+
+            if (reference == null)
+            {
+                reference = first;
+                baseline = best;
+            }
+
+            System.out.println(String.format(Locale.ROOT, "%s\t%d\t%.2f\t%d\t%.3g\t%s", strategy.getKey(), best,
+                    baseline / (double) Math.max(best, 1), Allocations.isSupported() ? allocated / total : -1,
+                    maxDifference(reference, first), repeatable ? "yes" : "no"));
+        }
+    }
+
+    // Normalise the image and draw it in the middle of a white square, as App does.
+    static MBFImage letterbox(MBFImage image, ResizeProcessor resize)
+    {
+        final MBFImage tmp = new MBFImage(SIZE, SIZE, ColourSpace.RGB);
+        tmp.fill(RGBColour.WHITE);
+
+        final MBFImage small = image.process(resize).normalise();
+        final int x = (SIZE - small.getWidth()) / 2;
+        final int y = (SIZE - small.getHeight()) / 2;
+        tmp.drawImage(small, x, y);
+
+        return tmp;
+    }
+
+    static double maxDifference(List<MBFImage> expected, List<MBFImage> actual)
+    {
+        double max = 0;
+
+        for (int i = 0; i < expected.size(); i++)
+        {
+            for (int b = 0; b < expected.get(i).numBands(); b++)
+            {
+                final float[][] e = expected.get(i).getBand(b).pixels;
+                final float[][] a = actual.get(i).getBand(b).pixels;
+
+                for (int y = 0; y < e.length; y++)
+                    for (int x = 0; x < e[y].length; x++)
+                        max = Math.max(max, Math.abs(e[y][x] - a[y][x]));
+            }
+        }
+
+        return max;
+    }
+}
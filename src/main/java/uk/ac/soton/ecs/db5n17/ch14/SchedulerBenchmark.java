@@ -0,0 +1,109 @@
+package uk.ac.soton.ecs.db5n17.ch14;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.processing.resize.ResizeProcessor;
+import org.openimaj.util.function.Function;
+import uk.ac.soton.ecs.db5n17.parallel.GroupedDatasetScheduler;
+import uk.ac.soton.ecs.db5n17.parallel.ImageAccumulator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares averaging groups of very different sizes with a {@link GroupedDatasetScheduler} against the strategies of
+ * App. The groups are {@link SyntheticPhotoDataset} images, group g having about (largest group) / (g + 1) of them,
+ * encoded as PNG in memory and decoded with ImageUtilities.MBFIMAGE_READER whenever they are read, as Caltech 101 is.
+ *
+ * The scheduler is run both with App's separate letterbox steps, to show the effect of the scheduling alone, and with
+ * {@link FusedLetterbox}. The table is that of {@link ReductionBenchmark}, relative to App's sequential loop.
+ *
+ * Usage: SchedulerBenchmark [groups] [largest group] [max image size] [workers] [decoders] [repeats]
+ */
+public class SchedulerBenchmark
+{
+    private static final int SIZE = 200;
+    private static final long SEED = 42;
+
+    public static void main( String[] args ) throws IOException
+    {
+        final int groups = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int largest = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final int maxSize = args.length > 2 ? Integer.parseInt(args[2]) : 300;
+        final int workers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        final int decoders = args.length > 4 ? Integer.parseInt(args[4]) : Math.max(1, workers / 2);
+        final int repeats = args.length > 5 ? Integer.parseInt(args[5]) : 3;
+
+        final int[] sizes = new int[groups];
+        for (int g = 0; g < groups; g++)
+            sizes[g] = Math.max(1, largest / (g + 1));
+
+        System.out.println("Encoding the images");
+        final GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset = new EncodedImageDataset(
+                new SyntheticPhotoDataset(sizes, maxSize, SEED), "png", ImageUtilities.MBFIMAGE_READER);
+        final GroupedDataset<String, ListDataset<MBFImage>, MBFImage> warmUp = new EncodedImageDataset(
+                new SyntheticPhotoDataset(new int[] { 8, 2 }, maxSize, SEED), "png", ImageUtilities.MBFIMAGE_READER);
+
+        final ResizeProcessor resize = new ResizeProcessor(SIZE);
+        final Function<MBFImage, MBFImage> letterbox = new Function<MBFImage, MBFImage>()
+        {
+            public MBFImage apply(MBFImage image)
+            {
+                return ReductionBenchmark.letterbox(image, resize);
+            }
+        };
+
+        final GroupedDatasetScheduler scheduler = new GroupedDatasetScheduler(workers, decoders, 16);
+        final Map<String, ReductionBenchmark.Strategy> strategies = ReductionBenchmark.appStrategies(letterbox);
+
+        strategies.put("Scheduler", new ReductionBenchmark.Strategy()
+        {
+            public List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset)
+            {
+                final Map<String, ImageAccumulator> results = scheduler.run(dataset,
+                        new GroupedDatasetScheduler.Reducer<String, MBFImage, ImageAccumulator>()
+                {
+                    public ImageAccumulator create(String group)
+                    {
+                        return new ImageAccumulator(SIZE, SIZE, ColourSpace.RGB);
+                    }
+
+                    public void add(ImageAccumulator partial, MBFImage image)
+                    {
+                        partial.add(letterbox.apply(image));
+                    }
+
+                    public ImageAccumulator combine(ImageAccumulator partial, ImageAccumulator other)
+                    {
+                        return partial.combine(other);
+                    }
+                });
+
+                final List<MBFImage> output = new ArrayList<>();
+                for (final ImageAccumulator result : results.values())
+                    output.add(result.getMean());
+
+                return output;
+            }
+        });
+
+        strategies.put("Scheduler, fused", new ReductionBenchmark.Strategy()
+        {
+            public List<MBFImage> average(GroupedDataset<String, ListDataset<MBFImage>, MBFImage> dataset)
+            {
+                final List<MBFImage> output = new ArrayList<>();
+                for (final LetterboxReducer.Partial result : scheduler.run(dataset, new LetterboxReducer(SIZE)).values())
+                    output.add(result.getAccumulator().getMean());
+
+                return output;
+            }
+        });
+
+        ReductionBenchmark.compare(strategies, dataset, warmUp, repeats);
+    }
+}
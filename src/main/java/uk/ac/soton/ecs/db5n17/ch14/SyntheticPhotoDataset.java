@@ -0,0 +1,125 @@
+package uk.ac.soton.ecs.db5n17.ch14;
+
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+
+import uk.ac.soton.ecs.db5n17.data.SyntheticDataset;
+
+import java.util.Random;
+
+/**
+ * A grouped dataset of generated colour images of varying size and shape, standing in for Caltech 101 when timing the
+ * averaging code without downloading it.
+ *
+ * Each group has its own colours and layout, and each image is a colour gradient with a few rectangles and some noise,
+ * between half and all of the maximum size along each side, so that images are letterboxed differently. Groups may
+ * have different numbers of images, to model skewed datasets.
+ */
+public class SyntheticPhotoDataset extends SyntheticDataset<MBFImage>
+{
+    private static final int RECTANGLES = 4;
+
+    /**
+     * Construct a dataset with a group per entry of groupSizes, holding that many images of at most maxSize pixels along
+     * each side.
+     */
+    public SyntheticPhotoDataset(int[] groupSizes, int maxSize, long seed)
+    {
+        super("group%03d", groupSizes, 0, seed, palettes(groupSizes, maxSize));
+    }
+
+    /**
+     * Construct a dataset of the given number of groups of the same size.
+     */
+    public SyntheticPhotoDataset(int groups, int images, int maxSize, long seed)
+    {
+        this(uniform(groups, images), maxSize, seed);
+    }
+
+    private static Generator<MBFImage> palettes(int[] groupSizes, final int maxSize)
+    {
+        if (groupSizes.length < 1 || maxSize < 16)
+            throw new IllegalArgumentException("Invalid dataset: " + groupSizes.length + " groups of " + maxSize + "px images");
+
+        return new Generator<MBFImage>()
+        {
+            public Renderer<MBFImage> create(Random random)
+            {
+                return new Palette(random, maxSize);
+            }
+        };
+    }
+
+    // The colours and layout shared by every image of a group; positions and sizes are fractions of the image size.
+    private static class Palette implements Renderer<MBFImage>
+    {
+        private final int maxSize;
+        private final float[] from = new float[3];
+        private final float[] to = new float[3];
+        private final float[][] colours = new float[RECTANGLES][3];
+        private final double[][] boxes = new double[RECTANGLES][4];
+
+        Palette(Random random, int maxSize)
+        {
+            this.maxSize = maxSize;
+
+            for (int b = 0; b < 3; b++)
+            {
+                from[b] = random.nextFloat();
+                to[b] = random.nextFloat();
+            }
+
+            for (int i = 0; i < RECTANGLES; i++)
+            {
+                for (int b = 0; b < 3; b++)
+                    colours[i][b] = random.nextFloat();
+
+                boxes[i][0] = random.nextDouble() * 0.6;
+                boxes[i][1] = random.nextDouble() * 0.6;
+                boxes[i][2] = 0.1 + random.nextDouble() * 0.3;
+                boxes[i][3] = 0.1 + random.nextDouble() * 0.3;
+            }
+        }
+
+        public MBFImage render(Random random)
+        {
+            final int width = maxSize / 2 + random.nextInt(maxSize / 2 + 1);
+            final int height = maxSize / 2 + random.nextInt(maxSize / 2 + 1);
+            final MBFImage image = new MBFImage(width, height, ColourSpace.RGB);
+
+            // The rectangles move a little between images, in the same way in every band.
+            final int[][] corners = new int[RECTANGLES][4];
+            for (int i = 0; i < RECTANGLES; i++)
+            {
+                corners[i][0] = (int) ((boxes[i][0] + random.nextGaussian() * 0.03) * width);
+                corners[i][1] = (int) ((boxes[i][1] + random.nextGaussian() * 0.03) * height);
+                corners[i][2] = Math.min(corners[i][0] + (int) (boxes[i][2] * width), width);
+                corners[i][3] = Math.min(corners[i][1] + (int) (boxes[i][3] * height), height);
+            }
+
+            for (int b = 0; b < 3; b++)
+            {
+                final float[][] pixels = image.getBand(b).pixels;
+
+                for (int y = 0; y < height; y++)
+                {
+                    final float t = y / (float) height;
+
+                    for (int x = 0; x < width; x++)
+                        pixels[y][x] = from[b] + (to[b] - from[b]) * t;
+                }
+
+                for (int i = 0; i < RECTANGLES; i++)
+                    for (int y = Math.max(corners[i][1], 0); y < corners[i][3]; y++)
+                        for (int x = Math.max(corners[i][0], 0); x < corners[i][2]; x++)
+                            pixels[y][x] = colours[i][b];
+
+                for (int y = 0; y < height; y++)
+                    for (int x = 0; x < width; x++)
+                        pixels[y][x] = Math.min(Math.max(pixels[y][x] + (random.nextFloat() - 0.5f) * 0.1f, 0), 1);
+            }
+
+            return image;
+        }
+    }
+}
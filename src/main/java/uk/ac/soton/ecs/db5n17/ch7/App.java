@@ -2,15 +2,17 @@ package uk.ac.soton.ecs.db5n17.ch7;
 
 import org.openimaj.image.DisplayUtilities;
 import org.openimaj.image.MBFImage;
-import org.openimaj.image.processing.edges.CannyEdgeDetector;
-import org.openimaj.image.processing.threshold.AdaptiveLocalThresholdMean;
 import org.openimaj.video.Video;
 import org.openimaj.video.VideoDisplay;
 import org.openimaj.video.VideoDisplayListener;
 import org.openimaj.video.capture.VideoCapture;
 import org.openimaj.video.capture.VideoCaptureException;
 import org.openimaj.video.xuggle.XuggleVideo;
+import uk.ac.soton.ecs.db5n17.metrics.MetricsRegistry;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -28,9 +30,17 @@ public class App
         VideoDisplay<MBFImage> display;
 
         // Apply edge detection to the Keyboard Cat video by displaying it frame-by-frame.
+        // The detector and its output are reused across frames, with the intermediate gradient images taken from a
+        // pool, so no garbage is created per frame once the first frame has been processed.
+        final PooledCannyEdgeDetector canny = new PooledCannyEdgeDetector();
+        MBFImage edges = null;
         for (MBFImage mbfImage : video)
         {
-            DisplayUtilities.displayName(mbfImage.process(new CannyEdgeDetector()), "videoFrames");
+            if (edges == null || edges.getWidth() != mbfImage.getWidth() || edges.getHeight() != mbfImage.getHeight())
+                edges = new MBFImage(mbfImage.getWidth(), mbfImage.getHeight(), mbfImage.numBands());
+
+            canny.process(mbfImage, edges);
+            DisplayUtilities.displayName(edges, "videoFrames");
         }
 
         video = new VideoCapture(320, 240);
@@ -39,15 +49,43 @@ public class App
 
         // Exercise 1: Applying different types of image processing to the video
         // Apply Adaptive Local Thresholding using the mean via a video listener that is attached to it
-        display.addVideoListener(
+        // The threshold is computed from integral images, so the large 100 pixel window costs no more than a small one.
+        // The listener runs through a scheduler with a 100ms latency budget, so if thresholding cannot keep up with the
+        // camera, stale frames are dropped (and the processing resolution reduced) rather than the display lagging behind.
+        // The thresholding is also instrumented, and so is the scheduler (the end-to-end latency of each processed frame
+        // and the number of dropped frames and skipped results), with the latency histograms written to a metrics file
+        // every few seconds.
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        // The exporter is closed when the application exits, which writes the final measurements.
+        final Closeable exporter = metrics.exportPeriodically(new File("ch7-metrics.tsv"), 5000);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    exporter.close();
+                }
+                catch (IOException e)
+                {
+                    System.err.println("Unable to write the final metrics: " + e.getMessage());
+                }
+            }
+        }, "MetricsExporterShutdown"));
+
+        FrameScheduler scheduler = new FrameScheduler(metrics.instrumentListener("ch7.threshold",
                 new VideoDisplayListener<MBFImage>()
                 {
+                    private final IntegralAdaptiveThreshold threshold = new IntegralAdaptiveThreshold(100);
+
                     public void beforeUpdate(MBFImage frame)
                     {
-                        frame.processInplace(new AdaptiveLocalThresholdMean(100));
+                        threshold.process(frame, frame);
                     }
 
                     public void afterUpdate(VideoDisplay<MBFImage> display) { }
-                });
+                }), 100);
+        scheduler.setMetrics(metrics, "ch7.scheduler");
+        display.addVideoListener(scheduler);
     }
 }
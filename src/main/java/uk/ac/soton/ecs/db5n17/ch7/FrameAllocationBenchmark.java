@@ -0,0 +1,98 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.processing.edges.CannyEdgeDetector;
+import org.openimaj.image.processing.threshold.AdaptiveLocalThresholdMean;
+import org.openimaj.time.Timer;
+import uk.ac.soton.ecs.db5n17.metrics.Allocations;
+
+import java.util.Random;
+
+/**
+ * Compares the per-frame allocation rate of the Chapter 7 processing (a new processor and output image every frame)
+ * against the pooled processors, on synthetic HD frames so that no camera or network access is needed.
+ *
+ * Usage: FrameAllocationBenchmark [width] [height] [frames]
+ */
+public class FrameAllocationBenchmark
+{
+    public static void main( String[] args )
+    {
+        final int width = args.length > 0 ? Integer.parseInt(args[0]) : 1280;
+        final int height = args.length > 1 ? Integer.parseInt(args[1]) : 720;
+        final int frames = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+
+        // Cycle through a few different frames so that the processors cannot benefit from identical input.
+        final MBFImage[] source = new MBFImage[4];
+        final Random random = new Random(42);
+        for (int i = 0; i < source.length; i++)
+            source[i] = randomFrame(width, height, random);
+
+        final FramePool pool = new FramePool();
+        final MBFImage output = pool.acquireMBFImage(width, height, ColourSpace.RGB);
+        final PooledCannyEdgeDetector pooledCanny = new PooledCannyEdgeDetector(-1, -1, 1f, pool);
+        final PooledAdaptiveLocalThresholdMean pooledThreshold = new PooledAdaptiveLocalThresholdMean(15, 15, 0, pool);
+
+        System.out.println("Frames: " + frames + " at " + width + "x" + height);
+
+        // Run each variant once untimed so that the JIT and the pool are warm before measuring.
+        for (int pass = 0; pass < 2; pass++)
+        {
+            final boolean report = pass == 1;
+
+            long before = Allocations.currentThreadAllocatedBytes();
+            Timer t1 = Timer.timer();
+            for (int i = 0; i < frames; i++)
+                source[i % source.length].process(new CannyEdgeDetector());
+            report(report, "Canny (new detector per frame)", frames, t1.duration(), Allocations.currentThreadAllocatedBytes() - before);
+
+            before = Allocations.currentThreadAllocatedBytes();
+            Timer t2 = Timer.timer();
+            for (int i = 0; i < frames; i++)
+                pooledCanny.process(source[i % source.length], output);
+            report(report, "Canny (pooled)", frames, t2.duration(), Allocations.currentThreadAllocatedBytes() - before);
+
+            before = Allocations.currentThreadAllocatedBytes();
+            Timer t3 = Timer.timer();
+            for (int i = 0; i < frames; i++)
+                source[i % source.length].process(new AdaptiveLocalThresholdMean(15));
+            report(report, "AdaptiveLocalThresholdMean (new processor per frame)", frames, t3.duration(), Allocations.currentThreadAllocatedBytes() - before);
+
+            before = Allocations.currentThreadAllocatedBytes();
+            Timer t4 = Timer.timer();
+            for (int i = 0; i < frames; i++)
+                pooledThreshold.process(source[i % source.length], output);
+            report(report, "AdaptiveLocalThresholdMean (pooled)", frames, t4.duration(), Allocations.currentThreadAllocatedBytes() - before);
+        }
+
+        System.out.println("Pool allocations: " + pool.getAllocations() + ", reuses: " + pool.getReuses());
+    }
+
+    private static MBFImage randomFrame(int width, int height, Random random)
+    {
+        final MBFImage frame = new MBFImage(width, height, ColourSpace.RGB);
+
+        for (int b = 0; b < frame.numBands(); b++)
+        {
+            final float[][] pixels = frame.getBand(b).pixels;
+
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    pixels[y][x] = random.nextFloat();
+        }
+
+        return frame;
+    }
+
+    private static void report(boolean report, String name, int frames, long millis, long bytes)
+    {
+        if (!report)
+            return;
+
+        if (!Allocations.isSupported())
+            System.out.println(name + ": " + (millis / (double) frames) + "ms/frame (allocation not measurable on this JVM)");
+        else
+            System.out.println(name + ": " + (millis / (double) frames) + "ms/frame, " + (bytes / frames) + " bytes/frame");
+    }
+}
@@ -0,0 +1,236 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A pool of reusable frame buffers, keyed by width, height and number of bands.
+ *
+ * Images handed out by the pool have undefined pixel contents, so callers are expected to overwrite every pixel.
+ * Once a buffer is no longer needed it should be handed back with release() so the next frame can reuse it.
+ *
+ * The pool keeps buffers for a bounded number of sizes. When a new size is needed and every slot is in use, the slot
+ * used least recently is dropped with its idle buffers, so callers whose sizes keep changing (regions of a frame, or a
+ * frame scaled to fit a latency budget) cannot make the pool grow without limit.
+ */
+public class FramePool
+{
+    // A shared pool for callers that do not need to manage their own.
+    private static final FramePool SHARED = new FramePool();
+
+    // The number of sizes buffers are kept for unless another is given.
+    private static final int DEFAULT_MAX_SLOTS = 8;
+
+    // The maximum number of idle buffers kept for each size; anything beyond this is left to the garbage collector.
+    private final int maxIdlePerSize;
+
+    // The maximum number of sizes buffers are kept for.
+    private final int maxSlots;
+
+    // There are rarely more than a handful of distinct frame sizes, so a linear scan of the slots is cheaper than
+    // hashing (and, unlike a boxed map key, does not allocate on every lookup).
+    private final List<Slot> slots = new ArrayList<>();
+
+    private long allocations;
+    private long reuses;
+
+    // Incremented on every lookup, to find the slot used least recently.
+    private long clock;
+
+    public FramePool()
+    {
+        this(16);
+    }
+
+    public FramePool(int maxIdlePerSize)
+    {
+        this(maxIdlePerSize, DEFAULT_MAX_SLOTS);
+    }
+
+    /**
+     * Construct a pool keeping up to maxIdlePerSize idle buffers for each of up to maxSlots sizes.
+     */
+    public FramePool(int maxIdlePerSize, int maxSlots)
+    {
+        if (maxIdlePerSize < 1)
+            throw new IllegalArgumentException("maxIdlePerSize must be at least 1");
+        if (maxSlots < 1)
+            throw new IllegalArgumentException("maxSlots must be at least 1");
+
+        this.maxIdlePerSize = maxIdlePerSize;
+        this.maxSlots = maxSlots;
+    }
+
+    public static FramePool shared()
+    {
+        return SHARED;
+    }
+
+    /**
+     * Take a single band image of the given size from the pool, allocating a new one if none are idle.
+     */
+    public FImage acquireFImage(int width, int height)
+    {
+        synchronized (slots)
+        {
+            final Slot slot = slot(width, height, 1);
+
+            if (!slot.images.isEmpty())
+            {
+                reuses++;
+                return (FImage) slot.images.pop();
+            }
+
+            allocations++;
+        }
+
+        return new FImage(width, height);
+    }
+
+    /**
+     * Take a multi-band image of the given size and colour space from the pool, allocating a new one if none are idle.
+     */
+    public MBFImage acquireMBFImage(int width, int height, ColourSpace colourSpace)
+    {
+        final MBFImage image = acquireMBFImage(width, height, colourSpace.getNumBands());
+        image.colourSpace = colourSpace;
+
+        return image;
+    }
+
+    /**
+     * Take a multi-band image with the given size and number of bands from the pool, allocating a new one if none are idle.
+     */
+    public MBFImage acquireMBFImage(int width, int height, int numBands)
+    {
+        synchronized (slots)
+        {
+            final Slot slot = slot(width, height, -numBands);
+
+            if (!slot.images.isEmpty())
+            {
+                reuses++;
+                return (MBFImage) slot.images.pop();
+            }
+
+            allocations++;
+        }
+
+        return new MBFImage(width, height, numBands);
+    }
+
+    /**
+     * Return a single band image to the pool.
+     */
+    public void release(FImage image)
+    {
+        if (image != null)
+            offer(image.width, image.height, 1, image);
+    }
+
+    /**
+     * Return a multi-band image to the pool.
+     */
+    public void release(MBFImage image)
+    {
+        if (image != null)
+            offer(image.getWidth(), image.getHeight(), -image.numBands(), image);
+    }
+
+    /**
+     * The number of images the pool has had to allocate because no idle buffer of the right size was available.
+     */
+    public long getAllocations()
+    {
+        synchronized (slots)
+        {
+            return allocations;
+        }
+    }
+
+    /**
+     * The number of acquisitions that were satisfied with a previously released buffer.
+     */
+    public long getReuses()
+    {
+        synchronized (slots)
+        {
+            return reuses;
+        }
+    }
+
+    /**
+     * Drop every idle buffer held by the pool.
+     */
+    public void clear()
+    {
+        synchronized (slots)
+        {
+            slots.clear();
+        }
+    }
+
+    private void offer(int width, int height, int bands, Object image)
+    {
+        synchronized (slots)
+        {
+            final Slot slot = slot(width, height, bands);
+
+            if (slot.images.size() < maxIdlePerSize)
+                slot.images.push(image);
+        }
+    }
+
+    // Single band images are stored under a band count of 1, multi-band images under the negated number of bands, so an
+    // FImage and a one band MBFImage of the same size never share a slot.
+    private Slot slot(int width, int height, int bands)
+    {
+        clock++;
+
+        int leastRecent = 0;
+        for (int i = 0; i < slots.size(); i++)
+        {
+            final Slot slot = slots.get(i);
+
+            if (slot.width == width && slot.height == height && slot.bands == bands)
+            {
+                slot.lastUsed = clock;
+                return slot;
+            }
+
+            if (slot.lastUsed < slots.get(leastRecent).lastUsed)
+                leastRecent = i;
+        }
+
+        final Slot slot = new Slot(width, height, bands);
+        slot.lastUsed = clock;
+
+        if (slots.size() < maxSlots)
+            slots.add(slot);
+        else
+            slots.set(leastRecent, slot);
+
+        return slot;
+    }
+
+    private static final class Slot
+    {
+        final int width;
+        final int height;
+        final int bands;
+        final ArrayDeque<Object> images = new ArrayDeque<>();
+        long lastUsed;
+
+        Slot(int width, int height, int bands)
+        {
+            this.width = width;
+            this.height = height;
+            this.bands = bands;
+        }
+    }
+}
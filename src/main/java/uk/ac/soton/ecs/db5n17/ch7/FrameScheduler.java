@@ -0,0 +1,421 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.video.VideoDisplay;
+import org.openimaj.video.VideoDisplayListener;
+import uk.ac.soton.ecs.db5n17.metrics.MetricsRegistry;
+import uk.ac.soton.ecs.db5n17.metrics.StageMetrics;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A VideoDisplayListener that runs another (in-place processing) listener on a background thread under an end-to-end
+ * latency budget, so that slow processing can never hold up the display thread.
+ *
+ * Each frame the display thread hands over a copy of the frame and then shows the newest processed result, provided
+ * it was captured within the budget; otherwise the live frame is shown unprocessed. Frames that are superseded before
+ * the worker gets to them, or that are already over budget when it does, are dropped. When processing on its own
+ * exceeds the budget the processing resolution is reduced (down to a minimum scale), and raised again once there is
+ * headroom.
+ *
+ * The counters and recent latencies can be read with {@link #getStats()}, or published to a {@link MetricsRegistry}
+ * with {@link #setMetrics} so that they are exported with the registry's other stages.
+ */
+public class FrameScheduler implements VideoDisplayListener<MBFImage>, Closeable
+{
+    // The number of recent latencies that percentiles are computed over.
+    private static final int LATENCY_WINDOW = 512;
+
+    private final VideoDisplayListener<MBFImage> processor;
+    private final long budgetNanos;
+    private final float minScale;
+    private final FramePool pool = new FramePool(4);
+
+    private final Object lock = new Object();
+    private MBFImage pending;
+    private long pendingCapturedAt;
+    private MBFImage result;
+    private long resultCapturedAt;
+    private Thread worker;
+    private volatile boolean running = true;
+    private volatile float scale = 1f;
+
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long latencyCount;
+
+    // The registry stages the measurements are also published to, if any.
+    private volatile StageMetrics processedStage;
+    private volatile StageMetrics droppedStage;
+    private volatile StageMetrics skippedStage;
+
+    public FrameScheduler(VideoDisplayListener<MBFImage> processor, long budgetMillis)
+    {
+        this(processor, budgetMillis, 0.25f);
+    }
+
+    /**
+     * Construct a scheduler for the given processor and latency budget. The processing resolution may be reduced to
+     * minScale of the frame size when over budget; a minScale of 1 disables downscaling.
+     */
+    public FrameScheduler(VideoDisplayListener<MBFImage> processor, long budgetMillis, float minScale)
+    {
+        if (budgetMillis <= 0)
+            throw new IllegalArgumentException("The latency budget must be positive");
+        if (minScale <= 0 || minScale > 1)
+            throw new IllegalArgumentException("minScale must be in the range (0, 1]");
+
+        this.processor = processor;
+        this.budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.minScale = minScale;
+    }
+
+    public void beforeUpdate(MBFImage frame)
+    {
+        final long now = System.nanoTime();
+        offered.incrementAndGet();
+        startWorker();
+
+        final MBFImage copy = pool.acquireMBFImage(frame.getWidth(), frame.getHeight(), frame.numBands());
+        copy(frame, copy);
+
+        MBFImage superseded;
+        long supersededCapturedAt;
+        synchronized (lock)
+        {
+            superseded = pending;
+            supersededCapturedAt = pendingCapturedAt;
+            pending = copy;
+            pendingCapturedAt = now;
+            lock.notifyAll();
+
+            // Show the newest result if it is still within budget; the worker only swaps results under the lock, so
+            // it is safe to copy from here.
+            if (result != null && result.getWidth() == frame.getWidth() && result.getHeight() == frame.getHeight())
+            {
+                if (now - resultCapturedAt <= budgetNanos)
+                {
+                    copy(result, frame);
+                }
+                else
+                {
+                    late.incrementAndGet();
+                    record(skippedStage, resultCapturedAt);
+                }
+            }
+        }
+
+        if (superseded != null)
+        {
+            dropped.incrementAndGet();
+            record(droppedStage, supersededCapturedAt);
+            pool.release(superseded);
+        }
+    }
+
+    public void afterUpdate(VideoDisplay<MBFImage> display)
+    {
+        processor.afterUpdate(display);
+    }
+
+    /**
+     * Stop the worker thread. Frames offered afterwards are shown unprocessed.
+     */
+    public void close()
+    {
+        running = false;
+
+        synchronized (lock)
+        {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * The current fraction of the frame size that processing runs at.
+     */
+    public float getScale()
+    {
+        return scale;
+    }
+
+    public Stats getStats()
+    {
+        final long[] recent;
+        synchronized (latencies)
+        {
+            recent = Arrays.copyOf(latencies, (int) Math.min(latencyCount, latencies.length));
+        }
+        Arrays.sort(recent);
+
+        return new Stats(offered.get(), processed.get(), dropped.get(), late.get(), scale, recent);
+    }
+
+    /**
+     * Publish the measurements to the registry as three stages: name.processed (each processed frame's end-to-end
+     * latency, from capture to processed), name.dropped (the age of each dropped frame) and name.skipped (the age of
+     * each result that was over budget when it would have been shown). Each stage's count is the number of such frames.
+     */
+    public void setMetrics(MetricsRegistry registry, String name)
+    {
+        processedStage = registry.stage(name + ".processed");
+        droppedStage = registry.stage(name + ".dropped");
+        skippedStage = registry.stage(name + ".skipped");
+    }
+
+    private static void record(StageMetrics stage, long capturedAt)
+    {
+        if (stage != null)
+            stage.recordSince(capturedAt);
+    }
+
+    private void startWorker()
+    {
+        synchronized (lock)
+        {
+            if (worker != null || !running)
+                return;
+
+            worker = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    work();
+                }
+            }, "FrameScheduler");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    private void work()
+    {
+        while (running)
+        {
+            final MBFImage frame;
+            final long capturedAt;
+
+            synchronized (lock)
+            {
+                while (pending == null && running)
+                {
+                    try
+                    {
+                        lock.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+
+                if (!running)
+                    return;
+
+                frame = pending;
+                capturedAt = pendingCapturedAt;
+                pending = null;
+            }
+
+            // There is no point processing a frame that could not be shown in time.
+            if (System.nanoTime() - capturedAt > budgetNanos)
+            {
+                dropped.incrementAndGet();
+                record(droppedStage, capturedAt);
+                pool.release(frame);
+                continue;
+            }
+
+            final long start = System.nanoTime();
+            process(frame);
+            final long finish = System.nanoTime();
+
+            processed.incrementAndGet();
+            recordLatency(finish - capturedAt);
+            record(processedStage, capturedAt);
+            adaptScale(finish - start);
+
+            final MBFImage previous;
+            synchronized (lock)
+            {
+                previous = result;
+                result = frame;
+                resultCapturedAt = capturedAt;
+            }
+            pool.release(previous);
+        }
+    }
+
+    private void process(MBFImage frame)
+    {
+        final float s = scale;
+        final int width = Math.max(1, Math.round(frame.getWidth() * s));
+        final int height = Math.max(1, Math.round(frame.getHeight() * s));
+
+        if (width == frame.getWidth() && height == frame.getHeight())
+        {
+            processor.beforeUpdate(frame);
+            return;
+        }
+
+        final MBFImage small = pool.acquireMBFImage(width, height, frame.numBands());
+        try
+        {
+            for (int b = 0; b < frame.numBands(); b++)
+                resample(frame.getBand(b), small.getBand(b));
+
+            processor.beforeUpdate(small);
+
+            for (int b = 0; b < frame.numBands(); b++)
+                resample(small.getBand(b), frame.getBand(b));
+        }
+        finally
+        {
+            pool.release(small);
+        }
+    }
+
+    // Shrink the processing resolution while processing alone exceeds the budget, and grow it back once processing
+    // comfortably fits.
+    private void adaptScale(long processingNanos)
+    {
+        if (minScale >= 1)
+            return;
+
+        if (processingNanos > budgetNanos)
+            scale = Math.max(minScale, scale * 0.8f);
+        else if (processingNanos < budgetNanos / 2)
+            scale = Math.min(1f, scale * 1.1f);
+    }
+
+    private void recordLatency(long nanos)
+    {
+        synchronized (latencies)
+        {
+            latencies[(int) (latencyCount++ % latencies.length)] = nanos;
+        }
+    }
+
+    private static void copy(MBFImage from, MBFImage to)
+    {
+        for (int b = 0; b < from.numBands(); b++)
+        {
+            final float[][] src = from.getBand(b).pixels;
+            final float[][] dst = to.getBand(b).pixels;
+
+            for (int y = 0; y < src.length; y++)
+                System.arraycopy(src[y], 0, dst[y], 0, src[y].length);
+        }
+    }
+
+    // Bilinear resampling of one band into another of a different size.
+    private static void resample(FImage from, FImage to)
+    {
+        final float sx = from.width / (float) to.width;
+        final float sy = from.height / (float) to.height;
+
+        for (int y = 0; y < to.height; y++)
+        {
+            final float fy = Math.max(0, (y + 0.5f) * sy - 0.5f);
+            final int y0 = Math.min((int) fy, from.height - 1);
+            final int y1 = Math.min(y0 + 1, from.height - 1);
+            final float wy = fy - y0;
+
+            for (int x = 0; x < to.width; x++)
+            {
+                final float fx = Math.max(0, (x + 0.5f) * sx - 0.5f);
+                final int x0 = Math.min((int) fx, from.width - 1);
+                final int x1 = Math.min(x0 + 1, from.width - 1);
+                final float wx = fx - x0;
+
+                final float top = from.pixels[y0][x0] * (1 - wx) + from.pixels[y0][x1] * wx;
+                final float bottom = from.pixels[y1][x0] * (1 - wx) + from.pixels[y1][x1] * wx;
+
+                to.pixels[y][x] = top * (1 - wy) + bottom * wy;
+            }
+        }
+    }
+
+    /**
+     * A snapshot of the scheduler's counters and of the end-to-end latency (capture to processed) of recent frames.
+     */
+    public static class Stats
+    {
+        private final long offered;
+        private final long processed;
+        private final long dropped;
+        private final long late;
+        private final float scale;
+        private final long[] sortedLatencies;
+
+        Stats(long offered, long processed, long dropped, long late, float scale, long[] sortedLatencies)
+        {
+            this.offered = offered;
+            this.processed = processed;
+            this.dropped = dropped;
+            this.late = late;
+            this.scale = scale;
+            this.sortedLatencies = sortedLatencies;
+        }
+
+        public long getFramesOffered()
+        {
+            return offered;
+        }
+
+        public long getFramesProcessed()
+        {
+            return processed;
+        }
+
+        /**
+         * The number of frames that were never processed, either because a newer frame arrived first or because they
+         * were already over budget when the worker became free.
+         */
+        public long getFramesDropped()
+        {
+            return dropped;
+        }
+
+        /**
+         * The number of display updates that showed the live frame because the newest result was over budget.
+         */
+        public long getResultsSkipped()
+        {
+            return late;
+        }
+
+        public float getScale()
+        {
+            return scale;
+        }
+
+        /**
+         * The given percentile (0 to 100) of recent end-to-end latencies in milliseconds, or 0 if nothing has been
+         * processed yet.
+         */
+        public double getLatencyPercentile(double percentile)
+        {
+            if (sortedLatencies.length == 0)
+                return 0;
+
+            final int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.length) - 1;
+
+            return sortedLatencies[Math.min(Math.max(index, 0), sortedLatencies.length - 1)] / 1e6;
+        }
+
+        public String toString()
+        {
+            return "offered=" + offered + " processed=" + processed + " dropped=" + dropped + " skipped=" + late
+                    + " scale=" + scale + " p50=" + getLatencyPercentile(50) + "ms p90=" + getLatencyPercentile(90)
+                    + "ms p99=" + getLatencyPercentile(99) + "ms";
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.processor.SinglebandImageProcessor;
+
+import java.util.Arrays;
+
+/**
+ * Applies a local operator to a video stream incrementally: each frame is compared against the previous input tile by
+ * tile, and only the tiles that changed (plus those within the operator's halo of a change) are reprocessed, with the
+ * cached output reused everywhere else.
+ *
+ * Tiles whose pixels all differ from the cached input by no more than the tolerance are treated as unchanged and keep
+ * their cached input, so the output is always exactly what processing the cached input in full would give. With a
+ * tolerance of 0 this is the same as processing every frame in full.
+ *
+ * Only operators whose output at a pixel depends on nothing but the input within a fixed radius (the halo) can be
+ * processed this way; global operators such as Canny (whose thresholds and edge tracing span the whole frame) cannot.
+ * Instances hold per-stream state, so each stream should use its own processor.
+ */
+public class IncrementalFrameProcessor
+{
+    /**
+     * An image operator whose output at each pixel depends only on the input within getHalo() pixels of it.
+     */
+    public interface LocalOperator
+    {
+        int getHalo();
+
+        /**
+         * Process the input into the output, which is the same size. Edges should be handled by replication, so that a
+         * region cut from a larger image is processed exactly as the same pixels of the whole image would be.
+         */
+        void process(FImage input, FImage output);
+    }
+
+    /**
+     * A local mean adaptive threshold, equivalent to AdaptiveLocalThresholdMean.
+     */
+    public static LocalOperator adaptiveThresholdMean(final int size, final float offset)
+    {
+        // The mean images are the size of the regions, so they come from a pool of their own rather than the shared one,
+        // which would keep a mean image of every region size for the life of the process.
+        final PooledAdaptiveLocalThresholdMean threshold = new PooledAdaptiveLocalThresholdMean(size, size, offset,
+                new FramePool(1));
+
+        return new LocalOperator()
+        {
+            public int getHalo()
+            {
+                return size / 2;
+            }
+
+            public void process(FImage input, FImage output)
+            {
+                threshold.process(input, output);
+            }
+        };
+    }
+
+    /**
+     * Adapt an in-place processor with a known radius of influence. The processor is applied to regions cut from the
+     * frame, so for the output to equal processing the whole frame it must treat the edges of an image by replicating
+     * the edge pixels (as AverageBoxFilter and IntegralAdaptiveThreshold do), and the halo must be at least the
+     * furthest distance, in x or y, of any input pixel that affects an output pixel. A processor that pads with zeros,
+     * or that depends on the image as a whole (a histogram or a normalisation, say), gives different results near the
+     * edges of the regions.
+     */
+    public static LocalOperator local(final SinglebandImageProcessor<Float, FImage> processor, final int halo)
+    {
+        return new LocalOperator()
+        {
+            public int getHalo()
+            {
+                return halo;
+            }
+
+            public void process(FImage input, FImage output)
+            {
+                for (int y = 0; y < input.height; y++)
+                    System.arraycopy(input.pixels[y], 0, output.pixels[y], 0, input.width);
+
+                processor.processImage(output);
+            }
+        };
+    }
+
+    private final LocalOperator operator;
+    private final int tileSize;
+    private final float tolerance;
+    private final FramePool pool = new FramePool(4);
+
+    // The input the cached output corresponds to, and that output.
+    private MBFImage reference;
+    private MBFImage output;
+    private int tilesX;
+    private int tilesY;
+    private boolean[] changed;
+    private boolean[] recompute;
+
+    private long frames;
+    private long tilesRecomputed;
+    private float lastRecomputedFraction;
+
+    public IncrementalFrameProcessor(LocalOperator operator, int tileSize, float tolerance)
+    {
+        if (tileSize < 1)
+            throw new IllegalArgumentException("The tile size must be at least 1");
+        if (tolerance < 0)
+            throw new IllegalArgumentException("The tolerance must not be negative");
+
+        this.operator = operator;
+        this.tileSize = tileSize;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Process the next frame of the stream, returning the processed image. The returned image is owned by this
+     * processor and is updated in place by the next call, so it must be copied if it is to be kept.
+     */
+    public MBFImage process(MBFImage frame)
+    {
+        final int width = frame.getWidth();
+        final int height = frame.getHeight();
+
+        if (reference == null || reference.getWidth() != width || reference.getHeight() != height
+                || reference.numBands() != frame.numBands())
+        {
+            reset(width, height, frame.numBands());
+        }
+        else
+        {
+            findChangedTiles(frame);
+        }
+
+        for (int t = 0; t < changed.length; t++)
+        {
+            if (changed[t])
+                copyTile(frame, reference, t % tilesX, t / tilesX);
+        }
+
+        markTilesToRecompute();
+
+        int count = 0;
+        for (int ty = 0; ty < tilesY; ty++)
+        {
+            // Neighbouring tiles on a row are processed together, so their halos are only computed once.
+            int tx = 0;
+            while (tx < tilesX)
+            {
+                if (!recompute[ty * tilesX + tx])
+                {
+                    tx++;
+                    continue;
+                }
+
+                final int start = tx;
+                while (tx < tilesX && recompute[ty * tilesX + tx])
+                    tx++;
+
+                processRun(ty, start, tx);
+                count += tx - start;
+            }
+        }
+
+        frames++;
+        tilesRecomputed += count;
+        lastRecomputedFraction = count / (float) recompute.length;
+
+        return output;
+    }
+
+    /**
+     * The fraction of tiles that were recomputed for the most recent frame.
+     */
+    public float getRecomputedFraction()
+    {
+        return lastRecomputedFraction;
+    }
+
+    /**
+     * The fraction of tiles that have been recomputed over all frames so far.
+     */
+    public float getAverageRecomputedFraction()
+    {
+        return frames == 0 ? 0 : tilesRecomputed / (float) (frames * tilesX * tilesY);
+    }
+
+    public long getFramesProcessed()
+    {
+        return frames;
+    }
+
+    private void reset(int width, int height, int bands)
+    {
+        reference = new MBFImage(width, height, bands);
+        output = new MBFImage(width, height, bands);
+        tilesX = (width + tileSize - 1) / tileSize;
+        tilesY = (height + tileSize - 1) / tileSize;
+        changed = new boolean[tilesX * tilesY];
+        recompute = new boolean[tilesX * tilesY];
+
+        Arrays.fill(changed, true);
+    }
+
+    private void findChangedTiles(MBFImage frame)
+    {
+        for (int ty = 0; ty < tilesY; ty++)
+            for (int tx = 0; tx < tilesX; tx++)
+                changed[ty * tilesX + tx] = tileChanged(frame, tx, ty);
+    }
+
+    private boolean tileChanged(MBFImage frame, int tx, int ty)
+    {
+        final int x0 = tx * tileSize;
+        final int x1 = Math.min(x0 + tileSize, frame.getWidth());
+        final int y0 = ty * tileSize;
+        final int y1 = Math.min(y0 + tileSize, frame.getHeight());
+
+        for (int b = 0; b < frame.numBands(); b++)
+        {
+            final float[][] current = frame.getBand(b).pixels;
+            final float[][] cached = reference.getBand(b).pixels;
+
+            for (int y = y0; y < y1; y++)
+            {
+                final float[] c = current[y];
+                final float[] r = cached[y];
+
+                for (int x = x0; x < x1; x++)
+                {
+                    if (Math.abs(c[x] - r[x]) > tolerance)
+                        return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    // A tile needs recomputing if any changed tile lies within the operator's halo of it.
+    private void markTilesToRecompute()
+    {
+        final int reach = (operator.getHalo() + tileSize - 1) / tileSize;
+
+        Arrays.fill(recompute, false);
+
+        for (int ty = 0; ty < tilesY; ty++)
+        {
+            for (int tx = 0; tx < tilesX; tx++)
+            {
+                if (!changed[ty * tilesX + tx])
+                    continue;
+
+                for (int ny = Math.max(ty - reach, 0); ny <= Math.min(ty + reach, tilesY - 1); ny++)
+                    for (int nx = Math.max(tx - reach, 0); nx <= Math.min(tx + reach, tilesX - 1); nx++)
+                        recompute[ny * tilesX + nx] = true;
+            }
+        }
+    }
+
+    // Process tiles [tx0, tx1) of a tile row, cutting out the region with its halo and copying back only the tiles.
+    private void processRun(int ty, int tx0, int tx1)
+    {
+        final int width = reference.getWidth();
+        final int height = reference.getHeight();
+        final int halo = operator.getHalo();
+
+        final int x0 = tx0 * tileSize;
+        final int x1 = Math.min(tx1 * tileSize, width);
+        final int y0 = ty * tileSize;
+        final int y1 = Math.min(y0 + tileSize, height);
+
+        final int rx0 = Math.max(x0 - halo, 0);
+        final int rx1 = Math.min(x1 + halo, width);
+        final int ry0 = Math.max(y0 - halo, 0);
+        final int ry1 = Math.min(y1 + halo, height);
+
+        final FImage regionIn = pool.acquireFImage(rx1 - rx0, ry1 - ry0);
+        final FImage regionOut = pool.acquireFImage(rx1 - rx0, ry1 - ry0);
+
+        try
+        {
+            for (int b = 0; b < reference.numBands(); b++)
+            {
+                final float[][] src = reference.getBand(b).pixels;
+                final float[][] dst = output.getBand(b).pixels;
+
+                for (int y = ry0; y < ry1; y++)
+                    System.arraycopy(src[y], rx0, regionIn.pixels[y - ry0], 0, rx1 - rx0);
+
+                operator.process(regionIn, regionOut);
+
+                for (int y = y0; y < y1; y++)
+                    System.arraycopy(regionOut.pixels[y - ry0], x0 - rx0, dst[y], x0, x1 - x0);
+            }
+        }
+        finally
+        {
+            pool.release(regionIn);
+            pool.release(regionOut);
+        }
+    }
+
+    private void copyTile(MBFImage from, MBFImage to, int tx, int ty)
+    {
+        final int x0 = tx * tileSize;
+        final int x1 = Math.min(x0 + tileSize, from.getWidth());
+        final int y0 = ty * tileSize;
+        final int y1 = Math.min(y0 + tileSize, from.getHeight());
+
+        for (int b = 0; b < from.numBands(); b++)
+        {
+            final float[][] src = from.getBand(b).pixels;
+            final float[][] dst = to.getBand(b).pixels;
+
+            for (int y = y0; y < y1; y++)
+                System.arraycopy(src[y], x0, dst[y], x0, x1 - x0);
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.processor.SinglebandImageProcessor;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+/**
+ * Adaptive local thresholding built on summed-area tables (integral images), so that the cost per pixel does not
+ * depend on the window size.
+ *
+ * With a single pass this is the local mean threshold of AdaptiveLocalThresholdMean: the window is positioned and
+ * the image edges are replicated in the same way as AverageBoxFilter, so the output matches apart from pixels that sit
+ * within float rounding of their local mean. With several passes the box filter is repeated, which approximates a
+ * local Gaussian weighting (see {@link #gaussianApproximation(float, float)}).
+ *
+ * The integral images are built in parallel by row strips, all bands are processed in parallel, and the buffers are
+ * kept and reused for as long as consecutive frames have the same size. Instances are therefore not thread-safe.
+ */
+public class IntegralAdaptiveThreshold implements SinglebandImageProcessor<Float, FImage>
+{
+    // Strips shorter than this are not worth handing to another thread.
+    private static final int MIN_STRIP_ROWS = 32;
+
+    private final int sizeX;
+    private final int sizeY;
+    private final float offset;
+    private final int passes;
+
+    // Per-band buffers, reused across frames of the same size.
+    private BandBuffers[] buffers = new BandBuffers[0];
+
+    public IntegralAdaptiveThreshold(int size)
+    {
+        this(size, 0);
+    }
+
+    public IntegralAdaptiveThreshold(int size, float offset)
+    {
+        this(size, size, offset, 1);
+    }
+
+    /**
+     * Construct a thresholder that compares each pixel against the result of applying a sizeX by sizeY box filter the
+     * given number of times, less the offset.
+     */
+    public IntegralAdaptiveThreshold(int sizeX, int sizeY, float offset, int passes)
+    {
+        if (sizeX < 1 || sizeY < 1)
+            throw new IllegalArgumentException("The window size must be at least 1");
+        if (passes < 1)
+            throw new IllegalArgumentException("At least one pass is required");
+
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.offset = offset;
+        this.passes = passes;
+    }
+
+    /**
+     * Construct a thresholder that approximates a Gaussian weighted local mean with the given standard deviation using
+     * three box filter passes, whose combined variance matches that of the Gaussian.
+     */
+    public static IntegralAdaptiveThreshold gaussianApproximation(float sigma, float offset)
+    {
+        final int passes = 3;
+        int size = (int) Math.round(Math.sqrt(12.0 * sigma * sigma / passes + 1));
+
+        // An odd window keeps the repeated filter centred on the pixel.
+        if (size % 2 == 0)
+            size++;
+
+        return new IntegralAdaptiveThreshold(size, size, offset, passes);
+    }
+
+    public void processImage(FImage image)
+    {
+        process(image, image);
+    }
+
+    /**
+     * Threshold the input and write the result (0 or 1) to the output. The images may be the same object.
+     */
+    public void process(FImage input, FImage output)
+    {
+        run(new FImage[] { input }, new FImage[] { output });
+    }
+
+    /**
+     * Threshold every band of the input in parallel, writing each result to the corresponding band of the output. The
+     * images may be the same object.
+     */
+    public void process(MBFImage input, MBFImage output)
+    {
+        if (input.numBands() != output.numBands())
+            throw new IllegalArgumentException("The input and output must have the same number of bands");
+
+        run(input.bands.toArray(new FImage[input.numBands()]), output.bands.toArray(new FImage[output.numBands()]));
+    }
+
+    private void run(final FImage[] in, final FImage[] out)
+    {
+        final int width = in[0].width;
+        final int height = in[0].height;
+
+        for (int b = 0; b < in.length; b++)
+        {
+            if (in[b].width != width || in[b].height != height || out[b].width != width || out[b].height != height)
+                throw new IllegalArgumentException("All of the bands must be the same size");
+        }
+
+        final BandBuffers[] bands = buffers(in.length, width, height);
+
+        for (int pass = 0; pass < passes; pass++)
+        {
+            final boolean last = pass == passes - 1;
+            final FImage[] source = new FImage[in.length];
+
+            for (int b = 0; b < in.length; b++)
+                source[b] = pass == 0 ? in[b] : bands[b].mean;
+
+            buildIntegralImages(source, bands);
+
+            // The final pass thresholds the original input against the filtered image, earlier passes just filter.
+            final int strips = bands[0].strips(height);
+            Parallel.forIndex(0, in.length * strips, 1, new Operation<Integer>()
+            {
+                public void perform(Integer task)
+                {
+                    final BandBuffers band = bands[task / strips];
+                    final int strip = task % strips;
+                    final int y0 = band.stripStart(strip, height);
+                    final int y1 = band.stripStart(strip + 1, height);
+
+                    if (last)
+                        threshold(band, in[task / strips], out[task / strips], y0, y1);
+                    else
+                        filter(band, band.mean, y0, y1);
+                }
+            });
+        }
+    }
+
+    private BandBuffers[] buffers(int numBands, int width, int height)
+    {
+        if (buffers.length != numBands)
+            buffers = new BandBuffers[numBands];
+
+        for (int b = 0; b < numBands; b++)
+        {
+            if (buffers[b] == null || buffers[b].width != width || buffers[b].height != height)
+                buffers[b] = new BandBuffers(width, height, sizeX, sizeY, passes > 1);
+        }
+
+        return buffers;
+    }
+
+    // Build the summed-area table of each (edge-replicated) source band: first each row strip independently, then the
+    // running totals of the strips above are added to every strip.
+    private void buildIntegralImages(final FImage[] source, final BandBuffers[] bands)
+    {
+        final int paddedHeight = bands[0].paddedHeight;
+        final int strips = bands[0].strips(paddedHeight);
+
+        Parallel.forIndex(0, source.length * strips, 1, new Operation<Integer>()
+        {
+            public void perform(Integer task)
+            {
+                final BandBuffers band = bands[task / strips];
+                final int strip = task % strips;
+
+                integrateStrip(band, source[task / strips], band.stripStart(strip, paddedHeight), band.stripStart(strip + 1, paddedHeight));
+            }
+        });
+
+        if (strips == 1)
+            return;
+
+        for (final BandBuffers band : bands)
+        {
+            final int stride = band.stride;
+
+            for (int strip = 1; strip < strips; strip++)
+            {
+                final double[] carry = band.carries[strip];
+                final double[] previous = band.carries[strip - 1];
+                final int lastRow = band.stripStart(strip, paddedHeight);
+
+                // The first strip has nothing above it, so its carry row is left as zeros.
+                for (int c = 0; c < stride; c++)
+                    carry[c] = previous[c] + band.sat[lastRow * stride + c];
+            }
+        }
+
+        Parallel.forIndex(0, source.length * (strips - 1), 1, new Operation<Integer>()
+        {
+            public void perform(Integer task)
+            {
+                final BandBuffers band = bands[task / (strips - 1)];
+                final int strip = task % (strips - 1) + 1;
+                final double[] carry = band.carries[strip];
+                final int stride = band.stride;
+
+                for (int r = band.stripStart(strip, paddedHeight); r < band.stripStart(strip + 1, paddedHeight); r++)
+                {
+                    final int row = (r + 1) * stride;
+
+                    for (int c = 1; c < stride; c++)
+                        band.sat[row + c] += carry[c];
+                }
+            }
+        });
+    }
+
+    // Integrate padded rows [r0, r1) of the source, as if the strip started at the top of the image.
+    private void integrateStrip(BandBuffers band, FImage source, int r0, int r1)
+    {
+        final double[] sat = band.sat;
+        final int stride = band.stride;
+        final int halfX = sizeX / 2;
+        final int halfY = sizeY / 2;
+        final int width = source.width;
+        final int height = source.height;
+
+        for (int r = r0; r < r1; r++)
+        {
+            final float[] src = source.pixels[Math.min(Math.max(r - halfY, 0), height - 1)];
+            final int row = (r + 1) * stride;
+            final int above = r * stride;
+
+            double rowSum = 0;
+            for (int c = 0; c < band.paddedWidth; c++)
+            {
+                rowSum += src[Math.min(Math.max(c - halfX, 0), width - 1)];
+                sat[row + c + 1] = r == r0 ? rowSum : rowSum + sat[above + c + 1];
+            }
+        }
+    }
+
+    private double windowSum(BandBuffers band, int x, int y)
+    {
+        final double[] sat = band.sat;
+        final int top = y * band.stride;
+        final int bottom = (y + sizeY) * band.stride;
+
+        return sat[bottom + x + sizeX] - sat[top + x + sizeX] - sat[bottom + x] + sat[top + x];
+    }
+
+    private void filter(BandBuffers band, FImage out, int y0, int y1)
+    {
+        final double area = (double) sizeX * sizeY;
+
+        for (int y = y0; y < y1; y++)
+        {
+            final float[] row = out.pixels[y];
+
+            for (int x = 0; x < band.width; x++)
+                row[x] = (float) (windowSum(band, x, y) / area);
+        }
+    }
+
+    private void threshold(BandBuffers band, FImage in, FImage out, int y0, int y1)
+    {
+        final double area = (double) sizeX * sizeY;
+
+        for (int y = y0; y < y1; y++)
+        {
+            final float[] src = in.pixels[y];
+            final float[] dst = out.pixels[y];
+
+            for (int x = 0; x < band.width; x++)
+                dst[x] = src[x] < ((float) (windowSum(band, x, y) / area) - offset) ? 0f : 1f;
+        }
+    }
+
+    private static final class BandBuffers
+    {
+        final int width;
+        final int height;
+        final int paddedWidth;
+        final int paddedHeight;
+        final int stride;
+
+        // The number of processors the strips are split for, read once so that the strips always match the carries.
+        final int processors;
+
+        // The summed-area table of the padded image, with an extra leading row and column of zeros.
+        final double[] sat;
+
+        // The running column totals above each row strip.
+        final double[][] carries;
+
+        // The intermediate filtered image when more than one pass is used.
+        final FImage mean;
+
+        BandBuffers(int width, int height, int sizeX, int sizeY, boolean multiPass)
+        {
+            this.width = width;
+            this.height = height;
+            this.paddedWidth = width + sizeX - 1;
+            this.paddedHeight = height + sizeY - 1;
+            this.stride = paddedWidth + 1;
+            this.processors = Runtime.getRuntime().availableProcessors();
+            this.sat = new double[(paddedHeight + 1) * stride];
+            this.carries = new double[strips(paddedHeight)][stride];
+            this.mean = multiPass ? new FImage(width, height) : null;
+        }
+
+        int strips(int rows)
+        {
+            return Math.max(1, Math.min(processors, rows / MIN_STRIP_ROWS));
+        }
+
+        int stripStart(int strip, int rows)
+        {
+            return (int) ((long) rows * strip / strips(rows));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.processing.threshold.AdaptiveLocalThresholdMean;
+import org.openimaj.time.Timer;
+
+import java.util.Random;
+
+/**
+ * Times AdaptiveLocalThresholdMean against {@link IntegralAdaptiveThreshold} for window sizes from 15 to 301 on a
+ * synthetic frame, and reports the proportion of output pixels on which the two agree.
+ *
+ * Usage: IntegralThresholdBenchmark [width] [height] [repeats]
+ */
+public class IntegralThresholdBenchmark
+{
+    private static final int[] WINDOW_SIZES = { 15, 31, 51, 75, 101, 151, 201, 251, 301 };
+
+    public static void main( String[] args )
+    {
+        final int width = args.length > 0 ? Integer.parseInt(args[0]) : 640;
+        final int height = args.length > 1 ? Integer.parseInt(args[1]) : 480;
+        final int repeats = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        final MBFImage frame = syntheticFrame(width, height, new Random(42));
+        final MBFImage actual = new MBFImage(width, height, ColourSpace.RGB);
+
+        System.out.println("Window\tAdaptiveLocalThresholdMean (ms)\tIntegralAdaptiveThreshold (ms)\tAgreement");
+
+        for (final int size : WINDOW_SIZES)
+        {
+            final IntegralAdaptiveThreshold integral = new IntegralAdaptiveThreshold(size);
+
+            // Warm up both implementations (and the integral buffers) before timing.
+            MBFImage reference = frame.process(new AdaptiveLocalThresholdMean(size));
+            integral.process(frame, actual);
+
+            Timer t1 = Timer.timer();
+            for (int i = 0; i < repeats; i++)
+                reference = frame.process(new AdaptiveLocalThresholdMean(size));
+            final double original = t1.duration() / (double) repeats;
+
+            Timer t2 = Timer.timer();
+            for (int i = 0; i < repeats; i++)
+                integral.process(frame, actual);
+            final double summed = t2.duration() / (double) repeats;
+
+            System.out.println(size + "\t" + original + "\t" + summed + "\t" + agreement(reference, actual));
+        }
+    }
+
+    // A smooth gradient with noise and some blocky structure, which gives the local mean something to follow.
+    private static MBFImage syntheticFrame(int width, int height, Random random)
+    {
+        final MBFImage frame = new MBFImage(width, height, ColourSpace.RGB);
+
+        for (int b = 0; b < frame.numBands(); b++)
+        {
+            final float[][] pixels = frame.getBand(b).pixels;
+
+            for (int y = 0; y < height; y++)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    final float gradient = (x + y * (b + 1)) / (float) (width + height * 3);
+                    final float blocks = ((x / 40 + y / 30) % 2) * 0.25f;
+
+                    pixels[y][x] = Math.min(1f, gradient * 0.5f + blocks + random.nextFloat() * 0.25f);
+                }
+            }
+        }
+
+        return frame;
+    }
+
+    private static double agreement(MBFImage expected, MBFImage actual)
+    {
+        long same = 0;
+        long total = 0;
+
+        for (int b = 0; b < expected.numBands(); b++)
+        {
+            final float[][] e = expected.getBand(b).pixels;
+            final float[][] a = actual.getBand(b).pixels;
+
+            for (int y = 0; y < e.length; y++)
+            {
+                for (int x = 0; x < e[y].length; x++)
+                {
+                    if (e[y][x] == a[y][x])
+                        same++;
+                    total++;
+                }
+            }
+        }
+
+        return same / (double) total;
+    }
+}
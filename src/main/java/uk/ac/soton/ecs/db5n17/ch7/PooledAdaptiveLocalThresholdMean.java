@@ -0,0 +1,160 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.processor.SinglebandImageProcessor;
+
+/**
+ * An equivalent of AdaptiveLocalThresholdMean that takes its local mean image from a {@link FramePool} and writes into
+ * a caller-supplied output, so that once the pool is warm no per-frame allocation takes place.
+ *
+ * The local mean is computed with the same separable box convolution (with replicated edges) as AverageBoxFilter, so
+ * the thresholded output matches. Instances hold scratch state, so each thread should use its own processor.
+ */
+public class PooledAdaptiveLocalThresholdMean implements SinglebandImageProcessor<Float, FImage>
+{
+    private final int sizeX;
+    private final int sizeY;
+    private final float offset;
+    private final FramePool pool;
+
+    private float[] line = new float[0];
+
+    public PooledAdaptiveLocalThresholdMean(int size)
+    {
+        this(size, 0);
+    }
+
+    public PooledAdaptiveLocalThresholdMean(int size, float offset)
+    {
+        this(size, size, offset, FramePool.shared());
+    }
+
+    public PooledAdaptiveLocalThresholdMean(int sizeX, int sizeY, float offset, FramePool pool)
+    {
+        if (sizeX < 1 || sizeY < 1)
+            throw new IllegalArgumentException("The window size must be at least 1");
+
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.offset = offset;
+        this.pool = pool;
+    }
+
+    public void processImage(FImage image)
+    {
+        process(image, image);
+    }
+
+    /**
+     * Threshold each band of the input and write the result to the corresponding band of the output. The images may be
+     * the same object.
+     */
+    public void process(MBFImage input, MBFImage output)
+    {
+        if (input.numBands() != output.numBands())
+            throw new IllegalArgumentException("The input and output must have the same number of bands");
+
+        for (int b = 0; b < input.numBands(); b++)
+            process(input.getBand(b), output.getBand(b));
+    }
+
+    /**
+     * Set each output pixel to 0 if the input pixel is below its local mean (less the offset), or 1 otherwise. The
+     * images may be the same object.
+     */
+    public void process(FImage input, FImage output)
+    {
+        final int width = input.width;
+        final int height = input.height;
+
+        if (output.width != width || output.height != height)
+            throw new IllegalArgumentException("The output must be the same size as the input");
+
+        final FImage mean = pool.acquireFImage(width, height);
+
+        try
+        {
+            meanHorizontal(input, mean);
+            meanVertical(mean);
+
+            for (int y = 0; y < height; y++)
+            {
+                final float[] in = input.pixels[y];
+                final float[] m = mean.pixels[y];
+                final float[] out = output.pixels[y];
+
+                for (int x = 0; x < width; x++)
+                    out[x] = in[x] < (m[x] - offset) ? 0f : 1f;
+            }
+        }
+        finally
+        {
+            pool.release(mean);
+        }
+    }
+
+    private float[] line(int length)
+    {
+        if (line.length < length)
+            line = new float[length];
+
+        return line;
+    }
+
+    private void meanHorizontal(FImage in, FImage out)
+    {
+        final int half = sizeX / 2;
+        final int width = in.width;
+        final float weight = 1f / sizeX;
+        final float[] buffer = line(width + sizeX);
+
+        for (int y = 0; y < in.height; y++)
+        {
+            final float[] src = in.pixels[y];
+            final float[] dst = out.pixels[y];
+
+            for (int i = 0; i < half; i++)
+                buffer[i] = src[0];
+            System.arraycopy(src, 0, buffer, half, width);
+            for (int i = half + width; i < width + sizeX; i++)
+                buffer[i] = src[width - 1];
+
+            for (int x = 0; x < width; x++)
+            {
+                float sum = 0;
+                for (int k = 0; k < sizeX; k++)
+                    sum += buffer[x + k] * weight;
+
+                dst[x] = sum;
+            }
+        }
+    }
+
+    private void meanVertical(FImage image)
+    {
+        final int half = sizeY / 2;
+        final int height = image.height;
+        final float weight = 1f / sizeY;
+        final float[] buffer = line(height + sizeY);
+
+        for (int x = 0; x < image.width; x++)
+        {
+            for (int i = 0; i < half; i++)
+                buffer[i] = image.pixels[0][x];
+            for (int y = 0; y < height; y++)
+                buffer[half + y] = image.pixels[y][x];
+            for (int i = half + height; i < height + sizeY; i++)
+                buffer[i] = image.pixels[height - 1][x];
+
+            for (int y = 0; y < height; y++)
+            {
+                float sum = 0;
+                for (int k = 0; k < sizeY; k++)
+                    sum += buffer[y + k] * weight;
+
+                image.pixels[y][x] = sum;
+            }
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.processor.SinglebandImageProcessor;
+
+import java.util.Arrays;
+
+/**
+ * A Canny edge detector that takes its intermediate gradient images from a {@link FramePool} and writes into a
+ * caller-supplied output, so that once the pool is warm no per-frame allocation takes place.
+ *
+ * The stages follow CannyEdgeDetector: Gaussian smoothing, Sobel gradients, non-maximum suppression and hysteresis
+ * thresholding, with the thresholds chosen from the magnitude histogram when they are not given explicitly.
+ * Instances hold scratch state, so each thread should use its own detector.
+ *
+ * The edges are not guaranteed to be pixel for pixel those of CannyEdgeDetector, only to agree with them to within a
+ * pixel (as PooledCannyEdgeDetectorTest checks). The differences are deliberate simplifications of the stages: the
+ * Gaussian is truncated at four standard deviations and both it and the Sobel operator replicate the edge pixels,
+ * non-maximum suppression quantises the gradient direction to one of four neighbour pairs without interpolating and
+ * never marks the outermost pixels as edges, and ties between a pixel and the neighbour ahead of it go to the neighbour.
+ */
+public class PooledCannyEdgeDetector implements SinglebandImageProcessor<Float, FImage>
+{
+    // The Gaussian kernel is truncated at this many standard deviations, as in FGaussianConvolve.
+    private static final float GAUSSIAN_TRUNCATE = 4.0f;
+
+    // The proportion of pixels that fall below the high threshold when it is picked automatically.
+    private static final float HIGH_PERCENTILE = 0.7f;
+
+    private final float lowThreshold;
+    private final float highThreshold;
+    private final float thresholdRatio = 0.4f;
+    private final float[] kernel;
+    private final FramePool pool;
+
+    // Scratch state that is grown on demand and then reused for every subsequent frame.
+    private final int[] histogram = new int[64];
+    private float[] line = new float[0];
+    private int[] stack = new int[0];
+
+    public PooledCannyEdgeDetector()
+    {
+        this(1.0f);
+    }
+
+    public PooledCannyEdgeDetector(float sigma)
+    {
+        this(-1, -1, sigma);
+    }
+
+    public PooledCannyEdgeDetector(float lowThreshold, float highThreshold, float sigma)
+    {
+        this(lowThreshold, highThreshold, sigma, FramePool.shared());
+    }
+
+    /**
+     * Construct a detector with explicit thresholds (in the range 0 to 1 of the normalised gradient magnitude; pass
+     * negative values to have them chosen automatically) and the pool to take scratch buffers from.
+     */
+    public PooledCannyEdgeDetector(float lowThreshold, float highThreshold, float sigma, FramePool pool)
+    {
+        if (lowThreshold > highThreshold)
+            throw new IllegalArgumentException("The low threshold must not exceed the high threshold");
+
+        this.lowThreshold = lowThreshold;
+        this.highThreshold = highThreshold;
+        this.kernel = gaussianKernel(sigma);
+        this.pool = pool;
+    }
+
+    public void processImage(FImage image)
+    {
+        process(image, image);
+    }
+
+    /**
+     * Detect the edges in each band of the input and write them to the corresponding band of the output. The images
+     * may be the same object.
+     */
+    public void process(MBFImage input, MBFImage output)
+    {
+        if (input.numBands() != output.numBands())
+            throw new IllegalArgumentException("The input and output must have the same number of bands");
+
+        for (int b = 0; b < input.numBands(); b++)
+            process(input.getBand(b), output.getBand(b));
+    }
+
+    /**
+     * Detect the edges in the input and write them to the output as 1 (edge) or 0 (not an edge). The images may be
+     * the same object.
+     */
+    public void process(FImage input, FImage output)
+    {
+        final int width = input.width;
+        final int height = input.height;
+
+        if (output.width != width || output.height != height)
+            throw new IllegalArgumentException("The output must be the same size as the input");
+
+        final FImage smoothed = pool.acquireFImage(width, height);
+        final FImage dx = pool.acquireFImage(width, height);
+        final FImage dy = pool.acquireFImage(width, height);
+        final FImage magnitudes = pool.acquireFImage(width, height);
+
+        try
+        {
+            // Smooth the input, using dx as the intermediate of the separable convolution.
+            convolveHorizontal(input, dx);
+            convolveVertical(dx, smoothed);
+
+            sobel(smoothed, dx, dy);
+
+            final float max = suppressNonMaxima(dx, dy, magnitudes);
+
+            if (max > 0)
+                scale(magnitudes, 1f / max);
+
+            float low = lowThreshold;
+            float high = highThreshold;
+
+            if (low < 0 || high < 0)
+            {
+                high = automaticHighThreshold(magnitudes);
+                low = thresholdRatio * high;
+            }
+
+            hysteresis(magnitudes, output, low, high);
+        }
+        finally
+        {
+            pool.release(smoothed);
+            pool.release(dx);
+            pool.release(dy);
+            pool.release(magnitudes);
+        }
+    }
+
+    private static float[] gaussianKernel(float sigma)
+    {
+        if (sigma <= 0)
+            throw new IllegalArgumentException("sigma must be positive");
+
+        final int half = (int) Math.ceil(sigma * GAUSSIAN_TRUNCATE);
+        final float[] kernel = new float[2 * half + 1];
+
+        float sum = 0;
+        for (int i = -half; i <= half; i++)
+        {
+            kernel[i + half] = (float) Math.exp(-(i * i) / (2.0 * sigma * sigma));
+            sum += kernel[i + half];
+        }
+
+        for (int i = 0; i < kernel.length; i++)
+            kernel[i] /= sum;
+
+        return kernel;
+    }
+
+    // Both convolution passes replicate the edge pixels into the halo of a reusable line buffer.
+    private float[] line(int length)
+    {
+        if (line.length < length)
+            line = new float[length];
+
+        return line;
+    }
+
+    private void convolveHorizontal(FImage in, FImage out)
+    {
+        final int half = kernel.length / 2;
+        final int width = in.width;
+        final float[] buffer = line(width + 2 * half);
+
+        for (int y = 0; y < in.height; y++)
+        {
+            final float[] src = in.pixels[y];
+            final float[] dst = out.pixels[y];
+
+            for (int i = 0; i < half; i++)
+            {
+                buffer[i] = src[0];
+                buffer[half + width + i] = src[width - 1];
+            }
+            System.arraycopy(src, 0, buffer, half, width);
+
+            for (int x = 0; x < width; x++)
+            {
+                float sum = 0;
+                for (int k = 0; k < kernel.length; k++)
+                    sum += buffer[x + k] * kernel[k];
+
+                dst[x] = sum;
+            }
+        }
+    }
+
+    private void convolveVertical(FImage in, FImage out)
+    {
+        final int half = kernel.length / 2;
+        final int height = in.height;
+        final float[] buffer = line(height + 2 * half);
+
+        for (int x = 0; x < in.width; x++)
+        {
+            for (int i = 0; i < half; i++)
+            {
+                buffer[i] = in.pixels[0][x];
+                buffer[half + height + i] = in.pixels[height - 1][x];
+            }
+            for (int y = 0; y < height; y++)
+                buffer[half + y] = in.pixels[y][x];
+
+            for (int y = 0; y < height; y++)
+            {
+                float sum = 0;
+                for (int k = 0; k < kernel.length; k++)
+                    sum += buffer[y + k] * kernel[k];
+
+                out.pixels[y][x] = sum;
+            }
+        }
+    }
+
+    private static void sobel(FImage in, FImage dx, FImage dy)
+    {
+        final int width = in.width;
+        final int height = in.height;
+
+        for (int y = 0; y < height; y++)
+        {
+            final float[] above = in.pixels[Math.max(y - 1, 0)];
+            final float[] row = in.pixels[y];
+            final float[] below = in.pixels[Math.min(y + 1, height - 1)];
+
+            for (int x = 0; x < width; x++)
+            {
+                final int l = Math.max(x - 1, 0);
+                final int r = Math.min(x + 1, width - 1);
+
+                dx.pixels[y][x] = (above[r] + 2 * row[r] + below[r]) - (above[l] + 2 * row[l] + below[l]);
+                dy.pixels[y][x] = (below[l] + 2 * below[x] + below[r]) - (above[l] + 2 * above[x] + above[r]);
+            }
+        }
+    }
+
+    // Keep only the pixels whose gradient magnitude is a local maximum across the edge, returning the largest magnitude.
+    private static float suppressNonMaxima(FImage dx, FImage dy, FImage out)
+    {
+        final int width = dx.width;
+        final int height = dx.height;
+        final double tan22 = Math.tan(Math.PI / 8);
+        final double tan67 = Math.tan(3 * Math.PI / 8);
+
+        float max = 0;
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                if (x == 0 || y == 0 || x == width - 1 || y == height - 1)
+                {
+                    out.pixels[y][x] = 0;
+                    continue;
+                }
+
+                final float gx = dx.pixels[y][x];
+                final float gy = dy.pixels[y][x];
+                final float mag = magnitude(gx, gy);
+
+                // Quantise the gradient direction to one of four neighbour pairs.
+                final int ox, oy;
+                final double slope = gx == 0 ? Double.POSITIVE_INFINITY : Math.abs(gy / (double) gx);
+                if (slope < tan22)
+                {
+                    ox = 1;
+                    oy = 0;
+                }
+                else if (slope > tan67)
+                {
+                    ox = 0;
+                    oy = 1;
+                }
+                else
+                {
+                    ox = 1;
+                    oy = (gx > 0) == (gy > 0) ? 1 : -1;
+                }
+
+                final float a = magnitude(dx.pixels[y + oy][x + ox], dy.pixels[y + oy][x + ox]);
+                final float b = magnitude(dx.pixels[y - oy][x - ox], dy.pixels[y - oy][x - ox]);
+
+                if (mag > a && mag >= b)
+                {
+                    out.pixels[y][x] = mag;
+
+                    if (mag > max)
+                        max = mag;
+                }
+                else
+                {
+                    out.pixels[y][x] = 0;
+                }
+            }
+        }
+
+        return max;
+    }
+
+    private static float magnitude(float gx, float gy)
+    {
+        return (float) Math.sqrt(gx * gx + gy * gy);
+    }
+
+    private static void scale(FImage image, float factor)
+    {
+        for (int y = 0; y < image.height; y++)
+        {
+            final float[] row = image.pixels[y];
+
+            for (int x = 0; x < image.width; x++)
+                row[x] *= factor;
+        }
+    }
+
+    // Pick the high threshold such that the given proportion of (normalised) magnitudes fall below it.
+    private float automaticHighThreshold(FImage magnitudes)
+    {
+        final int bins = histogram.length;
+        Arrays.fill(histogram, 0);
+
+        for (int y = 0; y < magnitudes.height; y++)
+        {
+            final float[] row = magnitudes.pixels[y];
+
+            for (int x = 0; x < magnitudes.width; x++)
+                histogram[Math.min((int) (row[x] * bins), bins - 1)]++;
+        }
+
+        final float target = HIGH_PERCENTILE * magnitudes.width * magnitudes.height;
+        int cumulative = 0;
+        int i = 0;
+        for (; i < bins - 1; i++)
+        {
+            cumulative += histogram[i];
+
+            if (cumulative > target)
+                break;
+        }
+
+        return (i + 1) / (float) bins;
+    }
+
+    // Trace edges from every strong pixel through connected weak pixels, using a reusable explicit stack.
+    private void hysteresis(FImage magnitudes, FImage output, float low, float high)
+    {
+        final int width = magnitudes.width;
+        final int height = magnitudes.height;
+
+        if (stack.length < width * height)
+            stack = new int[width * height];
+
+        for (int y = 0; y < height; y++)
+            Arrays.fill(output.pixels[y], 0f);
+
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                if (magnitudes.pixels[y][x] < high || output.pixels[y][x] != 0)
+                    continue;
+
+                int top = 0;
+                output.pixels[y][x] = 1;
+                stack[top++] = y * width + x;
+
+                while (top > 0)
+                {
+                    final int index = stack[--top];
+                    final int cx = index % width;
+                    final int cy = index / width;
+
+                    for (int ny = Math.max(cy - 1, 0); ny <= Math.min(cy + 1, height - 1); ny++)
+                    {
+                        for (int nx = Math.max(cx - 1, 0); nx <= Math.min(cx + 1, width - 1); nx++)
+                        {
+                            if (output.pixels[ny][nx] == 0 && magnitudes.pixels[ny][nx] >= low && magnitudes.pixels[ny][nx] > 0)
+                            {
+                                output.pixels[ny][nx] = 1;
+                                stack[top++] = ny * width + nx;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.video.Video;
+
+/**
+ * A stand-in for VideoCapture that generates frames (a moving square over a gradient) at a fixed frame rate, so that
+ * live video code can be exercised without a camera.
+ *
+ * Like a real camera, getNextFrame() blocks until the next frame is due and the same image object is refilled for
+ * every frame, so callers that want to keep a frame must copy it.
+ */
+public class SyntheticCameraVideo extends Video<MBFImage>
+{
+    private final int width;
+    private final int height;
+    private final double fps;
+    private final long totalFrames;
+    private final MBFImage frame;
+
+    private long startNanos = -1;
+    private long frameIndex = -1;
+
+    public SyntheticCameraVideo(int width, int height, double fps)
+    {
+        this(width, height, fps, -1);
+    }
+
+    /**
+     * Construct a camera that produces the given number of frames (or an unlimited number if negative).
+     */
+    public SyntheticCameraVideo(int width, int height, double fps, long totalFrames)
+    {
+        if (fps <= 0)
+            throw new IllegalArgumentException("fps must be positive");
+
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.totalFrames = totalFrames;
+        this.frame = new MBFImage(width, height, ColourSpace.RGB);
+    }
+
+    public MBFImage getNextFrame()
+    {
+        if (!hasNextFrame())
+            return null;
+
+        if (startNanos < 0)
+            startNanos = System.nanoTime();
+
+        frameIndex++;
+
+        // Wait until this frame would have been captured.
+        final long due = startNanos + (long) (frameIndex * 1e9 / fps);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0)
+        {
+            try
+            {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        render(frameIndex);
+
+        return frame;
+    }
+
+    public MBFImage getCurrentFrame()
+    {
+        return frame;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public long getTimeStamp()
+    {
+        return (long) (Math.max(frameIndex, 0) * 1000 / fps);
+    }
+
+    public double getFPS()
+    {
+        return fps;
+    }
+
+    public boolean hasNextFrame()
+    {
+        return totalFrames < 0 || frameIndex + 1 < totalFrames;
+    }
+
+    public long countFrames()
+    {
+        return totalFrames;
+    }
+
+    public void reset()
+    {
+        startNanos = -1;
+        frameIndex = -1;
+    }
+
+    public void close()
+    {
+    }
+
+    private void render(long index)
+    {
+        final int size = Math.max(1, Math.min(width, height) / 4);
+        final int left = (int) ((index * 4) % Math.max(1, width - size));
+        final int top = (height - size) / 2;
+
+        for (int b = 0; b < frame.numBands(); b++)
+        {
+            final FImage band = frame.getBand(b);
+
+            for (int y = 0; y < height; y++)
+            {
+                final float[] row = band.pixels[y];
+
+                for (int x = 0; x < width; x++)
+                {
+                    final boolean square = x >= left && x < left + size && y >= top && y < top + size;
+
+                    row[x] = square ? (b == 0 ? 1f : 0f) : (x + y) / (float) (width + height) * (b + 1) / 3f;
+                }
+            }
+        }
+    }
+}
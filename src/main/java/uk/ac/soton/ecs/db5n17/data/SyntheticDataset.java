@@ -0,0 +1,124 @@
+package uk.ac.soton.ecs.db5n17.data;
+
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+
+import java.util.AbstractList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A grouped dataset of generated images, for exercising code on synthetic stand-ins for the book's datasets.
+ *
+ * Each group has a renderer made from a generator seeded by the dataset's seed and the group, and each image is
+ * rendered from a generator seeded by the group's seed and the image's index. Images are generated when they are read,
+ * so the dataset takes no memory and the same arguments always give the same images; two datasets with the same seed
+ * but disjoint ranges of indices make a training and test split. The groups are kept in order of their number.
+ *
+ * @param <IMAGE> the type of image generated
+ */
+public class SyntheticDataset<IMAGE> extends MapBackedDataset<String, ListDataset<IMAGE>, IMAGE>
+{
+    /**
+     * Renders the images of one group.
+     */
+    public interface Renderer<IMAGE>
+    {
+        IMAGE render(Random random);
+    }
+
+    /**
+     * Makes the renderer of each group, which holds whatever the images of that group have in common.
+     */
+    public interface Generator<IMAGE>
+    {
+        Renderer<IMAGE> create(Random random);
+    }
+
+    /**
+     * Construct a dataset with a group per entry of groupSizes, named by formatting the group's number with nameFormat,
+     * holding the images with indices [first, first + groupSizes[g]) of that group.
+     */
+    public SyntheticDataset(String nameFormat, int[] groupSizes, int first, long seed, Generator<IMAGE> generator)
+    {
+        super(groups(nameFormat, groupSizes, first, seed, generator));
+    }
+
+    /**
+     * The sizes of the given number of groups of the same size.
+     */
+    public static int[] uniform(int groups, int images)
+    {
+        final int[] sizes = new int[groups];
+        for (int g = 0; g < groups; g++)
+            sizes[g] = images;
+
+        return sizes;
+    }
+
+    private static <IMAGE> Map<String, ListDataset<IMAGE>> groups(String nameFormat, int[] groupSizes, int first, long seed,
+            Generator<IMAGE> generator)
+    {
+        if (groupSizes.length < 1 || first < 0)
+            throw new IllegalArgumentException("Invalid dataset: " + groupSizes.length + " groups from index " + first);
+
+        final Map<String, ListDataset<IMAGE>> groups = new LinkedHashMap<>();
+        for (int g = 0; g < groupSizes.length; g++)
+        {
+            if (groupSizes[g] < 0)
+                throw new IllegalArgumentException("Invalid group size: " + groupSizes[g]);
+
+            final long groupSeed = seed * 1000003L + g;
+            groups.put(String.format(nameFormat, g), new Group<>(generator.create(new Random(groupSeed)), first, groupSizes[g], groupSeed));
+        }
+
+        return groups;
+    }
+
+    // One group's images, generated on each read.
+    private static class Group<IMAGE> extends AbstractList<IMAGE> implements ListDataset<IMAGE>
+    {
+        private final Renderer<IMAGE> renderer;
+        private final int first;
+        private final int count;
+        private final long seed;
+
+        Group(Renderer<IMAGE> renderer, int first, int count, long seed)
+        {
+            this.renderer = renderer;
+            this.first = first;
+            this.count = count;
+            this.seed = seed;
+        }
+
+        public IMAGE get(int index)
+        {
+            if (index < 0 || index >= count)
+                throw new IndexOutOfBoundsException("Index " + index + " of " + count);
+
+            return renderer.render(new Random(seed * 1000003L + first + index));
+        }
+
+        public int size()
+        {
+            return count;
+        }
+
+        public IMAGE getInstance(int index)
+        {
+            return get(index);
+        }
+
+        public int numInstances()
+        {
+            return count;
+        }
+
+        public IMAGE getRandomInstance()
+        {
+            return get(ThreadLocalRandom.current().nextInt(count));
+        }
+    }
+}
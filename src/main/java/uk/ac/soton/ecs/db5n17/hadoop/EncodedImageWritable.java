@@ -0,0 +1,73 @@
+package uk.ac.soton.ecs.db5n17.hadoop;
+
+import org.apache.hadoop.io.Writable;
+import org.openimaj.data.identity.Identifiable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * An encoded image and its ID as a Hadoop value, the record of an image packed by {@link ImageSequenceFiles}. The
+ * buffer holding the bytes is reused (and only grown) as values are read, so only the first {@link #getLength()} bytes
+ * are the image's, as with BytesWritable.
+ */
+public class EncodedImageWritable implements Writable, Identifiable
+{
+    private String id;
+    private byte[] bytes;
+    private int length;
+
+    public EncodedImageWritable()
+    {
+        this("", new byte[0], 0);
+    }
+
+    public EncodedImageWritable(String id, byte[] bytes, int length)
+    {
+        set(id, bytes, length);
+    }
+
+    public String getID()
+    {
+        return id;
+    }
+
+    public byte[] getBytes()
+    {
+        return bytes;
+    }
+
+    public int getLength()
+    {
+        return length;
+    }
+
+    public void set(String id, byte[] bytes, int length)
+    {
+        if (length < 0 || length > bytes.length)
+            throw new IllegalArgumentException("Invalid length " + length + " of " + bytes.length + " bytes");
+
+        this.id = id;
+        this.bytes = bytes;
+        this.length = length;
+    }
+
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeUTF(id);
+        out.writeInt(length);
+        out.write(bytes, 0, length);
+    }
+
+    public void readFields(DataInput in) throws IOException
+    {
+        id = in.readUTF();
+        length = in.readInt();
+
+        if (bytes.length < length)
+            bytes = new byte[length];
+
+        in.readFully(bytes, 0, length);
+    }
+}
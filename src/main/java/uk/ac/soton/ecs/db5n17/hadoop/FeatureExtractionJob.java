@@ -0,0 +1,270 @@
+package uk.ac.soton.ecs.db5n17.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.io.IOUtils;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.ml.kernel.HomogeneousKernelMap;
+import org.openimaj.util.pair.IntFloatPair;
+import uk.ac.soton.ecs.db5n17.ch12.DenseSIFTEngines;
+import uk.ac.soton.ecs.db5n17.ch12.FusedPHOWExtractor;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Extracts the PHOW features of chapter 12's App from a dataset packed by {@link ImageSequenceFiles} as a MapReduce
+ * job: the map tasks extract the kernel mapped feature of each image (as grey levels) with a {@link FusedPHOWExtractor}
+ * built from an assigner cached with IOUtils.writeToFile, as App caches it, and the reducers gather the features of
+ * each group together, in single precision. Each feature is written with the ID of its image, so that the output can be
+ * matched to the images or loaded into a store keyed by ID, such as a FeatureStore.
+ *
+ * Usage: FeatureExtractionJob [input directory] [output directory] [assigner] [reducers]
+ *
+ * The assigner may be on any file system Hadoop can read (HDFS, on a cluster), and each map task copies it to a
+ * temporary file to read it. The extractor's settings are read from the configuration (given with -D, for example
+ * -D db5n17.features.blocks=2,4,8), each defaulting to App's. As with {@link GroupAverageJob}, the job runs wherever the
+ * Hadoop configuration on the classpath says.
+ */
+public class FeatureExtractionJob extends Configured implements Tool
+{
+    /**
+     * The configuration property holding the path of the cached assigner.
+     */
+    public static final String ASSIGNER = "db5n17.features.assigner";
+
+    /**
+     * The configuration property holding the step of the dense SIFT grid (3 by default).
+     */
+    public static final String STEP = "db5n17.features.step";
+
+    /**
+     * The configuration property holding the size of the dense SIFT bins (7 by default).
+     */
+    public static final String BIN_SIZE = "db5n17.features.bin.size";
+
+    /**
+     * The configuration property holding the dense SIFT magnification (6 by default).
+     */
+    public static final String MAGNIFICATION = "db5n17.features.magnification";
+
+    /**
+     * The configuration property holding the comma separated window sizes of the dense SIFT pyramid (4,6,8,10 by
+     * default).
+     */
+    public static final String SIZES = "db5n17.features.sizes";
+
+    /**
+     * The configuration property holding the energy below which keypoints are dropped (0.015 by default).
+     */
+    public static final String ENERGY_THRESHOLD = "db5n17.features.energy.threshold";
+
+    /**
+     * The configuration property holding the comma separated numbers of blocks of the spatial pyramid (2,4 by default).
+     */
+    public static final String BLOCKS = "db5n17.features.blocks";
+
+    /**
+     * The configuration property holding the type of the homogeneous kernel map, such as Chi2 (the default) or
+     * Intersection.
+     */
+    public static final String KERNEL = "db5n17.features.kernel";
+
+    /**
+     * Extracts the feature of each image.
+     */
+    public static class PHOWMapper extends Mapper<Text, EncodedImageWritable, Text, IdentifiedFeatureWritable>
+    {
+        private final IdentifiedFeatureWritable feature = new IdentifiedFeatureWritable();
+        private FusedPHOWExtractor extractor;
+
+        protected void setup(Context context) throws IOException
+        {
+            final Configuration conf = context.getConfiguration();
+
+            extractor = extractor(conf, readAssigner(conf));
+            feature.set(new float[extractor.length()]);
+        }
+
+        protected void map(Text key, EncodedImageWritable value, Context context) throws IOException, InterruptedException
+        {
+            // The feature is written as soon as it is extracted, so its array can be reused.
+            extractor.extract(ImageUtilities.readF(new ByteArrayInputStream(value.getBytes(), 0, value.getLength())),
+                    feature.get());
+            feature.setID(value.getID());
+            context.write(key, feature);
+        }
+    }
+
+    /**
+     * Read the assigner cached at the path in the configuration's {@link #ASSIGNER} property.
+     */
+    @SuppressWarnings("unchecked")
+    public static HardAssigner<byte[], float[], IntFloatPair> readAssigner(Configuration conf) throws IOException
+    {
+        final String name = conf.get(ASSIGNER);
+        if (name == null || name.isEmpty())
+            throw new IllegalArgumentException("No assigner: " + ASSIGNER + " must be the path of a cached assigner");
+
+        final Path path = new Path(name);
+        final File local = File.createTempFile("assigner", null);
+
+        try
+        {
+            try (InputStream stream = path.getFileSystem(conf).open(path))
+            {
+                Files.copy(stream, local.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+
+            return (HardAssigner<byte[], float[], IntFloatPair>) IOUtils.readFromFile(local);
+        }
+        finally
+        {
+            local.delete();
+        }
+    }
+
+    /**
+     * Build the extractor with the settings in the configuration, which default to those of chapter 12's App: dense
+     * SIFT with a step of 3, bins of 7 and windows of 4, 6, 8 and 10, an energy threshold of 0.015, blocks of 2 and 4
+     * and a Chi2 kernel map.
+     */
+    public static FusedPHOWExtractor extractor(Configuration conf, HardAssigner<byte[], float[], IntFloatPair> assigner)
+    {
+        final DenseSIFTEngines engines = new DenseSIFTEngines(conf.getInt(STEP, 3), conf.getInt(BIN_SIZE, 7),
+                conf.getFloat(MAGNIFICATION, 6f), ints(conf, SIZES, 4, 6, 8, 10));
+
+        final String kernel = conf.get(KERNEL, HomogeneousKernelMap.KernelType.Chi2.name());
+        final HomogeneousKernelMap kernelMap;
+        try
+        {
+            kernelMap = new HomogeneousKernelMap(HomogeneousKernelMap.KernelType.valueOf(kernel),
+                    HomogeneousKernelMap.WindowType.Rectangular);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new IllegalArgumentException("Unknown kernel type for " + KERNEL + ": " + kernel, e);
+        }
+
+        return new FusedPHOWExtractor(engines, conf.getFloat(ENERGY_THRESHOLD, 0.015f), assigner, kernelMap,
+                ints(conf, BLOCKS, 2, 4));
+    }
+
+    // A comma separated list of integers from the configuration, or the defaults if the property is not set.
+    private static int[] ints(Configuration conf, String name, int... defaults)
+    {
+        final String[] values = conf.getStrings(name);
+        if (values == null)
+            return defaults;
+
+        final int[] ints = new int[values.length];
+        try
+        {
+            for (int i = 0; i < values.length; i++)
+                ints[i] = Integer.parseInt(values[i].trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid " + name + ": " + conf.get(name), e);
+        }
+
+        return ints;
+    }
+
+    /**
+     * Set up a job extracting the features of the packed dataset in the input directory into the output directory.
+     */
+    public static Job create(Configuration conf, Path input, Path output, Path assigner, int reducers) throws IOException
+    {
+        final Job job = new Job(conf, "PHOW features");
+        job.getConfiguration().set(ASSIGNER, assigner.toString());
+        job.setJarByClass(FeatureExtractionJob.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        FileInputFormat.addInputPath(job, input);
+
+        // The features pass through the reducers (Reducer's default), which group them by their group.
+        job.setMapperClass(PHOWMapper.class);
+        job.setReducerClass(Reducer.class);
+        job.setNumReduceTasks(reducers);
+
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(IdentifiedFeatureWritable.class);
+        FileOutputFormat.setOutputPath(job, output);
+
+        return job;
+    }
+
+    /**
+     * Read the features of each group from the output directory of a job, keyed by the IDs of their images, with the
+     * groups and the features of each in the order of their names.
+     */
+    public static Map<String, Map<String, float[]>> read(Configuration conf, Path output) throws IOException
+    {
+        final FileSystem fs = output.getFileSystem(conf);
+        final Map<String, Map<String, float[]>> results = new TreeMap<>();
+        final Text key = new Text();
+        final IdentifiedFeatureWritable value = new IdentifiedFeatureWritable();
+
+        for (final Path path : ImageSequenceFiles.outputs(conf, output))
+        {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, conf))
+            {
+                while (reader.next(key, value))
+                {
+                    Map<String, float[]> features = results.get(key.toString());
+                    if (features == null)
+                    {
+                        features = new TreeMap<>();
+                        results.put(key.toString(), features);
+                    }
+
+                    if (features.put(value.getID(), value.get()) != null)
+                        throw new IOException("More than one image of " + key + " has the ID " + value.getID());
+                }
+            }
+        }
+
+        return results;
+    }
+
+    public int run(String[] args) throws Exception
+    {
+        if (args.length < 3)
+        {
+            System.err.println("Usage: FeatureExtractionJob [input directory] [output directory] [assigner] [reducers]");
+            return 2;
+        }
+
+        final int reducers = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        return create(getConf(), new Path(args[0]), new Path(args[1]), new Path(args[2]), reducers).waitForCompletion(true)
+                ? 0 : 1;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        System.exit(ToolRunner.run(new FeatureExtractionJob(), args));
+    }
+}
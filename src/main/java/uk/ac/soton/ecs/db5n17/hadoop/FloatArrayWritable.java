@@ -0,0 +1,55 @@
+package uk.ac.soton.ecs.db5n17.hadoop;
+
+import org.apache.hadoop.io.Writable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A feature vector in single precision as a Hadoop value, written as its length and then its values in one block rather
+ * than a FloatWritable per value as an ArrayWritable would be.
+ */
+public class FloatArrayWritable implements Writable
+{
+    private float[] values;
+
+    public FloatArrayWritable()
+    {
+        this(new float[0]);
+    }
+
+    public FloatArrayWritable(float[] values)
+    {
+        this.values = values;
+    }
+
+    public float[] get()
+    {
+        return values;
+    }
+
+    public void set(float[] values)
+    {
+        this.values = values;
+    }
+
+    public void write(DataOutput out) throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        buffer.asFloatBuffer().put(values);
+
+        out.writeInt(values.length);
+        out.write(buffer.array());
+    }
+
+    public void readFields(DataInput in) throws IOException
+    {
+        final byte[] bytes = new byte[in.readInt() * 4];
+        in.readFully(bytes);
+
+        values = new float[bytes.length / 4];
+        ByteBuffer.wrap(bytes).asFloatBuffer().get(values);
+    }
+}
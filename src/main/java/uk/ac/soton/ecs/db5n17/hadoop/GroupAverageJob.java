@@ -0,0 +1,198 @@
+package uk.ac.soton.ecs.db5n17.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.colour.RGBColour;
+import uk.ac.soton.ecs.db5n17.ch14.FusedLetterbox;
+import uk.ac.soton.ecs.db5n17.parallel.ImageAccumulator;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Averages the images of each group of a dataset packed by {@link ImageSequenceFiles} as a MapReduce job, as chapter
+ * 14's App does in one JVM: every image is letterboxed onto white (with a {@link FusedLetterbox}) and the statistics of
+ * each group are accumulated in an {@link ImageAccumulator}.
+ *
+ * A map task adds its images to an accumulator per group, emitting it when the group changes (the packed records are
+ * in group order) and when the task ends, rather than an accumulator per image. The same reducer is the combiner, so
+ * the accumulators of a group are summed again wherever a map task's output holds more than one, and the reducers write
+ * the accumulator of each group, from which its mean, variance, minimum and maximum can be had. As the sums are in fixed
+ * point, the results are exactly the same however the images are split between tasks.
+ *
+ * Usage: GroupAverageJob [input directory] [output directory] [size] [reducers]
+ *
+ * The job runs wherever the Hadoop configuration on the classpath says (with Hadoop's local job runner if there is
+ * none), and the mean of each group is written to the output directory as [group].png once it is done. To run on a
+ * cluster, submit the jar-with-dependencies built by the assembly plugin with "hadoop jar".
+ */
+public class GroupAverageJob extends Configured implements Tool
+{
+    /**
+     * The configuration property holding the size of the letterboxed images.
+     */
+    public static final String SIZE = "db5n17.average.size";
+
+    /**
+     * Letterboxes each image and adds it to an accumulator for its group.
+     */
+    public static class LetterboxMapper extends Mapper<Text, EncodedImageWritable, Text, ImageAccumulatorWritable>
+    {
+        private final Text group = new Text();
+        private int size;
+        private FusedLetterbox letterbox;
+        private ImageAccumulator accumulator;
+
+        protected void setup(Context context)
+        {
+            size = context.getConfiguration().getInt(SIZE, 200);
+            letterbox = new FusedLetterbox(size);
+        }
+
+        protected void map(Text key, EncodedImageWritable value, Context context) throws IOException, InterruptedException
+        {
+            if (accumulator != null && !key.equals(group))
+                emit(context);
+
+            if (accumulator == null)
+            {
+                // Hadoop reuses the key, so keep a copy.
+                group.set(key);
+                accumulator = new ImageAccumulator(size, size, ColourSpace.RGB, RGBColour.WHITE);
+            }
+
+            letterbox.add(ImageUtilities.readMBF(new ByteArrayInputStream(value.getBytes(), 0, value.getLength())), accumulator);
+        }
+
+        protected void cleanup(Context context) throws IOException, InterruptedException
+        {
+            if (accumulator != null)
+                emit(context);
+        }
+
+        private void emit(Context context) throws IOException, InterruptedException
+        {
+            context.write(group, new ImageAccumulatorWritable(accumulator));
+            accumulator = null;
+        }
+    }
+
+    /**
+     * Combines the accumulators of a group, as the combiner and the reducer.
+     */
+    public static class CombineReducer extends Reducer<Text, ImageAccumulatorWritable, Text, ImageAccumulatorWritable>
+    {
+        protected void reduce(Text key, Iterable<ImageAccumulatorWritable> values, Context context)
+                throws IOException, InterruptedException
+        {
+            ImageAccumulator result = null;
+
+            for (final ImageAccumulatorWritable value : values)
+                result = result == null ? value.get() : result.combine(value.get());
+
+            context.write(key, new ImageAccumulatorWritable(result));
+        }
+    }
+
+    /**
+     * Set up a job averaging the groups of the packed dataset in the input directory into the output directory.
+     */
+    public static Job create(Configuration conf, Path input, Path output, int size, int reducers) throws IOException
+    {
+        final Job job = new Job(conf, "Group average");
+        job.getConfiguration().setInt(SIZE, size);
+        job.setJarByClass(GroupAverageJob.class);
+
+        job.setInputFormatClass(SequenceFileInputFormat.class);
+        FileInputFormat.addInputPath(job, input);
+
+        job.setMapperClass(LetterboxMapper.class);
+        job.setCombinerClass(CombineReducer.class);
+        job.setReducerClass(CombineReducer.class);
+        job.setNumReduceTasks(reducers);
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(ImageAccumulatorWritable.class);
+
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(ImageAccumulatorWritable.class);
+        FileOutputFormat.setOutputPath(job, output);
+
+        return job;
+    }
+
+    /**
+     * Read the accumulator of each group, in the order of the groups' names, from the output directory of a job.
+     */
+    public static Map<String, ImageAccumulator> read(Configuration conf, Path output) throws IOException
+    {
+        final FileSystem fs = output.getFileSystem(conf);
+        final Map<String, ImageAccumulator> results = new TreeMap<>();
+        final Text key = new Text();
+        final ImageAccumulatorWritable value = new ImageAccumulatorWritable();
+
+        for (final Path path : ImageSequenceFiles.outputs(conf, output))
+        {
+            try (SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, conf))
+            {
+                while (reader.next(key, value))
+                    results.put(key.toString(), value.get());
+            }
+        }
+
+        return results;
+    }
+
+    public int run(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: GroupAverageJob [input directory] [output directory] [size] [reducers]");
+            return 2;
+        }
+
+        final Path output = new Path(args[1]);
+        final int size = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        final int reducers = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+        if (!create(getConf(), new Path(args[0]), output, size, reducers).waitForCompletion(true))
+            return 1;
+
+        final FileSystem fs = output.getFileSystem(getConf());
+
+        for (final Map.Entry<String, ImageAccumulator> result : read(getConf(), output).entrySet())
+        {
+            System.out.println(result.getKey() + "\t" + result.getValue().getCount() + " images");
+
+            try (OutputStream stream = fs.create(new Path(output, result.getKey() + ".png")))
+            {
+                ImageUtilities.write(result.getValue().getMean(), "png", stream);
+            }
+        }
+
+        return 0;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        System.exit(ToolRunner.run(new GroupAverageJob(), args));
+    }
+}
@@ -0,0 +1,49 @@
+package uk.ac.soton.ecs.db5n17.hadoop;
+
+import org.openimaj.data.identity.Identifiable;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A feature vector in single precision with the ID of the image it was extracted from, as a Hadoop value, so that a
+ * job's features can be matched to their images (or put in a store keyed by ID) after the reducers have gathered them.
+ */
+public class IdentifiedFeatureWritable extends FloatArrayWritable implements Identifiable
+{
+    private String id;
+
+    public IdentifiedFeatureWritable()
+    {
+        this("", new float[0]);
+    }
+
+    public IdentifiedFeatureWritable(String id, float[] values)
+    {
+        super(values);
+        this.id = id;
+    }
+
+    public String getID()
+    {
+        return id;
+    }
+
+    public void setID(String id)
+    {
+        this.id = id;
+    }
+
+    public void write(DataOutput out) throws IOException
+    {
+        out.writeUTF(id);
+        super.write(out);
+    }
+
+    public void readFields(DataInput in) throws IOException
+    {
+        id = in.readUTF();
+        super.readFields(in);
+    }
+}
@@ -0,0 +1,46 @@
+package uk.ac.soton.ecs.db5n17.hadoop;
+
+import org.apache.hadoop.io.Writable;
+import uk.ac.soton.ecs.db5n17.parallel.ImageAccumulator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * An {@link ImageAccumulator} as a Hadoop value, the partial sums of some of a group's images. Reading a value makes a
+ * new accumulator, so an accumulator taken from a value that Hadoop reuses is not overwritten by the next.
+ */
+public class ImageAccumulatorWritable implements Writable
+{
+    private ImageAccumulator accumulator;
+
+    public ImageAccumulatorWritable()
+    {
+    }
+
+    public ImageAccumulatorWritable(ImageAccumulator accumulator)
+    {
+        this.accumulator = accumulator;
+    }
+
+    public ImageAccumulator get()
+    {
+        return accumulator;
+    }
+
+    public void set(ImageAccumulator accumulator)
+    {
+        this.accumulator = accumulator;
+    }
+
+    public void write(DataOutput out) throws IOException
+    {
+        accumulator.write(out);
+    }
+
+    public void readFields(DataInput in) throws IOException
+    {
+        accumulator = ImageAccumulator.read(in);
+    }
+}
@@ -0,0 +1,226 @@
+package uk.ac.soton.ecs.db5n17.hadoop;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.VFSGroupDataset;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.io.InputStreamObjectReader;
+import org.openimaj.util.function.Function;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs a grouped image dataset into Hadoop SequenceFiles for the batch jobs ({@link GroupAverageJob} and
+ * {@link FeatureExtractionJob}), so that a dataset of many small files is read as a few large ones that can be split
+ * between map tasks. Each record is an image, keyed by the name of its group, holding the image's ID and encoded bytes
+ * (an {@link EncodedImageWritable}), so that whatever a job computes from an image can be traced back to it. The ID of
+ * an image read from a file is the file's name, as VFSListDataset gives it; an image of another kind of dataset has its
+ * own ID if it is Identifiable, and otherwise its index in its group.
+ *
+ * The records are written group after group, so that a map task sees all or most of a group's images together, and
+ * split evenly between the given number of files, which bounds the number of map tasks from below (a local job runs a
+ * map task per file, a cluster one per file or block, whichever is smaller).
+ *
+ * Usage: ImageSequenceFiles [dataset] [output directory] [files]
+ *
+ * The dataset is a directory or archive of a directory per group (as for a VFSGroupDataset), whose files are packed as
+ * they are, without decoding them. Like the jobs, this is run with ToolRunner, so the file system is that of the
+ * Hadoop configuration on the classpath (the local file system if there is none) unless it is given with -fs.
+ */
+public class ImageSequenceFiles extends Configured implements Tool
+{
+    /**
+     * Reads the bytes of a file, for datasets of images that are to be packed without decoding them.
+     */
+    public static final InputStreamObjectReader<byte[]> BYTES_READER = new InputStreamObjectReader<byte[]>()
+    {
+        public byte[] read(InputStream stream) throws IOException
+        {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+
+            while ((read = stream.read(buffer)) >= 0)
+                bytes.write(buffer, 0, read);
+
+            return bytes.toByteArray();
+        }
+
+        public boolean canRead(InputStream stream, String name)
+        {
+            return true;
+        }
+    };
+
+    /**
+     * A configuration that runs jobs in this JVM with Hadoop's local job runner, on the local file system, whatever
+     * configuration is on the classpath. The first properties are for Hadoop 1 and the second for Hadoop 2.
+     */
+    public static Configuration local()
+    {
+        final Configuration conf = new Configuration();
+        conf.set("mapred.job.tracker", "local");
+        conf.set("mapreduce.framework.name", "local");
+        conf.set("fs.default.name", "file:///");
+        conf.set("fs.defaultFS", "file:///");
+        return conf;
+    }
+
+    /**
+     * Pack a dataset of encoded images (such as one read with {@link #BYTES_READER}) into the given number of files in
+     * the directory.
+     */
+    public static void pack(GroupedDataset<String, ? extends ListDataset<byte[]>, byte[]> dataset, Configuration conf,
+            Path directory, int files) throws IOException
+    {
+        pack(dataset, new Function<byte[], byte[]>()
+        {
+            public byte[] apply(byte[] bytes)
+            {
+                return bytes;
+            }
+        }, conf, directory, files);
+    }
+
+    /**
+     * Pack a dataset of images, encoding them in the given format (such as "png"), into the given number of files in the
+     * directory.
+     */
+    public static void packImages(GroupedDataset<String, ? extends ListDataset<MBFImage>, MBFImage> dataset,
+            final String format, Configuration conf, Path directory, int files) throws IOException
+    {
+        pack(dataset, new Function<MBFImage, byte[]>()
+        {
+            public byte[] apply(MBFImage image)
+            {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+                try
+                {
+                    ImageUtilities.write(image, format, bytes);
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException("Failed to encode an image as " + format, e);
+                }
+
+                return bytes.toByteArray();
+            }
+        }, conf, directory, files);
+    }
+
+    private static <T> void pack(GroupedDataset<String, ? extends ListDataset<T>, T> dataset, Function<T, byte[]> encoder,
+            Configuration conf, Path directory, int files) throws IOException
+    {
+        final FileSystem fs = directory.getFileSystem(conf);
+        final List<String> groups = new ArrayList<>(dataset.getGroups());
+
+        int total = 0;
+        for (final String group : groups)
+            total += dataset.get(group).size();
+
+        final Text key = new Text();
+        final EncodedImageWritable value = new EncodedImageWritable();
+        SequenceFile.Writer writer = null;
+        int file = -1;
+        int image = 0;
+
+        try
+        {
+            for (final String group : groups)
+            {
+                key.set(group);
+
+                final ListDataset<T> images = dataset.get(group);
+                for (int i = 0; i < images.size(); i++)
+                {
+                    // Start the next file when this image is in its share of the images.
+                    final int next = (int) ((long) image * files / Math.max(1, total));
+
+                    if (next != file)
+                    {
+                        if (writer != null)
+                            writer.close();
+
+                        file = next;
+                        writer = SequenceFile.createWriter(fs, conf, new Path(directory, String.format("images-%05d", file)),
+                                Text.class, EncodedImageWritable.class);
+                    }
+
+                    final T item = images.get(i);
+                    final byte[] bytes = encoder.apply(item);
+                    value.set(id(images, i, item), bytes, bytes.length);
+                    writer.append(key, value);
+                    image++;
+                }
+            }
+        }
+        finally
+        {
+            if (writer != null)
+                writer.close();
+        }
+    }
+
+    // The ID of the image at the given index of a group: its file name, its own ID or its index.
+    private static String id(ListDataset<?> images, int index, Object image)
+    {
+        if (images instanceof VFSListDataset)
+            return ((VFSListDataset<?>) images).getID(index);
+
+        if (image instanceof Identifiable)
+            return ((Identifiable) image).getID();
+
+        return Integer.toString(index);
+    }
+
+    /**
+     * The files written by a job's reducers in its output directory.
+     */
+    static List<Path> outputs(Configuration conf, Path directory) throws IOException
+    {
+        final List<Path> paths = new ArrayList<>();
+
+        for (final FileStatus status : directory.getFileSystem(conf).listStatus(directory))
+            if (status.getPath().getName().startsWith("part-"))
+                paths.add(status.getPath());
+
+        return paths;
+    }
+
+    public int run(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: ImageSequenceFiles [dataset] [output directory] [files]");
+            return 2;
+        }
+
+        final int files = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+        pack(new VFSGroupDataset<>(args[0], BYTES_READER), getConf(), new Path(args[1]), files);
+
+        return 0;
+    }
+
+    public static void main( String[] args ) throws Exception
+    {
+        System.exit(ToolRunner.run(new ImageSequenceFiles(), args));
+    }
+}
@@ -0,0 +1,77 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Access to the per-thread allocation counter that HotSpot-derived JVMs expose through com.sun.management.
+ */
+public final class Allocations
+{
+    private static final com.sun.management.ThreadMXBean BEAN = sunThreadBean();
+
+    private Allocations()
+    {
+    }
+
+    /**
+     * Whether the JVM reports per-thread allocation.
+     */
+    public static boolean isSupported()
+    {
+        return BEAN != null;
+    }
+
+    /**
+     * The bytes allocated so far by the current thread, or -1 if the JVM does not expose it.
+     */
+    public static long currentThreadAllocatedBytes()
+    {
+        return BEAN == null ? -1 : BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The bytes allocated so far by every live thread, or -1 if the JVM does not expose it. Threads that have finished
+     * are no longer counted, so the difference between two readings only covers threads that lived through both.
+     */
+    public static long allThreadsAllocatedBytes()
+    {
+        if (BEAN == null)
+            return -1;
+
+        long total = 0;
+        for (final long bytes : BEAN.getThreadAllocatedBytes(BEAN.getAllThreadIds()))
+        {
+            // Threads that finished since their ids were listed report -1.
+            if (bytes > 0)
+                total += bytes;
+        }
+
+        return total;
+    }
+
+    private static com.sun.management.ThreadMXBean sunThreadBean()
+    {
+        try
+        {
+            final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+            if (bean instanceof com.sun.management.ThreadMXBean)
+            {
+                final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+
+                if (sunBean.isThreadAllocatedMemorySupported())
+                {
+                    sunBean.setThreadAllocatedMemoryEnabled(true);
+                    return sunBean;
+                }
+            }
+        }
+        catch (UnsupportedOperationException | SecurityException e)
+        {
+            // Fall through: allocation is simply not reported.
+        }
+
+        return null;
+    }
+}
@@ -0,0 +1,34 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+import org.openimaj.image.Image;
+import org.openimaj.image.processor.ImageProcessor;
+
+/**
+ * An ImageProcessor decorator that records the time spent in each processImage call.
+ */
+public class InstrumentedImageProcessor<I extends Image<?, I>> implements ImageProcessor<I>
+{
+    private final ImageProcessor<I> processor;
+    private final StageMetrics stage;
+
+    public InstrumentedImageProcessor(ImageProcessor<I> processor, StageMetrics stage)
+    {
+        this.processor = processor;
+        this.stage = stage;
+    }
+
+    public void processImage(I image)
+    {
+        final long start = stage.startTime();
+        final long allocated = stage.startAllocation();
+
+        try
+        {
+            processor.processImage(image);
+        }
+        finally
+        {
+            stage.record(start, allocated);
+        }
+    }
+}
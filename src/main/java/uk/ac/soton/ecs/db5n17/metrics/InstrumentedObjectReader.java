@@ -0,0 +1,42 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+import org.openimaj.io.InputStreamObjectReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An InputStreamObjectReader decorator (for example around ImageUtilities.MBFIMAGE_READER) that records the time
+ * spent decoding each object a dataset reads.
+ */
+public class InstrumentedObjectReader<T> implements InputStreamObjectReader<T>
+{
+    private final InputStreamObjectReader<T> reader;
+    private final StageMetrics stage;
+
+    public InstrumentedObjectReader(InputStreamObjectReader<T> reader, StageMetrics stage)
+    {
+        this.reader = reader;
+        this.stage = stage;
+    }
+
+    public T read(InputStream stream) throws IOException
+    {
+        final long start = stage.startTime();
+        final long allocated = stage.startAllocation();
+
+        try
+        {
+            return reader.read(stream);
+        }
+        finally
+        {
+            stage.record(start, allocated);
+        }
+    }
+
+    public boolean canRead(InputStream stream, String name)
+    {
+        return reader.canRead(stream, name);
+    }
+}
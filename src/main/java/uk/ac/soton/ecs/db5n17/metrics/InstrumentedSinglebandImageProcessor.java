@@ -0,0 +1,36 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+import org.openimaj.image.SingleBandImage;
+import org.openimaj.image.processor.SinglebandImageProcessor;
+
+/**
+ * A SinglebandImageProcessor decorator that records the time spent in each processImage call. When applied to a
+ * multi-band image each band is recorded as a separate call.
+ */
+public class InstrumentedSinglebandImageProcessor<T extends Comparable<T>, S extends SingleBandImage<T, S>>
+        implements SinglebandImageProcessor<T, S>
+{
+    private final SinglebandImageProcessor<T, S> processor;
+    private final StageMetrics stage;
+
+    public InstrumentedSinglebandImageProcessor(SinglebandImageProcessor<T, S> processor, StageMetrics stage)
+    {
+        this.processor = processor;
+        this.stage = stage;
+    }
+
+    public void processImage(S image)
+    {
+        final long start = stage.startTime();
+        final long allocated = stage.startAllocation();
+
+        try
+        {
+            processor.processImage(image);
+        }
+        finally
+        {
+            stage.record(start, allocated);
+        }
+    }
+}
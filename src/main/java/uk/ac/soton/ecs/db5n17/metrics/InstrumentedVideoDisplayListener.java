@@ -0,0 +1,52 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+import org.openimaj.image.Image;
+import org.openimaj.video.VideoDisplay;
+import org.openimaj.video.VideoDisplayListener;
+
+/**
+ * A VideoDisplayListener decorator that records the time spent in each beforeUpdate and afterUpdate call.
+ */
+public class InstrumentedVideoDisplayListener<T extends Image<?, T>> implements VideoDisplayListener<T>
+{
+    private final VideoDisplayListener<T> listener;
+    private final StageMetrics before;
+    private final StageMetrics after;
+
+    public InstrumentedVideoDisplayListener(VideoDisplayListener<T> listener, StageMetrics before, StageMetrics after)
+    {
+        this.listener = listener;
+        this.before = before;
+        this.after = after;
+    }
+
+    public void beforeUpdate(T frame)
+    {
+        final long start = before.startTime();
+        final long allocated = before.startAllocation();
+
+        try
+        {
+            listener.beforeUpdate(frame);
+        }
+        finally
+        {
+            before.record(start, allocated);
+        }
+    }
+
+    public void afterUpdate(VideoDisplay<T> display)
+    {
+        final long start = after.startTime();
+        final long allocated = after.startAllocation();
+
+        try
+        {
+            listener.afterUpdate(display);
+        }
+        finally
+        {
+            after.record(start, allocated);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative values (typically nanosecond latencies) in the style of HdrHistogram: values
+ * are bucketed by their power of two and then linearly within it, so every value is recorded to within about 3% with a
+ * fixed number of buckets. Each thread records into one of several stripes, so concurrent recording does not contend.
+ */
+public class LatencyHistogram
+{
+    // Each power of two is split into 2^SUB_BUCKET_BITS linear buckets.
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+
+    public LatencyHistogram()
+    {
+        this(Math.min(StripedCounter.stripesFor(Runtime.getRuntime().availableProcessors()), 16));
+    }
+
+    LatencyHistogram(int stripes)
+    {
+        this.mask = stripes - 1;
+        this.stripes = new AtomicLongArray[stripes];
+
+        for (int i = 0; i < stripes; i++)
+            this.stripes[i] = new AtomicLongArray(BUCKETS);
+    }
+
+    public void record(long value)
+    {
+        stripes[StripedCounter.stripe(mask)].incrementAndGet(bucket(Math.max(value, 0)));
+    }
+
+    /**
+     * Merge the stripes into a point-in-time view of the distribution.
+     */
+    public Snapshot snapshot()
+    {
+        final long[] counts = new long[BUCKETS];
+
+        for (final AtomicLongArray stripe : stripes)
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] += stripe.get(i);
+
+        return new Snapshot(counts);
+    }
+
+    static int bucket(long value)
+    {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = magnitude - SUB_BUCKET_BITS;
+        final int sub = (int) (value >>> shift) - SUB_BUCKETS;
+
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    // The largest value that falls into the given bucket.
+    static long highestValue(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        final int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        final long sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        final long lowest = (SUB_BUCKETS + sub) << shift;
+
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * An immutable copy of the histogram's counts.
+     */
+    public static class Snapshot
+    {
+        private final long[] counts;
+        private final long total;
+
+        Snapshot(long[] counts)
+        {
+            this.counts = counts;
+
+            long total = 0;
+            for (final long count : counts)
+                total += count;
+
+            this.total = total;
+        }
+
+        public long getCount()
+        {
+            return total;
+        }
+
+        /**
+         * The value at the given percentile (0 to 100), reported as the upper bound of its bucket, or 0 if nothing has
+         * been recorded.
+         */
+        public long getValueAtPercentile(double percentile)
+        {
+            if (total == 0)
+                return 0;
+
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+            long seen = 0;
+
+            for (int i = 0; i < counts.length; i++)
+            {
+                seen += counts[i];
+
+                if (seen >= rank)
+                    return highestValue(i);
+            }
+
+            return getMax();
+        }
+
+        /**
+         * The upper bound of the highest non-empty bucket, or 0 if nothing has been recorded.
+         */
+        public long getMax()
+        {
+            for (int i = counts.length - 1; i >= 0; i--)
+            {
+                if (counts[i] > 0)
+                    return highestValue(i);
+            }
+
+            return 0;
+        }
+    }
+}
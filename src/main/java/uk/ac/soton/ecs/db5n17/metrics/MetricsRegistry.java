@@ -0,0 +1,222 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+import org.openimaj.image.Image;
+import org.openimaj.image.SingleBandImage;
+import org.openimaj.image.processor.ImageProcessor;
+import org.openimaj.image.processor.SinglebandImageProcessor;
+import org.openimaj.io.InputStreamObjectReader;
+import org.openimaj.video.VideoDisplayListener;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A set of named {@link StageMetrics}, with factory methods that wrap video listeners, image processors and dataset
+ * readers so that every call is measured, and exporters that publish snapshots to a file or to JMX.
+ */
+public class MetricsRegistry
+{
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry(true);
+
+    private final boolean trackAllocation;
+    private final ConcurrentMap<String, StageMetrics> stages = new ConcurrentHashMap<>();
+    private volatile String jmxDomain;
+
+    /**
+     * Construct a registry; allocation tracking costs a call into the JVM on every measurement, so it can be disabled
+     * for very cheap stages.
+     */
+    public MetricsRegistry(boolean trackAllocation)
+    {
+        this.trackAllocation = trackAllocation;
+    }
+
+    public static MetricsRegistry getDefault()
+    {
+        return DEFAULT;
+    }
+
+    /**
+     * Get the stage with the given name, creating it if necessary.
+     */
+    public StageMetrics stage(String name)
+    {
+        StageMetrics stage = stages.get(name);
+
+        if (stage == null)
+        {
+            final StageMetrics created = new StageMetrics(name, trackAllocation);
+            stage = stages.putIfAbsent(name, created);
+
+            if (stage == null)
+            {
+                stage = created;
+                registerMBean(stage);
+            }
+        }
+
+        return stage;
+    }
+
+    public <T extends Image<?, T>> VideoDisplayListener<T> instrumentListener(String name, VideoDisplayListener<T> listener)
+    {
+        return new InstrumentedVideoDisplayListener<>(listener, stage(name + ".beforeUpdate"), stage(name + ".afterUpdate"));
+    }
+
+    public <I extends Image<?, I>> ImageProcessor<I> instrumentProcessor(String name, ImageProcessor<I> processor)
+    {
+        return new InstrumentedImageProcessor<>(processor, stage(name));
+    }
+
+    public <T extends Comparable<T>, S extends SingleBandImage<T, S>> SinglebandImageProcessor<T, S> instrumentSinglebandProcessor(
+            String name, SinglebandImageProcessor<T, S> processor)
+    {
+        return new InstrumentedSinglebandImageProcessor<>(processor, stage(name));
+    }
+
+    public <T> InputStreamObjectReader<T> instrumentReader(String name, InputStreamObjectReader<T> reader)
+    {
+        return new InstrumentedObjectReader<>(reader, stage(name));
+    }
+
+    /**
+     * Snapshot every stage, in name order.
+     */
+    public List<StageMetrics.Snapshot> snapshot()
+    {
+        final List<StageMetrics.Snapshot> snapshots = new ArrayList<>();
+
+        for (final StageMetrics stage : stages.values())
+            snapshots.add(stage.snapshot());
+
+        Collections.sort(snapshots, new Comparator<StageMetrics.Snapshot>()
+        {
+            public int compare(StageMetrics.Snapshot a, StageMetrics.Snapshot b)
+            {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+
+        return snapshots;
+    }
+
+    /**
+     * Write a tab-separated snapshot of every stage to the given file. The file is replaced atomically, so a reader
+     * never sees a partial snapshot.
+     */
+    public void writeSnapshot(File file) throws IOException
+    {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        final File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)))
+        {
+            writer.println("# " + System.currentTimeMillis());
+            writer.println(StageMetrics.Snapshot.HEADER);
+
+            for (final StageMetrics.Snapshot snapshot : snapshot())
+                writer.println(snapshot.toRow());
+        }
+
+        try
+        {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            Files.deleteIfExists(tmp.toPath());
+            throw e;
+        }
+    }
+
+    /**
+     * Rewrite the snapshot file every periodMillis on a background thread until the returned handle is closed.
+     */
+    public Closeable exportPeriodically(final File file, long periodMillis)
+    {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                final Thread thread = new Thread(r, "MetricsExporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        executor.scheduleAtFixedRate(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    writeSnapshot(file);
+                }
+                catch (IOException e)
+                {
+                    System.err.println("Unable to write metrics to " + file + ": " + e.getMessage());
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+
+        return new Closeable()
+        {
+            public void close() throws IOException
+            {
+                executor.shutdown();
+                writeSnapshot(file);
+            }
+        };
+    }
+
+    /**
+     * Register every stage (including those created later) with the platform MBean server under the given domain.
+     */
+    public void exportToJmx(String domain)
+    {
+        jmxDomain = domain;
+
+        for (final StageMetrics stage : stages.values())
+            registerMBean(stage);
+    }
+
+    private void registerMBean(StageMetrics stage)
+    {
+        final String domain = jmxDomain;
+
+        if (domain == null)
+            return;
+
+        try
+        {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(domain + ":type=Stage,name=" + ObjectName.quote(stage.getName()));
+
+            if (!server.isRegistered(name))
+                server.registerMBean(stage, name);
+        }
+        catch (JMException e)
+        {
+            System.err.println("Unable to register metrics for " + stage.getName() + " with JMX: " + e.getMessage());
+        }
+    }
+}
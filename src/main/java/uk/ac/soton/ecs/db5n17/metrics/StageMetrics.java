@@ -0,0 +1,227 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency, throughput and allocation measurements for one named stage (a listener, processor or reader). Recording
+ * takes no locks: latencies go into a striped {@link LatencyHistogram}, totals into {@link StripedCounter}s and the end
+ * of the latest call into a {@link StripedMaximum}, so that threads recording at once do not share a cache line.
+ *
+ * A call is measured as:
+ *
+ *     final long start = stage.startTime();
+ *     final long allocated = stage.startAllocation();
+ *     try { ... } finally { stage.record(start, allocated); }
+ */
+public class StageMetrics implements StageMetricsMXBean
+{
+    private final String name;
+    private final boolean trackAllocation;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final StripedCounter totalNanos = new StripedCounter();
+    private final StripedCounter totalBytes = new StripedCounter();
+    private final AtomicLong firstCall = new AtomicLong();
+    private final StripedMaximum lastCall = new StripedMaximum();
+
+    StageMetrics(String name, boolean trackAllocation)
+    {
+        this.name = name;
+        this.trackAllocation = trackAllocation && Allocations.isSupported();
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public long startTime()
+    {
+        final long now = System.nanoTime();
+
+        // Zero marks "no calls yet", so nudge the (vanishingly unlikely) real zero reading.
+        if (firstCall.get() == 0)
+            firstCall.compareAndSet(0, now == 0 ? 1 : now);
+
+        return now;
+    }
+
+    public long startAllocation()
+    {
+        return trackAllocation ? Allocations.currentThreadAllocatedBytes() : 0;
+    }
+
+    public void record(long startTime, long startAllocation)
+    {
+        final long now = System.nanoTime();
+        final long elapsed = now - startTime;
+
+        latencies.record(elapsed);
+        totalNanos.add(elapsed);
+
+        if (trackAllocation)
+            totalBytes.add(Allocations.currentThreadAllocatedBytes() - startAllocation);
+
+        lastCall.record(now);
+    }
+
+    /**
+     * Record a call that started at the given System.nanoTime() but was not timed by {@link #startTime()}, such as a
+     * video frame from its capture on another thread to its processing. Allocation is not measured for such calls.
+     */
+    public void recordSince(long startTime)
+    {
+        if (firstCall.get() == 0)
+            firstCall.compareAndSet(0, startTime == 0 ? 1 : startTime);
+
+        final long now = System.nanoTime();
+        final long elapsed = now - startTime;
+
+        latencies.record(elapsed);
+        totalNanos.add(elapsed);
+        lastCall.record(now);
+    }
+
+    public Snapshot snapshot()
+    {
+        final LatencyHistogram.Snapshot histogram = latencies.snapshot();
+        final long first = firstCall.get();
+        final long last = lastCall.max();
+        final long elapsed = first == 0 || last == Long.MIN_VALUE ? 0 : last - first;
+
+        return new Snapshot(name, histogram, totalNanos.sum(), trackAllocation ? totalBytes.sum() : -1, elapsed);
+    }
+
+    public long getCount()
+    {
+        return snapshot().getCount();
+    }
+
+    public double getThroughputPerSecond()
+    {
+        return snapshot().getThroughputPerSecond();
+    }
+
+    public double getMeanMillis()
+    {
+        return snapshot().getMeanMillis();
+    }
+
+    public double getP50Millis()
+    {
+        return snapshot().getPercentileMillis(50);
+    }
+
+    public double getP90Millis()
+    {
+        return snapshot().getPercentileMillis(90);
+    }
+
+    public double getP99Millis()
+    {
+        return snapshot().getPercentileMillis(99);
+    }
+
+    public double getP999Millis()
+    {
+        return snapshot().getPercentileMillis(99.9);
+    }
+
+    public double getMaxMillis()
+    {
+        return snapshot().getMaxMillis();
+    }
+
+    public double getBytesPerCall()
+    {
+        return snapshot().getBytesPerCall();
+    }
+
+    /**
+     * A point-in-time copy of a stage's measurements.
+     */
+    public static class Snapshot
+    {
+        static final String HEADER = "stage\tcount\tcalls/s\tmean ms\tp50 ms\tp90 ms\tp99 ms\tp99.9 ms\tmax ms\tbytes/call";
+
+        private final String name;
+        private final LatencyHistogram.Snapshot histogram;
+        private final long totalNanos;
+        private final long totalBytes;
+        private final long elapsedNanos;
+
+        Snapshot(String name, LatencyHistogram.Snapshot histogram, long totalNanos, long totalBytes, long elapsedNanos)
+        {
+            this.name = name;
+            this.histogram = histogram;
+            this.totalNanos = totalNanos;
+            this.totalBytes = totalBytes;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public long getCount()
+        {
+            return histogram.getCount();
+        }
+
+        /**
+         * Calls per second between the start of the first call and the end of the latest one.
+         */
+        public double getThroughputPerSecond()
+        {
+            return elapsedNanos <= 0 ? 0 : getCount() * 1e9 / elapsedNanos;
+        }
+
+        public double getMeanMillis()
+        {
+            return getCount() == 0 ? 0 : totalNanos / 1e6 / getCount();
+        }
+
+        public double getPercentileMillis(double percentile)
+        {
+            return histogram.getValueAtPercentile(percentile) / 1e6;
+        }
+
+        public double getMaxMillis()
+        {
+            return histogram.getMax() / 1e6;
+        }
+
+        public double getBytesPerCall()
+        {
+            if (totalBytes < 0)
+                return -1;
+
+            return getCount() == 0 ? 0 : totalBytes / (double) getCount();
+        }
+
+        /**
+         * This snapshot as a tab-separated row matching {@link #HEADER}.
+         */
+        public String toRow()
+        {
+            return name + "\t" + getCount() + "\t" + format(getThroughputPerSecond()) + "\t" + format(getMeanMillis())
+                    + "\t" + format(getPercentileMillis(50)) + "\t" + format(getPercentileMillis(90))
+                    + "\t" + format(getPercentileMillis(99)) + "\t" + format(getPercentileMillis(99.9))
+                    + "\t" + format(getMaxMillis()) + "\t" + format(getBytesPerCall());
+        }
+
+        public String toString()
+        {
+            return name + ": " + getCount() + " calls, " + format(getThroughputPerSecond()) + "/s, mean "
+                    + format(getMeanMillis()) + "ms, p50 " + format(getPercentileMillis(50)) + "ms, p99 "
+                    + format(getPercentileMillis(99)) + "ms, max " + format(getMaxMillis()) + "ms"
+                    + (totalBytes < 0 ? "" : ", " + format(getBytesPerCall()) + " bytes/call");
+        }
+
+        private static String format(double value)
+        {
+            return String.format(Locale.ROOT, "%.3f", value);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+/**
+ * The JMX view of a {@link StageMetrics}. Latencies are in milliseconds.
+ */
+public interface StageMetricsMXBean
+{
+    String getName();
+
+    long getCount();
+
+    double getThroughputPerSecond();
+
+    double getMeanMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+
+    /**
+     * The mean bytes allocated per call, or -1 if the JVM does not report allocation.
+     */
+    double getBytesPerCall();
+}
@@ -0,0 +1,190 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures a batch job as a sequence of stages that run one after another, each of which may use many threads. For each
+ * stage it records the wall time, the CPU time of the whole process, the bytes allocated by every thread and the peak
+ * heap use. Unlike {@link StageMetrics}, which measures many short calls, each stage here is measured once:
+ *
+ *     profiler.begin("denseSift");
+ *     ...
+ *     profiler.begin("assign");    // ends denseSift
+ *     ...
+ *     profiler.end();
+ *
+ * The peak heap is the sum of each heap pool's peak since the stage began, so it is an upper bound (the pools need not
+ * peak at the same moment). Allocation by threads that finish during a stage is missed, so work should run on a pool
+ * that outlives the stages. Instances are not thread-safe; stages should be begun and ended from one thread.
+ */
+public class StageProfiler
+{
+    private static final OperatingSystemMXBean OS = ManagementFactory.getOperatingSystemMXBean();
+
+    private final List<Profile> profiles = new ArrayList<>();
+    private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+
+    private String current;
+    private long startWall;
+    private long startCpu;
+    private long startAllocated;
+
+    public StageProfiler()
+    {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid())
+                heapPools.add(pool);
+        }
+    }
+
+    /**
+     * Begin measuring the named stage, ending the current one (if any) first.
+     */
+    public void begin(String name)
+    {
+        if (current != null)
+            end();
+
+        for (final MemoryPoolMXBean pool : heapPools)
+            pool.resetPeakUsage();
+
+        current = name;
+        startAllocated = Allocations.allThreadsAllocatedBytes();
+        startCpu = processCpuNanos();
+        startWall = System.nanoTime();
+    }
+
+    /**
+     * End the current stage and return its profile.
+     */
+    public Profile end()
+    {
+        final long wall = System.nanoTime() - startWall;
+        final long cpu = processCpuNanos();
+        final long allocated = Allocations.allThreadsAllocatedBytes();
+
+        if (current == null)
+            throw new IllegalStateException("No stage has begun");
+
+        long peak = 0;
+        for (final MemoryPoolMXBean pool : heapPools)
+            peak += pool.getPeakUsage().getUsed();
+
+        final Profile profile = new Profile(current, wall, startCpu < 0 ? -1 : cpu - startCpu,
+                startAllocated < 0 ? -1 : Math.max(allocated - startAllocated, 0), peak);
+
+        profiles.add(profile);
+        current = null;
+
+        return profile;
+    }
+
+    /**
+     * The profiles of every stage ended so far, in order.
+     */
+    public List<Profile> getProfiles()
+    {
+        return Collections.unmodifiableList(profiles);
+    }
+
+    /**
+     * The CPU time used by the whole process (every thread, including the garbage collector and the JIT compiler), or
+     * -1 if the JVM does not report it.
+     */
+    public static long processCpuNanos()
+    {
+        if (OS instanceof com.sun.management.OperatingSystemMXBean)
+            return ((com.sun.management.OperatingSystemMXBean) OS).getProcessCpuTime();
+
+        return -1;
+    }
+
+    /**
+     * The measurements of one stage. CPU time and allocation are -1 if the JVM does not report them.
+     */
+    public static class Profile
+    {
+        public static final String HEADER = "stage\twall ms\tcpu ms\tcpu/wall\tallocated MB\tpeak heap MB";
+
+        private final String name;
+        private final long wallNanos;
+        private final long cpuNanos;
+        private final long allocatedBytes;
+        private final long peakHeapBytes;
+
+        Profile(String name, long wallNanos, long cpuNanos, long allocatedBytes, long peakHeapBytes)
+        {
+            this.name = name;
+            this.wallNanos = wallNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+            this.peakHeapBytes = peakHeapBytes;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public double getWallMillis()
+        {
+            return wallNanos / 1e6;
+        }
+
+        public double getCpuMillis()
+        {
+            return cpuNanos < 0 ? -1 : cpuNanos / 1e6;
+        }
+
+        /**
+         * The average number of cores kept busy during the stage.
+         */
+        public double getUtilisation()
+        {
+            return cpuNanos < 0 || wallNanos <= 0 ? -1 : cpuNanos / (double) wallNanos;
+        }
+
+        public long getAllocatedBytes()
+        {
+            return allocatedBytes;
+        }
+
+        public long getPeakHeapBytes()
+        {
+            return peakHeapBytes;
+        }
+
+        /**
+         * This profile as a tab-separated row matching {@link #HEADER}.
+         */
+        public String toRow()
+        {
+            return name + "\t" + format(getWallMillis()) + "\t" + format(getCpuMillis()) + "\t" + format(getUtilisation())
+                    + "\t" + format(megabytes(allocatedBytes)) + "\t" + format(megabytes(peakHeapBytes));
+        }
+
+        public String toString()
+        {
+            return name + ": " + format(getWallMillis()) + "ms wall, " + format(getCpuMillis()) + "ms cpu, "
+                    + format(megabytes(allocatedBytes)) + "MB allocated, " + format(megabytes(peakHeapBytes)) + "MB peak heap";
+        }
+
+        private static double megabytes(long bytes)
+        {
+            return bytes < 0 ? -1 : bytes / (1024.0 * 1024.0);
+        }
+
+        private static String format(double value)
+        {
+            return String.format(Locale.ROOT, "%.3f", value);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads updates from different threads over separate cache lines, so that concurrent increments do
+ * not contend. Reading the total sums every stripe, so reads are more expensive than writes.
+ */
+public class StripedCounter
+{
+    // Counters are spaced a cache line (8 longs) apart so that neighbouring stripes are not falsely shared.
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter()
+    {
+        this(stripesFor(Runtime.getRuntime().availableProcessors()));
+    }
+
+    StripedCounter(int stripes)
+    {
+        this.mask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * PADDING);
+    }
+
+    /**
+     * The number of stripes to use for the given number of processors: the next power of two, capped at 64.
+     */
+    static int stripesFor(int processors)
+    {
+        int stripes = 1;
+        while (stripes < processors && stripes < 64)
+            stripes <<= 1;
+
+        return stripes;
+    }
+
+    /**
+     * The stripe the calling thread should update.
+     */
+    static int stripe(int mask)
+    {
+        final long id = Thread.currentThread().getId();
+
+        return (int) (id ^ (id >>> 16)) & mask;
+    }
+
+    public void add(long value)
+    {
+        cells.addAndGet(stripe(mask) * PADDING, value);
+    }
+
+    public void increment()
+    {
+        add(1);
+    }
+
+    public long sum()
+    {
+        long sum = 0;
+        for (int i = 0; i <= mask; i++)
+            sum += cells.get(i * PADDING);
+
+        return sum;
+    }
+}
@@ -0,0 +1,51 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The largest of the values recorded, kept per stripe like a {@link StripedCounter} so that threads recording at the
+ * same time do not write to the same cache line. Reading the maximum scans every stripe.
+ */
+public class StripedMaximum
+{
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedMaximum()
+    {
+        this(StripedCounter.stripesFor(Runtime.getRuntime().availableProcessors()));
+    }
+
+    StripedMaximum(int stripes)
+    {
+        this.mask = stripes - 1;
+        this.cells = new AtomicLongArray(stripes * PADDING);
+
+        for (int i = 0; i < stripes; i++)
+            cells.set(i * PADDING, Long.MIN_VALUE);
+    }
+
+    public void record(long value)
+    {
+        final int cell = StripedCounter.stripe(mask) * PADDING;
+
+        // Only threads sharing the stripe can race here, and a lost race to a larger value needs no retry.
+        long current = cells.get(cell);
+        while (value > current && !cells.compareAndSet(cell, current, value))
+            current = cells.get(cell);
+    }
+
+    /**
+     * The largest value recorded, or Long.MIN_VALUE if there are none.
+     */
+    public long max()
+    {
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i <= mask; i++)
+            max = Math.max(max, cells.get(i * PADDING));
+
+        return max;
+    }
+}
@@ -0,0 +1,479 @@
+package uk.ac.soton.ecs.db5n17.parallel;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reduces every group of a grouped dataset in parallel, treating all the items of all the groups as one range of work
+ * rather than parallelising within each group (which leaves threads idle at the end of every group) or across groups
+ * (which leaves them idle while the largest groups finish).
+ *
+ * The items are numbered group after group and the range is split evenly between the workers. Each worker takes chunks
+ * from the front of its own range, a quarter of what is left at a time up to a maximum, so that chunks shrink as the
+ * work runs out; a worker whose range is empty steals the back half of the largest remaining range. Claiming and
+ * stealing are single compare-and-sets, so workers never wait for each other.
+ *
+ * Items are loaded (for a VFS dataset, read and decoded) by a separate pool of decoders: a worker asks for the items of
+ * its next chunk to be loaded before it processes the current one, so decoding overlaps computation. Each worker adds
+ * items to its own partial result per group, and when the last item of a group is done the partials are combined. The
+ * finished groups are handed to the consumer on the calling thread in the order of the dataset's groups, as soon as
+ * each group and all those before it are done.
+ */
+public class GroupedDatasetScheduler
+{
+    private static final int FAILED = -1;
+
+    /**
+     * How to reduce the items of a group: every worker that processes some of a group's items adds them to a partial
+     * result of its own, and the partials are combined when the group is done. Calls for one partial are made by one
+     * thread at a time.
+     */
+    public interface Reducer<K, T, A>
+    {
+        A create(K group);
+
+        void add(A partial, T item);
+
+        /**
+         * Combine two partial results of a group, returning the combination (which may be one of them, updated).
+         */
+        A combine(A partial, A other);
+    }
+
+    /**
+     * Receives each group's result.
+     */
+    public interface Consumer<K, A>
+    {
+        void accept(K group, A result);
+    }
+
+    private final int workers;
+    private final int decoders;
+    private final int maxChunk;
+
+    /**
+     * Construct a scheduler with a worker per processor and a decoder per two.
+     */
+    public GroupedDatasetScheduler()
+    {
+        this(Runtime.getRuntime().availableProcessors(), Math.max(1, Runtime.getRuntime().availableProcessors() / 2), 16);
+    }
+
+    /**
+     * Construct a scheduler with the given numbers of worker and decoder threads (with no decoders, workers load items
+     * themselves) and largest chunk.
+     */
+    public GroupedDatasetScheduler(int workers, int decoders, int maxChunk)
+    {
+        if (workers < 1 || decoders < 0 || maxChunk < 1)
+            throw new IllegalArgumentException("Invalid scheduler: " + workers + " workers, " + decoders + " decoders, chunks of "
+                    + maxChunk);
+
+        this.workers = workers;
+        this.decoders = decoders;
+        this.maxChunk = maxChunk;
+    }
+
+    /**
+     * Reduce every group of the dataset, returning the results in the order of the groups.
+     */
+    public <K, T, A> Map<K, A> run(GroupedDataset<K, ? extends ListDataset<T>, T> dataset, Reducer<K, T, A> reducer)
+    {
+        final Map<K, A> results = new LinkedHashMap<>();
+
+        run(dataset, reducer, new Consumer<K, A>()
+        {
+            public void accept(K group, A result)
+            {
+                results.put(group, result);
+            }
+        });
+
+        return results;
+    }
+
+    /**
+     * Reduce every group of the dataset, giving each result to the consumer (on this thread) in the order of the groups.
+     */
+    public <K, T, A> void run(GroupedDataset<K, ? extends ListDataset<T>, T> dataset, Reducer<K, T, A> reducer,
+            Consumer<K, A> consumer)
+    {
+        new Run<>(dataset, reducer).execute(consumer);
+    }
+
+    private static long pack(int start, int end)
+    {
+        return ((long) start << 32) | (end & 0xffffffffL);
+    }
+
+    private static int start(long range)
+    {
+        return (int) (range >>> 32);
+    }
+
+    private static int end(long range)
+    {
+        return (int) range;
+    }
+
+    // The state of one call to run.
+    private class Run<K, T, A>
+    {
+        private final Reducer<K, T, A> reducer;
+        private final List<K> keys = new ArrayList<>();
+        private final List<ListDataset<T>> groups = new ArrayList<>();
+
+        // The first item of each group, and the number of items after the last.
+        private final int[] starts;
+
+        private final AtomicLong[] ranges = new AtomicLong[workers];
+        private final AtomicIntegerArray done;
+        private final Object[][] partials;
+        private final AtomicReferenceArray<A> results;
+        private final BlockingQueue<Integer> completed = new LinkedBlockingQueue<>();
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+        private volatile boolean stopped;
+        private ExecutorService decode;
+
+        Run(GroupedDataset<K, ? extends ListDataset<T>, T> dataset, Reducer<K, T, A> reducer)
+        {
+            this.reducer = reducer;
+
+            for (final K key : dataset.getGroups())
+            {
+                keys.add(key);
+                groups.add(dataset.get(key));
+            }
+
+            starts = new int[keys.size() + 1];
+            for (int g = 0; g < keys.size(); g++)
+                starts[g + 1] = starts[g] + groups.get(g).size();
+
+            final int total = starts[keys.size()];
+            for (int w = 0; w < workers; w++)
+                ranges[w] = new AtomicLong(pack((int) ((long) total * w / workers), (int) ((long) total * (w + 1) / workers)));
+
+            done = new AtomicIntegerArray(keys.size());
+            partials = new Object[workers][keys.size()];
+            results = new AtomicReferenceArray<>(keys.size());
+        }
+
+        void execute(Consumer<K, A> consumer)
+        {
+            // Empty groups are done already.
+            for (int g = 0; g < keys.size(); g++)
+            {
+                if (starts[g + 1] == starts[g])
+                {
+                    results.set(g, reducer.create(keys.get(g)));
+                    completed.add(g);
+                }
+            }
+
+            if (decoders > 0)
+                decode = Executors.newFixedThreadPool(decoders, threads("GroupedDatasetScheduler-decoder-"));
+
+            final List<Thread> threads = new ArrayList<>();
+            final ThreadFactory factory = threads("GroupedDatasetScheduler-worker-");
+
+            for (int w = 0; w < workers; w++)
+            {
+                final int worker = w;
+                final Thread thread = factory.newThread(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            work(worker);
+                        }
+                        catch (Throwable e)
+                        {
+                            failure.compareAndSet(null, e);
+                            completed.add(FAILED);
+                        }
+                    }
+                });
+
+                thread.start();
+                threads.add(thread);
+            }
+
+            try
+            {
+                int next = 0;
+
+                while (next < keys.size())
+                {
+                    if (completed.take() == FAILED)
+                        break;
+
+                    while (next < keys.size() && results.get(next) != null)
+                    {
+                        consumer.accept(keys.get(next), results.get(next));
+                        results.set(next, null);
+                        next++;
+                    }
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+            }
+            finally
+            {
+                stopped = true;
+
+                for (final Thread thread : threads)
+                {
+                    try
+                    {
+                        thread.join();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+
+                if (decode != null)
+                    decode.shutdownNow();
+            }
+
+            if (failure.get() != null)
+                throw new RuntimeException("Failed to reduce the dataset", failure.get());
+        }
+
+        private ThreadFactory threads(final String name)
+        {
+            return new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r)
+                {
+                    final Thread thread = new Thread(r, name + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        }
+
+        // Process chunks until there are none left, loading each chunk while the one before it is processed.
+        private void work(int worker) throws Exception
+        {
+            Chunk current = claim(worker);
+
+            while (current != null && !stopped)
+            {
+                final Chunk next = claim(worker);
+                process(worker, current);
+                current = next;
+            }
+        }
+
+        // Claim a chunk from the front of the worker's range, stealing a new range if it is empty, or return null if all
+        // the work has been claimed.
+        private Chunk claim(int worker)
+        {
+            while (true)
+            {
+                final long range = ranges[worker].get();
+                final int start = start(range);
+                final int end = end(range);
+
+                if (start < end)
+                {
+                    final int chunk = Math.max(1, Math.min(maxChunk, (end - start) / 4));
+
+                    if (ranges[worker].compareAndSet(range, pack(start + chunk, end)))
+                        return new Chunk(start, start + chunk);
+                }
+                else if (!steal(worker))
+                {
+                    return null;
+                }
+            }
+        }
+
+        // Move the back half of the largest range of another worker to this worker, which has none left.
+        private boolean steal(int worker)
+        {
+            while (true)
+            {
+                int victim = -1;
+                long victimRange = 0;
+                int most = 0;
+
+                for (int w = 0; w < workers; w++)
+                {
+                    final long range = ranges[w].get();
+
+                    if (w != worker && end(range) - start(range) > most)
+                    {
+                        victim = w;
+                        victimRange = range;
+                        most = end(range) - start(range);
+                    }
+                }
+
+                if (victim < 0)
+                    return false;
+
+                final int middle = end(victimRange) - (most + 1) / 2;
+
+                if (ranges[victim].compareAndSet(victimRange, pack(start(victimRange), middle)))
+                {
+                    ranges[worker].set(pack(middle, end(victimRange)));
+                    return true;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void process(int worker, Chunk chunk) throws Exception
+        {
+            int group = groupOf(chunk.start);
+            int count = 0;
+
+            for (int i = chunk.start; i < chunk.end; i++)
+            {
+                while (i >= starts[group + 1])
+                {
+                    if (count > 0)
+                        finish(group, count);
+
+                    group++;
+                    count = 0;
+                }
+
+                A partial = (A) partials[worker][group];
+                if (partial == null)
+                {
+                    partial = reducer.create(keys.get(group));
+                    partials[worker][group] = partial;
+                }
+
+                reducer.add(partial, chunk.get(i));
+                count++;
+            }
+
+            if (count > 0)
+                finish(group, count);
+        }
+
+        // Record that count more items of the group are done, and combine its partials if they were the last.
+        @SuppressWarnings("unchecked")
+        private void finish(int group, int count)
+        {
+            if (done.addAndGet(group, count) < starts[group + 1] - starts[group])
+                return;
+
+            A result = null;
+            for (int w = 0; w < workers; w++)
+            {
+                final A partial = (A) partials[w][group];
+
+                if (partial != null)
+                {
+                    partials[w][group] = null;
+                    result = result == null ? partial : reducer.combine(result, partial);
+                }
+            }
+
+            results.set(group, result);
+            completed.add(group);
+        }
+
+        // The group holding the item; empty groups start where the next group does, so are never chosen.
+        private int groupOf(int item)
+        {
+            int low = 0;
+            int high = keys.size() - 1;
+
+            while (low < high)
+            {
+                final int middle = (low + high + 1) >>> 1;
+
+                if (starts[middle] <= item)
+                    low = middle;
+                else
+                    high = middle - 1;
+            }
+
+            return low;
+        }
+
+        private T load(int item)
+        {
+            final int group = groupOf(item);
+
+            return groups.get(group).getInstance(item - starts[group]);
+        }
+
+        // A claimed range of items, which are being loaded by the decoders if there are any.
+        private class Chunk
+        {
+            private final int start;
+            private final int end;
+            private final List<Future<T>> items = new ArrayList<>();
+
+            Chunk(int start, int end)
+            {
+                this.start = start;
+                this.end = end;
+
+                if (decode != null)
+                {
+                    for (int i = start; i < end; i++)
+                    {
+                        final int item = i;
+
+                        items.add(decode.submit(new Callable<T>()
+                        {
+                            public T call()
+                            {
+                                return load(item);
+                            }
+                        }));
+                    }
+                }
+            }
+
+            T get(int item) throws Exception
+            {
+                if (decode == null)
+                    return load(item);
+
+                try
+                {
+                    return items.get(item - start).get();
+                }
+                catch (ExecutionException e)
+                {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+    }
+}
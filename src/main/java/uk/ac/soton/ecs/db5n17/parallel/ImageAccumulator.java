@@ -0,0 +1,410 @@
+package uk.ac.soton.ecs.db5n17.parallel;
+
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Accumulates the per-pixel statistics (mean, variance, minimum and maximum) of images of one size, for use as the
+ * partial result of one worker in a parallel reduction.
+ *
+ * The sums are kept in fixed point (units of 2^-32) rather than as floats, so adding them is exact and associative: the
+ * statistics are the same however the images are split between accumulators and in whatever order the accumulators are
+ * combined, which makes a parallel reduction as deterministic as a sequential one. Each value is truncated to the fixed
+ * point grid as it is added, which is well below the precision of a float for pixels in the usual range of 0 to 1; the
+ * sums overflow only after about two billion images whose pixels are all 1.
+ *
+ * An accumulator can also have a background colour, for images drawn onto a background: the part of such an image
+ * outside the rectangle that was drawn is recorded with {@link #addBorder(int, int, int, int)} in constant time, and the
+ * background is added to the pixels outside each rectangle all at once when the statistics are read.
+ *
+ * An accumulator is not thread safe; each worker should add to its own (see ImageReduction). It can be written to a
+ * stream and read back with {@link #write(DataOutput)} and {@link #read(DataInput)}, to combine the partial results of
+ * different processes (see the hadoop package).
+ */
+public class ImageAccumulator
+{
+    private static final double SCALE = 1L << 32;
+
+    private final int width;
+    private final int height;
+    private final ColourSpace colourSpace;
+
+    // Per band, the pixels in row order.
+    private final long[][] sums;
+    private final long[][] squares;
+    private final float[][] minima;
+    private final float[][] maxima;
+    private int count;
+
+    // The background and, for the borders not yet added, how many of their rectangles start (+1) and end (-1) at each
+    // point of a (width + 1) x (height + 1) grid.
+    private final Float[] background;
+    private final int[] rectangles;
+    private int borders;
+
+    public ImageAccumulator(int width, int height, ColourSpace colourSpace)
+    {
+        this(width, height, colourSpace, null);
+    }
+
+    /**
+     * Construct an accumulator whose images are drawn onto a background of the given colour (such as RGBColour.WHITE).
+     */
+    public ImageAccumulator(int width, int height, ColourSpace colourSpace, Float[] background)
+    {
+        this.width = width;
+        this.height = height;
+        this.colourSpace = colourSpace;
+        this.background = background;
+        this.rectangles = background == null ? null : new int[(width + 1) * (height + 1)];
+
+        if (background != null && background.length != colourSpace.getNumBands())
+            throw new IllegalArgumentException("Expected a background of " + colourSpace.getNumBands() + " bands but got "
+                    + background.length);
+
+        final int bands = colourSpace.getNumBands();
+        sums = new long[bands][width * height];
+        squares = new long[bands][width * height];
+        minima = new float[bands][width * height];
+        maxima = new float[bands][width * height];
+
+        for (int b = 0; b < bands; b++)
+        {
+            Arrays.fill(minima[b], Float.POSITIVE_INFINITY);
+            Arrays.fill(maxima[b], Float.NEGATIVE_INFINITY);
+        }
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    public ColourSpace getColourSpace()
+    {
+        return colourSpace;
+    }
+
+    /**
+     * The number of images added.
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Add an image, which must be the same size as the accumulator and have the same number of bands.
+     */
+    public void add(MBFImage image)
+    {
+        if (image.getWidth() != width || image.getHeight() != height || image.numBands() != sums.length)
+            throw new IllegalArgumentException("Expected a " + width + "x" + height + " image with " + sums.length
+                    + " bands but got " + image.getWidth() + "x" + image.getHeight() + " with " + image.numBands());
+
+        for (int b = 0; b < sums.length; b++)
+        {
+            final float[][] pixels = image.getBand(b).pixels;
+
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    addValue(b, y * width + x, pixels[y][x]);
+        }
+
+        count++;
+    }
+
+    /**
+     * Add one value of one pixel of the current image (the pixel at offset y * width + x of the band), for kernels that
+     * produce an image a pixel at a time rather than as an MBFImage. Every value of the image must be added before it is
+     * counted with {@link #addCount(int)}.
+     */
+    public void addValue(int band, int offset, float value)
+    {
+        sums[band][offset] += (long) (value * SCALE);
+        squares[band][offset] += (long) ((double) value * value * SCALE);
+
+        if (value < minima[band][offset])
+            minima[band][offset] = value;
+
+        if (value > maxima[band][offset])
+            maxima[band][offset] = value;
+    }
+
+    /**
+     * Count images whose values have been added with {@link #addValue(int, int, float)}.
+     */
+    public void addCount(int images)
+    {
+        count += images;
+    }
+
+    /**
+     * Record that the current image lies on the background outside the rectangle [x0, x1) x [y0, y1), whose values are
+     * added with {@link #addValue(int, int, float)}.
+     */
+    public void addBorder(int x0, int y0, int x1, int y1)
+    {
+        if (background == null)
+            throw new IllegalStateException("The accumulator has no background");
+
+        x0 = Math.min(Math.max(x0, 0), width);
+        x1 = Math.min(Math.max(x1, x0), width);
+        y0 = Math.min(Math.max(y0, 0), height);
+        y1 = Math.min(Math.max(y1, y0), height);
+
+        rectangles[y0 * (width + 1) + x0]++;
+        rectangles[y0 * (width + 1) + x1]--;
+        rectangles[y1 * (width + 1) + x0]--;
+        rectangles[y1 * (width + 1) + x1]++;
+        borders++;
+    }
+
+    /**
+     * Add the statistics of another accumulator of the same size to this one.
+     */
+    public ImageAccumulator combine(ImageAccumulator other)
+    {
+        if (other.width != width || other.height != height || other.sums.length != sums.length)
+            throw new IllegalArgumentException("Cannot combine accumulators of different sizes");
+
+        if (other.borders > 0)
+        {
+            if (background == null || !Arrays.equals(background, other.background))
+                throw new IllegalArgumentException("Cannot combine accumulators with different backgrounds");
+
+            // The recorded rectangles add like everything else, so there is no need to apply them yet.
+            for (int i = 0; i < rectangles.length; i++)
+                rectangles[i] += other.rectangles[i];
+
+            borders += other.borders;
+        }
+
+        for (int b = 0; b < sums.length; b++)
+        {
+            for (int i = 0; i < width * height; i++)
+            {
+                sums[b][i] += other.sums[b][i];
+                squares[b][i] += other.squares[b][i];
+                minima[b][i] = Math.min(minima[b][i], other.minima[b][i]);
+                maxima[b][i] = Math.max(maxima[b][i], other.maxima[b][i]);
+            }
+        }
+
+        count += other.count;
+
+        return this;
+    }
+
+    /**
+     * Write the statistics, applying any borders first, in a form that {@link #read(DataInput)} reads back exactly.
+     */
+    public void write(DataOutput out) throws IOException
+    {
+        applyBorders();
+
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeUTF(colourSpace.name());
+        out.writeInt(count);
+        out.writeBoolean(background != null);
+
+        if (background != null)
+            for (final Float value : background)
+                out.writeFloat(value);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(width * height * 8);
+
+        for (int b = 0; b < sums.length; b++)
+        {
+            buffer.asLongBuffer().put(sums[b]);
+            out.write(buffer.array(), 0, width * height * 8);
+
+            buffer.asLongBuffer().put(squares[b]);
+            out.write(buffer.array(), 0, width * height * 8);
+
+            buffer.asFloatBuffer().put(minima[b]);
+            out.write(buffer.array(), 0, width * height * 4);
+
+            buffer.asFloatBuffer().put(maxima[b]);
+            out.write(buffer.array(), 0, width * height * 4);
+        }
+    }
+
+    /**
+     * Read an accumulator written by {@link #write(DataOutput)}.
+     */
+    public static ImageAccumulator read(DataInput in) throws IOException
+    {
+        final int width = in.readInt();
+        final int height = in.readInt();
+        final ColourSpace colourSpace = ColourSpace.valueOf(in.readUTF());
+        final int count = in.readInt();
+        Float[] background = null;
+
+        if (in.readBoolean())
+        {
+            background = new Float[colourSpace.getNumBands()];
+            for (int b = 0; b < background.length; b++)
+                background[b] = in.readFloat();
+        }
+
+        final ImageAccumulator accumulator = new ImageAccumulator(width, height, colourSpace, background);
+        final ByteBuffer buffer = ByteBuffer.allocate(width * height * 8);
+
+        for (int b = 0; b < accumulator.sums.length; b++)
+        {
+            in.readFully(buffer.array(), 0, width * height * 8);
+            buffer.asLongBuffer().get(accumulator.sums[b]);
+
+            in.readFully(buffer.array(), 0, width * height * 8);
+            buffer.asLongBuffer().get(accumulator.squares[b]);
+
+            in.readFully(buffer.array(), 0, width * height * 4);
+            buffer.asFloatBuffer().get(accumulator.minima[b]);
+
+            in.readFully(buffer.array(), 0, width * height * 4);
+            buffer.asFloatBuffer().get(accumulator.maxima[b]);
+        }
+
+        accumulator.count = count;
+
+        return accumulator;
+    }
+
+    public MBFImage getMean()
+    {
+        applyBorders();
+
+        final MBFImage mean = new MBFImage(width, height, colourSpace);
+
+        for (int b = 0; b < sums.length; b++)
+        {
+            final float[][] pixels = mean.getBand(b).pixels;
+
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    pixels[y][x] = (float) (sums[b][y * width + x] / SCALE / count);
+        }
+
+        return mean;
+    }
+
+    /**
+     * The population variance of each pixel.
+     */
+    public MBFImage getVariance()
+    {
+        applyBorders();
+
+        final MBFImage variance = new MBFImage(width, height, colourSpace);
+
+        for (int b = 0; b < sums.length; b++)
+        {
+            final float[][] pixels = variance.getBand(b).pixels;
+
+            for (int y = 0; y < height; y++)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    final double mean = sums[b][y * width + x] / SCALE / count;
+                    pixels[y][x] = (float) Math.max(0, squares[b][y * width + x] / SCALE / count - mean * mean);
+                }
+            }
+        }
+
+        return variance;
+    }
+
+    public MBFImage getMin()
+    {
+        applyBorders();
+
+        return toImage(minima);
+    }
+
+    public MBFImage getMax()
+    {
+        applyBorders();
+
+        return toImage(maxima);
+    }
+
+    // Add the background to every pixel once for each recorded border whose rectangle does not cover it.
+    private void applyBorders()
+    {
+        if (borders == 0)
+            return;
+
+        final int stride = width + 1;
+
+        // Sum the grid so that each point holds the number of rectangles covering the pixel there.
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                int covered = rectangles[y * stride + x];
+
+                if (x > 0)
+                    covered += rectangles[y * stride + x - 1];
+
+                if (y > 0)
+                    covered += rectangles[(y - 1) * stride + x];
+
+                if (x > 0 && y > 0)
+                    covered -= rectangles[(y - 1) * stride + x - 1];
+
+                rectangles[y * stride + x] = covered;
+            }
+        }
+
+        for (int b = 0; b < sums.length; b++)
+        {
+            final float value = background[b];
+            final long sum = (long) (value * SCALE);
+            final long square = (long) ((double) value * value * SCALE);
+
+            for (int y = 0; y < height; y++)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    final int times = borders - rectangles[y * stride + x];
+
+                    if (times > 0)
+                    {
+                        final int offset = y * width + x;
+                        sums[b][offset] += times * sum;
+                        squares[b][offset] += times * square;
+                        minima[b][offset] = Math.min(minima[b][offset], value);
+                        maxima[b][offset] = Math.max(maxima[b][offset], value);
+                    }
+                }
+            }
+        }
+
+        Arrays.fill(rectangles, 0);
+        borders = 0;
+    }
+
+    private MBFImage toImage(float[][] values)
+    {
+        final FImage[] bands = new FImage[values.length];
+
+        for (int b = 0; b < values.length; b++)
+            bands[b] = new FImage(values[b], width, height);
+
+        return new MBFImage(colourSpace, bands);
+    }
+}
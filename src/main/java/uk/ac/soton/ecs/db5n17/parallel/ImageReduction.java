@@ -0,0 +1,163 @@
+package uk.ac.soton.ecs.db5n17.parallel;
+
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.util.function.Function;
+import org.openimaj.util.function.Operation;
+import org.openimaj.util.parallel.Parallel;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A parallel reduction of images into their per-pixel statistics without locking: each worker thread adds to its own
+ * {@link ImageAccumulator}, and once the parallel loop has finished the accumulators are combined pairwise in a tree.
+ *
+ * The operations it makes can be given to Parallel.forEach (one image at a time) or Parallel.forEachPartitioned (one
+ * partition at a time), or a worker can add to {@link #local()} directly. A worker's accumulator is created the first
+ * time it adds an image, which is the only time the reduction touches shared state. Because the accumulators' sums are
+ * exact, the result does not depend on how the images were divided between threads.
+ *
+ * {@link #reduce()} must only be called once every worker has finished; it leaves the reduction empty, ready to be used
+ * again.
+ */
+public class ImageReduction
+{
+    private final int width;
+    private final int height;
+    private final ColourSpace colourSpace;
+    private final Float[] background;
+    private final ConcurrentMap<Thread, ImageAccumulator> partials = new ConcurrentHashMap<>();
+
+    public ImageReduction(int width, int height, ColourSpace colourSpace)
+    {
+        this(width, height, colourSpace, null);
+    }
+
+    /**
+     * Construct a reduction of images drawn onto a background of the given colour (see ImageAccumulator).
+     */
+    public ImageReduction(int width, int height, ColourSpace colourSpace, Float[] background)
+    {
+        this.width = width;
+        this.height = height;
+        this.colourSpace = colourSpace;
+        this.background = background;
+    }
+
+    /**
+     * The calling thread's accumulator.
+     */
+    public ImageAccumulator local()
+    {
+        final Thread thread = Thread.currentThread();
+        final ImageAccumulator accumulator = partials.get(thread);
+
+        if (accumulator != null)
+            return accumulator;
+
+        final ImageAccumulator created = new ImageAccumulator(width, height, colourSpace, background);
+        final ImageAccumulator existing = partials.putIfAbsent(thread, created);
+
+        return existing == null ? created : existing;
+    }
+
+    /**
+     * An operation for Parallel.forEach that adds each image.
+     */
+    public Operation<MBFImage> adder()
+    {
+        return adder(new Function<MBFImage, MBFImage>()
+        {
+            public MBFImage apply(MBFImage image)
+            {
+                return image;
+            }
+        });
+    }
+
+    /**
+     * An operation for Parallel.forEach that adds the image made from each item by the function.
+     */
+    public <T> Operation<T> adder(final Function<T, MBFImage> function)
+    {
+        return new Operation<T>()
+        {
+            public void perform(T item)
+            {
+                local().add(function.apply(item));
+            }
+        };
+    }
+
+    /**
+     * An operation for Parallel.forEachPartitioned that adds each image of a partition.
+     */
+    public Operation<Iterator<MBFImage>> partitionAdder()
+    {
+        return partitionAdder(new Function<MBFImage, MBFImage>()
+        {
+            public MBFImage apply(MBFImage image)
+            {
+                return image;
+            }
+        });
+    }
+
+    /**
+     * An operation for Parallel.forEachPartitioned that adds the image made from each item of a partition by the
+     * function.
+     */
+    public <T> Operation<Iterator<T>> partitionAdder(final Function<T, MBFImage> function)
+    {
+        return new Operation<Iterator<T>>()
+        {
+            public void perform(Iterator<T> items)
+            {
+                final ImageAccumulator accumulator = local();
+
+                while (items.hasNext())
+                    accumulator.add(function.apply(items.next()));
+            }
+        };
+    }
+
+    /**
+     * Combine every worker's accumulator into one, and empty the reduction.
+     */
+    public ImageAccumulator reduce()
+    {
+        final List<ImageAccumulator> accumulators = new ArrayList<>(partials.values());
+        partials.clear();
+
+        if (accumulators.isEmpty())
+            return new ImageAccumulator(width, height, colourSpace, background);
+
+        return combine(accumulators);
+    }
+
+    /**
+     * Combine accumulators pairwise in a tree, combining the pairs at each level in parallel, and return the root (which
+     * is the first of them, updated in place).
+     */
+    public static ImageAccumulator combine(final List<ImageAccumulator> accumulators)
+    {
+        for (int stride = 1; stride < accumulators.size(); stride *= 2)
+        {
+            final int offset = stride;
+
+            Parallel.forIndex(0, accumulators.size() - stride, 2 * stride, new Operation<Integer>()
+            {
+                public void perform(Integer i)
+                {
+                    accumulators.get(i).combine(accumulators.get(i + offset));
+                }
+            });
+        }
+
+        return accumulators.get(0);
+    }
+}
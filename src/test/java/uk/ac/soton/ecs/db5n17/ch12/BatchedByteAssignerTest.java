@@ -0,0 +1,95 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.openimaj.ml.clustering.ByteCentroidsResult;
+import org.openimaj.ml.clustering.assignment.hard.ExactByteAssigner;
+
+/**
+ * Tests for the batched assigner against OpenIMAJ's ExactByteAssigner.
+ */
+public class BatchedByteAssignerTest {
+    private static byte[][] random(Random random, int count, int dimensions) {
+        final byte[][] vectors = new byte[count][dimensions];
+
+        for (final byte[] vector : vectors)
+            random.nextBytes(vector);
+
+        return vectors;
+    }
+
+    // 67 centroids (neither a multiple of the four centroids per step nor of the tile) with centroid 5 repeated.
+    private static byte[][] centroids(Random random, int dimensions) {
+        final byte[][] centroids = random(random, 67, dimensions);
+        centroids[40] = centroids[5].clone();
+        centroids[66] = centroids[5].clone();
+        return centroids;
+    }
+
+    private static int squaredDistance(byte[] a, byte[] b) {
+        int distance = 0;
+
+        for (int d = 0; d < a.length; d++)
+            distance += (a[d] - b[d]) * (a[d] - b[d]);
+
+        return distance;
+    }
+
+    @Test
+    public void testMatchesExactByteAssigner() {
+        final Random random = new Random(11);
+
+        for (final int dimensions : new int[] { 13, 128 }) {
+            final byte[][] centroids = centroids(random, dimensions);
+            final ByteCentroidsResult result = new ByteCentroidsResult();
+            result.centroids = centroids;
+
+            final ExactByteAssigner exact = new ExactByteAssigner(result);
+            final BatchedByteAssigner batched = new BatchedByteAssigner(centroids);
+
+            // Counts around the tile of 32 descriptors.
+            for (final int count : new int[] { 1, 31, 33, 70 }) {
+                final byte[][] descriptors = random(random, count, dimensions);
+
+                // Descriptors on the repeated centroid tie at distance 0 between three centroids.
+                descriptors[0] = centroids[66].clone();
+                descriptors[count / 2] = centroids[40].clone();
+
+                final int[] expected = exact.assign(descriptors);
+                final int[] indices = new int[count];
+                final float[] distances = new float[count];
+                batched.assignDistance(descriptors, indices, distances);
+
+                for (int i = 0; i < count; i++) {
+                    assertEquals(expected[i], indices[i]);
+                    assertEquals(squaredDistance(descriptors[i], centroids[indices[i]]), distances[i], 0);
+                    assertEquals(expected[i], batched.assign(descriptors[i]));
+                }
+
+                assertEquals(5, indices[0]);
+                assertEquals(5, indices[count / 2]);
+            }
+        }
+    }
+
+    @Test
+    public void testAssignsFromAnOffsetInABlock() {
+        final Random random = new Random(12);
+        final byte[][] centroids = centroids(random, 16);
+        final byte[][] descriptors = random(random, 45, 16);
+        final BatchedByteAssigner batched = new BatchedByteAssigner(centroids);
+
+        // Three descriptors of padding before and one after the descriptors to assign.
+        final byte[] block = new byte[(descriptors.length + 4) * 16];
+        for (int i = 0; i < descriptors.length; i++)
+            System.arraycopy(descriptors[i], 0, block, (i + 3) * 16, 16);
+
+        final int[] indices = new int[descriptors.length];
+        batched.assign(block, 3 * 16, descriptors.length, indices, null);
+
+        assertArrayEquals(batched.assign(descriptors), indices);
+    }
+}
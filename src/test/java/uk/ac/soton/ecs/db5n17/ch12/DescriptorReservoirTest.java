@@ -0,0 +1,67 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests for the reservoir sample of descriptors.
+ */
+public class DescriptorReservoirTest {
+    @Test
+    public void testSampleIsBoundedAndDrawnFromInput() {
+        final DescriptorReservoir reservoir = new DescriptorReservoir(100, 4, new Random(1));
+
+        for (int i = 0; i < 10000; i++)
+            reservoir.offer(new byte[] { (byte) i, (byte) (i >> 8), 0, 1 });
+
+        assertEquals(100, reservoir.size());
+        assertEquals(10000, reservoir.getSeen());
+        assertEquals(400, reservoir.getBuffer().length);
+
+        int late = 0;
+        for (byte[] row : reservoir) {
+            final int i = (row[0] & 0xff) | ((row[1] & 0xff) << 8);
+
+            assertTrue(i < 10000);
+            assertEquals(1, row[3]);
+
+            if (i >= 5000)
+                late++;
+        }
+
+        // Half of the input came after the first 5000, so roughly half the sample should too.
+        assertTrue(late > 30 && late < 70);
+    }
+
+    @Test
+    public void testRandomRowsAreDistinct() {
+        final DescriptorReservoir reservoir = new DescriptorReservoir(50, 1, new Random(2));
+
+        for (int i = 0; i < 50; i++)
+            reservoir.offer(new byte[] { (byte) i });
+
+        final byte[][] rows = reservoir.createTemporaryArray(50);
+        reservoir.getRandomRows(rows);
+
+        final Set<Byte> values = new HashSet<Byte>();
+        for (byte[] row : rows)
+            values.add(row[0]);
+
+        assertEquals(50, values.size());
+    }
+
+    @Test
+    public void testSizedForClusters() {
+        final DescriptorReservoir reservoir = DescriptorReservoir.forClusters(600);
+
+        // App's 600 word vocabulary is trained on a few hundred descriptors per word.
+        assertEquals(600 * DescriptorReservoir.DESCRIPTORS_PER_CLUSTER, reservoir.getBuffer().length / 128);
+        assertTrue(reservoir.getBuffer().length / 128 >= 200 * 600);
+        assertEquals(128, reservoir.numDimensions());
+    }
+}
@@ -0,0 +1,247 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openimaj.data.identity.Identifiable;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.FeatureVector;
+import org.openimaj.feature.FloatFV;
+
+/**
+ * Tests for the append-only feature store and the extractor that caches features in it.
+ */
+public class FeatureStoreTest {
+    // Chunks of 128 bytes, so that a handful of records crosses several chunks.
+    private static final int SMALL_CHUNK_BITS = 7;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DoubleFV doubles(Random random, int length) {
+        final double[] values = new double[length];
+        for (int i = 0; i < length; i++)
+            values[i] = random.nextGaussian();
+
+        return new DoubleFV(values);
+    }
+
+    private static FloatFV floats(Random random, int length) {
+        final float[] values = new float[length];
+        for (int i = 0; i < length; i++)
+            values[i] = random.nextFloat();
+
+        return new FloatFV(values);
+    }
+
+    private static void assertFeatureEquals(FeatureVector expected, FeatureVector actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getClass(), actual.getClass());
+
+        if (expected instanceof DoubleFV)
+            assertTrue(Arrays.equals(((DoubleFV) expected).values, ((DoubleFV) actual).values));
+        else
+            assertTrue(Arrays.equals(((FloatFV) expected).values, ((FloatFV) actual).values));
+    }
+
+    private static void assertContainsExactly(Map<String, FeatureVector> expected, FeatureStore store) throws Exception {
+        assertEquals(expected.size(), store.size());
+
+        for (final Map.Entry<String, FeatureVector> entry : expected.entrySet())
+            assertFeatureEquals(entry.getValue(), store.get(entry.getKey()));
+    }
+
+    @Test
+    public void testPutAndGetDoubleAndFloatFeatures() throws Exception {
+        final Random random = new Random(1);
+        final File file = folder.newFile("features");
+        final DoubleFV doubleFV = doubles(random, 37);
+        final FloatFV floatFV = floats(random, 41);
+
+        try (FeatureStore store = new FeatureStore(file)) {
+            assertNull(store.get("double"));
+
+            store.put("double", doubleFV);
+            store.put("float", floatFV);
+            store.put("empty", new FloatFV(new float[0]));
+
+            assertTrue(store.contains("double"));
+            assertFalse(store.contains("missing"));
+            assertFeatureEquals(doubleFV, store.get("double"));
+            assertFeatureEquals(floatFV, store.get("float"));
+            assertEquals(0, store.get("empty").length());
+        }
+
+        try (FeatureStore store = new FeatureStore(file)) {
+            assertEquals(3, store.size());
+            assertFeatureEquals(doubleFV, store.get("double"));
+            assertFeatureEquals(floatFV, store.get("float"));
+        }
+    }
+
+    @Test
+    public void testRewrittenIdReturnsTheLatestFeature() throws Exception {
+        final Random random = new Random(2);
+        final File file = folder.newFile("features");
+        final FloatFV latest = floats(random, 8);
+
+        try (FeatureStore store = new FeatureStore(file)) {
+            store.put("a", doubles(random, 16));
+            store.put("b", doubles(random, 4));
+            store.put("a", latest);
+
+            assertEquals(2, store.size());
+            assertFeatureEquals(latest, store.get("a"));
+        }
+
+        try (FeatureStore store = new FeatureStore(file)) {
+            assertEquals(2, store.size());
+            assertFeatureEquals(latest, store.get("a"));
+        }
+    }
+
+    @Test
+    public void testReopeningDiscardsATruncatedRecord() throws Exception {
+        final Random random = new Random(3);
+        final File file = folder.newFile("features");
+        final Map<String, FeatureVector> expected = new LinkedHashMap<>();
+        expected.put("first", doubles(random, 10));
+        expected.put("second", floats(random, 10));
+
+        final long complete;
+        try (FeatureStore store = new FeatureStore(file)) {
+            for (final Map.Entry<String, FeatureVector> entry : expected.entrySet())
+                store.put(entry.getKey(), entry.getValue());
+
+            complete = file.length();
+            store.put("torn", doubles(random, 10));
+        }
+
+        // Cut the last record off part way through its values, as a crash during the write would.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 12);
+        }
+
+        try (FeatureStore store = new FeatureStore(file)) {
+            assertContainsExactly(expected, store);
+            assertFalse(store.contains("torn"));
+            assertEquals(complete, file.length());
+
+            // New records are appended where the torn one began.
+            expected.put("third", floats(random, 3));
+            store.put("third", expected.get("third"));
+        }
+
+        try (FeatureStore store = new FeatureStore(file)) {
+            assertContainsExactly(expected, store);
+        }
+    }
+
+    @Test
+    public void testRecordsCrossIntoTheNextChunk() throws Exception {
+        final Random random = new Random(4);
+        final File file = folder.newFile("features");
+        final Map<String, FeatureVector> expected = new LinkedHashMap<>();
+
+        // Keys and lengths vary so that the padding at the end of a chunk is sometimes shorter than a length field.
+        try (FeatureStore store = new FeatureStore(file, SMALL_CHUNK_BITS)) {
+            for (int i = 0; i < 60; i++) {
+                final String id = "r" + i + "xyz".substring(0, random.nextInt(4));
+                final int length = random.nextInt(20);
+                final FeatureVector feature = random.nextBoolean() ? doubles(random, length / 2) : floats(random, length);
+
+                store.put(id, feature);
+                expected.put(id, feature);
+            }
+
+            assertTrue(file.length() > 8 << SMALL_CHUNK_BITS);
+            assertContainsExactly(expected, store);
+        }
+
+        try (FeatureStore store = new FeatureStore(file, SMALL_CHUNK_BITS)) {
+            assertContainsExactly(expected, store);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsARecordLargerThanAChunk() throws Exception {
+        try (FeatureStore store = new FeatureStore(folder.newFile("features"), SMALL_CHUNK_BITS)) {
+            store.put("large", new DoubleFV(new double[16]));
+        }
+    }
+
+    @Test
+    public void testCompactKeepsOnlyTheLatestRecords() throws Exception {
+        final Random random = new Random(5);
+        final File file = folder.newFile("features");
+        final Map<String, FeatureVector> expected = new LinkedHashMap<>();
+
+        try (FeatureStore store = new FeatureStore(file, SMALL_CHUNK_BITS)) {
+            for (int round = 0; round < 3; round++) {
+                for (int i = 0; i < 10; i++) {
+                    // Every ID is written once, and the even ones twice more.
+                    if (round > 0 && i % 2 == 1)
+                        continue;
+
+                    final FeatureVector feature = round == 2 ? floats(random, 5 + i) : doubles(random, 1 + i);
+                    store.put("id" + i, feature);
+                    expected.put("id" + i, feature);
+                }
+            }
+        }
+
+        final long before = file.length();
+        final long reclaimed = FeatureStore.compact(file, SMALL_CHUNK_BITS);
+
+        assertTrue(reclaimed > 0);
+        assertEquals(before - reclaimed, file.length());
+
+        try (FeatureStore store = new FeatureStore(file, SMALL_CHUNK_BITS)) {
+            assertContainsExactly(expected, store);
+        }
+
+        // A compacted store has nothing more to reclaim.
+        assertEquals(0, FeatureStore.compact(file, SMALL_CHUNK_BITS));
+    }
+
+    @Test
+    public void testExtractorConvertsStoredFeaturesToItsClass() throws Exception {
+        final FloatFV stored = floats(new Random(6), 12);
+        final Identifiable object = new Identifiable() {
+            public String getID() {
+                return "object";
+            }
+        };
+
+        final FeatureExtractor<FloatFV, Identifiable> floatExtractor = new FeatureExtractor<FloatFV, Identifiable>() {
+            public FloatFV extractFeature(Identifiable object) {
+                return stored;
+            }
+        };
+
+        final FeatureExtractor<DoubleFV, Identifiable> doubleExtractor = new FeatureExtractor<DoubleFV, Identifiable>() {
+            public DoubleFV extractFeature(Identifiable object) {
+                throw new AssertionError("The cached feature should have been used");
+            }
+        };
+
+        try (FeatureStore store = new FeatureStore(folder.newFile("features"))) {
+            assertSame(stored, new FeatureStoreExtractor<>(store, floatExtractor, FloatFV.class).extractFeature(object));
+
+            final DoubleFV converted = new FeatureStoreExtractor<>(store, doubleExtractor, DoubleFV.class).extractFeature(object);
+            assertEquals(stored.values.length, converted.values.length);
+            for (int i = 0; i < stored.values.length; i++)
+                assertEquals(stored.values[i], converted.values[i], 0);
+        }
+    }
+}
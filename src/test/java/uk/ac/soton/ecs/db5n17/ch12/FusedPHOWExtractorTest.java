@@ -0,0 +1,151 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openimaj.feature.DoubleFV;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.image.FImage;
+import org.openimaj.image.feature.dense.gradient.dsift.ByteDSIFTKeypoint;
+import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
+import org.openimaj.image.feature.local.aggregate.PyramidSpatialAggregator;
+import org.openimaj.math.geometry.shape.Rectangle;
+import org.openimaj.ml.kernel.HomogeneousKernelMap;
+
+/**
+ * Tests the fused PHOW feature element by element against aggregating with PyramidSpatialAggregator, calling
+ * normaliseFV() and evaluating a HomogeneousKernelMap.
+ */
+public class FusedPHOWExtractorTest {
+    private static final int[] BLOCKS = { 2, 4 };
+
+    private static HomogeneousKernelMap kernelMap() {
+        return new HomogeneousKernelMap(HomogeneousKernelMap.KernelType.Chi2, HomogeneousKernelMap.WindowType.Rectangular);
+    }
+
+    private static byte[][] centroids(Random random, int count, int dimensions) {
+        final byte[][] centroids = new byte[count][dimensions];
+
+        for (final byte[] centroid : centroids)
+            random.nextBytes(centroid);
+
+        return centroids;
+    }
+
+    // The fused feature holds the kernel map of each histogram bin in turn, as HomogeneousKernelMap lays out the map
+    // of a vector, so the two are compared element by element.
+    private static void assertSameElements(double[] reference, double[] fused, int bins, HomogeneousKernelMap kernelMap,
+            double tolerance) {
+        final int mapped = kernelMap.evaluate(new DoubleFV(new double[] { 0.2 })).values.length;
+
+        assertEquals(reference.length, fused.length);
+        assertEquals(bins * mapped, fused.length);
+
+        for (int bin = 0; bin < bins; bin++)
+            for (int j = 0; j < mapped; j++)
+                assertEquals("bin " + bin + ", value " + j, reference[bin * mapped + j], fused[bin * mapped + j],
+                        tolerance);
+    }
+
+    @Test
+    public void testKernelMapKeepsEachInputsValuesTogether() {
+        final HomogeneousKernelMap kernelMap = kernelMap();
+        final double[] a = kernelMap.evaluate(new DoubleFV(new double[] { 0.2 })).values;
+        final double[] b = kernelMap.evaluate(new DoubleFV(new double[] { 0.7 })).values;
+        final double[] both = kernelMap.evaluate(new DoubleFV(new double[] { 0.2, 0.7 })).values;
+
+        assertEquals(2 * a.length, both.length);
+        for (int j = 0; j < a.length; j++) {
+            assertEquals(a[j], both[j], 0);
+            assertEquals(b[j], both[a.length + j], 0);
+        }
+    }
+
+    @Test
+    public void testAggregatorMatchesPyramidSpatialAggregator() {
+        final Random random = new Random(7);
+        final int numWords = 23;
+        final byte[][] centroids = centroids(random, numWords, 16);
+        final BatchedByteAssigner assigner = new BatchedByteAssigner(centroids);
+        final HomogeneousKernelMap kernelMap = kernelMap();
+        final Rectangle bounds = new Rectangle(0, 0, 64, 48);
+
+        // Keypoints on the centroids (so their words are known) at half pixel positions, which never lie on a block
+        // boundary. Some words are repeated within a block, so that the histogram has counts above one.
+        final List<ByteDSIFTKeypoint> keypoints = new ArrayList<>();
+        final int count = 300;
+        final int[] words = new int[count];
+        final float[] xs = new float[count];
+        final float[] ys = new float[count];
+
+        for (int i = 0; i < count; i++) {
+            words[i] = random.nextInt(i < 200 ? numWords : 3);
+            xs[i] = random.nextInt(64) + 0.5f;
+            ys[i] = random.nextInt(48) + 0.5f;
+            keypoints.add(new ByteDSIFTKeypoint(xs[i], ys[i], centroids[words[i]].clone(), 1f));
+        }
+
+        final SparseIntFV histogram = new PyramidSpatialAggregator<byte[], SparseIntFV>(
+                new BagOfVisualWords<byte[]>(assigner), BLOCKS).aggregate(keypoints, bounds);
+        final double[] reference = kernelMap.evaluate(histogram.normaliseFV()).values;
+
+        final FusedPyramidAggregator aggregator = new FusedPyramidAggregator(numWords, kernelMap, BLOCKS);
+        final double[] fused = new double[aggregator.length()];
+        aggregator.aggregate(words, xs, ys, count, bounds, fused);
+
+        final int bins = (2 * 2 + 4 * 4) * numWords;
+        assertSameElements(reference, fused, bins, kernelMap, 1e-12);
+
+        // Without a kernel map the feature is the normalised histogram itself.
+        final FusedPyramidAggregator unmapped = new FusedPyramidAggregator(numWords, null, BLOCKS);
+        final double[] normalised = new double[unmapped.length()];
+        unmapped.aggregate(words, xs, ys, count, bounds, normalised);
+
+        final double[] expected = histogram.normaliseFV().values;
+        assertEquals(expected.length, normalised.length);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], normalised[i], 1e-12);
+    }
+
+    @Test
+    public void testExtractorMatchesSeparateSteps() {
+        final Random random = new Random(8);
+        final FImage image = new FImage(120, 96);
+
+        for (int y = 0; y < image.height; y++)
+            for (int x = 0; x < image.width; x++)
+                image.pixels[y][x] = random.nextFloat() * 0.1f + (x / 30 + y / 24) % 2 * 0.7f;
+
+        final DenseSIFTEngines engines = new DenseSIFTEngines();
+        final DescriptorReservoir reservoir = new DescriptorReservoir(50, 128, random);
+        reservoir.offerAll(engines.analyse(image, 0.005f));
+
+        final byte[][] vocabulary = reservoir.createTemporaryArray(reservoir.size());
+        reservoir.getData(0, reservoir.size(), vocabulary);
+
+        final BatchedByteAssigner assigner = new BatchedByteAssigner(vocabulary);
+        final HomogeneousKernelMap kernelMap = kernelMap();
+
+        final double[] reference = kernelMap.evaluate(
+                new ConcurrentPHOWExtractor(engines, 0.015f, assigner, BLOCKS).extract(image)).values;
+
+        final FusedPHOWExtractor fused = new FusedPHOWExtractor(engines, 0.015f, assigner, kernelMap, BLOCKS);
+        final double[] doubles = new double[fused.length()];
+        final float[] floats = new float[fused.length()];
+        fused.extract(image, doubles);
+        fused.extract(image, floats);
+
+        final int bins = (2 * 2 + 4 * 4) * vocabulary.length;
+        assertSameElements(reference, doubles, bins, kernelMap, 1e-12);
+
+        final double[] widened = new double[floats.length];
+        for (int i = 0; i < floats.length; i++)
+            widened[i] = floats[i];
+
+        assertSameElements(reference, widened, bins, kernelMap, 1e-6);
+    }
+}
@@ -0,0 +1,99 @@
+package uk.ac.soton.ecs.db5n17.ch12;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.experiment.evaluation.classification.BasicClassificationResult;
+import org.openimaj.experiment.evaluation.classification.ClassificationEvaluator;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.experiment.evaluation.classification.Classifier;
+import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMAnalyser;
+import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMResult;
+
+/**
+ * Tests for the streaming evaluator against ClassificationEvaluator with CMAnalyser.
+ */
+public class StreamingClassificationEvaluatorTest {
+    private static final String[] CLASSES = { "apple", "banana", "cherry", "damson" };
+
+    // Objects 0 to 40, each in the group of its value modulo the number of classes (so the groups differ in size).
+    private static MapBackedDataset<String, ListDataset<Integer>, Integer> dataset() {
+        final MapBackedDataset<String, ListDataset<Integer>, Integer> dataset = new MapBackedDataset<>();
+
+        for (int c = 0; c < CLASSES.length; c++) {
+            final List<Integer> objects = new ArrayList<>();
+            for (int i = c; i <= 40; i += CLASSES.length)
+                objects.add(i);
+
+            dataset.put(CLASSES[c], new ListBackedDataset<>(objects));
+        }
+
+        return dataset;
+    }
+
+    // Predicts each object's class with a confidence of 0.5, and sometimes another class with a higher or lower
+    // confidence, so that the best class is not always the first or the only one.
+    private static final Classifier<String, Integer> CLASSIFIER = new Classifier<String, Integer>() {
+        public ClassificationResult<String> classify(Integer object) {
+            final BasicClassificationResult<String> result = new BasicClassificationResult<>();
+            result.put(CLASSES[object % CLASSES.length], 0.5);
+
+            final String other = CLASSES[(object * 7 + 1) % CLASSES.length];
+            if (object % 3 == 0)
+                result.put(other, 0.9);
+            else if (object % 3 == 1)
+                result.put(other, 0.25);
+
+            return result;
+        }
+    };
+
+    @Test
+    public void testDetailReportMatchesCMAnalyser() {
+        final ClassificationEvaluator<CMResult<String>, String, Integer> reference = new ClassificationEvaluator<>(
+                CLASSIFIER, dataset(), new CMAnalyser<Integer, String>(CMAnalyser.Strategy.SINGLE));
+        final CMResult<String> expected = reference.analyse(reference.evaluate());
+
+        final CMResult<String> actual = new StreamingClassificationEvaluator<>(CLASSIFIER, dataset()).evaluate();
+
+        assertEquals(expected.getDetailReport(), actual.getDetailReport());
+        assertEquals(expected.getSummaryReport(), actual.getSummaryReport());
+        assertEquals(41, actual.getMatrix().getTotalCount(), 0);
+        assertEquals(expected.getMatrix().getAccuracy(), actual.getMatrix().getAccuracy(), 0);
+
+        for (final String target : CLASSES)
+            for (final String estimate : CLASSES)
+                assertEquals(expected.getMatrix().getCount(target, estimate), actual.getMatrix().getCount(target, estimate), 0);
+    }
+
+    @Test
+    public void testReportsProgressEveryInterval() {
+        // The listener is called from the evaluating threads, so it records what it was given rather than asserting.
+        final List<Long> reported = Collections.synchronizedList(new ArrayList<Long>());
+        final List<Long> totals = Collections.synchronizedList(new ArrayList<Long>());
+        final StreamingClassificationEvaluator<String, Integer> evaluator =
+                new StreamingClassificationEvaluator<>(CLASSIFIER, dataset());
+
+        evaluator.setProgressListener(new StreamingClassificationEvaluator.ProgressListener() {
+            public void progress(long evaluated, long total, double accuracy) {
+                reported.add(evaluated);
+                totals.add(total);
+            }
+        }, 10);
+
+        evaluator.evaluate();
+
+        Collections.sort(reported);
+        assertEquals(Arrays.asList(10L, 20L, 30L, 40L), reported);
+        assertEquals(Arrays.asList(41L, 41L, 41L, 41L), totals);
+        assertEquals(41, evaluator.getEvaluated());
+    }
+}
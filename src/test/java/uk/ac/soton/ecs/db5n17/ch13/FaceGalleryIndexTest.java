@@ -0,0 +1,109 @@
+package uk.ac.soton.ecs.db5n17.ch13;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for the face gallery nearest-neighbour index.
+ */
+public class FaceGalleryIndexTest {
+    private static final int DIMENSIONS = 20;
+
+    // Clusters of faces around a centre per person, so that the ball tree has structure to exploit.
+    private static FaceGalleryIndex gallery(Random random, int people, int faces) {
+        final FaceGalleryIndex index = new FaceGalleryIndex(DIMENSIONS, 4);
+
+        for (int p = 0; p < people; p++) {
+            final double[] centre = new double[DIMENSIONS];
+            for (int d = 0; d < DIMENSIONS; d++)
+                centre[d] = random.nextGaussian() * 10;
+
+            for (int f = 0; f < faces; f++) {
+                final double[] face = new double[DIMENSIONS];
+                for (int d = 0; d < DIMENSIONS; d++)
+                    face[d] = centre[d] + random.nextGaussian();
+
+                index.add("person" + p, face);
+            }
+        }
+
+        return index;
+    }
+
+    private static double[] bruteForceDistances(FaceGalleryIndex index, double[] query) {
+        final double[] distances = new double[index.size()];
+
+        for (int i = 0; i < index.size(); i++) {
+            final double[] face = index.getFeature(i);
+            double sum = 0;
+
+            for (int d = 0; d < DIMENSIONS; d++)
+                sum += (face[d] - query[d]) * (face[d] - query[d]);
+
+            distances[i] = Math.sqrt(sum);
+        }
+
+        Arrays.sort(distances);
+        return distances;
+    }
+
+    private static double[] randomQuery(Random random) {
+        final double[] query = new double[DIMENSIONS];
+        for (int d = 0; d < DIMENSIONS; d++)
+            query[d] = random.nextGaussian() * 10;
+
+        return query;
+    }
+
+    @Test
+    public void testSearchMatchesBruteForceWithAndWithoutTree() {
+        final Random random = new Random(1);
+        final FaceGalleryIndex index = gallery(random, 30, 20);
+
+        final double[][] queries = new double[40][];
+        for (int q = 0; q < queries.length; q++)
+            queries[q] = randomQuery(random);
+
+        for (int pass = 0; pass < 2; pass++) {
+            // The second pass searches a tree over most of the gallery, with the rest added afterwards.
+            if (pass == 1) {
+                index.buildTree(8);
+                for (int i = 0; i < 15; i++)
+                    index.add("late", randomQuery(random));
+            }
+
+            final List<List<FaceGalleryIndex.Match>> batched = index.search(queries, 5, Double.POSITIVE_INFINITY);
+
+            for (int q = 0; q < queries.length; q++) {
+                final double[] expected = bruteForceDistances(index, queries[q]);
+                final List<FaceGalleryIndex.Match> matches = index.search(queries[q], 5);
+
+                assertEquals(5, matches.size());
+                assertEquals(5, batched.get(q).size());
+
+                for (int i = 0; i < 5; i++) {
+                    assertEquals(expected[i], matches.get(i).getDistance(), 1e-9);
+                    assertEquals(matches.get(i).getIndex(), batched.get(q).get(i).getIndex());
+                    assertEquals(index.getLabel(matches.get(i).getIndex()), matches.get(i).getLabel());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testThresholdGivesUnknown() {
+        final FaceGalleryIndex index = new FaceGalleryIndex(2);
+        index.add("a", new double[] { 0, 0 });
+        index.add("b", new double[] { 10, 0 });
+
+        assertEquals("a", index.identify(new double[] { 1, 0 }, 2));
+        assertNull(index.identify(new double[] { 5, 5 }, 2));
+        assertEquals(1, index.search(new double[] { 9, 0 }, 5, 3).size());
+        assertEquals("b", index.nearest(new double[] { 9, 0 }).getLabel());
+    }
+}
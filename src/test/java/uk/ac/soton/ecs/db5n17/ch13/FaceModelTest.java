@@ -0,0 +1,247 @@
+package uk.ac.soton.ecs.db5n17.ch13;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openimaj.image.FImage;
+
+/**
+ * Tests for the file-backed face model against StreamingEigenImages and FaceGalleryIndex.
+ */
+public class FaceModelTest {
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<FImage> faces(Random random, int count) {
+        final List<FImage> faces = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            final FImage face = new FImage(WIDTH, HEIGHT);
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++)
+                    face.pixels[y][x] = random.nextFloat() * (1 + x) / WIDTH;
+
+            faces.add(face);
+        }
+
+        return faces;
+    }
+
+    private static double[][] features(Random random, int count, int components) {
+        final double[][] features = new double[count][components];
+
+        for (final double[] feature : features)
+            for (int c = 0; c < components; c++)
+                feature[c] = random.nextGaussian();
+
+        return features;
+    }
+
+    private static List<String> labels(int count) {
+        final List<String> labels = new ArrayList<>();
+
+        // Labels of several lengths, including an empty one and one with multibyte characters.
+        for (int i = 0; i < count; i++)
+            labels.add(i % 7 == 0 ? "" : i % 5 == 0 ? "Zoë-" + i : "person" + (i % 11));
+
+        return labels;
+    }
+
+    // A model with a random mean and basis of the given number of components, which need not be orthonormal.
+    private FaceModel create(File file, Random random, int components) throws Exception {
+        final double[] mean = new double[WIDTH * HEIGHT];
+        for (int p = 0; p < mean.length; p++)
+            mean[p] = random.nextDouble();
+
+        final double[] basis = new double[components * WIDTH * HEIGHT];
+        for (int i = 0; i < basis.length; i++)
+            basis[i] = random.nextGaussian();
+
+        return FaceModel.create(file, WIDTH, HEIGHT, mean, basis, 16);
+    }
+
+    @Test
+    public void testProjectionsMatchStreamingEigenImages() throws Exception {
+        final Random random = new Random(1);
+        final List<FImage> training = faces(random, 40);
+        final StreamingEigenImages eigen = new StreamingEigenImages(6, 4, 1, 8, 0);
+        eigen.train(training);
+
+        // More faces than are projected in one batch.
+        final List<FImage> faces = faces(random, 300);
+
+        try (FaceModel model = FaceModel.create(folder.newFile("model"), eigen, 16)) {
+            final double[][] projected = model.project(faces);
+
+            for (int i = 0; i < faces.size(); i++) {
+                final double[] expected = eigen.extractFeature(faces.get(i)).values;
+                final double[] single = model.extractFeature(faces.get(i)).values;
+
+                assertEquals(expected.length, projected[i].length);
+                for (int c = 0; c < expected.length; c++) {
+                    assertEquals(expected[c], projected[i][c], 1e-12);
+                    assertEquals(expected[c], single[c], 1e-12);
+                }
+            }
+
+            // The reconstructions match too.
+            final double[] weights = projected[0];
+            final FImage expected = eigen.reconstruct(weights);
+            final FImage actual = model.reconstruct(weights);
+            for (int y = 0; y < HEIGHT; y++)
+                assertTrue(Arrays.equals(expected.pixels[y], actual.pixels[y]));
+        }
+    }
+
+    @Test
+    public void testEnrolledFacesSurviveReopening() throws Exception {
+        final Random random = new Random(2);
+        final File file = folder.newFile("model");
+        final List<FImage> faces = faces(random, 20);
+        final List<String> labels = labels(faces.size());
+        final double[][] features = features(random, 30, 4);
+        final double[][] projected;
+
+        try (FaceModel model = create(file, random, 4)) {
+            projected = model.project(faces);
+
+            assertEquals(0, model.enrol(labels, faces));
+            assertEquals(faces.size(), model.enrolFeatures(labels(features.length), features));
+            assertEquals(faces.size() + features.length, model.size());
+        }
+
+        try (FaceModel model = FaceModel.open(file)) {
+            assertEquals(WIDTH, model.getWidth());
+            assertEquals(HEIGHT, model.getHeight());
+            assertEquals(4, model.getNumComponents());
+            assertEquals(faces.size() + features.length, model.size());
+
+            for (int i = 0; i < faces.size(); i++) {
+                assertEquals(labels.get(i), model.getLabel(i));
+                assertTrue(Arrays.equals(projected[i], model.getFeature(i)));
+            }
+
+            for (int i = 0; i < features.length; i++) {
+                assertEquals(labels(features.length).get(i), model.getLabel(faces.size() + i));
+                assertTrue(Arrays.equals(features[i], model.getFeature(faces.size() + i)));
+            }
+
+            // The reopened model projects faces as the original did.
+            assertTrue(Arrays.equals(projected[3], model.extractFeature(faces.get(3)).values));
+        }
+    }
+
+    @Test
+    public void testTrainingSettingsSurviveReopening() throws Exception {
+        final Random random = new Random(5);
+        final File file = folder.newFile("model");
+        final double[] mean = new double[WIDTH * HEIGHT];
+        final double[] basis = new double[3 * WIDTH * HEIGHT];
+        for (int i = 0; i < basis.length; i++)
+            basis[i] = random.nextGaussian();
+
+        try (FaceModel model = FaceModel.create(file, WIDTH, HEIGHT, mean, basis, 16, 7, -1234567890123L)) {
+            model.enrolFeatures(Arrays.asList("a"), features(random, 1, 3));
+        }
+
+        try (FaceModel model = FaceModel.open(file)) {
+            assertEquals(7, model.getTrainingFaces());
+            assertEquals(-1234567890123L, model.getTrainingSeed());
+            assertEquals(3, model.getNumComponents());
+            assertEquals("a", model.getLabel(0));
+        }
+
+        // A model created without the settings records zero for them.
+        try (FaceModel model = create(folder.newFile("unrecorded"), random, 3)) {
+            assertEquals(0, model.getTrainingFaces());
+            assertEquals(0, model.getTrainingSeed());
+        }
+    }
+
+    @Test
+    public void testTrailingPartialRecordIsDropped() throws Exception {
+        final Random random = new Random(3);
+        final File file = folder.newFile("model");
+        final double[][] features = features(random, 3, 5);
+
+        final long complete;
+        try (FaceModel model = create(file, random, 5)) {
+            model.enrolFeatures(Arrays.asList("a", "b", "c"), features);
+            complete = file.length();
+        }
+
+        // Part of a fourth record, as a crash during enrolment would leave.
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[] { 1, 0, 'd', 0, 0, 0, 0, 0, 42, 42, 42 });
+        }
+
+        try (FaceModel model = FaceModel.open(file)) {
+            assertEquals(3, model.size());
+            assertEquals(complete, file.length());
+            assertEquals("c", model.getLabel(2));
+            assertTrue(Arrays.equals(features[2], model.getFeature(2)));
+
+            // The next face takes the place of the partial record.
+            assertEquals(3, model.enrolFeatures(Arrays.asList("e"), features(random, 1, 5)));
+        }
+
+        try (FaceModel model = FaceModel.open(file)) {
+            assertEquals(4, model.size());
+            assertEquals("e", model.getLabel(3));
+        }
+    }
+
+    @Test
+    public void testSearchMatchesFaceGalleryIndex() throws Exception {
+        final Random random = new Random(4);
+        final int components = 12;
+        final double[][] features = features(random, 500, components);
+        final List<String> labels = labels(features.length);
+        final FaceGalleryIndex index = new FaceGalleryIndex(components);
+
+        for (int i = 0; i < features.length; i++)
+            index.add(labels.get(i), features[i]);
+
+        // A duplicate of an earlier face, so that the search has a tie to break.
+        index.add("duplicate", features[17]);
+
+        try (FaceModel model = create(folder.newFile("model"), random, components)) {
+            model.enrolFeatures(labels, features);
+            model.enrolFeatures(Arrays.asList("duplicate"), new double[][] { features[17] });
+
+            final double[][] queries = features(random, 40, components);
+            queries[0] = features[17].clone();
+
+            for (final double[] query : queries) {
+                for (final int k : new int[] { 1, 5, 600 }) {
+                    for (final double maxDistance : new double[] { Double.POSITIVE_INFINITY, 4.5 }) {
+                        final List<FaceGalleryIndex.Match> expected = index.search(query, k, maxDistance);
+                        final List<FaceGalleryIndex.Match> actual = model.search(query, k, maxDistance);
+
+                        assertEquals(expected.size(), actual.size());
+                        for (int m = 0; m < expected.size(); m++) {
+                            assertEquals(expected.get(m).getIndex(), actual.get(m).getIndex());
+                            assertEquals(expected.get(m).getLabel(), actual.get(m).getLabel());
+                            assertEquals(expected.get(m).getDistance(), actual.get(m).getDistance(), 1e-12);
+                        }
+                    }
+                }
+
+                final List<FaceGalleryIndex.Match> nearest = model.search(query, 1, 4.5);
+                assertEquals(index.identify(query, 4.5), nearest.isEmpty() ? null : nearest.get(0).getLabel());
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package uk.ac.soton.ecs.db5n17.ch13;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openimaj.image.FImage;
+
+/**
+ * Tests the streaming eigenimages against images built with a known mean, known components and a known spectrum.
+ */
+public class StreamingEigenImagesTest {
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 5;
+    private static final int PIXELS = WIDTH * HEIGHT;
+
+    // The variance along each component, so the covariance has rank 5.
+    private static final double[] SPECTRUM = { 16, 9, 4, 1, 0.25 };
+
+    /**
+     * Images of the form mean + Σ a[i][k] u[k], where the components u are orthonormal and the weights a of each
+     * component are orthogonal, sum to zero and have a sum of squares of spectrum[k] * (n - 1). The sample covariance of
+     * the images is then exactly Σ spectrum[k] u[k] u[k]ᵀ (up to the rounding of the pixels to floats).
+     */
+    private static final class Faces {
+        final double[] mean = new double[PIXELS];
+        final double[][] components;
+        final double[][] weights;
+        final List<FImage> images = new ArrayList<>();
+
+        Faces(int count, long seed) {
+            final Random random = new Random(seed);
+
+            for (int p = 0; p < PIXELS; p++)
+                mean[p] = 0.5 + random.nextGaussian() * 0.1;
+
+            components = orthonormal(random, SPECTRUM.length, PIXELS, false);
+
+            final double[][] columns = orthonormal(random, SPECTRUM.length, count, true);
+            weights = new double[count][SPECTRUM.length];
+            for (int k = 0; k < SPECTRUM.length; k++)
+                for (int i = 0; i < count; i++)
+                    weights[i][k] = columns[k][i] * Math.sqrt(SPECTRUM[k] * (count - 1));
+
+            for (int i = 0; i < count; i++) {
+                final FImage image = new FImage(WIDTH, HEIGHT);
+
+                for (int p = 0; p < PIXELS; p++) {
+                    double value = mean[p];
+                    for (int k = 0; k < SPECTRUM.length; k++)
+                        value += weights[i][k] * components[k][p];
+
+                    image.pixels[p / WIDTH][p % WIDTH] = (float) value;
+                }
+
+                images.add(image);
+            }
+        }
+
+        // Random orthonormal vectors by Gram-Schmidt, made orthogonal to the constant vector first if centred.
+        private static double[][] orthonormal(Random random, int count, int length, boolean centred) {
+            final double[][] vectors = new double[count][length];
+
+            for (int k = 0; k < count; k++) {
+                final double[] v = vectors[k];
+                for (int i = 0; i < length; i++)
+                    v[i] = random.nextGaussian();
+
+                if (centred) {
+                    double sum = 0;
+                    for (final double x : v)
+                        sum += x;
+                    for (int i = 0; i < length; i++)
+                        v[i] -= sum / length;
+                }
+
+                for (int pass = 0; pass < 2; pass++) {
+                    for (int j = 0; j < k; j++) {
+                        final double dot = dot(v, vectors[j], 0);
+                        for (int i = 0; i < length; i++)
+                            v[i] -= dot * vectors[j][i];
+                    }
+                }
+
+                final double norm = Math.sqrt(dot(v, v, 0));
+                for (int i = 0; i < length; i++)
+                    v[i] /= norm;
+            }
+
+            return vectors;
+        }
+    }
+
+    private static double dot(double[] a, double[] b, int offset) {
+        double sum = 0;
+
+        for (int i = 0; i < a.length; i++)
+            sum += a[i] * b[offset + i];
+
+        return sum;
+    }
+
+    @Test
+    public void testRecoversAKnownSpectrum() {
+        final Faces faces = new Faces(40, 1);
+
+        // Three components with two columns of oversampling capture the whole range of the rank 5 covariance, so the
+        // randomised decomposition is exact. Batches of 3 over 8 slots take two rounds, the second partly full.
+        final StreamingEigenImages eigen = new StreamingEigenImages(3, 2, 1, 3, 0);
+        eigen.train(faces.images);
+
+        final double[] eigenValues = eigen.getEigenValues();
+        final double[] basis = eigen.getBasis();
+        final double[] mean = eigen.getMean();
+
+        for (int p = 0; p < PIXELS; p++)
+            assertEquals(faces.mean[p], mean[p], 1e-6);
+
+        final double[] signs = new double[3];
+        for (int c = 0; c < 3; c++) {
+            assertEquals("eigenvalue " + c, SPECTRUM[c], eigenValues[c], SPECTRUM[c] * 1e-5);
+
+            // Each component is the known one, up to its sign.
+            final double alignment = dot(faces.components[c], basis, c * PIXELS);
+            assertEquals("component " + c, 1, Math.abs(alignment), 1e-6);
+            signs[c] = Math.signum(alignment);
+        }
+
+        // The features are the weights the images were built from.
+        for (int i = 0; i < faces.images.size(); i++) {
+            final double[] feature = eigen.extractFeature(faces.images.get(i)).values;
+
+            for (int c = 0; c < 3; c++)
+                assertEquals(faces.weights[i][c], signs[c] * feature[c], 1e-4);
+        }
+    }
+
+    @Test
+    public void testComponentsBeyondTheRankAreZero() {
+        final Faces faces = new Faces(30, 2);
+        final StreamingEigenImages eigen = new StreamingEigenImages(8, 2, 2, 4, 0);
+        eigen.train(faces.images);
+
+        final double[] eigenValues = eigen.getEigenValues();
+        final double[] basis = eigen.getBasis();
+
+        for (int c = 0; c < SPECTRUM.length; c++)
+            assertEquals("eigenvalue " + c, SPECTRUM[c], eigenValues[c], SPECTRUM[c] * 1e-5);
+
+        for (int c = SPECTRUM.length; c < 8; c++) {
+            assertEquals(0, eigenValues[c], 0);
+
+            for (int p = 0; p < PIXELS; p++)
+                assertEquals(0, basis[c * PIXELS + p], 0);
+        }
+
+        // With every component kept, each image is reconstructed from its feature.
+        for (final FImage image : faces.images) {
+            final FImage reconstructed = eigen.reconstruct(eigen.extractFeature(image));
+
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++)
+                    assertEquals(image.pixels[y][x], reconstructed.pixels[y][x], 1e-5);
+        }
+    }
+
+    @Test
+    public void testTrainingIsRepeatable() {
+        final Faces faces = new Faces(50, 3);
+
+        final StreamingEigenImages first = new StreamingEigenImages(4, 3, 2, 2, 7);
+        first.train(faces.images);
+
+        final StreamingEigenImages second = new StreamingEigenImages(4, 3, 2, 2, 7);
+        second.train(faces.images);
+
+        assertTrue(Arrays.equals(first.getBasis(), second.getBasis()));
+        assertTrue(Arrays.equals(first.getEigenValues(), second.getEigenValues()));
+    }
+}
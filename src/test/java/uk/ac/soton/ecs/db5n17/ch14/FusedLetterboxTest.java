@@ -0,0 +1,137 @@
+package uk.ac.soton.ecs.db5n17.ch14;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.colour.RGBColour;
+import org.openimaj.image.processing.resize.ResizeProcessor;
+
+import uk.ac.soton.ecs.db5n17.parallel.ImageAccumulator;
+
+/**
+ * Tests the fused letterbox against App's separate steps: filling a white image, ResizeProcessor(size), normalise() and
+ * drawImage.
+ */
+public class FusedLetterboxTest {
+    private static final int SIZE = 40;
+
+    private static MBFImage image(Random random, int width, int height) {
+        final MBFImage image = new MBFImage(width, height, ColourSpace.RGB);
+
+        for (int b = 0; b < image.numBands(); b++)
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    image.getBand(b).pixels[y][x] = 0.2f + 0.5f * random.nextFloat() * (x + y) / (width + height);
+
+        return image;
+    }
+
+    // The accumulator of the images as App letterboxes them, drawn onto white and added whole.
+    private static ImageAccumulator reference(List<MBFImage> images) {
+        final ImageAccumulator accumulator = new ImageAccumulator(SIZE, SIZE, ColourSpace.RGB);
+        final ResizeProcessor resize = new ResizeProcessor(SIZE);
+
+        for (final MBFImage image : images) {
+            final MBFImage tmp = new MBFImage(SIZE, SIZE, ColourSpace.RGB);
+            tmp.fill(RGBColour.WHITE);
+
+            final MBFImage small = image.process(resize).normalise();
+            tmp.drawImage(small, (SIZE - small.getWidth()) / 2, (SIZE - small.getHeight()) / 2);
+
+            accumulator.add(tmp);
+        }
+
+        return accumulator;
+    }
+
+    private static ImageAccumulator fused(List<MBFImage> images) {
+        final ImageAccumulator accumulator = new ImageAccumulator(SIZE, SIZE, ColourSpace.RGB, RGBColour.WHITE);
+        final FusedLetterbox letterbox = new FusedLetterbox(SIZE);
+
+        for (final MBFImage image : images)
+            letterbox.add(image, accumulator);
+
+        return accumulator;
+    }
+
+    private static void assertImagesEqual(String what, MBFImage expected, MBFImage actual, float tolerance) {
+        for (int b = 0; b < expected.numBands(); b++)
+            for (int y = 0; y < SIZE; y++)
+                for (int x = 0; x < SIZE; x++)
+                    assertEquals(what + " of band " + b + " at " + x + "," + y, expected.getBand(b).pixels[y][x],
+                            actual.getBand(b).pixels[y][x], tolerance);
+    }
+
+    private static void assertMatchesReference(List<MBFImage> images) {
+        final ImageAccumulator expected = reference(images);
+        final ImageAccumulator actual = fused(images);
+
+        assertEquals(expected.getCount(), actual.getCount());
+        assertImagesEqual("mean", expected.getMean(), actual.getMean(), 1e-5f);
+        assertImagesEqual("variance", expected.getVariance(), actual.getVariance(), 1e-5f);
+        assertImagesEqual("minimum", expected.getMin(), actual.getMin(), 1e-5f);
+        assertImagesEqual("maximum", expected.getMax(), actual.getMax(), 1e-5f);
+    }
+
+    private static List<MBFImage> list(MBFImage... images) {
+        final List<MBFImage> list = new ArrayList<>();
+
+        for (final MBFImage image : images)
+            list.add(image);
+
+        return list;
+    }
+
+    @Test
+    public void testPortrait() {
+        assertMatchesReference(list(image(new Random(1), 30, 70)));
+    }
+
+    @Test
+    public void testLandscape() {
+        assertMatchesReference(list(image(new Random(2), 90, 33)));
+    }
+
+    @Test
+    public void testSmallerThanTarget() {
+        // Neither side reaches the target, so the image is drawn at its own size; and one side of exactly the target.
+        assertMatchesReference(list(image(new Random(3), 21, 12)));
+        assertMatchesReference(list(image(new Random(4), SIZE, 25)));
+    }
+
+    @Test
+    public void testConstantBandIsLeftUnnormalised() {
+        final MBFImage large = image(new Random(5), 64, 50);
+        final MBFImage small = image(new Random(6), 15, 22);
+
+        // Zero stays exactly constant when resampled, where another value might vary in its last bit and so be
+        // stretched to [0, 1] by normalise(); the small image is not resampled, so any value stays constant.
+        for (final float[] row : large.getBand(1).pixels)
+            for (int x = 0; x < row.length; x++)
+                row[x] = 0;
+
+        for (final float[] row : small.getBand(2).pixels)
+            for (int x = 0; x < row.length; x++)
+                row[x] = 0.6f;
+
+        assertMatchesReference(list(large));
+        assertMatchesReference(list(small));
+    }
+
+    @Test
+    public void testReusedBuffersForImagesOfManySizes() {
+        final Random random = new Random(7);
+        final List<MBFImage> images = new ArrayList<>();
+
+        for (int i = 0; i < 12; i++)
+            images.add(image(random, 8 + random.nextInt(100), 8 + random.nextInt(100)));
+
+        assertMatchesReference(images);
+    }
+}
@@ -0,0 +1,73 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+
+/**
+ * Tests for the frame buffer pool and its bound on the number of sizes it keeps.
+ */
+public class FramePoolTest {
+    @Test
+    public void testReleasedBuffersAreReused() {
+        final FramePool pool = new FramePool(2);
+        final FImage first = pool.acquireFImage(8, 6);
+        final MBFImage colour = pool.acquireMBFImage(8, 6, 3);
+        pool.release(first);
+        pool.release(colour);
+
+        assertSame(first, pool.acquireFImage(8, 6));
+        assertSame(colour, pool.acquireMBFImage(8, 6, 3));
+
+        // A one band MBFImage never gets an FImage's buffer.
+        pool.release(first);
+        assertNotSame(first, pool.acquireMBFImage(8, 6, 1));
+
+        assertEquals(3, pool.getAllocations());
+        assertEquals(2, pool.getReuses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedSizeIsEvicted() {
+        final FramePool pool = new FramePool(4, 3);
+        final FImage a = pool.acquireFImage(1, 1);
+        final FImage b = pool.acquireFImage(2, 1);
+        final FImage c = pool.acquireFImage(3, 1);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+
+        // Using a makes b the least recently used size, so a fourth size takes its slot.
+        assertSame(a, pool.acquireFImage(1, 1));
+        pool.release(a);
+        pool.release(pool.acquireFImage(4, 1));
+
+        assertSame(a, pool.acquireFImage(1, 1));
+        assertSame(c, pool.acquireFImage(3, 1));
+        assertNotSame(b, pool.acquireFImage(2, 1));
+    }
+
+    @Test
+    public void testManySizesKeepABoundedNumberOfSlots() {
+        final FramePool pool = new FramePool(1, 4);
+
+        for (int round = 0; round < 3; round++)
+            for (int width = 1; width <= 50; width++)
+                pool.release(pool.acquireFImage(width, 3));
+
+        // Every size was evicted before it came round again, so nothing was reused.
+        assertEquals(150, pool.getAllocations());
+        assertEquals(0, pool.getReuses());
+
+        // The most recent sizes are still held.
+        pool.acquireFImage(50, 3);
+        assertEquals(1, pool.getReuses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoSlotsIsRejected() {
+        new FramePool(1, 0);
+    }
+}
@@ -0,0 +1,114 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+import org.openimaj.image.MBFImage;
+import org.openimaj.video.VideoDisplay;
+import org.openimaj.video.VideoDisplayListener;
+
+import uk.ac.soton.ecs.db5n17.metrics.MetricsRegistry;
+import uk.ac.soton.ecs.db5n17.metrics.StageMetrics;
+
+/**
+ * Tests for the latency-bounded frame scheduler, driven by a synthetic camera.
+ */
+public class FrameSchedulerTest {
+    // A processor that takes far longer than the camera's frame interval.
+    private static VideoDisplayListener<MBFImage> slowProcessor(final long millis) {
+        return new VideoDisplayListener<MBFImage>() {
+            public void beforeUpdate(MBFImage frame) {
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            public void afterUpdate(VideoDisplay<MBFImage> display) { }
+        };
+    }
+
+    // A processor that signals when it starts on a frame and then waits until it is released.
+    private static VideoDisplayListener<MBFImage> blockingProcessor(final CountDownLatch entered, final CountDownLatch release) {
+        return new VideoDisplayListener<MBFImage>() {
+            public void beforeUpdate(MBFImage frame) {
+                entered.countDown();
+
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            public void afterUpdate(VideoDisplay<MBFImage> display) { }
+        };
+    }
+
+    // If the display thread ever waited for the processor, this would never finish.
+    @Test(timeout = 10000)
+    public void testBlockedProcessorDoesNotBlockDisplay() throws InterruptedException {
+        final SyntheticCameraVideo camera = new SyntheticCameraVideo(64, 48, 100, 60);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // A budget so long that no frame is dropped for being late, so every drop is a frame superseded by the next.
+        final FrameScheduler scheduler = new FrameScheduler(blockingProcessor(entered, release), 60000, 1f);
+
+        scheduler.beforeUpdate(camera.getNextFrame());
+        entered.await();
+
+        while (camera.hasNextFrame())
+            scheduler.beforeUpdate(camera.getNextFrame());
+
+        // The worker holds the first frame and the last is pending, so every frame between was superseded.
+        final FrameScheduler.Stats stats = scheduler.getStats();
+        assertEquals(60, stats.getFramesOffered());
+        assertEquals(0, stats.getFramesProcessed());
+        assertEquals(58, stats.getFramesDropped());
+
+        release.countDown();
+        scheduler.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testStatsArePublishedToRegistry() throws InterruptedException {
+        final SyntheticCameraVideo camera = new SyntheticCameraVideo(64, 48, 100, 30);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final MetricsRegistry registry = new MetricsRegistry(false);
+
+        final FrameScheduler scheduler = new FrameScheduler(blockingProcessor(entered, release), 60000, 1f);
+        scheduler.setMetrics(registry, "scheduler");
+
+        scheduler.beforeUpdate(camera.getNextFrame());
+        entered.await();
+
+        while (camera.hasNextFrame())
+            scheduler.beforeUpdate(camera.getNextFrame());
+
+        final StageMetrics.Snapshot dropped = registry.stage("scheduler.dropped").snapshot();
+        assertEquals(scheduler.getStats().getFramesDropped(), dropped.getCount());
+        assertEquals(28, dropped.getCount());
+        assertEquals(0, registry.stage("scheduler.processed").snapshot().getCount());
+        assertEquals(0, registry.stage("scheduler.skipped").snapshot().getCount());
+
+        release.countDown();
+        scheduler.close();
+    }
+
+    @Test
+    public void testScaleDropsWhenOverBudget() {
+        final SyntheticCameraVideo camera = new SyntheticCameraVideo(64, 48, 50, 40);
+        final FrameScheduler scheduler = new FrameScheduler(slowProcessor(30), 20, 0.25f);
+
+        while (camera.hasNextFrame())
+            scheduler.beforeUpdate(camera.getNextFrame());
+        scheduler.close();
+
+        assertTrue(scheduler.getScale() < 1f);
+    }
+}
@@ -0,0 +1,96 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openimaj.image.FImage;
+import org.openimaj.image.MBFImage;
+
+/**
+ * Tests that incremental processing gives exactly the output of processing every frame in full.
+ */
+public class IncrementalFrameProcessorTest {
+    // Frame sizes that are not multiples of the tile sizes, so that the last tiles are partial.
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 29;
+
+    // A random first frame, then frames changing single pixels on the edges of 8 pixel tiles (whose effect reaches
+    // into the next tile through the halo), in the partial corner tile, nowhere, and in a block across several tiles.
+    private static List<MBFImage> frames() {
+        final Random random = new Random(5);
+        final List<MBFImage> frames = new ArrayList<>();
+
+        MBFImage frame = new MBFImage(WIDTH, HEIGHT, 2);
+        for (final FImage band : frame.bands)
+            for (int y = 0; y < HEIGHT; y++)
+                for (int x = 0; x < WIDTH; x++)
+                    band.pixels[y][x] = random.nextFloat();
+        frames.add(frame);
+
+        final int[][] changes = { { 7, 3 }, { 8, 3 }, { 23, 16 }, { 24, 23 }, { 15, 15 }, { 36, 28 }, { 0, 0 }, {}, };
+        for (final int[] change : changes) {
+            frame = frame.clone();
+
+            if (change.length > 0)
+                frame.getBand(change[1] % 2).pixels[change[1]][change[0]] = random.nextFloat();
+
+            frames.add(frame);
+        }
+
+        frame = frame.clone();
+        for (int y = 5; y < 20; y++)
+            for (int x = 10; x < 30; x++)
+                frame.getBand(1).pixels[y][x] = random.nextFloat();
+        frames.add(frame);
+
+        return frames;
+    }
+
+    private static void assertMatchesFullFrames(IncrementalFrameProcessor.LocalOperator incremental,
+            IncrementalFrameProcessor.LocalOperator full, int tileSize) {
+        final IncrementalFrameProcessor processor = new IncrementalFrameProcessor(incremental, tileSize, 0);
+        final FImage expected = new FImage(WIDTH, HEIGHT);
+        int frame = 0;
+
+        for (final MBFImage input : frames()) {
+            final MBFImage actual = processor.process(input);
+
+            for (int b = 0; b < input.numBands(); b++) {
+                full.process(input.getBand(b), expected);
+
+                for (int y = 0; y < HEIGHT; y++)
+                    assertTrue("frame " + frame + ", band " + b + ", row " + y,
+                            Arrays.equals(expected.pixels[y], actual.getBand(b).pixels[y]));
+            }
+
+            frame++;
+        }
+
+        // The frame with no changes recomputes nothing.
+        assertTrue(processor.getAverageRecomputedFraction() < 1);
+    }
+
+    @Test
+    public void testAdaptiveThresholdMeanMatchesFullFrames() {
+        for (final int size : new int[] { 5, 6 }) {
+            for (final int tileSize : new int[] { 2, 8 }) {
+                assertMatchesFullFrames(IncrementalFrameProcessor.adaptiveThresholdMean(size, 0.01f),
+                        IncrementalFrameProcessor.adaptiveThresholdMean(size, 0.01f), tileSize);
+            }
+        }
+    }
+
+    @Test
+    public void testLocalProcessorMatchesFullFrames() {
+        // Three passes of a 5 pixel box filter reach three times as far as one.
+        for (final int tileSize : new int[] { 3, 8 }) {
+            assertMatchesFullFrames(IncrementalFrameProcessor.local(new IntegralAdaptiveThreshold(5, 5, 0.01f, 3), 6),
+                    IncrementalFrameProcessor.local(new IntegralAdaptiveThreshold(5, 5, 0.01f, 3), 6), tileSize);
+        }
+    }
+}
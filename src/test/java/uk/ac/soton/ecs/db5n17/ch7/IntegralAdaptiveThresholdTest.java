@@ -0,0 +1,69 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.openimaj.image.FImage;
+import org.openimaj.image.processing.threshold.AdaptiveLocalThresholdMean;
+
+/**
+ * Tests for the integral image thresholder against AdaptiveLocalThresholdMean.
+ */
+public class IntegralAdaptiveThresholdTest {
+    private static FImage random(int width, int height, long seed) {
+        final Random random = new Random(seed);
+        final FImage image = new FImage(width, height);
+
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                image.pixels[y][x] = random.nextFloat();
+
+        return image;
+    }
+
+    // The mean of the window of the pixel, positioned and with the edges replicated as by AverageBoxFilter.
+    private static double localMean(FImage image, int x, int y, int size) {
+        double sum = 0;
+
+        for (int j = y - size / 2; j < y - size / 2 + size; j++)
+            for (int i = x - size / 2; i < x - size / 2 + size; i++)
+                sum += image.pixels[Math.min(Math.max(j, 0), image.height - 1)][Math.min(Math.max(i, 0), image.width - 1)];
+
+        return sum / (size * size);
+    }
+
+    @Test
+    public void testMatchesAdaptiveLocalThresholdMean() {
+        final int[][] shapes = { { 23, 17 }, { 40, 150 } };
+
+        for (final int[] shape : shapes) {
+            for (final int size : new int[] { 3, 4, 7, 8, 17 }) {
+                for (final float offset : new float[] { 0f, 0.05f }) {
+                    final FImage image = random(shape[0], shape[1], size);
+
+                    final FImage expected = image.clone();
+                    new AdaptiveLocalThresholdMean(size, offset).processImage(expected);
+
+                    final FImage actual = new FImage(shape[0], shape[1]);
+                    new IntegralAdaptiveThreshold(size, offset).process(image, actual);
+
+                    int compared = 0;
+                    for (int y = 0; y < image.height; y++) {
+                        for (int x = 0; x < image.width; x++) {
+                            // Pixels within rounding of their threshold may go either way.
+                            if (Math.abs(image.pixels[y][x] - (localMean(image, x, y, size) - offset)) < 1e-5)
+                                continue;
+
+                            assertEquals("window " + size + " at " + x + "," + y, expected.pixels[y][x], actual.pixels[y][x], 0);
+                            compared++;
+                        }
+                    }
+
+                    assertTrue(compared > image.width * image.height * 0.9);
+                }
+            }
+        }
+    }
+}
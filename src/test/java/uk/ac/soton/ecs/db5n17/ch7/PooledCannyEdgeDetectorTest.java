@@ -0,0 +1,108 @@
+package uk.ac.soton.ecs.db5n17.ch7;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.openimaj.image.FImage;
+import org.openimaj.image.processing.edges.CannyEdgeDetector;
+
+/**
+ * Tests for the pooled Canny edge detector against OpenIMAJ's CannyEdgeDetector.
+ */
+public class PooledCannyEdgeDetectorTest {
+    // A rectangle and a disc on black, away from the borders (where the detectors handle the edges differently).
+    private static FImage scene() {
+        final FImage image = new FImage(96, 72);
+
+        for (int y = 0; y < image.height; y++) {
+            for (int x = 0; x < image.width; x++) {
+                float value = 0;
+
+                if (x >= 20 && x < 60 && y >= 15 && y < 50)
+                    value = 0.8f;
+
+                if ((x - 72) * (x - 72) + (y - 40) * (y - 40) < 144)
+                    value = 0.5f;
+
+                image.pixels[y][x] = value;
+            }
+        }
+
+        return image;
+    }
+
+    private static int count(FImage edges) {
+        int count = 0;
+
+        for (int y = 0; y < edges.height; y++)
+            for (int x = 0; x < edges.width; x++)
+                if (edges.pixels[y][x] > 0)
+                    count++;
+
+        return count;
+    }
+
+    // The proportion of the edge pixels of a that have an edge pixel of b within one pixel.
+    private static double matched(FImage a, FImage b) {
+        int edges = 0;
+        int matched = 0;
+
+        for (int y = 0; y < a.height; y++) {
+            for (int x = 0; x < a.width; x++) {
+                if (a.pixels[y][x] == 0)
+                    continue;
+
+                edges++;
+
+                search:
+                for (int ny = Math.max(y - 1, 0); ny <= Math.min(y + 1, a.height - 1); ny++) {
+                    for (int nx = Math.max(x - 1, 0); nx <= Math.min(x + 1, a.width - 1); nx++) {
+                        if (b.pixels[ny][nx] > 0) {
+                            matched++;
+                            break search;
+                        }
+                    }
+                }
+            }
+        }
+
+        return edges == 0 ? 0 : matched / (double) edges;
+    }
+
+    private static void assertAgree(CannyEdgeDetector reference, PooledCannyEdgeDetector pooled) {
+        final FImage expected = scene();
+        reference.processImage(expected);
+
+        final FImage actual = new FImage(96, 72);
+        pooled.process(scene(), actual);
+
+        assertTrue(count(expected) > 100);
+        assertTrue(count(actual) > 100);
+        assertTrue(matched(expected, actual) > 0.95);
+        assertTrue(matched(actual, expected) > 0.95);
+    }
+
+    @Test
+    public void testMatchesCannyEdgeDetectorWithinAPixel() {
+        assertAgree(new CannyEdgeDetector(0.1f, 0.3f, 1f), new PooledCannyEdgeDetector(0.1f, 0.3f, 1f, new FramePool()));
+        assertAgree(new CannyEdgeDetector(2f), new PooledCannyEdgeDetector(2f));
+        assertAgree(new CannyEdgeDetector(), new PooledCannyEdgeDetector());
+    }
+
+    @Test
+    public void testInPlaceAndReusedDetectorGiveTheSameEdges() {
+        final PooledCannyEdgeDetector detector = new PooledCannyEdgeDetector(0.1f, 0.3f, 1f, new FramePool());
+
+        final FImage first = new FImage(96, 72);
+        detector.process(scene(), first);
+
+        final FImage second = scene();
+        detector.processImage(second);
+
+        assertTrue(count(first) > 0);
+        for (int y = 0; y < first.height; y++)
+            assertTrue(Arrays.equals(first.pixels[y], second.pixels[y]));
+    }
+}
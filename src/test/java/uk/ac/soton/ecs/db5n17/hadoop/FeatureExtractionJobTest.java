@@ -0,0 +1,185 @@
+package uk.ac.soton.ecs.db5n17.hadoop;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.io.IOUtils;
+import org.openimaj.ml.kernel.HomogeneousKernelMap;
+
+import uk.ac.soton.ecs.db5n17.ch12.BatchedByteAssigner;
+import uk.ac.soton.ecs.db5n17.ch12.DenseSIFTEngines;
+import uk.ac.soton.ecs.db5n17.ch12.DescriptorReservoir;
+import uk.ac.soton.ecs.db5n17.ch12.FusedPHOWExtractor;
+import uk.ac.soton.ecs.db5n17.ch12.SyntheticImageDataset;
+
+/**
+ * Tests for the PHOW feature extraction job, run with Hadoop's local job runner.
+ */
+public class FeatureExtractionJobTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static HomogeneousKernelMap kernelMap() {
+        return new HomogeneousKernelMap(HomogeneousKernelMap.KernelType.Chi2, HomogeneousKernelMap.WindowType.Rectangular);
+    }
+
+    // The synthetic images of each group encoded as PNGs, which the job and the expected features both decode.
+    private static MapBackedDataset<String, ListDataset<byte[]>, byte[]> encoded(SyntheticImageDataset images)
+            throws Exception {
+        final MapBackedDataset<String, ListDataset<byte[]>, byte[]> dataset = new MapBackedDataset<>(
+                new LinkedHashMap<String, ListDataset<byte[]>>());
+
+        for (final String group : images.getGroups()) {
+            final List<byte[]> encoded = new ArrayList<>();
+
+            for (final FImage image : images.get(group)) {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ImageUtilities.write(image, "png", bytes);
+                encoded.add(bytes.toByteArray());
+            }
+
+            dataset.put(group, new ListBackedDataset<>(encoded));
+        }
+
+        return dataset;
+    }
+
+    private static BatchedByteAssigner assigner(SyntheticImageDataset images, DenseSIFTEngines engines) {
+        final DescriptorReservoir reservoir = new DescriptorReservoir(40, 128, new Random(5));
+
+        for (final String group : images.getGroups())
+            reservoir.offerAll(engines.analyse(images.get(group).get(0), 0.005f));
+
+        final byte[][] vocabulary = reservoir.createTemporaryArray(reservoir.size());
+        reservoir.getData(0, reservoir.size(), vocabulary);
+
+        return new BatchedByteAssigner(vocabulary);
+    }
+
+    @Test
+    public void testLocalJobMatchesFusedPHOWExtractor() throws Exception {
+        // Hadoop's local file system needs native helpers on Windows.
+        Assume.assumeTrue(!System.getProperty("os.name").startsWith("Windows"));
+
+        final SyntheticImageDataset images = new SyntheticImageDataset(3, 0, 4, 64, 11);
+        final MapBackedDataset<String, ListDataset<byte[]>, byte[]> encoded = encoded(images);
+
+        // Settings other than App's, so that the job is seen to read them from the configuration.
+        final DenseSIFTEngines engines = new DenseSIFTEngines(4, 7, 6f, 4, 6);
+        final BatchedByteAssigner assigner = assigner(images, engines);
+        final FusedPHOWExtractor extractor = new FusedPHOWExtractor(engines, 0.015f, assigner, kernelMap(), 2);
+
+        final File assignerFile = folder.newFile("assigner");
+        IOUtils.writeToFile(assigner, assignerFile);
+
+        final Configuration conf = ImageSequenceFiles.local();
+        conf.setInt(FeatureExtractionJob.STEP, 4);
+        conf.set(FeatureExtractionJob.SIZES, "4, 6");
+        conf.set(FeatureExtractionJob.BLOCKS, "2");
+
+        final Path input = new Path(folder.newFolder("input").toURI());
+        final Path output = new Path(new Path(folder.getRoot().toURI()), "output");
+
+        ImageSequenceFiles.pack(encoded, conf, input, 2);
+        assertTrue(FeatureExtractionJob.create(conf, input, output, new Path(assignerFile.toURI()), 2)
+                .waitForCompletion(false));
+
+        final Map<String, Map<String, float[]>> results = FeatureExtractionJob.read(conf, output);
+        assertEquals(new ArrayList<>(images.getGroups()), new ArrayList<>(results.keySet()));
+
+        for (final String group : images.getGroups()) {
+            // The images of an in-memory dataset are identified by their index in their group.
+            final Map<String, float[]> actual = results.get(group);
+            assertEquals(encoded.get(group).size(), actual.size());
+
+            for (int i = 0; i < encoded.get(group).size(); i++) {
+                final float[] expected = new float[extractor.length()];
+                extractor.extract(ImageUtilities.readF(new ByteArrayInputStream(encoded.get(group).get(i))), expected);
+
+                assertTrue("The feature of " + group + " " + i + " does not match the extractor's",
+                        Arrays.equals(expected, actual.get(Integer.toString(i))));
+            }
+        }
+    }
+
+    @Test
+    public void testWritablesKeepTheirIDs() throws Exception {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        new EncodedImageWritable("image_0001.jpg", new byte[] { 1, 2, 3, 4, 5 }, 3).write(out);
+        new EncodedImageWritable("image_0002.jpg", new byte[] { 6, 7 }, 2).write(out);
+        new IdentifiedFeatureWritable("image_0001.jpg", new float[] { 0.5f, -1f, 3f }).write(out);
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        final EncodedImageWritable image = new EncodedImageWritable();
+        image.readFields(in);
+        assertEquals("image_0001.jpg", image.getID());
+        assertEquals(3, image.getLength());
+        assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, Arrays.copyOf(image.getBytes(), image.getLength())));
+
+        // A shorter image reuses the buffer, of which only its own bytes count.
+        image.readFields(in);
+        assertEquals("image_0002.jpg", image.getID());
+        assertEquals(2, image.getLength());
+        assertTrue(Arrays.equals(new byte[] { 6, 7 }, Arrays.copyOf(image.getBytes(), image.getLength())));
+
+        final IdentifiedFeatureWritable feature = new IdentifiedFeatureWritable();
+        feature.readFields(in);
+        assertEquals("image_0001.jpg", feature.getID());
+        assertTrue(Arrays.equals(new float[] { 0.5f, -1f, 3f }, feature.get()));
+    }
+
+    @Test
+    public void testDefaultsAreApps() throws Exception {
+        final SyntheticImageDataset images = new SyntheticImageDataset(2, 0, 1, 64, 12);
+        final DenseSIFTEngines engines = new DenseSIFTEngines(3, 7, 6f, 4, 6, 8, 10);
+        final BatchedByteAssigner assigner = assigner(images, engines);
+
+        final FusedPHOWExtractor expected = new FusedPHOWExtractor(engines, 0.015f, assigner, kernelMap(), 2, 4);
+        final FusedPHOWExtractor actual = FeatureExtractionJob.extractor(new Configuration(), assigner);
+        assertEquals(expected.length(), actual.length());
+
+        final FImage image = images.get(images.getGroups().iterator().next()).get(0);
+        final float[] expectedFeature = new float[expected.length()];
+        final float[] actualFeature = new float[actual.length()];
+        expected.extract(image, expectedFeature);
+        actual.extract(image, actualFeature);
+
+        assertTrue(Arrays.equals(expectedFeature, actualFeature));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingAssignerIsReported() throws Exception {
+        FeatureExtractionJob.readAssigner(new Configuration());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSettingIsReported() {
+        final Configuration conf = new Configuration();
+        conf.set(FeatureExtractionJob.BLOCKS, "2,four");
+
+        FeatureExtractionJob.extractor(conf, new BatchedByteAssigner(new byte[][] { new byte[128] }));
+    }
+}
@@ -0,0 +1,94 @@
+package uk.ac.soton.ecs.db5n17.hadoop;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+import org.openimaj.image.colour.RGBColour;
+
+import uk.ac.soton.ecs.db5n17.ch14.EncodedImageDataset;
+import uk.ac.soton.ecs.db5n17.ch14.FusedLetterbox;
+import uk.ac.soton.ecs.db5n17.ch14.LetterboxReducer;
+import uk.ac.soton.ecs.db5n17.ch14.SyntheticPhotoDataset;
+import uk.ac.soton.ecs.db5n17.parallel.GroupedDatasetScheduler;
+import uk.ac.soton.ecs.db5n17.parallel.ImageAccumulator;
+
+/**
+ * Tests for the group averaging job, run with Hadoop's local job runner.
+ */
+public class GroupAverageJobTest {
+    private static final int SIZE = 32;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void assertPixelsEqual(MBFImage expected, MBFImage actual) {
+        assertEquals(expected.numBands(), actual.numBands());
+
+        for (int b = 0; b < expected.numBands(); b++)
+            for (int y = 0; y < expected.getHeight(); y++)
+                assertTrue(Arrays.equals(expected.getBand(b).pixels[y], actual.getBand(b).pixels[y]));
+    }
+
+    @Test
+    public void testWritableRoundTrip() throws Exception {
+        final SyntheticPhotoDataset images = new SyntheticPhotoDataset(new int[] { 5 }, 48, 3);
+        final FusedLetterbox letterbox = new FusedLetterbox(SIZE);
+        final ImageAccumulator accumulator = new ImageAccumulator(SIZE, SIZE, ColourSpace.RGB, RGBColour.WHITE);
+        for (final MBFImage image : images.get(images.getGroups().iterator().next()))
+            letterbox.add(image, accumulator);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ImageAccumulatorWritable(accumulator).write(new DataOutputStream(bytes));
+
+        final ImageAccumulatorWritable read = new ImageAccumulatorWritable();
+        read.readFields(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+        assertEquals(5, read.get().getCount());
+        assertPixelsEqual(accumulator.getMean(), read.get().getMean());
+        assertPixelsEqual(accumulator.getVariance(), read.get().getVariance());
+        assertPixelsEqual(accumulator.getMin(), read.get().getMin());
+        assertPixelsEqual(accumulator.getMax(), read.get().getMax());
+    }
+
+    @Test
+    public void testLocalJobMatchesInProcessAverage() throws Exception {
+        // Hadoop's local file system needs native helpers on Windows.
+        Assume.assumeTrue(!System.getProperty("os.name").startsWith("Windows"));
+
+        final EncodedImageDataset images = new EncodedImageDataset(new SyntheticPhotoDataset(new int[] { 12, 1, 5, 7 }, 60, 7),
+                "png", ImageUtilities.MBFIMAGE_READER);
+
+        final Configuration conf = ImageSequenceFiles.local();
+        final Path input = new Path(folder.newFolder("input").toURI());
+        final Path output = new Path(new Path(folder.getRoot().toURI()), "output");
+
+        // More files than groups, so that groups are split between map tasks and combined by the reducers.
+        ImageSequenceFiles.packImages(images, "png", conf, input, 3);
+        assertTrue(GroupAverageJob.create(conf, input, output, SIZE, 2).waitForCompletion(false));
+
+        final Map<String, ImageAccumulator> results = GroupAverageJob.read(conf, output);
+        final Map<String, LetterboxReducer.Partial> expected = new GroupedDatasetScheduler(2, 0, 4).run(images,
+                new LetterboxReducer(SIZE));
+
+        assertEquals(expected.keySet(), results.keySet());
+        for (final String group : expected.keySet()) {
+            assertEquals(images.get(group).size(), results.get(group).getCount());
+            assertPixelsEqual(expected.get(group).getAccumulator().getMean(), results.get(group).getMean());
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package uk.ac.soton.ecs.db5n17.metrics;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for the striped latency histogram.
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void testBucketBoundsContainValue() {
+        final long[] values = { 0, 1, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE };
+
+        for (long value : values) {
+            final int bucket = LatencyHistogram.bucket(value);
+
+            assertTrue(bucket < LatencyHistogram.BUCKETS);
+            assertTrue(LatencyHistogram.highestValue(bucket) >= value);
+            assertTrue(bucket == 0 || LatencyHistogram.highestValue(bucket - 1) < value);
+        }
+    }
+
+    @Test
+    public void testPercentilesFromConcurrentRecording() throws InterruptedException {
+        final LatencyHistogram histogram = new LatencyHistogram(4);
+        final Thread[] threads = new Thread[4];
+
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = 1; i <= 1000; i++)
+                        histogram.record(i * 1000L);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(4000, snapshot.getCount());
+
+        // Buckets are within about 3% of the true value.
+        assertEquals(500000, snapshot.getValueAtPercentile(50), 500000 * 0.04);
+        assertEquals(990000, snapshot.getValueAtPercentile(99), 990000 * 0.04);
+        assertEquals(1000000, snapshot.getMax(), 1000000 * 0.04);
+    }
+}
@@ -0,0 +1,96 @@
+package uk.ac.soton.ecs.db5n17.parallel;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+
+/**
+ * Tests for the flattened grouped dataset scheduler.
+ */
+public class GroupedDatasetSchedulerTest {
+    // Sums each group, recording the items added so that it can be checked that each was added exactly once.
+    private static class Sum implements GroupedDatasetScheduler.Reducer<String, Integer, long[]> {
+        public long[] create(String group) {
+            return new long[2];
+        }
+
+        public void add(long[] partial, Integer item) {
+            if (item < 0)
+                throw new IllegalStateException("Bad item");
+
+            partial[0] += item;
+            partial[1]++;
+        }
+
+        public long[] combine(long[] partial, long[] other) {
+            partial[0] += other[0];
+            partial[1] += other[1];
+            return partial;
+        }
+    }
+
+    // Skewed groups (including an empty one) of the numbers 0, 1, 2, ... in order, backed by a LinkedHashMap so that the
+    // dataset's groups are in the order they were added.
+    private static MapBackedDataset<String, ListDataset<Integer>, Integer> dataset(int[] sizes) {
+        final MapBackedDataset<String, ListDataset<Integer>, Integer> dataset = new MapBackedDataset<>(
+                new LinkedHashMap<String, ListDataset<Integer>>());
+        int next = 0;
+
+        for (int g = 0; g < sizes.length; g++) {
+            final List<Integer> items = new ArrayList<>();
+            for (int i = 0; i < sizes[g]; i++)
+                items.add(next++);
+
+            dataset.put("group" + g, new ListBackedDataset<>(items));
+        }
+
+        return dataset;
+    }
+
+    @Test
+    public void testEveryItemReducedOnceAndGroupsInOrder() {
+        final int[] sizes = { 500, 3, 0, 120, 1, 60, 0, 7 };
+        final MapBackedDataset<String, ListDataset<Integer>, Integer> dataset = dataset(sizes);
+
+        for (final int decoders : new int[] { 0, 2 }) {
+            final Map<String, long[]> results = new GroupedDatasetScheduler(5, decoders, 4).run(dataset, new Sum());
+            final List<String> order = new ArrayList<>(results.keySet());
+
+            int first = 0;
+            for (int g = 0; g < sizes.length; g++) {
+                final long[] result = results.get("group" + g);
+                long expected = 0;
+                for (int i = first; i < first + sizes[g]; i++)
+                    expected += i;
+
+                assertEquals("group" + g, order.get(g));
+                assertEquals(sizes[g], result[1]);
+                assertEquals(expected, result[0]);
+                first += sizes[g];
+            }
+        }
+    }
+
+    @Test
+    public void testFailureIsRethrown() {
+        final MapBackedDataset<String, ListDataset<Integer>, Integer> dataset = dataset(new int[] { 50, 50 });
+        final List<Integer> items = new ArrayList<>(dataset.get("group1"));
+        items.set(10, -1);
+        dataset.put("group1", new ListBackedDataset<>(items));
+
+        try {
+            new GroupedDatasetScheduler(3, 1, 4).run(dataset, new Sum());
+            fail("Expected the failure to be rethrown");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package uk.ac.soton.ecs.db5n17.parallel;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.openimaj.image.MBFImage;
+import org.openimaj.image.colour.ColourSpace;
+
+/**
+ * Tests for the lock-free image reduction.
+ */
+public class ImageReductionTest {
+    private static final int WIDTH = 7;
+    private static final int HEIGHT = 5;
+
+    private static List<MBFImage> images(Random random, int count) {
+        final List<MBFImage> images = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            final MBFImage image = new MBFImage(WIDTH, HEIGHT, ColourSpace.RGB);
+            for (int b = 0; b < image.numBands(); b++)
+                for (int y = 0; y < HEIGHT; y++)
+                    for (int x = 0; x < WIDTH; x++)
+                        image.getBand(b).pixels[y][x] = random.nextFloat();
+
+            images.add(image);
+        }
+
+        return images;
+    }
+
+    // Reduce the images on the given number of threads, each adding an interleaved share of them.
+    private static ImageAccumulator reduce(final List<MBFImage> images, final int threads) throws InterruptedException {
+        final ImageReduction reduction = new ImageReduction(WIDTH, HEIGHT, ColourSpace.RGB);
+        final List<Thread> workers = new ArrayList<>();
+
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            final Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    for (int i = first; i < images.size(); i += threads)
+                        reduction.local().add(images.get(i));
+                }
+            });
+
+            worker.start();
+            workers.add(worker);
+        }
+
+        for (final Thread worker : workers)
+            worker.join();
+
+        return reduction.reduce();
+    }
+
+    @Test
+    public void testStatisticsMatchDirectComputation() throws InterruptedException {
+        final List<MBFImage> images = images(new Random(1), 50);
+        final ImageAccumulator result = reduce(images, 4);
+
+        assertEquals(50, result.getCount());
+
+        for (int b = 0; b < 3; b++) {
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    double sum = 0, squares = 0;
+                    float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+
+                    for (final MBFImage image : images) {
+                        final float value = image.getBand(b).pixels[y][x];
+                        sum += value;
+                        squares += value * value;
+                        min = Math.min(min, value);
+                        max = Math.max(max, value);
+                    }
+
+                    final double mean = sum / images.size();
+                    assertEquals(mean, result.getMean().getBand(b).pixels[y][x], 1e-6);
+                    assertEquals(squares / images.size() - mean * mean, result.getVariance().getBand(b).pixels[y][x], 1e-6);
+                    assertEquals(min, result.getMin().getBand(b).pixels[y][x], 0);
+                    assertEquals(max, result.getMax().getBand(b).pixels[y][x], 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testResultDoesNotDependOnThreads() throws InterruptedException {
+        final List<MBFImage> images = images(new Random(2), 37);
+        final MBFImage expected = reduce(images, 1).getMean();
+
+        for (int threads = 2; threads <= 5; threads++) {
+            final MBFImage actual = reduce(images, threads).getMean();
+
+            for (int b = 0; b < 3; b++)
+                for (int y = 0; y < HEIGHT; y++)
+                    assertTrue(Arrays.equals(expected.getBand(b).pixels[y], actual.getBand(b).pixels[y]));
+        }
+    }
+
+    @Test
+    public void testBorderMatchesDrawingOntoBackground() {
+        final Float[] white = { 1f, 1f, 1f };
+        final ImageAccumulator drawn = new ImageAccumulator(WIDTH, HEIGHT, ColourSpace.RGB);
+        final ImageAccumulator bordered = new ImageAccumulator(WIDTH, HEIGHT, ColourSpace.RGB, white);
+        final ImageAccumulator other = new ImageAccumulator(WIDTH, HEIGHT, ColourSpace.RGB, white);
+        final Random random = new Random(3);
+
+        for (int i = 0; i < 20; i++) {
+            final int x0 = random.nextInt(WIDTH), x1 = x0 + random.nextInt(WIDTH - x0 + 1);
+            final int y0 = random.nextInt(HEIGHT), y1 = y0 + random.nextInt(HEIGHT - y0 + 1);
+            final MBFImage image = new MBFImage(WIDTH, HEIGHT, ColourSpace.RGB);
+            final ImageAccumulator into = i % 2 == 0 ? bordered : other;
+
+            for (int b = 0; b < 3; b++) {
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        final boolean inside = x >= x0 && x < x1 && y >= y0 && y < y1;
+                        image.getBand(b).pixels[y][x] = inside ? random.nextFloat() * 0.5f : 1f;
+
+                        if (inside)
+                            into.addValue(b, y * WIDTH + x, image.getBand(b).pixels[y][x]);
+                    }
+                }
+            }
+
+            drawn.add(image);
+            into.addBorder(x0, y0, x1, y1);
+            into.addCount(1);
+        }
+
+        bordered.combine(other);
+
+        for (int b = 0; b < 3; b++) {
+            for (int y = 0; y < HEIGHT; y++) {
+                assertTrue(Arrays.equals(drawn.getMean().getBand(b).pixels[y], bordered.getMean().getBand(b).pixels[y]));
+                assertTrue(Arrays.equals(drawn.getVariance().getBand(b).pixels[y], bordered.getVariance().getBand(b).pixels[y]));
+                assertTrue(Arrays.equals(drawn.getMin().getBand(b).pixels[y], bordered.getMin().getBand(b).pixels[y]));
+                assertTrue(Arrays.equals(drawn.getMax().getBand(b).pixels[y], bordered.getMax().getBand(b).pixels[y]));
+            }
+        }
+    }
+}